@@ -0,0 +1,40 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.NucleiMasker;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks the anisotropic diffusion of step 2 of the masker, on the
+ * output of step 1.
+ */
+public class AnisotropicDiffusionBenchmark extends StageBenchmark
+{
+
+	@Param( { "1", "5", "10" } )
+	public int iterations;
+
+	private NucleiMasker< ? > masker;
+
+	@Override
+	protected void prepare()
+	{
+		final double[] params = NucleiMasker.DEFAULT_MASKING_PARAMETERS.clone();
+		params[ 1 ] = iterations;
+		masker = createMasker();
+		masker.setParameters( params );
+		check( masker.execStep1(), masker.getErrorMessage() );
+	}
+
+	@Benchmark
+	public ArrayImg< FloatType, FloatArray > anisotropicDiffusion()
+	{
+		// Step 2 restarts from the output of step 1 each time.
+		check( masker.execStep2(), masker.getErrorMessage() );
+		return masker.getAnisotropicDiffusionImage();
+	}
+}
@@ -0,0 +1,112 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.phantom.NucleiPhantomGenerator;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Generates the synthetic nuclei images the benchmarks run on.
+ * <p>
+ * Images are 3D, with a Z size of 1 for 2D sizes. They are single-frame
+ * phantoms made by {@link NucleiPhantomGenerator} with its default nucleus
+ * shape and density, copied to an {@link ArrayImg} of the requested type.
+ * The same size, pixel type and seed always yield the same image, so that
+ * benchmark runs are comparable.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class BenchmarkImages
+{
+
+	private BenchmarkImages()
+	{}
+
+	/**
+	 * Parses a size specification such as <code>512x512</code> or
+	 * <code>512x512x20</code> into 3D dimensions.
+	 */
+	public static long[] parseSize( final String size )
+	{
+		final String[] tokens = size.toLowerCase().split( "x" );
+		if ( tokens.length < 2 || tokens.length > 3 )
+			throw new IllegalArgumentException( "Size must be WxH or WxHxD. Got " + size + "." );
+
+		final long[] dims = new long[] { 1, 1, 1 };
+		for ( int d = 0; d < tokens.length; d++ )
+		{
+			dims[ d ] = Long.parseLong( tokens[ d ].trim() );
+		}
+		return dims;
+	}
+
+	/**
+	 * Creates a synthetic nuclei image.
+	 *
+	 * @param size
+	 *            the image size, as understood by {@link #parseSize(String)}.
+	 * @param pixelType
+	 *            the pixel type: <code>uint8</code>, <code>uint16</code> or
+	 *            <code>float32</code>.
+	 * @param seed
+	 *            the seed of the phantom.
+	 * @return a new image.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static Img create( final String size, final String pixelType, final long seed )
+	{
+		final long[] dims = parseSize( size );
+
+		final RealType type;
+		final int bitDepth;
+		if ( "uint8".equals( pixelType ) )
+		{
+			type = new UnsignedByteType();
+			bitDepth = 8;
+		}
+		else if ( "uint16".equals( pixelType ) )
+		{
+			type = new UnsignedShortType();
+			bitDepth = 16;
+		}
+		else if ( "float32".equals( pixelType ) )
+		{
+			type = new FloatType();
+			bitDepth = 32;
+		}
+		else
+		{
+			throw new IllegalArgumentException( "Unknown pixel type: " + pixelType + "." );
+		}
+
+		final NucleiPhantomGenerator generator = new NucleiPhantomGenerator();
+		generator.setSize( ( int ) dims[ 0 ], ( int ) dims[ 1 ], ( int ) dims[ 2 ] );
+		generator.setBitDepth( bitDepth );
+		generator.setGenerateLabels( false );
+		generator.setSeed( seed );
+		if ( !( generator.checkInput() && generator.process() ) )
+			throw new IllegalArgumentException( generator.getErrorMessage() );
+		final ImageStack stack = generator.getResult().getImage().getStack();
+
+		final Img img = new ArrayImgFactory().create( dims, ( NativeType ) type );
+		final Cursor< RealType > cursor = img.cursor();
+		for ( int z = 0; z < dims[ 2 ]; z++ )
+		{
+			final ImageProcessor ip = stack.getProcessor( z + 1 );
+			final int nPixels = ip.getPixelCount();
+			for ( int i = 0; i < nPixels; i++ )
+			{
+				cursor.next().setReal( ip.getf( i ) );
+			}
+		}
+		return img;
+	}
+}
@@ -0,0 +1,39 @@
+package fiji.plugin.cwnt.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the segmentation stages, and exports the results as
+ * JSON for trend tracking.
+ * <p>
+ * Arguments are regular JMH command-line options; for instance
+ * <code>-p size=256x256 -p threads=1 NucleiMasker</code>. Results are
+ * written to <code>target/jmh-result.json</code> unless <code>-rff</code> is
+ * specified.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class BenchmarkRunner
+{
+
+	private static final String DEFAULT_RESULT_FILE = "target/jmh-result.json";
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final CommandLineOptions cmdOptions = new CommandLineOptions( args );
+		final OptionsBuilder builder = new OptionsBuilder();
+		builder.parent( cmdOptions );
+		if ( cmdOptions.getIncludes().isEmpty() )
+			builder.include( BenchmarkRunner.class.getPackage().getName() + ".*" );
+		builder.resultFormat( ResultFormatType.JSON );
+		if ( !cmdOptions.getResult().hasValue() )
+			builder.result( DEFAULT_RESULT_FILE );
+
+		final Options options = builder.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,30 @@
+package fiji.plugin.cwnt.benchmark;
+
+import mpicbg.imglib.algorithm.gauss.GaussianFilter2D;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks the low-pass filtering of step 1 of the masker.
+ */
+@SuppressWarnings( "deprecation" )
+public class GaussianFilterBenchmark extends StageBenchmark
+{
+
+	@Param( { "0.5", "2" } )
+	public double sigma;
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	@Benchmark
+	public ArrayImg< FloatType, FloatArray > gaussianFilter()
+	{
+		final GaussianFilter2D filter = new GaussianFilter2D( source, new double[] { sigma, sigma } );
+		filter.setNumThreads( threads );
+		check( filter.checkInput() && filter.process(), filter.getErrorMessage() );
+		return filter.getResult();
+	}
+}
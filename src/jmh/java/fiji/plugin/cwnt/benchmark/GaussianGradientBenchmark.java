@@ -0,0 +1,41 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.NucleiMasker;
+import mpicbg.imglib.algorithm.gauss.GaussianGradient2D;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Benchmarks the gaussian gradient of step 3 of the masker, on the
+ * anisotropic diffusion output.
+ */
+@SuppressWarnings( "deprecation" )
+public class GaussianGradientBenchmark extends StageBenchmark
+{
+
+	@Param( { "1", "3" } )
+	public double sigma;
+
+	private ArrayImg< FloatType, FloatArray > diffused;
+
+	@Override
+	protected void prepare()
+	{
+		final NucleiMasker< ? > masker = createMasker();
+		check( masker.execStep1() && masker.execStep2(), masker.getErrorMessage() );
+		diffused = masker.getAnisotropicDiffusionImage();
+	}
+
+	@Benchmark
+	public ArrayImg< FloatType, FloatArray > gaussianGradient()
+	{
+		final GaussianGradient2D< FloatType > gradient = new GaussianGradient2D< FloatType >( diffused, sigma );
+		gradient.setNumThreads( threads );
+		check( gradient.checkInput() && gradient.process(), gradient.getErrorMessage() );
+		return gradient.getResult();
+	}
+}
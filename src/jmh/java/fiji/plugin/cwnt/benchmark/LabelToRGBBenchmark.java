@@ -0,0 +1,35 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.LabelGenerator;
+import fiji.plugin.cwnt.segmentation.LabelToRGB;
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Benchmarks the conversion of the labeling to a color image.
+ */
+@SuppressWarnings( "deprecation" )
+public class LabelToRGBBenchmark extends StageBenchmark
+{
+
+	private ImgLabeling< Integer, UnsignedIntType > labeling;
+
+	@Override
+	protected void prepare()
+	{
+		labeling = label( threshold(), new LabelGenerator() );
+	}
+
+	@Benchmark
+	public Img< ARGBType > labelToRGB()
+	{
+		final LabelToRGB converter = new LabelToRGB( labeling );
+		converter.setNumThreads( threads );
+		check( converter.checkInput() && converter.process(), converter.getErrorMessage() );
+		return converter.getResult();
+	}
+}
@@ -0,0 +1,30 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.LabelGenerator;
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Benchmarks the connected-component labeling of the thresholded mask.
+ */
+public class LabelingBenchmark extends StageBenchmark
+{
+
+	private Img< BitType > thresholded;
+
+	@Override
+	protected void prepare()
+	{
+		thresholded = threshold();
+	}
+
+	@Benchmark
+	public ImgLabeling< Integer, UnsignedIntType > labelConnectedComponents()
+	{
+		return label( thresholded, new LabelGenerator() );
+	}
+}
@@ -0,0 +1,23 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.NucleiMasker;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Benchmarks the whole crown-wearing mask computation.
+ */
+public class NucleiMaskerBenchmark extends StageBenchmark
+{
+
+	@Benchmark
+	public ArrayImg< FloatType, FloatArray > process()
+	{
+		final NucleiMasker< ? > masker = createMasker();
+		check( masker.checkInput() && masker.process(), masker.getErrorMessage() );
+		return masker.getResult();
+	}
+}
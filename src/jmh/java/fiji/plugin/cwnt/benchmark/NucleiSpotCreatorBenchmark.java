@@ -0,0 +1,64 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
+import fiji.plugin.cwnt.segmentation.LabelGenerator;
+import fiji.plugin.cwnt.segmentation.NucleiSpotCreator;
+import fiji.plugin.trackmate.Spot;
+
+import java.util.List;
+
+import net.imglib2.img.Img;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * Benchmarks the size filtering, splitting and spot creation from the
+ * labeling of the thresholded mask.
+ */
+@SuppressWarnings( "deprecation" )
+public class NucleiSpotCreatorBenchmark extends StageBenchmark
+{
+
+	private static final double[] CALIBRATION = new double[] { 1, 1, 1 };
+
+	@Param( { "true", "false" } )
+	public boolean splitNuclei;
+
+	private Img< BitType > thresholded;
+
+	private ImgLabeling< Integer, UnsignedIntType > labeling;
+
+	private LabelGenerator labelGenerator;
+
+	@Override
+	protected void prepare()
+	{
+		thresholded = threshold();
+	}
+
+	/**
+	 * Splitting modifies the labeling, so a fresh one is made for each
+	 * invocation.
+	 */
+	@Setup( Level.Invocation )
+	public void relabel()
+	{
+		labelGenerator = new LabelGenerator();
+		labeling = label( thresholded, labelGenerator );
+	}
+
+	@Benchmark
+	public List< Spot > createSpots()
+	{
+		final NucleiSpotCreator creator = new NucleiSpotCreator( labeling, CALIBRATION, labelGenerator, CrownWearingSegmenterFactory.createSizeFilter( DEFAULT_SETTINGS ), splitNuclei );
+		creator.setNumThreads( threads );
+		check( creator.checkInput() && creator.process(), creator.getErrorMessage() );
+		return creator.getResult();
+	}
+}
@@ -0,0 +1,37 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
+import fiji.plugin.cwnt.segmentation.OtsuThresholder2D;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Benchmarks the Otsu thresholding of the crown-wearing mask.
+ */
+@SuppressWarnings( "deprecation" )
+public class OtsuThresholderBenchmark extends StageBenchmark
+{
+
+	private ArrayImg< FloatType, FloatArray > masked;
+
+	@Override
+	protected void prepare()
+	{
+		masked = mask();
+	}
+
+	@Benchmark
+	public Img< BitType > threshold()
+	{
+		final double factor = ( Double ) DEFAULT_SETTINGS.get( CrownWearingSegmenterFactory.THRESHOLD_FACTOR_PARAMETER );
+		final OtsuThresholder2D< FloatType > thresholder = new OtsuThresholder2D< FloatType >( masked, factor );
+		thresholder.setNumThreads( threads );
+		check( thresholder.checkInput() && thresholder.process(), thresholder.getErrorMessage() );
+		return thresholder.getResult();
+	}
+}
@@ -0,0 +1,148 @@
+package fiji.plugin.cwnt.benchmark;
+
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
+import fiji.plugin.cwnt.segmentation.LabelGenerator;
+import fiji.plugin.cwnt.segmentation.NucleiMasker;
+import fiji.plugin.cwnt.segmentation.OtsuThresholder2D;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.algorithm.labeling.ConnectedComponents;
+import net.imglib2.algorithm.labeling.ConnectedComponents.StructuringElement;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Base class of the benchmarks of the segmentation stages. It holds the
+ * parameters common to all of them, and generates the source image once per
+ * trial.
+ * <p>
+ * Benchmarks run in a forked JVM with a 4 GB heap, enough for the default
+ * sizes. The largest size, <code>2048x2048x100</code>, needs about 16 GB and
+ * is not run by default. Run it with, for instance,
+ * <code>-Djmh.heap=16g -Djmh.args="-p size=2048x2048x100"</code>.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@SuppressWarnings( "deprecation" )
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Fork( value = 1, jvmArgsAppend = "-Xmx4g" )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 3 )
+public abstract class StageBenchmark
+{
+
+	/** The seed of the synthetic images. */
+	protected static final long SEED = 1l;
+
+	/** The default settings of the segmenter. */
+	@SuppressWarnings( "rawtypes" )
+	protected static final Map< String, Object > DEFAULT_SETTINGS = new CrownWearingSegmenterFactory().getDefaultSettings();
+
+	@Param( { "256x256", "1024x1024", "2048x2048", "512x512x20" } )
+	public String size;
+
+	@Param( { "uint8", "uint16", "float32" } )
+	public String pixelType;
+
+	@Param( { "1", "4" } )
+	public int threads;
+
+	/** The synthetic source image. */
+	@SuppressWarnings( "rawtypes" )
+	protected Img source;
+
+	@Setup( Level.Trial )
+	public void setUpSource() throws Exception
+	{
+		source = BenchmarkImages.create( size, pixelType, SEED );
+		prepare();
+	}
+
+	/**
+	 * Prepares the inputs of the stage benchmarked from the source image.
+	 * Called once per trial, after the source image is created.
+	 */
+	protected void prepare() throws Exception
+	{}
+
+	/*
+	 * PIPELINE METHODS, used to prepare the inputs of the later stages.
+	 */
+
+	/**
+	 * Returns a new masker on the source image, with default parameters.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	protected NucleiMasker createMasker()
+	{
+		final NucleiMasker masker = new NucleiMasker( source );
+		masker.setNumThreads( threads );
+		masker.setParameters( NucleiMasker.DEFAULT_MASKING_PARAMETERS );
+		return masker;
+	}
+
+	/**
+	 * Returns the crown-wearing mask of the source image.
+	 */
+	protected ArrayImg< FloatType, FloatArray > mask()
+	{
+		final NucleiMasker< ? > masker = createMasker();
+		check( masker.process(), masker.getErrorMessage() );
+		return masker.getResult();
+	}
+
+	/**
+	 * Returns the thresholded crown-wearing mask of the source image.
+	 */
+	protected Img< BitType > threshold()
+	{
+		final OtsuThresholder2D< FloatType > thresholder = new OtsuThresholder2D< FloatType >( mask(), ( Double ) DEFAULT_SETTINGS.get( CrownWearingSegmenterFactory.THRESHOLD_FACTOR_PARAMETER ) );
+		thresholder.setNumThreads( threads );
+		check( thresholder.process(), thresholder.getErrorMessage() );
+		return thresholder.getResult();
+	}
+
+	/**
+	 * Returns a new labeling of the connected components of the specified
+	 * thresholded image.
+	 */
+	protected ImgLabeling< Integer, UnsignedIntType > label( final Img< BitType > thresholded, final LabelGenerator labelGenerator )
+	{
+		final Img< UnsignedIntType > img = Util.getArrayOrCellImgFactory( thresholded, new UnsignedIntType() ).create( thresholded, new UnsignedIntType() );
+		final ImgLabeling< Integer, UnsignedIntType > labeling = new ImgLabeling< Integer, UnsignedIntType >( img );
+		final ExecutorService service = Executors.newFixedThreadPool( threads );
+		ConnectedComponents.labelAllConnectedComponents( thresholded, labeling, labelGenerator, StructuringElement.FOUR_CONNECTED, service );
+		service.shutdown();
+		return labeling;
+	}
+
+	protected static void check( final boolean ok, final String errorMessage )
+	{
+		if ( !ok )
+			throw new IllegalStateException( errorMessage );
+	}
+}
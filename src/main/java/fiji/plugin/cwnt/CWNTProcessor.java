@@ -0,0 +1,1273 @@
+package fiji.plugin.cwnt;
+
+import fiji.plugin.cwnt.batch.FrameCheckpoint;
+import fiji.plugin.cwnt.segmentation.ChunkedLabelStore;
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenter;
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
+import fiji.plugin.cwnt.segmentation.LabelColorVirtualStack;
+import fiji.plugin.cwnt.segmentation.MappedFrameSource;
+import fiji.plugin.cwnt.segmentation.MaskerStageCache;
+import fiji.plugin.cwnt.segmentation.LabelGenerator;
+import fiji.plugin.cwnt.segmentation.LabelPlaneWriter;
+import fiji.plugin.cwnt.segmentation.LabelToRGB;
+import fiji.plugin.cwnt.segmentation.NucleiSpotCreator;
+import fiji.plugin.cwnt.segmentation.SegmentationCostModel;
+import fiji.plugin.cwnt.segmentation.SegmentationEvents;
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics;
+import fiji.plugin.cwnt.tracking.IncrementalFrameLinker;
+import fiji.plugin.cwnt.tracking.ParallelFrameLinker;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Settings;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackMate;
+import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
+import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactory;
+import fiji.plugin.trackmate.features.track.TrackAnalyzer;
+import fiji.plugin.trackmate.providers.EdgeAnalyzerProvider;
+import fiji.plugin.trackmate.providers.SpotAnalyzerProvider;
+import fiji.plugin.trackmate.providers.TrackAnalyzerProvider;
+import fiji.plugin.trackmate.tracking.TrackerKeys;
+import fiji.plugin.trackmate.tracking.sparselap.SparseLAPTrackerFactory;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.NewImage;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.multithreading.SimpleMultiThreading;
+import net.imglib2.type.numeric.ARGBType;
+
+/**
+ * Runs the crown-wearing nuclei segmentation on all the frames of an image,
+ * then tracks the nuclei found, without any user interface.
+ * <p>
+ * This is the processing behind the "Go" button of {@link CWNT_}, and behind
+ * the headless batch entry point. It only reads its input from the settings
+ * map and the flags set on it, and reports progress through a TrackMate
+ * {@link Logger}. Label images are created but not shown.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@SuppressWarnings( "deprecation" )
+public class CWNTProcessor extends MultiThreadedBenchmarkAlgorithm
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[CWNTProcessor] ";
+
+	/** Max number of frames bridged by gap closing. */
+	private static final int MAX_FRAME_GAP = 2;
+
+	private static final String GRID_LINKER_NOTE = "Tracking with the CWNS grid linker. The saved tracker settings are those of "
+			+ "the equivalent sparse LAP tracker, which did not run.\n";
+
+	/**
+	 * Interface for listeners notified of the remaining duration of the
+	 * segmentation, each time a frame is done.
+	 */
+	public static interface EstimateListener
+	{
+		public void estimateChanged( String estimate );
+	}
+
+	/**
+	 * Interface for listeners notified each time a frame is segmented, for
+	 * instance to save its results as soon as they are available. When they
+	 * are notified, the planes of the frame in the label image, if any, are
+	 * written.
+	 */
+	public static interface FrameListener
+	{
+		/**
+		 * Called from a segmentation thread when a frame is segmented.
+		 *
+		 * @return <code>false</code> to stop the segmentation with an error.
+		 */
+		public boolean frameSegmented( int frame, List< Spot > spots );
+	}
+
+	/**
+	 * Interface for listeners that receive the label planes of each frame as
+	 * soon as it is segmented, without the label image of the whole movie
+	 * being allocated. They are notified before the {@link FrameListener}.
+	 */
+	public static interface LabelListener
+	{
+		/**
+		 * Called from a segmentation thread when the labels of a frame are
+		 * written.
+		 *
+		 * @param planes
+		 *            the label planes of the frame, one <code>int[]</code>
+		 *            array per Z slice. They are not reused after the call.
+		 * @return <code>false</code> to stop the segmentation with an error.
+		 */
+		public boolean labelsSegmented( int frame, Object[] planes );
+	}
+
+	private final ImagePlus imp;
+
+	private final Map< String, Object > detectorSettings;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	private SegmentationCostModel costModel = new SegmentationCostModel();
+
+	private EstimateListener estimateListener;
+
+	private boolean generateLabels = false;
+
+	private boolean generateColorLabels = false;
+
+	private boolean use32BitLabels = false;
+
+	private boolean virtualColorLabels = false;
+
+	private int maxSimultaneousFrames = Integer.MAX_VALUE;
+
+	private boolean doTracking = true;
+
+	private boolean segmentationOnly = false;
+
+	private boolean incrementalTracking = false;
+
+	private boolean adaptiveLinkingRadius = false;
+
+	private boolean gridLinking = false;
+
+	/** If <code>NaN</code>, estimated from the radius of the nuclei. */
+	private double maxLinkingDistance = Double.NaN;
+
+	/** The frames to segment. If <code>null</code>, all of them. */
+	private int[] frames;
+
+	private FrameListener frameListener;
+
+	private LabelListener labelListener;
+
+	/** Where to save frames as they are done. If <code>null</code>, nowhere. */
+	private File checkpointFolder;
+
+	/** The checkpoint of the current run, if any. */
+	private FrameCheckpoint checkpoint;
+
+	private MaskerStageCache stageCache;
+
+	private ChunkedLabelStore labelStore;
+
+	private SpotStreamWriter spotStream;
+
+	/*
+	 * OUTPUTS
+	 */
+
+	private Settings settings;
+
+	private Model model;
+
+	private ImagePlus labelImp;
+
+	private ImagePlus rgbImp;
+
+	private SegmentationMetrics metrics = SegmentationMetrics.DISABLED;
+
+	/** Links frames as they are segmented, in incremental tracking mode. */
+	private IncrementalFrameLinker frameLinker;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new processor.
+	 *
+	 * @param imp
+	 *            the image to segment.
+	 * @param detectorSettings
+	 *            the segmenter settings, with the keys of
+	 *            {@link CrownWearingSegmenterFactory#PARAMETER_NAMES}.
+	 */
+	public CWNTProcessor( final ImagePlus imp, final Map< String, Object > detectorSettings )
+	{
+		super();
+		this.imp = imp;
+		this.detectorSettings = detectorSettings;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == imp )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Image is null.";
+			return false;
+		}
+		if ( null == detectorSettings )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Segmenter settings are null.";
+			return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings( "rawtypes" )
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		settings = createSettings( imp );
+		settings.detectorFactory = new CrownWearingSegmenterFactory();
+		settings.detectorSettings = detectorSettings;
+		final SpotCollection spots = execSegmentation( settings );
+		if ( null == spots )
+			return false;
+
+		model = createModel( spots, settings );
+		if ( !segmentationOnly && !execAnalysis( model, settings ) )
+			return false;
+
+		if ( null != checkpoint )
+		{
+			// The run is complete, there is nothing left to resume.
+			try
+			{
+				checkpoint.delete();
+				logger.log( "Deleted checkpoint " + checkpoint.getFolder() + ".\n" );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Could not delete checkpoint: " + e.getMessage() + "\n" );
+			}
+			checkpoint = null;
+		}
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Skips the segmentation, and builds the model from spots that were
+	 * already segmented, for instance by several worker processes. Spot
+	 * features are computed, and nuclei are tracked if required.
+	 *
+	 * @param spots
+	 *            the segmented spots, for all frames.
+	 * @return <code>true</code> if processing went fine.
+	 */
+	@SuppressWarnings( "rawtypes" )
+	public boolean process( final SpotCollection spots )
+	{
+		final long start = System.currentTimeMillis();
+
+		settings = createSettings( imp );
+		settings.detectorFactory = new CrownWearingSegmenterFactory();
+		settings.detectorSettings = detectorSettings;
+		spots.setVisible( true );
+		frameLinker = null;
+		model = createModel( spots, settings );
+		if ( !execAnalysis( model, settings ) )
+			return false;
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Returns the TrackMate model holding the nuclei and their tracks.
+	 */
+	public Model getModel()
+	{
+		return model;
+	}
+
+	/**
+	 * Returns the TrackMate settings the model was built with.
+	 */
+	public Settings getSettings()
+	{
+		return settings;
+	}
+
+	/**
+	 * Returns the label image, or <code>null</code> if it was not generated.
+	 */
+	public ImagePlus getLabelImage()
+	{
+		return labelImp;
+	}
+
+	/**
+	 * Returns the colored label image, or <code>null</code> if it was not
+	 * generated.
+	 */
+	public ImagePlus getColorLabelImage()
+	{
+		return rgbImp;
+	}
+
+	/**
+	 * Sets the metrics the duration and peak memory of each stage of each
+	 * frame are recorded in. Default is {@link SegmentationMetrics#DISABLED},
+	 * which records nothing.
+	 */
+	public void setMetrics( final SegmentationMetrics metrics )
+	{
+		this.metrics = null == metrics ? SegmentationMetrics.DISABLED : metrics;
+	}
+
+	/**
+	 * Returns the metrics of each stage of each frame.
+	 */
+	public SegmentationMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Dumps the stage metrics as CSV and JSON files.
+	 *
+	 * @param folder
+	 *            the folder to write in.
+	 * @param baseName
+	 *            the file name, without extension.
+	 * @throws IOException
+	 *             if a file cannot be written.
+	 */
+	public void writeMetrics( final File folder, final String baseName ) throws IOException
+	{
+		final File csvFile = new File( folder, baseName + ".csv" );
+		final File jsonFile = new File( folder, baseName + ".json" );
+		final Writer csvWriter = new FileWriter( csvFile );
+		try
+		{
+			metrics.writeCSV( csvWriter );
+		}
+		finally
+		{
+			csvWriter.close();
+		}
+		final Writer jsonWriter = new FileWriter( jsonFile );
+		try
+		{
+			metrics.writeJSON( jsonWriter );
+		}
+		finally
+		{
+			jsonWriter.close();
+		}
+		logger.log( "Stage metrics saved to " + csvFile + " and " + jsonFile + ".\n" );
+	}
+
+	/*
+	 * SETTERS
+	 */
+
+	public void setLogger( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the cost model used to estimate the duration of the
+	 * segmentation. It is calibrated after each frame.
+	 */
+	public void setCostModel( final SegmentationCostModel costModel )
+	{
+		this.costModel = costModel;
+	}
+
+	public void setEstimateListener( final EstimateListener estimateListener )
+	{
+		this.estimateListener = estimateListener;
+	}
+
+	/**
+	 * Sets what label images are generated.
+	 *
+	 * @param labels
+	 *            whether to generate the label image.
+	 * @param use32Bit
+	 *            whether the label image is 32-bit rather than 16-bit.
+	 * @param colorLabels
+	 *            whether to generate the colored label image.
+	 * @param virtual
+	 *            whether the colored label image is rendered on demand from
+	 *            the labelings, rather than computed for all frames.
+	 */
+	public void setLabelOptions( final boolean labels, final boolean use32Bit, final boolean colorLabels, final boolean virtual )
+	{
+		this.generateLabels = labels;
+		this.use32BitLabels = use32Bit;
+		this.generateColorLabels = colorLabels;
+		this.virtualColorLabels = virtual;
+	}
+
+	/**
+	 * Sets the max number of frames segmented at once, to bound the memory
+	 * used. By default, there are as many as threads.
+	 */
+	public void setMaxSimultaneousFrames( final int maxSimultaneousFrames )
+	{
+		this.maxSimultaneousFrames = Math.max( 1, maxSimultaneousFrames );
+	}
+
+	/**
+	 * Sets the frames to segment, 0-based. By default, all frames are.
+	 */
+	public void setFrames( final int[] frames )
+	{
+		this.frames = frames.clone();
+	}
+
+	public void setFrameListener( final FrameListener frameListener )
+	{
+		this.frameListener = frameListener;
+	}
+
+	/**
+	 * Sets a listener that receives the label planes of each segmented frame.
+	 * Only this frame is held in memory, so there is no need to generate the
+	 * label image with {@link #setLabelOptions(boolean, boolean, boolean, boolean)}.
+	 */
+	public void setLabelListener( final LabelListener labelListener )
+	{
+		this.labelListener = labelListener;
+	}
+
+	/**
+	 * Sets the folder where the results of each frame are saved as soon as
+	 * the frame is segmented. If the folder holds results of a previous run
+	 * with the same image and parameters, the frames done are loaded rather
+	 * than segmented again. The checkpoint is deleted once the run
+	 * completes. If <code>null</code>, the default, nothing is saved.
+	 *
+	 * @see FrameCheckpoint
+	 */
+	public void setCheckpointFolder( final File checkpointFolder )
+	{
+		this.checkpointFolder = checkpointFolder;
+	}
+
+	/**
+	 * Sets the cache the outputs of the masking steps of each frame are
+	 * looked up in and stored in. With a
+	 * {@link fiji.plugin.cwnt.segmentation.DiskMaskerStageCache}, rerunning a
+	 * movie with only the thresholding or splitting parameters changed skips
+	 * the masking steps. If <code>null</code>, the default, nothing is cached.
+	 */
+	public void setStageCache( final MaskerStageCache stageCache )
+	{
+		this.stageCache = stageCache;
+	}
+
+	/**
+	 * Sets the store the labels of each frame are written to, as soon as the
+	 * frame is segmented. Unlike the label image, the store does not need to
+	 * fit in memory. Frames loaded from the checkpoint, if any, are written
+	 * to the store again. If <code>null</code>, the default, labels are not
+	 * stored.
+	 */
+	public void setLabelStore( final ChunkedLabelStore labelStore )
+	{
+		this.labelStore = labelStore;
+	}
+
+	/**
+	 * Sets the stream the spots of each frame are appended to, as soon as the
+	 * frame is segmented. Frames loaded from the checkpoint are appended
+	 * first. The stream is not closed by this processor. If
+	 * <code>null</code>, the default, spots are not streamed.
+	 *
+	 * @see SpotStreamReader
+	 */
+	public void setSpotStream( final SpotStreamWriter spotStream )
+	{
+		this.spotStream = spotStream;
+	}
+
+	/**
+	 * Sets whether to stop after segmentation, without computing features nor
+	 * tracking.
+	 */
+	public void setSegmentationOnly( final boolean segmentationOnly )
+	{
+		this.segmentationOnly = segmentationOnly;
+	}
+
+	/**
+	 * Sets whether nuclei are tracked after segmentation.
+	 */
+	public void setDoTracking( final boolean doTracking )
+	{
+		this.doTracking = doTracking;
+	}
+
+	/**
+	 * Sets whether frames are linked as soon as they are segmented, in frame
+	 * order, rather than once all of them are done. Tracking then overlaps
+	 * with segmentation. Gaps are closed within a rolling window of frames,
+	 * and tracks are not merged nor split. Ignored when the spots are given
+	 * to {@link #process(SpotCollection)}.
+	 *
+	 * @see IncrementalFrameLinker
+	 */
+	public void setIncrementalTracking( final boolean incrementalTracking )
+	{
+		this.incrementalTracking = incrementalTracking;
+	}
+
+	/**
+	 * Sets whether the linking radius adapts to the local density of nuclei,
+	 * frame by frame and region by region, rather than being twice the mean
+	 * radius everywhere. Dense regions then yield small cost matrices, and
+	 * nuclei moving fast in sparse regions are not lost.
+	 *
+	 * @see fiji.plugin.cwnt.tracking.LinkingRadiusModel
+	 */
+	public void setAdaptiveLinkingRadius( final boolean adaptiveLinkingRadius )
+	{
+		this.adaptiveLinkingRadius = adaptiveLinkingRadius;
+	}
+
+	/**
+	 * Sets whether nuclei are tracked after segmentation with the grid
+	 * linker of CWNS, which solves the frame to frame LAPs in parallel from
+	 * spatially indexed costs, rather than with the sparse LAP tracker of
+	 * TrackMate, the default. The grid linker closes gaps frame by frame
+	 * rather than in one global LAP. It is always used with an adaptive
+	 * linking radius.
+	 *
+	 * @see ParallelFrameLinker
+	 */
+	public void setGridLinking( final boolean gridLinking )
+	{
+		this.gridLinking = gridLinking;
+	}
+
+	/**
+	 * Sets the max linking distance, in physical units. Gaps are closed up to
+	 * twice this distance. If <code>NaN</code>, the default, it is estimated
+	 * as twice the mean radius of the nuclei: of all of them when tracking
+	 * after segmentation, of the first frame with nuclei when tracking
+	 * incrementally.
+	 */
+	public void setMaxLinkingDistance( final double maxLinkingDistance )
+	{
+		this.maxLinkingDistance = maxLinkingDistance;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static Settings createSettings( final ImagePlus imp )
+	{
+		final Settings settings = new Settings();
+		settings.setFrom( imp );
+
+		settings.clearSpotAnalyzerFactories();
+		final SpotAnalyzerProvider spotAnalyzerProvider = new SpotAnalyzerProvider();
+		final List< String > spotAnalyzerKeys = spotAnalyzerProvider.getKeys();
+		for ( final String key : spotAnalyzerKeys )
+		{
+			final SpotAnalyzerFactory< ? > spotFeatureAnalyzer = spotAnalyzerProvider.getFactory( key );
+			settings.addSpotAnalyzerFactory( spotFeatureAnalyzer );
+		}
+
+		settings.clearEdgeAnalyzers();
+		final EdgeAnalyzerProvider edgeAnalyzerProvider = new EdgeAnalyzerProvider();
+		final List< String > edgeAnalyzerKeys = edgeAnalyzerProvider.getKeys();
+		for ( final String key : edgeAnalyzerKeys )
+		{
+			final EdgeAnalyzer edgeAnalyzer = edgeAnalyzerProvider.getFactory( key );
+			settings.addEdgeAnalyzer( edgeAnalyzer );
+		}
+
+		settings.clearTrackAnalyzers();
+		final TrackAnalyzerProvider trackAnalyzerProvider = new TrackAnalyzerProvider();
+		final List< String > trackAnalyzerKeys = trackAnalyzerProvider.getKeys();
+		for ( final String key : trackAnalyzerKeys )
+		{
+			final TrackAnalyzer trackAnalyzer = trackAnalyzerProvider.getFactory( key );
+			settings.addTrackAnalyzer( trackAnalyzer );
+		}
+		return settings;
+	}
+
+	private Model createModel( final SpotCollection spots, final Settings settings )
+	{
+		final Model model = new Model();
+		NucleiSpotCreator.declareFeatures( model.getFeatureModel() );
+		model.setSpots( spots, false );
+		model.setPhysicalUnits( settings.imp.getCalibration().getUnit(), settings.imp.getCalibration().getTimeUnit() );
+		model.setLogger( logger );
+		return model;
+	}
+
+	/**
+	 * Computes features, and tracks if required.
+	 */
+	private boolean execAnalysis( final Model model, final Settings settings )
+	{
+		final TrackMate trackmate = new TrackMate( model, settings );
+		trackmate.setNumThreads( numThreads );
+		trackmate.computeSpotFeatures( true );
+
+		if ( doTracking )
+		{
+			if ( null != frameLinker && frameLinker.isComplete() )
+				applyLinks( model, settings );
+			else if ( !execTracking( model, settings ) )
+				return false;
+			trackmate.computeTrackFeatures( true );
+			trackmate.computeEdgeFeatures( true );
+		}
+		return true;
+	}
+
+	private boolean execTracking( final Model model, final Settings settings )
+	{
+		final long start = System.currentTimeMillis();
+		if ( model.getSpots().getNSpots( true ) == 0 )
+		{
+			logger.log( "No nuclei to track.\n" );
+			return true;
+		}
+
+		final double maxDist;
+		if ( Double.isNaN( maxLinkingDistance ) )
+		{
+			// Evaluate max dist
+			logger.log( "Evaluating max linking distance...\n" );
+			double sum = 0;
+			for ( final Spot spot : model.getSpots().iterable( true ) )
+			{
+				sum += spot.getFeature( Spot.RADIUS );
+			}
+			maxDist = 2 * sum / model.getSpots().getNSpots( true );
+			logger.log( String.format( "Max linking distance evaluated to %.1f %s.\n", maxDist, model.getSpaceUnits() ) );
+		}
+		else
+		{
+			maxDist = maxLinkingDistance;
+		}
+		setTracker( settings, maxDist );
+
+		logger.log( "Performing track linking...\n" );
+		logger.setStatus( "Tracking..." );
+
+		if ( !gridLinking && !adaptiveLinkingRadius )
+		{
+			final TrackMate trackmate = new TrackMate( model, settings );
+			trackmate.setNumThreads( numThreads );
+			if ( !trackmate.execTracking() )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + trackmate.getErrorMessage();
+				logger.error( errorMessage + "\n" );
+				return false;
+			}
+			final long end = System.currentTimeMillis();
+			logger.log( String.format( "Track linking completed in %.1f s.\n", ( ( end - start ) / 1e3 ) ) );
+			logger.log( String.format( "Found %d tracks.\n", model.getTrackModel().nTracks( true ) ) );
+			return true;
+		}
+
+		// Frame pairs are linked in parallel, from spatially indexed costs.
+		logger.log( GRID_LINKER_NOTE );
+		final ParallelFrameLinker linker = new ParallelFrameLinker( model.getSpots(), maxDist, MAX_FRAME_GAP );
+		linker.setNumThreads( numThreads );
+		linker.setAdaptiveRadius( adaptiveLinkingRadius );
+		if ( adaptiveLinkingRadius )
+			logger.log( "Linking radius adapted to the local density of nuclei.\n" );
+		if ( !linker.checkInput() || !linker.process() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + linker.getErrorMessage();
+			logger.error( errorMessage + "\n" );
+			return false;
+		}
+		linker.applyTo( model );
+		logger.log( String.format( "%d links, of which %d close gaps.\n", linker.getNLinks(), linker.getNGapsClosed() ) );
+
+		final long end = System.currentTimeMillis();
+		logger.log( String.format( "Track linking completed in %.1f s.\n", ( ( end - start ) / 1e3 ) ) );
+		logger.log( String.format( "Found %d tracks.\n", model.getTrackModel().nTracks( true ) ) );
+		return true;
+	}
+
+	/**
+	 * Adds the links found while segmenting to the model.
+	 */
+	private void applyLinks( final Model model, final Settings settings )
+	{
+		frameLinker.applyTo( model );
+		setTracker( settings, frameLinker.getMaxDistance() );
+		logger.log( GRID_LINKER_NOTE );
+		logger.log( String.format( "Frames linked while segmenting, %d links of which %d close gaps, max distance %.1f %s%s.\n",
+				frameLinker.getNLinks(), frameLinker.getNGapsClosed(), frameLinker.getMaxDistance(), model.getSpaceUnits(),
+				frameLinker.isAdaptiveRadius() ? ", adapted to the local density" : "" ) );
+		logger.log( String.format( "Found %d tracks.\n", model.getTrackModel().nTracks( true ) ) );
+	}
+
+	/**
+	 * Returns the largest label of the specified planes, read from a
+	 * checkpoint as <code>float[]</code> or <code>short[]</code> arrays.
+	 */
+	private static int getMaxLabel( final Object[] planes )
+	{
+		int max = 0;
+		for ( final Object plane : planes )
+		{
+			if ( plane instanceof short[] )
+			{
+				for ( final short val : ( short[] ) plane )
+				{
+					max = Math.max( max, val & 0xffff );
+				}
+			}
+			else
+			{
+				for ( final float val : ( float[] ) plane )
+				{
+					max = Math.max( max, ( int ) val );
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Configures the sparse LAP tracker of TrackMate in the specified
+	 * settings. When the grid linker of CWNS tracks instead, the settings
+	 * record the equivalent sparse LAP tracker, since TrackMate cannot save
+	 * another one.
+	 */
+	private static void setTracker( final Settings settings, final double maxDist )
+	{
+		final SparseLAPTrackerFactory trackerFactory = new SparseLAPTrackerFactory();
+		settings.trackerFactory = trackerFactory;
+
+		final Map< String, Object > trackerSettings = trackerFactory.getDefaultSettings();
+		trackerSettings.put( TrackerKeys.KEY_ALLOW_GAP_CLOSING, true );
+		trackerSettings.put( TrackerKeys.KEY_ALLOW_TRACK_MERGING, false );
+		trackerSettings.put( TrackerKeys.KEY_ALLOW_TRACK_SPLITTING, false );
+		trackerSettings.put( TrackerKeys.KEY_LINKING_MAX_DISTANCE, maxDist );
+		trackerSettings.put( TrackerKeys.KEY_GAP_CLOSING_MAX_DISTANCE, 2 * maxDist );
+		trackerSettings.put( TrackerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP, MAX_FRAME_GAP );
+		settings.trackerSettings = trackerSettings;
+	}
+
+	/**
+	 * Segments the frames. Returns <code>null</code> if the segmentation of a
+	 * frame failed.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private SpotCollection execSegmentation( final Settings settings )
+	{
+		if ( settings.dt == 0 )
+		{
+			settings.dt = 1;
+		}
+
+		final int[] requested;
+		if ( null == frames )
+		{
+			requested = new int[ settings.tend - settings.tstart + 1 ];
+			for ( int i = 0; i < requested.length; i++ )
+			{
+				requested[ i ] = settings.tstart + i;
+			}
+		}
+		else
+		{
+			requested = frames;
+		}
+
+		final SpotCollection allSpots = new SpotCollection();
+
+		final CrownWearingSegmenterFactory factory = new CrownWearingSegmenterFactory();
+		if ( settings.imp.getStack().isVirtual() && MappedFrameSource.canMap( settings.imp ) )
+		{
+			// Page in the frames one by one instead of loading the movie.
+			try
+			{
+				factory.setTarget( new MappedFrameSource( settings.imp ), detectorSettings );
+				logger.log( "Reading frames from " + settings.imp.getOriginalFileInfo().fileName + " through memory maps.\n" );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Cannot map the image file (" + e.getMessage() + "); reading the virtual stack.\n" );
+				factory.setTarget( TMUtils.rawWraps( settings.imp ), detectorSettings );
+			}
+		}
+		else
+		{
+			factory.setTarget( TMUtils.rawWraps( settings.imp ), detectorSettings );
+		}
+
+		logger.log( settings.toString() );
+		logger.setStatus( "Segmenting..." );
+
+		/*
+		 * Label ImagePlus holder.
+		 */
+
+		if ( generateLabels )
+		{
+			final ImagePlus imp = settings.imp;
+			final int width = imp.getWidth();
+			final int height = imp.getHeight();
+			final int slices = imp.getStackSize();
+			final int options = NewImage.FILL_BLACK;
+			final int bitDepth = use32BitLabels ? 32 : 16;
+			labelImp = NewImage.createImage( "Labels for " + imp.getTitle(), width, height, slices, bitDepth, options );
+			labelImp.setCalibration( imp.getCalibration() );
+			labelImp.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		}
+		else
+		{
+			labelImp = null;
+		}
+
+		final LabelColorVirtualStack rgbVirtualStack;
+		if ( generateColorLabels )
+		{
+			final ImagePlus imp = settings.imp;
+			final int width = imp.getWidth();
+			final int height = imp.getHeight();
+			final int slices = imp.getStackSize();
+			if ( virtualColorLabels )
+			{
+				// Colors are rendered on demand from the label images.
+				rgbVirtualStack = new LabelColorVirtualStack( width, height, slices );
+				rgbImp = new ImagePlus( "Labels for " + imp.getTitle(), rgbVirtualStack );
+			}
+			else
+			{
+				final int options = NewImage.FILL_BLACK;
+				rgbVirtualStack = null;
+				rgbImp = NewImage.createRGBImage( "Labels for " + imp.getTitle(), width, height, slices, options );
+			}
+			rgbImp.setCalibration( imp.getCalibration() );
+			rgbImp.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		}
+		else
+		{
+			rgbImp = null;
+			rgbVirtualStack = null;
+		}
+
+		/*
+		 * Resume from the checkpoint, if any.
+		 */
+
+		final int[] toProcess;
+		int lastLabel = 0;
+		if ( null != checkpointFolder )
+		{
+			checkpoint = new FrameCheckpoint( checkpointFolder, FrameCheckpoint.computeHash( settings.imp, detectorSettings,
+					generateLabels, use32BitLabels, generateColorLabels, virtualColorLabels ) );
+			final List< Integer > todo = new ArrayList< Integer >();
+			try
+			{
+				if ( checkpoint.open() > 0 )
+					logger.log( "Resuming from checkpoint " + checkpointFolder + ".\n" );
+				for ( final int frame : requested )
+				{
+					if ( !checkpoint.isDone( frame, generateLabels || null != labelStore ) )
+					{
+						todo.add( Integer.valueOf( frame ) );
+						continue;
+					}
+					allSpots.put( frame, checkpoint.readSpots( frame ) );
+					if ( generateLabels )
+						lastLabel = Math.max( lastLabel, checkpoint.readLabels( frame, labelImp ) );
+					if ( null != labelStore )
+					{
+						// The store was cleared when created: rewrite the frame.
+						final Object[] planes = checkpoint.readLabelPlanes( frame );
+						labelStore.writeFrame( frame, planes );
+						lastLabel = Math.max( lastLabel, getMaxLabel( planes ) );
+					}
+				}
+			}
+			catch ( final IOException e )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Could not read checkpoint: " + e.getMessage();
+				logger.error( errorMessage + "\n" );
+				return null;
+			}
+			toProcess = new int[ todo.size() ];
+			for ( int i = 0; i < toProcess.length; i++ )
+			{
+				toProcess[ i ] = todo.get( i ).intValue();
+			}
+			if ( toProcess.length < requested.length )
+			{
+				logger.log( String.format( "%d frames loaded from checkpoint, %d left to segment.\n", requested.length - toProcess.length, toProcess.length ) );
+				if ( generateColorLabels )
+					logger.log( "Colored labels are not restored for the frames loaded from checkpoint.\n" );
+			}
+		}
+		else
+		{
+			checkpoint = null;
+			toProcess = requested;
+		}
+
+		frameLinker = ( incrementalTracking && doTracking && !segmentationOnly ) ? new IncrementalFrameLinker( requested, MAX_FRAME_GAP ) : null;
+		if ( null != frameLinker )
+		{
+			frameLinker.setAdaptiveRadius( adaptiveLinkingRadius );
+			frameLinker.setMaxDistance( maxLinkingDistance );
+		}
+		for ( final Integer frame : allSpots.keySet() )
+		{
+			final List< Spot > restored = new ArrayList< Spot >();
+			for ( final Spot spot : allSpots.iterable( frame, false ) )
+			{
+				restored.add( spot );
+			}
+			if ( null != spotStream )
+			{
+				try
+				{
+					spotStream.append( frame, restored );
+				}
+				catch ( final IOException e )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Could not write the spot stream: " + e.getMessage();
+					logger.error( errorMessage + "\n" );
+					return null;
+				}
+			}
+			if ( null != frameLinker && !frameLinker.addFrame( frame, restored ) )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + frameLinker.getErrorMessage();
+				logger.error( errorMessage + "\n" );
+				return null;
+			}
+		}
+
+		// Labels are made unique across frames by offsetting them, in frame order.
+		final LabelGenerator labelOffsets = new LabelGenerator( lastLabel, toProcess );
+		final AtomicBoolean labelSaturated = new AtomicBoolean( false );
+
+		/*
+		 * Fine tune multi-threading: If we have 10 threads and 15 frames to
+		 * process, we process 10 frames at once, and allocate 1 thread per
+		 * frame. But if we have 10 threads and 2 frames, we process the 2
+		 * frames at once, and allocate 5 threads per frame if we can. The
+		 * number of frames processed at once is further bounded by the memory
+		 * budget, if any.
+		 */
+		final int nSimultaneousFrames = Math.max( 1, Math.min( maxSimultaneousFrames, Math.min( numThreads, toProcess.length ) ) );
+		final int threadsPerFrame = Math.max( 1, numThreads / nSimultaneousFrames );
+
+		final Thread[] threads = SimpleMultiThreading.newThreads( nSimultaneousFrames );
+		final AtomicBoolean ok = new AtomicBoolean( true );
+
+		// Duration estimate, refined after each frame.
+		final double[] maskingParams = CrownWearingSegmenterFactory.collectMaskingParameters( detectorSettings );
+		final long voxelsPerFrame = ( long ) settings.imp.getWidth() * settings.imp.getHeight() * settings.imp.getNSlices();
+		final int nFramesToProcess = toProcess.length;
+		final AtomicInteger nFramesDone = new AtomicInteger( 0 );
+		logger.log( "Estimated duration: " + costModel.getEstimate( nFramesToProcess, voxelsPerFrame, maskingParams, numThreads ) + ".\n" );
+
+		// Prepare the thread array
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+
+			threads[ ithread ] = new Thread( "CWNT segmentation thread " + ( 1 + ithread ) + "/" + threads.length )
+			{
+
+				private boolean wasInterrupted()
+				{
+					try
+					{
+						if ( isInterrupted() )
+							return true;
+						sleep( 0 );
+						return false;
+					}
+					catch ( final InterruptedException e )
+					{
+						return true;
+					}
+				}
+
+				/**
+				 * Fails the run, so that it is not mistaken for a complete
+				 * one and the checkpoint is kept.
+				 */
+				private void failInterrupted()
+				{
+					if ( ok.getAndSet( false ) )
+					{
+						errorMessage = BASE_ERROR_MESSAGE + "Segmentation interrupted.";
+						logger.error( errorMessage + "\n" );
+					}
+				}
+
+				@Override
+				public void run()
+				{
+
+					for ( int index = ai.getAndIncrement(); index < toProcess.length; index = ai.getAndIncrement() )
+					{
+						final int frame = toProcess[ index ];
+						try
+						{
+							if ( !ok.get() )
+							{
+								break;
+							}
+
+							final SegmentationEvents.Event frameEvent = SegmentationEvents.FRAME.begin().set( 0, frame ).set( 1, threadsPerFrame );
+
+							// Instantiate segmenter
+							final CrownWearingSegmenter segmenter = factory.getDetector( null, frame );
+							segmenter.setNumThreads( threadsPerFrame );
+							segmenter.setMetrics( metrics, frame );
+							if ( null != stageCache )
+								segmenter.setStageCache( stageCache, settings.imp.getTitle() );
+							final Object[] planes;
+							if ( generateLabels )
+							{
+								// Labels are written straight in the label image planes.
+								final int nz = settings.imp.getNSlices();
+								planes = new Object[ nz ];
+								for ( int i = 0; i < nz; i++ )
+								{
+									planes[ i ] = labelImp.getStack().getPixels( labelImp.getStackIndex( 1, i + 1, frame + 1 ) );
+								}
+								segmenter.setLabelPlanes( planes, labelOffsets, frame );
+							}
+							else if ( null != labelStore || null != labelListener )
+							{
+								// Only this frame is held in memory.
+								final int nz = settings.imp.getNSlices();
+								planes = new Object[ nz ];
+								for ( int i = 0; i < nz; i++ )
+								{
+									planes[ i ] = new int[ settings.imp.getWidth() * settings.imp.getHeight() ];
+								}
+								segmenter.setLabelPlanes( planes, labelOffsets, frame );
+							}
+							else
+							{
+								planes = null;
+							}
+
+							if ( wasInterrupted() )
+							{
+								failInterrupted();
+								return;
+							}
+
+							// Exec
+							if ( !( segmenter.checkInput() && segmenter.process() ) )
+							{
+								ok.set( false );
+								errorMessage = BASE_ERROR_MESSAGE + "Problem with segmenter: " + segmenter.getErrorMessage();
+								logger.error( "Problem with segmenter: " + segmenter.getErrorMessage() );
+								return;
+							}
+							final List< Spot > spots = segmenter.getResult();
+
+							// Tune time features
+							final double t = frame * settings.dt;
+							for ( final Spot spot : spots )
+							{
+								spot.putFeature( Spot.POSITION_T, t );
+							}
+
+							allSpots.put( frame, spots );
+							frameEvent.set( 2, spots.size() ).commit();
+							logger.setProgress( ( double ) ( frame + 1 ) / settings.imp.getNFrames() );
+							logger.log( String.format( "Frame %3d: found %d nuclei in %.1f s.\n",
+									( frame + 1 ), spots.size(), ( segmenter.getProcessingTime() / 1e3 ) ) );
+
+							// Refine the estimate of the remaining duration.
+							costModel.calibrate( segmenter, voxelsPerFrame, maskingParams );
+							final int nFramesLeft = nFramesToProcess - nFramesDone.incrementAndGet();
+							final String estimate = costModel.getEstimate( nFramesLeft, voxelsPerFrame, maskingParams, numThreads );
+							logger.setStatus( "Segmenting... " + estimate + " left." );
+							if ( null != estimateListener )
+								estimateListener.estimateChanged( estimate + " left" );
+
+							/*
+							 * Harvest label image.
+							 */
+
+							if ( segmenter.isLabelSaturated() && !labelSaturated.getAndSet( true ) )
+							{
+								if ( use32BitLabels )
+									logger.log( "Warning: more than " + LabelPlaneWriter.MAX_FLOAT_LABEL + " labels in the movie. "
+											+ "Labels are clamped in the 32-bit label image, which stores them as floats; use a label store instead.\n" );
+								else
+									logger.log( "Warning: more than " + LabelPlaneWriter.MAX_SHORT_LABEL + " labels in the movie. "
+											+ "Labels are clamped in the 16-bit label image; use a 32-bit label image instead.\n" );
+							}
+
+							if ( null != rgbVirtualStack )
+							{
+								final int nz = settings.imp.getNSlices();
+								final int[] stackIndices = new int[ nz ];
+								for ( int i = 0; i < nz; i++ )
+								{
+									stackIndices[ i ] = rgbImp.getStackIndex( 1, i + 1, frame + 1 );
+								}
+								rgbVirtualStack.setLabeling( segmenter.getLabeling(), stackIndices );
+							}
+							else if ( generateColorLabels )
+							{
+								final LabelToRGB rgbConverter = new LabelToRGB( segmenter.getLabeling() );
+								if (rgbConverter.checkInput() && rgbConverter.process())
+								{
+									final Img< ARGBType > rgb = rgbConverter.getResult();
+									final ImagePlus rgbi = ImageJFunctions.wrapRGB( rgb, "RGB frame " + frame );
+									final ImageStack stack = rgbi.getImageStack();
+									for ( int i = 0; i < rgbi.getStackSize(); i++ )
+									{
+										final ImageProcessor ip = stack.getProcessor( i + 1 ).duplicate();
+										final int n = rgbImp.getStackIndex( 1, i + 1, frame + 1 );
+										rgbImp.getStack().setProcessor( ip, n );
+									}
+								}
+							}
+
+							if ( null != labelStore )
+							{
+								try
+								{
+									labelStore.writeFrame( frame, planes );
+								}
+								catch ( final IOException e )
+								{
+									ok.set( false );
+									errorMessage = BASE_ERROR_MESSAGE + "Could not write the labels of frame " + frame + ": " + e.getMessage();
+									logger.error( errorMessage + "\n" );
+									return;
+								}
+							}
+
+							if ( null != labelListener && null != planes && !labelListener.labelsSegmented( frame, planes ) )
+							{
+								ok.set( false );
+								errorMessage = BASE_ERROR_MESSAGE + "Could not save the labels of frame " + frame + ".";
+								logger.error( errorMessage + "\n" );
+								return;
+							}
+
+							if ( null != spotStream )
+							{
+								try
+								{
+									spotStream.append( frame, spots );
+								}
+								catch ( final IOException e )
+								{
+									ok.set( false );
+									errorMessage = BASE_ERROR_MESSAGE + "Could not stream the spots of frame " + frame + ": " + e.getMessage();
+									logger.error( errorMessage + "\n" );
+									return;
+								}
+							}
+
+							if ( null != frameLinker && !frameLinker.addFrame( frame, spots ) )
+							{
+								ok.set( false );
+								errorMessage = BASE_ERROR_MESSAGE + frameLinker.getErrorMessage();
+								logger.error( errorMessage + "\n" );
+								return;
+							}
+
+							if ( null != frameListener && !frameListener.frameSegmented( frame, spots ) )
+							{
+								ok.set( false );
+								errorMessage = BASE_ERROR_MESSAGE + "Could not save the results of frame " + frame + ".";
+								logger.error( errorMessage + "\n" );
+								return;
+							}
+
+							if ( null != checkpoint )
+							{
+								try
+								{
+									if ( null == labelImp && null != planes )
+										checkpoint.frameDone( frame, spots, planes, settings.imp.getWidth(), settings.imp.getHeight() );
+									else
+										checkpoint.frameDone( frame, spots, labelImp );
+								}
+								catch ( final IOException e )
+								{
+									// Not fatal: the frame will just be segmented again.
+									logger.error( "Could not checkpoint frame " + ( frame + 1 ) + ": " + e.getMessage() + "\n" );
+								}
+							}
+						}
+						catch ( final RuntimeException e )
+						{
+							final Throwable cause = e.getCause();
+							if ( cause != null && cause instanceof InterruptedException )
+							{
+								failInterrupted();
+								return;
+							}
+							// Do not return a movie with missing frames.
+							ok.set( false );
+							errorMessage = BASE_ERROR_MESSAGE + e.getMessage();
+							throw e;
+						}
+						finally
+						{
+							// Frames after this one must not wait for its labels.
+							labelOffsets.release( frame );
+						}
+					}
+				}
+			};
+		}
+
+		SimpleMultiThreading.startAndJoin( threads );
+		if ( !ok.get() )
+			return null;
+
+		allSpots.setVisible( true );
+		if ( null != labelImp )
+		{
+			labelImp.setOpenAsHyperStack( true );
+			labelImp.resetDisplayRange();
+		}
+		if ( null != rgbImp )
+		{
+			rgbImp.setOpenAsHyperStack( true );
+		}
+
+		logger.setProgress( 0 );
+		logger.setStatus( "" );
+		return allSpots;
+	}
+}
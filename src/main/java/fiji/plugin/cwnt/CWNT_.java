@@ -1,28 +1,22 @@
 package fiji.plugin.cwnt;
 
 import fiji.plugin.cwnt.gui.CwntGui;
+import fiji.plugin.cwnt.phantom.NucleiPhantomGenerator;
 import fiji.plugin.cwnt.segmentation.CrownWearingSegmenter;
-import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
-import fiji.plugin.cwnt.segmentation.LabelToRGB;
+import fiji.plugin.cwnt.segmentation.LRUMaskerStageCache;
 import fiji.plugin.cwnt.segmentation.NucleiMasker;
+import fiji.plugin.cwnt.segmentation.PreviewRenderer;
+import fiji.plugin.cwnt.segmentation.PreviewSpeculator;
+import fiji.plugin.cwnt.segmentation.PreviewUpdater;
+import fiji.plugin.cwnt.segmentation.SegmentationCostModel;
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics;
 import fiji.plugin.trackmate.Logger;
 import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
-import fiji.plugin.trackmate.Spot;
-import fiji.plugin.trackmate.SpotCollection;
 import fiji.plugin.trackmate.TrackMate;
-import fiji.plugin.trackmate.features.edges.EdgeAnalyzer;
-import fiji.plugin.trackmate.features.spot.SpotAnalyzerFactory;
-import fiji.plugin.trackmate.features.track.TrackAnalyzer;
 import fiji.plugin.trackmate.gui.GuiUtils;
 import fiji.plugin.trackmate.gui.TrackMateGUIController;
 import fiji.plugin.trackmate.gui.descriptors.ConfigureViewsDescriptor;
-import fiji.plugin.trackmate.providers.EdgeAnalyzerProvider;
-import fiji.plugin.trackmate.providers.SpotAnalyzerProvider;
-import fiji.plugin.trackmate.providers.TrackAnalyzerProvider;
-import fiji.plugin.trackmate.tracking.TrackerKeys;
-import fiji.plugin.trackmate.tracking.sparselap.SparseLAPTrackerFactory;
-import fiji.plugin.trackmate.util.TMUtils;
 import fiji.plugin.trackmate.visualization.hyperstack.HyperStackDisplayer;
 import ij.CompositeImage;
 import ij.IJ;
@@ -30,11 +24,9 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.WindowManager;
-import ij.gui.NewImage;
+import ij.io.FileInfo;
 import ij.plugin.Duplicator;
 import ij.plugin.PlugIn;
-import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
 
 import java.awt.Component;
 import java.awt.Dimension;
@@ -47,28 +39,22 @@ import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreaded;
 import net.imglib2.img.ImagePlusAdapter;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.basictypeaccess.array.FloatArray;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.multithreading.SimpleMultiThreading;
-import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.IntegerType;
-import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.real.FloatType;
 
 @SuppressWarnings( "deprecation" )
@@ -89,7 +75,55 @@ public class CWNT_ implements PlugIn, MultiThreaded
 
 	private int stepUpdateToPerform = Integer.MAX_VALUE;
 
-	private final DisplayUpdater updater = new DisplayUpdater();
+	/**
+	 * Whether the sample windows must be recomputed from the current slice.
+	 */
+	private boolean recomputeSample = false;
+
+	private ImagePlus sampleSource;
+
+	/**
+	 * Stores the step outputs of the preview, so that going back to parameter
+	 * values tried recently does not require recomputing them.
+	 */
+	private final LRUMaskerStageCache stageCache = new LRUMaskerStageCache();
+
+	private final PreviewUpdater updater = new PreviewUpdater( "CWNT updater thread", new PreviewUpdater.Refresher()
+	{
+		@Override
+		public void refresh( final long generation )
+		{
+			CWNT_.this.refresh( generation );
+		}
+	} );
+
+	/**
+	 * Precomputes the preview for the values adjacent to the current value of
+	 * the last parameter changed.
+	 */
+	private final PreviewSpeculator speculator = new PreviewSpeculator( updater, stageCache );
+
+	private String sampleKey;
+
+	/**
+	 * The parameters and the adjacent values of the last parameter changed,
+	 * read on the event dispatch thread when the change is fired.
+	 * <code>null</code> if speculation is disabled.
+	 */
+	private double[] speculationParams;
+
+	private int speculationIndex = -1;
+
+	private double[] speculationValues;
+
+	/** Number of voxels in the preview sample. */
+	private long sampleVoxels;
+
+	/**
+	 * Predicts the duration of the segmentation, calibrated by the preview
+	 * and by the frames already segmented.
+	 */
+	private final SegmentationCostModel costModel = new SegmentationCostModel();
 
 	private CompositeImage comp2;
 
@@ -99,6 +133,9 @@ public class CWNT_ implements PlugIn, MultiThreaded
 
 	private Logger logger;
 
+	/** The metrics of each stage of each frame of the last batch run. */
+	private SegmentationMetrics metrics = SegmentationMetrics.DISABLED;
+
 	public CWNT_()
 	{
 		setNumThreads();
@@ -126,14 +163,7 @@ public class CWNT_ implements PlugIn, MultiThreaded
 			{
 				if ( gui.getSelectedIndex() == gui.indexPanelParameters2 || gui.getSelectedIndex() == gui.indexPanelParameters1 )
 				{
-					new Thread( "CWNT tuning thread" )
-					{
-						@Override
-						public void run()
-						{
-							recomputeSampleWindows( imp );
-						};
-					}.start();
+					requestSampleRecompute( imp );
 				}
 			}
 		} );
@@ -165,7 +195,9 @@ public class CWNT_ implements PlugIn, MultiThreaded
 			@Override
 			public void windowClosed( final WindowEvent e )
 			{
+				speculator.quit();
 				updater.quit();
+				stageCache.clear();
 			}
 
 			@Override
@@ -182,25 +214,29 @@ public class CWNT_ implements PlugIn, MultiThreaded
 
 				if ( e == gui.STEP1_PARAMETER_CHANGED )
 				{
-					stepUpdateToPerform = Math.min( 1, stepUpdateToPerform );
+					markStepDirty( 1 );
+					captureSpeculation();
 					updater.doUpdate();
 
 				}
 				else if ( e == gui.STEP2_PARAMETER_CHANGED )
 				{
-					stepUpdateToPerform = Math.min( 2, stepUpdateToPerform );
+					markStepDirty( 2 );
+					captureSpeculation();
 					updater.doUpdate();
 
 				}
 				else if ( e == gui.STEP3_PARAMETER_CHANGED )
 				{
-					stepUpdateToPerform = Math.min( 3, stepUpdateToPerform );
+					markStepDirty( 3 );
+					captureSpeculation();
 					updater.doUpdate();
 
 				}
 				else if ( e == gui.STEP4_PARAMETER_CHANGED )
 				{
-					stepUpdateToPerform = Math.min( 4, stepUpdateToPerform );
+					markStepDirty( 4 );
+					captureSpeculation();
 					updater.doUpdate();
 
 				}
@@ -209,14 +245,7 @@ public class CWNT_ implements PlugIn, MultiThreaded
 
 					if ( comp1 == null && comp2 == null && ( gui.getSelectedIndex() == gui.indexPanelParameters2 || gui.getSelectedIndex() == gui.indexPanelParameters1 ) )
 					{
-						new Thread( "CWNT tuning thread" )
-						{
-							@Override
-							public void run()
-							{
-								recomputeSampleWindows( imp );
-							};
-						}.start();
+						requestSampleRecompute( imp );
 					}
 
 				}
@@ -263,46 +292,46 @@ public class CWNT_ implements PlugIn, MultiThreaded
 		logger.log( "------------------------------\n" );
 		logger.log( ft.format( dNow ) + "\n" );
 
-		final Settings settings = new Settings();
-		settings.setFrom( imp );
-
-		settings.clearSpotAnalyzerFactories();
-		final SpotAnalyzerProvider spotAnalyzerProvider = new SpotAnalyzerProvider();
-		final List< String > spotAnalyzerKeys = spotAnalyzerProvider.getKeys();
-		for ( final String key : spotAnalyzerKeys )
-		{
-			final SpotAnalyzerFactory< ? > spotFeatureAnalyzer = spotAnalyzerProvider.getFactory( key );
-			settings.addSpotAnalyzerFactory( spotFeatureAnalyzer );
+		final CWNTProcessor processor = new CWNTProcessor( imp, gui.getSettings() );
+		processor.setNumThreads( getNumThreads() );
+		processor.setLogger( logger );
+		processor.setCostModel( costModel );
+		processor.setLabelOptions( gui.getShowLabelFlag(), gui.get32BitLabelFlag(), gui.getShowColorLabelFlag(), gui.getVirtualColorLabelFlag() );
+		processor.setIncrementalTracking( gui.getIncrementalTrackingFlag() );
+		processor.setMetrics( gui.getMetricsFlag() ? new SegmentationMetrics() : SegmentationMetrics.DISABLED );
+		final FileInfo fileInfo = imp.getOriginalFileInfo();
+		if ( gui.getCheckpointFlag() )
+		{
+			if ( null != fileInfo && null != fileInfo.directory && !fileInfo.directory.isEmpty() )
+				// Resume an interrupted run, if any.
+				processor.setCheckpointFolder( new File( fileInfo.directory, imp.getShortTitle() + "-cwns-checkpoint" ) );
+			else
+				logger.log( "Image has no file: frames will not be checkpointed.\n" );
 		}
-
-		settings.clearEdgeAnalyzers();
-		final EdgeAnalyzerProvider edgeAnalyzerProvider = new EdgeAnalyzerProvider();
-		final List< String > edgeAnalyzerKeys = edgeAnalyzerProvider.getKeys();
-		for ( final String key : edgeAnalyzerKeys )
+		processor.setEstimateListener( new CWNTProcessor.EstimateListener()
 		{
-			final EdgeAnalyzer edgeAnalyzer = edgeAnalyzerProvider.getFactory( key );
-			settings.addEdgeAnalyzer( edgeAnalyzer );
-		}
-
-		settings.clearTrackAnalyzers();
-		final TrackAnalyzerProvider trackAnalyzerProvider = new TrackAnalyzerProvider();
-		final List< String > trackAnalyzerKeys = trackAnalyzerProvider.getKeys();
-		for ( final String key : trackAnalyzerKeys )
+			@Override
+			public void estimateChanged( final String estimate )
+			{
+				gui.setDurationEstimate( estimate );
+			}
+		} );
+		final boolean ok = processor.checkInput() && processor.process();
+		metrics = processor.getMetrics();
+		if ( !ok )
 		{
-			final TrackAnalyzer trackAnalyzer = trackAnalyzerProvider.getFactory( key );
-			settings.addTrackAnalyzer( trackAnalyzer );
+			logger.error( processor.getErrorMessage() + "\n" );
+			return;
 		}
 
-		final Model model = execSegmentation( settings );
-		final TrackMate trackmate = new TrackMate( model, settings );
-		trackmate.computeSpotFeatures( true );
-
-		execTracking( model, settings );
+		if ( null != processor.getLabelImage() )
+			processor.getLabelImage().show();
+		if ( null != processor.getColorLabelImage() )
+			processor.getColorLabelImage().show();
 
-		trackmate.computeTrackFeatures( true );
-		trackmate.computeEdgeFeatures( true );
-
-		launchDisplayer( model, settings );
+		launchDisplayer( processor.getModel(), processor.getSettings() );
+		if ( metrics.isEnabled() )
+			writeMetrics( imp, processor );
 
 		logger.setStatus( "" );
 		logger.setProgress( 0f );
@@ -313,253 +342,30 @@ public class CWNT_ implements PlugIn, MultiThreaded
 
 	}
 
-	private void execTracking( final Model model, final Settings settings )
+	/**
+	 * Returns the metrics of each stage of each frame of the last batch run.
+	 */
+	public SegmentationMetrics getMetrics()
 	{
-		final long start = System.currentTimeMillis();
-
-		final SparseLAPTrackerFactory trackerFactory = new SparseLAPTrackerFactory();
-		settings.trackerFactory = trackerFactory;
-
-		// Prepare tracking settings
-		final Map< String, Object > trackerSettings = trackerFactory.getDefaultSettings();
-		trackerSettings.put( TrackerKeys.KEY_ALLOW_GAP_CLOSING, true );
-		trackerSettings.put( TrackerKeys.KEY_ALLOW_TRACK_MERGING, false );
-		trackerSettings.put( TrackerKeys.KEY_ALLOW_TRACK_SPLITTING, false );
-
-		// Evaluate max dist
-		logger.log( "Evaluating max linking distance...\n" );
-		double maxDist = 0;
-		for ( final Spot spot : model.getSpots().iterable( true ) )
-		{
-			maxDist += spot.getFeature( Spot.RADIUS );
-		}
-		maxDist /= model.getSpots().getNSpots( true );
-		maxDist *= 2;
-		logger.log( String.format( "Max linking distance evaluated to %.1f %s.\n", maxDist, model.getSpaceUnits() ) );
-
-		trackerSettings.put( TrackerKeys.KEY_LINKING_MAX_DISTANCE, maxDist );
-		trackerSettings.put( TrackerKeys.KEY_GAP_CLOSING_MAX_DISTANCE, 2 * maxDist );
-		trackerSettings.put( TrackerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP, 2 );
-
-		settings.trackerSettings = trackerSettings;
-
-		logger.log( "Performing track linking...\n" );
-		logger.setStatus( "Tracking..." );
-
-		final TrackMate trackmate = new TrackMate( model, settings );
-		trackmate.setNumThreads( getNumThreads() );
-		trackmate.execTracking();
-
-		final long end = System.currentTimeMillis();
-		logger.log( String.format( "Track linking completed in %.1f s.\n", ( ( end - start ) / 1e3 ) ) );
-		logger.log( String.format( "Found %d tracks.\n", model.getTrackModel().nTracks( true ) ) );
+		return metrics;
 	}
 
-	@SuppressWarnings( { "rawtypes", "unchecked" } )
-	private Model execSegmentation( final Settings settings )
+	/**
+	 * Dumps the metrics of the last batch run as CSV and JSON files, next to
+	 * the image file if it has one, or in the temporary directory otherwise.
+	 */
+	private void writeMetrics( final ImagePlus imp, final CWNTProcessor processor )
 	{
-		if ( settings.dt == 0 )
-		{
-			settings.dt = 1;
-		}
-
-//		final double[] calibration = TMUtils.getSpatialCalibration( settings.imp );
-		final SpotCollection allSpots = new SpotCollection();
-
-		final CrownWearingSegmenterFactory factory = new CrownWearingSegmenterFactory();
-		factory.setTarget( TMUtils.rawWraps( settings.imp ), gui.getSettings() );
-
-		logger.log( settings.toString() );
-		logger.setStatus( "Segmenting..." );
-
-		/*
-		 * Fine tune multi-threading: If we have 10 threads and 15 frames to
-		 * process, we process 10 frames at once, and allocate 1 thread per
-		 * frame. But if we have 10 threads and 2 frames, we process the 2
-		 * frames at once, and allocate 5 threads per frame if we can.
-		 */
-		final int numFrames = settings.imp.getNFrames();
-		final int numThreads = getNumThreads();
-		final int nSimultaneousFrames = Math.min( numThreads, numFrames );
-		final int threadsPerFrame = Math.max( 1, numThreads / nSimultaneousFrames );
-
-		final Thread[] threads = SimpleMultiThreading.newThreads( nSimultaneousFrames );
-		final AtomicBoolean ok = new AtomicBoolean( true );
-
-		/*
-		 * Label ImagePlus holder.
-		 */
-
-		final boolean showLabelImg = gui.getShowLabelFlag();
-		final boolean showColorLabelImg = gui.getShowColorLabelFlag();
-
-		final ImagePlus labelImp;
-		if ( showLabelImg )
-		{
-			final ImagePlus imp = settings.imp;
-			final int width = imp.getWidth();
-			final int height = imp.getHeight();
-			final int slices = imp.getStackSize();
-			final int options = NewImage.FILL_BLACK;
-			labelImp = NewImage.createImage( "Labels for " + imp.getTitle(), width, height, slices, 16, options );
-			labelImp.setCalibration( imp.getCalibration() );
-			labelImp.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
-		}
-		else
-		{
-			labelImp = null;
-		}
-
-		final ImagePlus rgbImp;
-		if ( showColorLabelImg )
-		{
-			final ImagePlus imp = settings.imp;
-			final int width = imp.getWidth();
-			final int height = imp.getHeight();
-			final int slices = imp.getStackSize();
-			final int options = NewImage.FILL_BLACK;
-			rgbImp = NewImage.createRGBImage( "Labels for " + imp.getTitle(), width, height, slices, options );
-			rgbImp.setCalibration( imp.getCalibration() );
-			rgbImp.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
-		}
-		else
-		{
-			rgbImp = null;
-		}
-
-		// Prepare the thread array
-		final AtomicInteger ai = new AtomicInteger( settings.tstart );
-		for ( int ithread = 0; ithread < threads.length; ithread++ )
-		{
-
-			threads[ ithread ] = new Thread( "CWNT segmentation thread " + ( 1 + ithread ) + "/" + threads.length )
-			{
-
-				private boolean wasInterrupted()
-				{
-					try
-					{
-						if ( isInterrupted() )
-							return true;
-						sleep( 0 );
-						return false;
-					}
-					catch ( final InterruptedException e )
-					{
-						return true;
-					}
-				}
-
-				@Override
-				public void run()
-				{
-
-					for ( int frame = ai.getAndIncrement(); frame <= settings.tend; frame = ai.getAndIncrement() )
-					{
-						try
-						{
-							if ( !ok.get() )
-							{
-								break;
-							}
-
-							// Instantiate segmenter
-							final CrownWearingSegmenter segmenter = factory.getDetector( null, frame );
-							segmenter.setNumThreads( threadsPerFrame );
-
-							if ( wasInterrupted() )
-								return;
-
-							// Exec
-							if ( !( segmenter.checkInput() && segmenter.process() ) )
-							{
-								ok.set( false );
-								logger.error( "Problem with segmenter: " + segmenter.getErrorMessage() );
-								return;
-							}
-							final List< Spot > spots = segmenter.getResult();
-
-							// Tune time features
-							final double t = frame * settings.dt;
-							for ( final Spot spot : spots )
-							{
-								spot.putFeature( Spot.POSITION_T, t );
-							}
-
-							allSpots.put( frame, spots );
-							logger.setProgress( ( double ) ( frame + 1 ) / settings.imp.getNFrames() );
-							logger.log( String.format( "Frame %3d: found %d nuclei in %.1f s.\n",
-									( frame + 1 ), spots.size(), ( segmenter.getProcessingTime() / 1e3 ) ) );
-
-							/*
-							 * Harvest label image.
-							 */
-
-							if ( showLabelImg )
-							{
-								final RandomAccessibleInterval< UnsignedIntType > labels = segmenter.getLabeling().getIndexImg();
-								final ImagePlus rgbImp = ImageJFunctions.wrap( labels, "Labels frame " + frame );
-								final ImageStack stack = rgbImp.getImageStack();
-								for ( int i = 0; i < rgbImp.getStackSize(); i++ )
-								{
-									final ImageProcessor ip = stack.getProcessor( i + 1 ).duplicate();
-									final int n = labelImp.getStackIndex( 1, i + 1, frame + 1 );
-									labelImp.getStack().setProcessor( ip, n );
-								}
-							}
-
-							if ( showColorLabelImg )
-							{
-								final LabelToRGB rgbConverter = new LabelToRGB( segmenter.getLabeling() );
-								if (rgbConverter.checkInput() && rgbConverter.process())
-								{
-									final Img< ARGBType > rgb = rgbConverter.getResult();
-									final ImagePlus rgbi = ImageJFunctions.wrapRGB( rgb, "RGB frame " + frame );
-									final ImageStack stack = rgbi.getImageStack();
-									for ( int i = 0; i < rgbi.getStackSize(); i++ )
-									{
-										final ImageProcessor ip = stack.getProcessor( i + 1 ).duplicate();
-										final int n = rgbImp.getStackIndex( 1, i + 1, frame + 1 );
-										rgbImp.getStack().setProcessor( ip, n );
-									}
-								}
-							}
-						}
-						catch ( final RuntimeException e )
-						{
-							final Throwable cause = e.getCause();
-							if ( cause != null && cause instanceof InterruptedException ) { return; }
-							throw e;
-						}
-					}
-				}
-			};
-		}
-
-		SimpleMultiThreading.startAndJoin( threads );
-
-		allSpots.setVisible( true );
-		if ( showLabelImg )
+		final FileInfo fileInfo = imp.getOriginalFileInfo();
+		final String folder = ( null == fileInfo || null == fileInfo.directory || fileInfo.directory.isEmpty() ) ? System.getProperty( "java.io.tmpdir" ) : fileInfo.directory;
+		try
 		{
-			labelImp.setOpenAsHyperStack( true );
-			labelImp.show();
-			labelImp.resetDisplayRange();
+			processor.writeMetrics( new File( folder ), imp.getShortTitle() + "-cwns-metrics" );
 		}
-		if ( showColorLabelImg )
+		catch ( final IOException e )
 		{
-			rgbImp.setOpenAsHyperStack( true );
-			rgbImp.show();
+			logger.error( "Could not save stage metrics: " + e.getMessage() + "\n" );
 		}
-
-		logger.setProgress( 0 );
-		logger.setStatus( "" );
-
-		final Model model = new Model();
-		model.setSpots( allSpots, false );
-		model.setPhysicalUnits( settings.imp.getCalibration().getUnit(), settings.imp.getCalibration().getTimeUnit() );
-		model.setLogger( logger );
-
-		return model;
 	}
 
 	private void launchDisplayer( final Model model, final Settings settings )
@@ -584,8 +390,45 @@ public class CWNT_ implements PlugIn, MultiThreaded
 	 * PREVIEW METHODS
 	 */
 
+	private synchronized void markStepDirty( final int step )
+	{
+		stepUpdateToPerform = Math.min( step, stepUpdateToPerform );
+	}
+
+	/**
+	 * Takes a snapshot of the slider values for the speculator. Called on the
+	 * event dispatch thread, when a parameter change is fired.
+	 */
+	private void captureSpeculation()
+	{
+		final boolean enabled = gui.getSpeculationFlag();
+		final int index = gui.getLastChangedParameter();
+		final double[] params = enabled ? gui.getParameters().clone() : null;
+		final double[] values = enabled ? gui.getAdjacentParameterValues( index ) : null;
+		synchronized ( this )
+		{
+			speculationParams = params;
+			speculationIndex = index;
+			speculationValues = values;
+		}
+	}
+
+	private void requestSampleRecompute( final ImagePlus imp )
+	{
+		synchronized ( this )
+		{
+			sampleSource = imp;
+			recomputeSample = true;
+		}
+		updater.doUpdate();
+	}
+
+	/**
+	 * Recomputes the sample windows from the current slice. Returns
+	 * <code>false</code> if the computation was canceled or failed.
+	 */
 	@SuppressWarnings( { "rawtypes", "unchecked" } )
-	private void recomputeSampleWindows( final ImagePlus imp )
+	private boolean recomputeSampleWindows( final ImagePlus imp, final long generation )
 	{
 		final ImagePlus snip = new Duplicator().run( imp, imp.getSlice(), imp.getSlice() );
 
@@ -601,25 +444,34 @@ public class CWNT_ implements PlugIn, MultiThreaded
 			break;
 		default:
 			System.err.println( "Image type not handled: " + imp.getType() );
-			return;
+			return false;
 		}
 
 		// Prepare algo
-		algo = new NucleiMasker( img );
-		algo.setParameters( gui.getParameters() );
-		algo.setNumThreads( getNumThreads() );
-		final boolean check = algo.checkInput() && algo.process();
+		final NucleiMasker masker = new NucleiMasker( img );
+		masker.setParameters( gui.getParameters() );
+		masker.setNumThreads( getNumThreads() );
+		masker.setCancelCheck( updater.getCancelCheck( generation ) );
+		final Rectangle region = null == imp.getRoi() ? new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ) : imp.getRoi().getBounds();
+		// The pixels are hashed, so that edits of the plane are not masked by the cache.
+		final String key = imp.getID() + ":" + imp.getCurrentSlice() + ":" + region.x + "," + region.y + "," + region.width + "," + region.height
+				+ ":" + CrownWearingSegmenter.checksum( ( Img ) img );
+		masker.setStageCache( stageCache, key );
+		final boolean check = masker.checkInput() && masker.process();
 		if ( !check )
 		{
-			System.err.println( "Problem with the segmenter: " + algo.getErrorMessage() );
-			return;
+			if ( !masker.isCanceled() )
+				System.err.println( "Problem with the segmenter: " + masker.getErrorMessage() );
+			return false;
 		}
-
-		final double snipPixels = snip.getWidth() * snip.getHeight() * snip.getNSlices() * snip.getNFrames();
-		final double allPixels = imp.getWidth() * imp.getHeight() * imp.getNSlices() * imp.getNFrames();
-		final double dt = algo.getProcessingTime();
-		final double tmin = Math.ceil( dt * allPixels / snipPixels / 1e3 / 60 ); // min
-		gui.setDurationEstimate( tmin );
+		synchronized ( this )
+		{
+			algo = masker;
+			sampleKey = key;
+			sampleVoxels = ( long ) snip.getWidth() * snip.getHeight();
+			stepUpdateToPerform = Integer.MAX_VALUE;
+		}
+		updateDurationEstimate( imp );
 
 		// Prepare results holder;
 		final ArrayImg< FloatType, FloatArray > F = algo.getGaussianFilteredImage();
@@ -634,159 +486,219 @@ public class CWNT_ implements PlugIn, MultiThreaded
 		final int height = ( int ) F.dimension( 1 );
 
 		final ImageStack floatStack = new ImageStack( width, height );
-		floatStack.addSlice( "Gradient norm", toFloatProcessor( G ) );
-		floatStack.addSlice( "Laplacian magnitude", toFloatProcessor( L ) );
-		floatStack.addSlice( "Hessian determinant", toFloatProcessor( H ) );
-		floatStack.addSlice( "Mask", toFloatProcessor( M ) );
+		floatStack.addSlice( "Gradient norm", PreviewRenderer.toFloatProcessor( G ) );
+		floatStack.addSlice( "Laplacian magnitude", PreviewRenderer.toFloatProcessor( L ) );
+		floatStack.addSlice( "Hessian determinant", PreviewRenderer.toFloatProcessor( H ) );
+		floatStack.addSlice( "Mask", PreviewRenderer.toFloatProcessor( M ) );
 		if ( comp2 == null )
 		{
+			// Not shown yet: the renderer shows it on the EDT.
 			final ImagePlus imp2 = new ImagePlus( "Scaled derivatives", floatStack );
 			comp2 = new CompositeImage( imp2, CompositeImage.GRAYSCALE );
 			comp2.setDimensions( floatStack.getSize(), 1, 1 );
 			comp2.setOpenAsHyperStack( true );
 		}
-		else
-		{
-			comp2.setStack( floatStack, floatStack.getSize(), 1, 1 );
-		}
-		comp2.show();
+		final PreviewRenderer renderer2 = new PreviewRenderer( comp2 );
+		renderer2.setStack( floatStack, floatStack.getSize(), 1, 1 );
+		renderer2.render();
 
 		final ImageStack tStack = new ImageStack( width, height );
-		tStack.addSlice( "Gaussian filtered", toFloatProcessor( F ) );
-		tStack.addSlice( "Anisotropic diffusion", toFloatProcessor( AD ) );
-		tStack.addSlice( "Masked image", toFloatProcessor( R ) );
-		ImagePlus imp1;
+		tStack.addSlice( "Gaussian filtered", PreviewRenderer.toFloatProcessor( F ) );
+		tStack.addSlice( "Anisotropic diffusion", PreviewRenderer.toFloatProcessor( AD ) );
+		tStack.addSlice( "Masked image", PreviewRenderer.toFloatProcessor( R ) );
 		if ( comp1 == null )
 		{
-			imp1 = new ImagePlus( "Components", tStack );
+			final ImagePlus imp1 = new ImagePlus( "Components", tStack );
 			comp1 = new CompositeImage( imp1, CompositeImage.GRAYSCALE );
 			comp1.setDimensions( tStack.getSize(), 1, 1 );
 			comp1.setOpenAsHyperStack( true );
 		}
-		else
-		{
-			comp1.setStack( tStack, tStack.getSize(), 1, 1 );
-		}
-		comp1.show();
+		final PreviewRenderer renderer1 = new PreviewRenderer( comp1 );
+		renderer1.setStack( tStack, tStack.getSize(), 1, 1 );
+		renderer1.render();
 
-		positionComponentRelativeTo( comp1.getWindow(), imp.getWindow(), 3 );
-		positionComponentRelativeTo( comp2.getWindow(), comp1.getWindow(), 2 );
+		// Runs after the renderers, which show the windows.
+		final ImagePlus lcomp1 = comp1;
+		final ImagePlus lcomp2 = comp2;
+		SwingUtilities.invokeLater( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				positionComponentRelativeTo( lcomp1.getWindow(), imp.getWindow(), 3 );
+				positionComponentRelativeTo( lcomp2.getWindow(), lcomp1.getWindow(), 2 );
+			}
+		} );
+		return true;
 	}
 
-	private static final FloatProcessor toFloatProcessor( final ArrayImg< FloatType, FloatArray > img )
+	private boolean paramStep1Changed( final long generation )
 	{
-		final FloatArray data = img.update( null );
-		final float[] array = data.getCurrentStorageArray();
-		final FloatProcessor fp = new FloatProcessor( ( int ) img.dimension( 0 ), ( int ) img.dimension( 1 ), array );
-		return fp;
+		// We have to redo all.
+		algo.setParameters( gui.getParameters() );
+		algo.setCancelCheck( updater.getCancelCheck( generation ) );
+		if ( !( algo.execStep1() && algo.execStep2() && algo.execStep3() && algo.execStep4() ) || !updater.isCurrent( generation ) )
+			return false;
+
+		final PreviewRenderer renderer1 = new PreviewRenderer( comp1 );
+		renderer1.set( 1, algo.getGaussianFilteredImage() );
+		renderer1.set( 2, algo.getAnisotropicDiffusionImage() );
+		renderer1.set( 3, algo.getResult() );
+		renderer1.render();
+
+		final PreviewRenderer renderer2 = new PreviewRenderer( comp2 );
+		renderer2.set( 1, algo.getGradientNorm() );
+		renderer2.set( 2, algo.getLaplacianMagnitude() );
+		renderer2.set( 3, algo.getHessianDeterminant() );
+		renderer2.set( 4, algo.getMask() );
+		renderer2.render();
+		return true;
 	}
 
-	private void paramStep1Changed()
+	private boolean paramStep2Changed( final long generation )
 	{
-		// We have to redo all.
 		algo.setParameters( gui.getParameters() );
-		algo.execStep1();
-		algo.execStep2();
-		algo.execStep3();
-		algo.execStep4();
-
-		final ImageStack s1 = comp1.getStack();
-		s1.setPixels( algo.getGaussianFilteredImage().update( null ).getCurrentStorageArray(), 1 );
-		s1.setPixels( algo.getAnisotropicDiffusionImage().update( null ).getCurrentStorageArray(), 2 );
-		s1.setPixels( algo.getResult().update( null ).getCurrentStorageArray(), 3 );
-		comp1.setStack( s1 );
-
-		final ImageStack s2 = comp2.getStack();
-		s2.setPixels( algo.getGradientNorm().update( null ).getCurrentStorageArray(), 1 );
-		s2.setPixels( algo.getLaplacianMagnitude().update( null ).getCurrentStorageArray(), 2 );
-		s2.setPixels( algo.getHessianDeterminant().update( null ).getCurrentStorageArray(), 3 );
-		s2.setPixels( algo.getMask().update( null ).getCurrentStorageArray(), 4 );
-		comp2.setStack( s2 );
+		algo.setCancelCheck( updater.getCancelCheck( generation ) );
+		if ( !( algo.execStep2() && algo.execStep3() && algo.execStep4() ) || !updater.isCurrent( generation ) )
+			return false;
+
+		final PreviewRenderer renderer1 = new PreviewRenderer( comp1 );
+		renderer1.set( 2, algo.getAnisotropicDiffusionImage() );
+		renderer1.set( 3, algo.getResult() );
+		renderer1.render();
+
+		final PreviewRenderer renderer2 = new PreviewRenderer( comp2 );
+		renderer2.set( 1, algo.getGradientNorm() );
+		renderer2.set( 2, algo.getLaplacianMagnitude() );
+		renderer2.set( 3, algo.getHessianDeterminant() );
+		renderer2.set( 4, algo.getMask() );
+		renderer2.render();
+		return true;
 	}
 
-	private void paramStep2Changed()
+	private boolean paramStep3Changed( final long generation )
 	{
 		algo.setParameters( gui.getParameters() );
-		algo.execStep2();
-		algo.execStep3();
-		algo.execStep4();
-
-		final ImageStack s1 = comp1.getStack();
-//		s1.setPixels( algo.getGaussianFilteredImage().update( null ).getCurrentStorageArray(), 1 );
-		s1.setPixels( algo.getAnisotropicDiffusionImage().update( null ).getCurrentStorageArray(), 2 );
-		s1.setPixels( algo.getResult().update( null ).getCurrentStorageArray(), 3 );
-		comp1.setStack( s1 );
-
-		final ImageStack s2 = comp2.getStack();
-		s2.setPixels( algo.getGradientNorm().update( null ).getCurrentStorageArray(), 1 );
-		s2.setPixels( algo.getLaplacianMagnitude().update( null ).getCurrentStorageArray(), 2 );
-		s2.setPixels( algo.getHessianDeterminant().update( null ).getCurrentStorageArray(), 3 );
-		s2.setPixels( algo.getMask().update( null ).getCurrentStorageArray(), 4 );
-		comp2.setStack( s2 );
+		algo.setCancelCheck( updater.getCancelCheck( generation ) );
+		if ( !( algo.execStep3() && algo.execStep4() ) || !updater.isCurrent( generation ) )
+			return false;
+
+		final PreviewRenderer renderer1 = new PreviewRenderer( comp1 );
+		renderer1.set( 3, algo.getResult() );
+		renderer1.render();
+
+		final PreviewRenderer renderer2 = new PreviewRenderer( comp2 );
+		renderer2.set( 1, algo.getGradientNorm() );
+		renderer2.set( 2, algo.getLaplacianMagnitude() );
+		renderer2.set( 3, algo.getHessianDeterminant() );
+		renderer2.set( 4, algo.getMask() );
+		renderer2.render();
+		return true;
 	}
 
-	private void paramStep3Changed()
+	private boolean paramStep4Changed( final long generation )
 	{
 		algo.setParameters( gui.getParameters() );
-		algo.execStep3();
-		algo.execStep4();
-
-		final ImageStack s1 = comp1.getStack();
-//		s1.setPixels( algo.getGaussianFilteredImage().update( null ).getCurrentStorageArray(), 1 );
-//		s1.setPixels( algo.getAnisotropicDiffusionImage().update( null ).getCurrentStorageArray(), 2 );
-		s1.setPixels( algo.getResult().update( null ).getCurrentStorageArray(), 3 );
-		comp1.setStack( s1 );
-
-		final ImageStack s2 = comp2.getStack();
-		s2.setPixels( algo.getGradientNorm().update( null ).getCurrentStorageArray(), 1 );
-		s2.setPixels( algo.getLaplacianMagnitude().update( null ).getCurrentStorageArray(), 2 );
-		s2.setPixels( algo.getHessianDeterminant().update( null ).getCurrentStorageArray(), 3 );
-		s2.setPixels( algo.getMask().update( null ).getCurrentStorageArray(), 4 );
-		comp2.setStack( s2 );
+		algo.setCancelCheck( updater.getCancelCheck( generation ) );
+		if ( !( algo.execStep4() ) || !updater.isCurrent( generation ) )
+			return false;
+
+		final PreviewRenderer renderer1 = new PreviewRenderer( comp1 );
+		renderer1.set( 3, algo.getResult() );
+		renderer1.render();
+
+		final PreviewRenderer renderer2 = new PreviewRenderer( comp2 );
+		renderer2.set( 4, algo.getMask() );
+		renderer2.render();
+		return true;
 	}
 
-	private void paramStep4Changed()
+	/**
+	 * Calibrates the cost model with the step times of the last preview run,
+	 * and displays the predicted duration of the segmentation of the whole
+	 * movie.
+	 */
+	private void updateDurationEstimate( final ImagePlus imp )
 	{
-		algo.setParameters( gui.getParameters() );
-		algo.execStep4();
-
-		final ImageStack s1 = comp1.getStack();
-//		s1.setPixels( algo.getGaussianFilteredImage().update( null ).getCurrentStorageArray(), 1 );
-//		s1.setPixels( algo.getAnisotropicDiffusionImage().update( null ).getCurrentStorageArray(), 2 );
-		s1.setPixels( algo.getResult().update( null ).getCurrentStorageArray(), 3 );
-		comp1.setStack( s1 );
-
-		final ImageStack s2 = comp2.getStack();
-//		s2.setPixels( algo.getGradientNorm().update( null ).getCurrentStorageArray(), 1 );
-//		s2.setPixels( algo.getLaplacianMagnitude().update( null ).getCurrentStorageArray(), 2 );
-//		s2.setPixels( algo.getHessianDeterminant().update( null ).getCurrentStorageArray(), 3 );
-		s2.setPixels( algo.getMask().update( null ).getCurrentStorageArray(), 4 );
-		comp2.setStack( s2 );
+		final double[] params = gui.getParameters();
+		costModel.calibrateMasking( algo.getStepTimes(), sampleVoxels, params, getNumThreads() );
+		final long voxelsPerFrame = ( long ) imp.getWidth() * imp.getHeight() * imp.getNSlices();
+		gui.setDurationEstimate( costModel.getEstimate( imp.getNFrames(), voxelsPerFrame, params, getNumThreads() ) );
 	}
 
 	/**
 	 * Grab parameters from panel and execute the masking process on the sample
 	 * image.
 	 */
-	private void refresh()
+	private void refresh( final long generation )
 	{
-		switch ( stepUpdateToPerform )
+		final boolean recompute;
+		final ImagePlus imp;
+		final int step;
+		synchronized ( this )
+		{
+			recompute = recomputeSample;
+			recomputeSample = false;
+			imp = sampleSource;
+			step = stepUpdateToPerform;
+			stepUpdateToPerform = Integer.MAX_VALUE;
+		}
+
+		if ( recompute )
+		{
+			if ( !recomputeSampleWindows( imp, generation ) )
+			{
+				synchronized ( this )
+				{
+					recomputeSample = true;
+				}
+			}
+			return;
+		}
+		if ( null == algo )
+			return;
+
+		final boolean ok;
+		switch ( step )
 		{
 		case 1:
-			paramStep1Changed();
+			ok = paramStep1Changed( generation );
 			break;
 		case 2:
-			paramStep2Changed();
+			ok = paramStep2Changed( generation );
 			break;
 		case 3:
-			paramStep3Changed();
+			ok = paramStep3Changed( generation );
 			break;
 		case 4:
-			paramStep4Changed();
+			ok = paramStep4Changed( generation );
+			break;
+		default:
+			ok = true;
 			break;
 		}
-		stepUpdateToPerform = Integer.MAX_VALUE;
+		if ( !ok )
+		{
+			// Canceled: the steps we started from must be recomputed.
+			markStepDirty( step );
+		}
+		else if ( step <= 4 )
+		{
+			updateDurationEstimate( imp );
 
+			// Use idle time to prepare the next slider tick.
+			final double[] params;
+			final int index;
+			final double[] values;
+			synchronized ( this )
+			{
+				params = speculationParams;
+				index = speculationIndex;
+				values = speculationValues;
+			}
+			if ( null != params )
+				speculator.speculate( algo.getSource(), sampleKey, params, index, values, generation );
+		}
 	}
 
 	@SuppressWarnings( "unused" )
@@ -841,138 +753,24 @@ public class CWNT_ implements PlugIn, MultiThreaded
 		//		final File testImage = new File( "D:/Users/Jean-Yves/Development/Cwins/samples/18ssplus-embryo2-2hyperstack-1.tif" );
 
 		ImageJ.main( args );
-		final ImagePlus imp = IJ.openImage( testImage.getAbsolutePath() );
-		imp.show();
-
-		final CWNT_ plugin = new CWNT_();
-		plugin.setNumThreads( 1 );
-		plugin.run( "" );
-	}
-
-	/*
-	 * PRIVATE CLASS
-	 */
-
-	/**
-	 * This is a helper class modified after a class by Albert Cardona
-	 */
-	private class DisplayUpdater extends Thread
-	{
-		long request = 0;
-
-		// Constructor autostarts thread
-		DisplayUpdater()
-		{
-			super( "CWNT updater thread" );
-			setPriority( Thread.NORM_PRIORITY );
-			start();
-		}
-
-		void doUpdate()
-		{
-			if ( isInterrupted() )
-				return;
-			synchronized ( this )
-			{
-				request++;
-				notify();
-			}
-		}
-
-		void quit()
-		{
-			interrupt();
-			synchronized ( this )
-			{
-				notify();
-			}
-		}
-
-		@Override
-		public void run()
+		final ImagePlus imp;
+		if ( testImage.exists() )
 		{
-			while ( !isInterrupted() )
-			{
-				try
-				{
-					final long r;
-					synchronized ( this )
-					{
-						r = request;
-					}
-					// Call displayer update from this thread
-					if ( r > 0 )
-						refresh();
-					synchronized ( this )
-					{
-						if ( r == request )
-						{
-							request = 0; // reset
-							wait();
-						}
-						// else loop through to update again
-					}
-				}
-				catch ( final Exception e )
-				{
-					e.printStackTrace();
-				}
-			}
+			imp = IJ.openImage( testImage.getAbsolutePath() );
 		}
-	}
-
-	public static void positionComponentRelativeTo( final Component target, final Component anchor, final int direction )
-	{
-
-		int x, y;
-		switch ( direction )
+		else
 		{
-		case 0:
-			x = anchor.getX();
-			y = anchor.getY() - target.getHeight();
-			break;
-		case 1:
-		default:
-			x = anchor.getX() + anchor.getWidth();
-			y = anchor.getY();
-			break;
-		case 2:
-			x = anchor.getX();
-			y = anchor.getY() + anchor.getHeight();
-			break;
-		case 3:
-			x = anchor.getX() - target.getWidth();
-			y = anchor.getY();
-			break;
+			// No test data: use a synthetic 3D time-lapse.
+			final NucleiPhantomGenerator generator = new NucleiPhantomGenerator();
+			generator.setSize( 256, 256, 20 );
+			generator.setNFrames( 3 );
+			generator.process();
+			imp = generator.getResult().getImage();
 		}
+		imp.show();
 
-		// make sure the dialog fits completely on the screen...
-		final Dimension sd = Toolkit.getDefaultToolkit().getScreenSize();
-		final Rectangle s = new Rectangle( 0, 0, sd.width, sd.height );
-		x = Math.min( x, ( s.width - target.getWidth() ) );
-		x = Math.max( x, 0 );
-		y = Math.min( y, ( s.height - target.getHeight() ) );
-		y = Math.max( y, 0 );
-
-		target.setBounds( x + s.x, y + s.y, target.getWidth(), target.getHeight() );
-
-	}
-
-	@Override
-	public int getNumThreads()
-	{
-		return numThreads;
-	}
-
-	@Override
-	public void setNumThreads()
-	{
-		this.numThreads = Runtime.getRuntime().availableProcessors();
-	}
-
-	@Override
-	public void setNumThreads( final int numThreads )
-	{
-		this.numThreads = numThreads;
+		final CWNT_ plugin = new CWNT_();
+		plugin.setNumThreads( 1 );
+		plugin.run( "" );
 	}
 }
@@ -0,0 +1,298 @@
+package fiji.plugin.cwnt;
+
+import static fiji.plugin.cwnt.SpotStreamWriter.BLOCK_MAGIC;
+import static fiji.plugin.cwnt.SpotStreamWriter.MAGIC;
+import static fiji.plugin.cwnt.SpotStreamWriter.UTF8;
+import static fiji.plugin.cwnt.SpotStreamWriter.VERSION;
+import fiji.plugin.cwnt.segmentation.NucleiSpotCreator;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the spot files written by {@link SpotStreamWriter}, one frame block
+ * at a time. Each block is exposed as primitive columns, one per feature, so
+ * that analyses can run without creating {@link Spot} objects;
+ * {@link #read(File)} rebuilds a {@link SpotCollection} for TrackMate.
+ * <p>
+ * A truncated last block, as left by a run that was interrupted, is ignored.
+ *
+ * <pre>
+ * SpotStreamReader reader = new SpotStreamReader( file );
+ * while ( reader.next() )
+ * {
+ * 	double[] x = reader.getX();
+ * 	...
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotStreamReader
+{
+
+	private final DataInputStream in;
+
+	private int frame;
+
+	private int nSpots;
+
+	/** The columns of the current block, by feature, in file order. */
+	private final Map< String, double[] > columns = new LinkedHashMap< String, double[] >();
+
+	/**
+	 * Opens a spot stream.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a spot stream.
+	 */
+	public SpotStreamReader( final File file ) throws IOException
+	{
+		this.in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ), 1 << 16 ) );
+		final byte[] header = new byte[ 8 ];
+		try
+		{
+			in.readFully( header );
+		}
+		catch ( final EOFException e )
+		{
+			in.close();
+			throw new IOException( file + " is not a spot stream." );
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap( header ).order( ByteOrder.LITTLE_ENDIAN );
+		if ( buffer.getInt() != MAGIC )
+		{
+			in.close();
+			throw new IOException( file + " is not a spot stream." );
+		}
+		final int version = buffer.getInt();
+		if ( version != VERSION )
+		{
+			in.close();
+			throw new IOException( "Unsupported spot stream version: " + version + "." );
+		}
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Reads the next frame block.
+	 *
+	 * @return <code>false</code> if there are no complete blocks left.
+	 * @throws IOException
+	 *             if the file cannot be read or is corrupted.
+	 */
+	public boolean next() throws IOException
+	{
+		try
+		{
+			final ByteBuffer head = readBuffer( 16 );
+			if ( head.getInt() != BLOCK_MAGIC )
+				throw new IOException( "Corrupted spot stream." );
+			final int f = head.getInt();
+			final int n = head.getInt();
+			final int nFeatures = head.getInt();
+			if ( n < 0 || nFeatures < 0 )
+				throw new IOException( "Corrupted spot stream." );
+
+			final String[] features = new String[ nFeatures ];
+			for ( int i = 0; i < nFeatures; i++ )
+			{
+				final int length = readBuffer( 4 ).getInt();
+				if ( length < 0 )
+					throw new IOException( "Corrupted spot stream." );
+				features[ i ] = new String( readBuffer( length ).array(), UTF8 );
+			}
+			final ByteBuffer body = readBuffer( 8 * n * nFeatures );
+
+			frame = f;
+			nSpots = n;
+			columns.clear();
+			for ( final String feature : features )
+			{
+				final double[] column = new double[ n ];
+				body.asDoubleBuffer().get( column );
+				body.position( body.position() + 8 * n );
+				columns.put( feature, column );
+			}
+			return true;
+		}
+		catch ( final EOFException e )
+		{
+			// End of file, or block cut by a crash.
+			return false;
+		}
+	}
+
+	/** Returns the frame of the current block. */
+	public int getFrame()
+	{
+		return frame;
+	}
+
+	/** Returns the number of spots in the current block. */
+	public int getNSpots()
+	{
+		return nSpots;
+	}
+
+	/** Returns the features stored in the current block. */
+	public Set< String > getFeatures()
+	{
+		return columns.keySet();
+	}
+
+	/**
+	 * Returns the values of a feature for the spots of the current block.
+	 * Spots that miss the feature, or all of them if the block does not
+	 * hold it, have NaN.
+	 */
+	public double[] getColumn( final String feature )
+	{
+		final double[] column = columns.get( feature );
+		if ( null != column )
+			return column;
+		final double[] missing = new double[ nSpots ];
+		Arrays.fill( missing, Double.NaN );
+		return missing;
+	}
+
+	public double[] getX()
+	{
+		return getColumn( Spot.POSITION_X );
+	}
+
+	public double[] getY()
+	{
+		return getColumn( Spot.POSITION_Y );
+	}
+
+	public double[] getZ()
+	{
+		return getColumn( Spot.POSITION_Z );
+	}
+
+	public double[] getRadius()
+	{
+		return getColumn( Spot.RADIUS );
+	}
+
+	public double[] getQuality()
+	{
+		return getColumn( Spot.QUALITY );
+	}
+
+	public double[] getVolume()
+	{
+		return getColumn( NucleiSpotCreator.VOLUME );
+	}
+
+	/**
+	 * Returns the label of each spot of the current block in the label image,
+	 * or 0 if unknown.
+	 */
+	public int[] getLabel()
+	{
+		final double[] column = getColumn( NucleiSpotCreator.LABEL );
+		final int[] label = new int[ nSpots ];
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			label[ i ] = Double.isNaN( column[ i ] ) ? 0 : ( int ) column[ i ];
+		}
+		return label;
+	}
+
+	/**
+	 * Builds spots from the current block, with all the features stored.
+	 */
+	public List< Spot > getSpots()
+	{
+		final List< Spot > spots = new ArrayList< Spot >( nSpots );
+		for ( int i = 0; i < nSpots; i++ )
+		{
+			final Spot spot = new Spot( 0, 0, 0, 1, 0 );
+			for ( final Map.Entry< String, double[] > column : columns.entrySet() )
+			{
+				final double val = column.getValue()[ i ];
+				if ( !Double.isNaN( val ) )
+					spot.putFeature( column.getKey(), Double.valueOf( val ) );
+			}
+			spots.add( spot );
+		}
+		return spots;
+	}
+
+	public void close() throws IOException
+	{
+		in.close();
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Reads a whole spot stream in a new spot collection. Spots that were
+	 * streamed without a <code>POSITION_T</code> feature get their frame.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public static SpotCollection read( final File file ) throws IOException
+	{
+		final SpotCollection spots = new SpotCollection();
+		final SpotStreamReader reader = new SpotStreamReader( file );
+		try
+		{
+			while ( reader.next() )
+			{
+				final List< Spot > frameSpots = reader.getSpots();
+				for ( final Spot spot : frameSpots )
+				{
+					if ( null == spot.getFeature( Spot.POSITION_T ) )
+						spot.putFeature( Spot.POSITION_T, Double.valueOf( reader.getFrame() ) );
+				}
+				spots.put( reader.getFrame(), frameSpots );
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return spots;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Reads the specified number of bytes, in a little-endian buffer.
+	 *
+	 * @throws EOFException
+	 *             if the file ends before.
+	 */
+	private ByteBuffer readBuffer( final int n ) throws IOException
+	{
+		final byte[] bytes = new byte[ n ];
+		in.readFully( bytes );
+		return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+}
@@ -0,0 +1,137 @@
+package fiji.plugin.cwnt;
+
+import fiji.plugin.trackmate.Spot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * Appends the spots of each frame to a compact binary file while the
+ * segmentation runs, so that analyses can start on the spots long before the
+ * TrackMate file is written. The same format holds the spots of one frame
+ * in the checkpoint and shard folders, see
+ * {@link fiji.plugin.cwnt.batch.SpotFrameIO}.
+ * <p>
+ * The file starts with a header, then holds one block per frame, in the order
+ * frames are done. A block holds the frame, the number of spots, the names
+ * of the features of the spots, sorted, then one column of doubles per
+ * feature. Features missing from a spot are NaN. Values are little-endian,
+ * and names are UTF-8 strings prefixed by their length in bytes. Each block
+ * is written in one go and flushed, so a file cut by a crash holds all the
+ * frames but possibly the last one, which {@link SpotStreamReader} ignores.
+ *
+ * @author Jean-Yves Tinevez
+ * @see SpotStreamReader
+ */
+public class SpotStreamWriter
+{
+
+	/** "CWSS", for CWNS spot stream. */
+	static final int MAGIC = 0x43575353;
+
+	/** "CWSB", for CWNS spot block. */
+	static final int BLOCK_MAGIC = 0x43575342;
+
+	static final int VERSION = 2;
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	private final OutputStream out;
+
+	private long nSpots = 0;
+
+	/**
+	 * Creates a new spot stream, overwriting the specified file.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public SpotStreamWriter( final File file ) throws IOException
+	{
+		this.out = new FileOutputStream( file );
+		final ByteBuffer header = ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION );
+		out.write( header.array() );
+		out.flush();
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Appends the spots of one frame. Safe to call from several threads.
+	 *
+	 * @param frame
+	 *            the frame the spots belong to.
+	 * @param spots
+	 *            the spots.
+	 * @throws IOException
+	 *             if the block cannot be written.
+	 */
+	public void append( final int frame, final Collection< Spot > spots ) throws IOException
+	{
+		final TreeSet< String > names = new TreeSet< String >();
+		for ( final Spot spot : spots )
+		{
+			names.addAll( spot.getFeatures().keySet() );
+		}
+		final byte[][] encoded = new byte[ names.size() ][];
+		int size = 16 + 8 * spots.size() * names.size();
+		int i = 0;
+		for ( final String name : names )
+		{
+			encoded[ i ] = name.getBytes( UTF8 );
+			size += 4 + encoded[ i ].length;
+			i++;
+		}
+
+		final ByteBuffer block = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+		block.putInt( BLOCK_MAGIC ).putInt( frame ).putInt( spots.size() ).putInt( names.size() );
+		for ( final byte[] name : encoded )
+		{
+			block.putInt( name.length ).put( name );
+		}
+		for ( final String feature : names )
+		{
+			for ( final Spot spot : spots )
+			{
+				final Double val = spot.getFeature( feature );
+				block.putDouble( null == val ? Double.NaN : val.doubleValue() );
+			}
+		}
+
+		synchronized ( out )
+		{
+			out.write( block.array() );
+			out.flush();
+			nSpots += spots.size();
+		}
+	}
+
+	/**
+	 * Returns the number of spots written so far.
+	 */
+	public long getNSpots()
+	{
+		synchronized ( out )
+		{
+			return nSpots;
+		}
+	}
+
+	public void close() throws IOException
+	{
+		synchronized ( out )
+		{
+			out.close();
+		}
+	}
+}
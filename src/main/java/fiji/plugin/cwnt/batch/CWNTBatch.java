@@ -0,0 +1,724 @@
+package fiji.plugin.cwnt.batch;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import fiji.plugin.cwnt.CWNTProcessor;
+import fiji.plugin.cwnt.SpotStreamWriter;
+import fiji.plugin.cwnt.segmentation.ChunkedLabelStore;
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
+import fiji.plugin.cwnt.segmentation.DiskMaskerStageCache;
+import fiji.plugin.cwnt.segmentation.SegmentationCostModel;
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.io.TmXmlWriter;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Headless batch entry point of the crown-wearing nuclei segmenter. It
+ * segments and tracks the nuclei of one image file without any user
+ * interface, so that it can run on cluster nodes without a display.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java -Djava.awt.headless=true fiji.plugin.cwnt.batch.CWNTBatch [options] image.tif
+ * </pre>
+ *
+ * Run without argument for the list of options. The settings file holds one
+ * <code>key = value</code> line per segmenter parameter, with the keys of
+ * {@link CrownWearingSegmenterFactory#PARAMETER_NAMES}. Missing parameters
+ * take their default value.
+ * <p>
+ * Outputs are written in the output folder: the TrackMate file
+ * <code>name-cwns.xml</code> and, if asked, the stage metrics
+ * <code>name-cwns-metrics.csv/json</code>, the label image
+ * <code>name-cwns-labels.tif</code> or the chunked label store
+ * <code>name-cwns-labels.n5</code>, and the spot stream
+ * <code>name-cwns-spots.bin</code>, readable with
+ * {@link fiji.plugin.cwnt.SpotStreamReader} while the run goes on. Frames are checkpointed in
+ * <code>name-cwns-checkpoint</code> as they are done: running the same
+ * command again after an interruption resumes where it stopped. The
+ * checkpoint is deleted once the run completes.
+ * <p>
+ * With more than one worker, frames are segmented by several local worker
+ * processes, each on a contiguous range of frames, then merged and tracked
+ * in this process. See {@link ShardCoordinator}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class CWNTBatch
+{
+
+	private static final String USAGE = "Usage: CWNTBatch [options] image.tif\n"
+			+ "Options:\n"
+			+ "  -s, --settings FILE   segmenter settings, as 'key = value' lines.\n"
+			+ "  -t, --threads N       number of threads. Default: all cores.\n"
+			+ "  -m, --memory SIZE     memory budget, for instance 8g or 512m. Bounds the\n"
+			+ "                        number of frames segmented at once. Default: max heap.\n"
+			+ "  -o, --output DIR      output folder. Default: the folder of the image.\n"
+			+ "  --virtual             open the image as a virtual stack, and read the frames\n"
+			+ "                        one at a time, memory-mapped if the file is uncompressed.\n"
+			+ "                        Always the case with several workers.\n"
+			+ "  --labels              save the 16-bit label image.\n"
+			+ "  --labels32            save the 32-bit label image.\n"
+			+ "  --label-store         stream the labels of each frame in a chunked, compressed\n"
+			+ "                        N5 container, name-cwns-labels.n5, as frames are done.\n"
+			+ "  --spot-stream         append the spots of each frame to name-cwns-spots.bin, in\n"
+			+ "                        a compact binary format, as frames are done.\n"
+			+ "  --metrics             save the duration and peak memory of each stage of each\n"
+			+ "                        frame in name-cwns-metrics.csv and .json.\n"
+			+ "  --no-tracking         only segment, do not track.\n"
+			+ "  --incremental-tracking\n"
+			+ "                        link frames as they are segmented, instead of once all\n"
+			+ "                        are done. Not used with several workers.\n"
+			+ "  --grid-linking        track with the parallel grid linker of CWNS instead of the\n"
+			+ "                        sparse LAP tracker of TrackMate.\n"
+			+ "  --adaptive-radius     adapt the linking radius to the local density of nuclei.\n"
+			+ "                        Implies --grid-linking.\n"
+			+ "  --checkpoint DIR      folder where frames are saved as they are done, to\n"
+			+ "                        resume an interrupted run. Default: name-cwns-checkpoint\n"
+			+ "                        in the output folder.\n"
+			+ "  --no-checkpoint       do not save frames as they are done.\n"
+			+ "  --stage-cache DIR     folder caching the outputs of the masking steps, so that\n"
+			+ "                        reruns changing only late parameters skip them.\n"
+			+ "  -w, --workers N       number of worker processes segmenting frame ranges.\n"
+			+ "                        Threads and memory are shared among them. Default: 1.\n"
+			+ "  --work-dir DIR        folder for the worker results, reused on restart.\n"
+			+ "                        Default: name-cwns-shards in the output folder.\n";
+
+	private File input;
+
+	private File settingsFile;
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private long memoryBudget = Runtime.getRuntime().maxMemory();
+
+	private File outputFolder;
+
+	private boolean saveLabels = false;
+
+	private boolean use32BitLabels = false;
+
+	private boolean saveMetrics = false;
+
+	private boolean doTracking = true;
+
+	private boolean incrementalTracking = false;
+
+	private boolean adaptiveLinkingRadius = false;
+
+	private boolean gridLinking = false;
+
+	private int nWorkers = 1;
+
+	private boolean doCheckpoint = true;
+
+	private File checkpointFolder;
+
+	private File stageCacheFolder;
+
+	private boolean virtual = false;
+
+	private boolean useLabelStore = false;
+
+	private boolean useSpotStream = false;
+
+	private File workFolder;
+
+	private final Logger logger;
+
+	public CWNTBatch( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	/**
+	 * Runs the segmentation and tracking with the options set, and writes the
+	 * outputs.
+	 *
+	 * @return <code>true</code> if everything went fine.
+	 */
+	public boolean run()
+	{
+		final long start = System.currentTimeMillis();
+
+		final Map< String, Object > detectorSettings;
+		try
+		{
+			detectorSettings = readSettings( settingsFile );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not read settings file " + settingsFile + ": " + e.getMessage() + "\n" );
+			return false;
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			logger.error( "Bad settings file " + settingsFile + ": " + e.getMessage() + "\n" );
+			return false;
+		}
+
+		logger.log( "Opening " + input + "...\n" );
+		// With workers, this process only needs the image metadata.
+		final ImagePlus imp = ( virtual || nWorkers > 1 ) ? IJ.openVirtual( input.getAbsolutePath() ) : IJ.openImage( input.getAbsolutePath() );
+		if ( null == imp )
+		{
+			logger.error( "Could not open image " + input + ".\n" );
+			return false;
+		}
+
+		final File folder = null == outputFolder ? input.getAbsoluteFile().getParentFile() : outputFolder;
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+		{
+			logger.error( "Could not create output folder " + folder + ".\n" );
+			return false;
+		}
+
+		final String baseName = imp.getShortTitle() + "-cwns";
+		final DiskMaskerStageCache stageCache;
+		try
+		{
+			stageCache = null == stageCacheFolder ? null : new DiskMaskerStageCache( stageCacheFolder );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( e.getMessage() + "\n" );
+			return false;
+		}
+
+		ChunkedLabelStore labelStore = null;
+		if ( useLabelStore )
+		{
+			final File storeFolder = new File( folder, baseName + "-labels.n5" );
+			final Calibration cal = imp.getCalibration();
+			try
+			{
+				labelStore = ChunkedLabelStore.create( storeFolder, imp.getWidth(), imp.getHeight(), imp.getNSlices(), imp.getNFrames(),
+						ChunkedLabelStore.DEFAULT_BLOCK_SIZE, new double[] { cal.pixelWidth, cal.pixelHeight, cal.pixelDepth } );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( e.getMessage() + "\n" );
+				return false;
+			}
+			logger.log( "Streaming labels to " + storeFolder + ".\n" );
+		}
+
+		SpotStreamWriter spotStream = null;
+		if ( useSpotStream )
+		{
+			final File streamFile = new File( folder, baseName + "-spots.bin" );
+			try
+			{
+				spotStream = new SpotStreamWriter( streamFile );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Could not create " + streamFile + ": " + e.getMessage() + "\n" );
+				return false;
+			}
+			logger.log( "Streaming spots to " + streamFile + ".\n" );
+		}
+
+		final CWNTProcessor processor = new CWNTProcessor( imp, detectorSettings );
+		processor.setNumThreads( numThreads );
+		processor.setLogger( logger );
+		processor.setDoTracking( doTracking );
+		processor.setIncrementalTracking( incrementalTracking );
+		processor.setAdaptiveLinkingRadius( adaptiveLinkingRadius );
+		processor.setGridLinking( gridLinking );
+		processor.setMetrics( saveMetrics ? new SegmentationMetrics() : SegmentationMetrics.DISABLED );
+		processor.setStageCache( stageCache );
+		ImagePlus labelImp = null;
+		if ( nWorkers > 1 )
+		{
+			final File shardFolder = null == workFolder ? new File( folder, baseName + "-shards" ) : workFolder;
+			logger.log( String.format( "Using %d worker processes with %d threads each, in %s.\n",
+					nWorkers, Math.max( 1, numThreads / nWorkers ), shardFolder ) );
+			final ShardCoordinator coordinator = new ShardCoordinator( input, settingsFile, shardFolder, nWorkers, logger );
+			coordinator.setThreadsPerWorker( numThreads / nWorkers );
+			coordinator.setMemoryPerWorker( memoryBudget / nWorkers );
+			coordinator.setSaveLabels( saveLabels, use32BitLabels );
+			coordinator.setSaveMetrics( saveMetrics );
+			coordinator.setStageCacheFolder( stageCacheFolder );
+			coordinator.setLabelStore( null == labelStore ? null : labelStore.getRoot() );
+			// Shards of a run with a label store also wrote to the store.
+			coordinator.setRunHash( FrameCheckpoint.computeHash( imp, detectorSettings, saveLabels, use32BitLabels, false, false )
+					+ ( null == labelStore ? "" : "-store" ) );
+
+			final int tend = imp.getNFrames() - 1;
+			final SpotCollection spots = coordinator.segment( 0, tend );
+			if ( null == spots || ( null != labelStore && !coordinator.mergeLabelStore( labelStore, 0, tend ) ) )
+			{
+				closeQuietly( spotStream );
+				return false;
+			}
+			if ( null != spotStream )
+			{
+				// Workers do not stream: spots are only known once merged.
+				try
+				{
+					for ( final Integer frame : spots.keySet() )
+					{
+						final List< Spot > frameSpots = new ArrayList< Spot >();
+						for ( final Spot spot : spots.iterable( frame, false ) )
+						{
+							frameSpots.add( spot );
+						}
+						spotStream.append( frame, frameSpots );
+					}
+				}
+				catch ( final IOException e )
+				{
+					logger.error( "Could not write the spot stream: " + e.getMessage() + "\n" );
+					closeQuietly( spotStream );
+					return false;
+				}
+				closeQuietly( spotStream );
+			}
+			if ( !( processor.checkInput() && processor.process( spots ) ) )
+			{
+				logger.error( processor.getErrorMessage() + "\n" );
+				return false;
+			}
+			if ( saveLabels )
+			{
+				labelImp = coordinator.mergeLabels( imp, 0, tend );
+				if ( null == labelImp )
+					return false;
+			}
+		}
+		else
+		{
+			processor.setLabelOptions( saveLabels, use32BitLabels, false, false );
+			processor.setLabelStore( labelStore );
+			processor.setSpotStream( spotStream );
+			if ( doCheckpoint )
+				processor.setCheckpointFolder( null == checkpointFolder ? new File( folder, baseName + "-checkpoint" ) : checkpointFolder );
+			final int maxFrames = getMaxSimultaneousFrames( imp );
+			processor.setMaxSimultaneousFrames( maxFrames );
+			logger.log( String.format( "Using %d threads, at most %d frames at once for a memory budget of %.0f MB.\n",
+					numThreads, maxFrames, memoryBudget / ( 1024. * 1024. ) ) );
+
+			final boolean ok = processor.checkInput() && processor.process();
+			closeQuietly( spotStream );
+			if ( !ok )
+			{
+				logger.error( processor.getErrorMessage() + "\n" );
+				return false;
+			}
+			labelImp = processor.getLabelImage();
+		}
+
+		try
+		{
+			final File xmlFile = new File( folder, baseName + ".xml" );
+			final TmXmlWriter writer = new TmXmlWriter( xmlFile );
+			writer.appendModel( processor.getModel() );
+			writer.appendSettings( processor.getSettings() );
+			writer.writeToFile();
+			logger.log( "TrackMate file saved to " + xmlFile + ".\n" );
+
+			if ( saveLabels )
+			{
+				final File labelFile = new File( folder, baseName + "-labels.tif" );
+				if ( !IJ.saveAsTiff( labelImp, labelFile.getAbsolutePath() ) )
+					throw new IOException( "Could not write " + labelFile + "." );
+				logger.log( "Label image saved to " + labelFile + ".\n" );
+			}
+
+			// Sharded runs leave their stage metrics in the shard folders.
+			if ( saveMetrics && nWorkers <= 1 )
+				processor.writeMetrics( folder, baseName + "-metrics" );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not save outputs: " + e.getMessage() + "\n" );
+			return false;
+		}
+
+		final long end = System.currentTimeMillis();
+		final int nFrames = imp.getNFrames();
+		final double voxels = ( double ) imp.getWidth() * imp.getHeight() * imp.getNSlices() * nFrames;
+		final double seconds = ( end - start ) / 1e3;
+		logger.log( String.format( "Processed %d frames in %.1f s: %.3f frames/s, %.3g voxels/s.\n",
+				nFrames, seconds, nFrames / seconds, voxels / seconds ) );
+		return true;
+	}
+
+	/**
+	 * Returns the max number of frames that can be segmented at once within
+	 * the memory budget, once the source image is loaded.
+	 */
+	private int getMaxSimultaneousFrames( final ImagePlus imp )
+	{
+		final long voxelsPerFrame = ( long ) imp.getWidth() * imp.getHeight() * imp.getNSlices();
+		// Virtual stacks only hold the frames being segmented.
+		final long sourceBytes = imp.getStack().isVirtual() ? 0 : voxelsPerFrame * imp.getNFrames() * imp.getNChannels() * imp.getBytesPerPixel();
+		final long bytesPerFrame = SegmentationCostModel.predictPeakMemory( 1, voxelsPerFrame, 1 );
+		final long available = memoryBudget - sourceBytes;
+		if ( available < bytesPerFrame )
+		{
+			logger.log( "Warning: the memory budget is too small to segment one frame; trying anyway.\n" );
+			return 1;
+		}
+		return ( int ) Math.min( Integer.MAX_VALUE, available / bytesPerFrame );
+	}
+
+	private void closeQuietly( final SpotStreamWriter spotStream )
+	{
+		if ( null == spotStream )
+			return;
+		try
+		{
+			spotStream.close();
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not close the spot stream: " + e.getMessage() + "\n" );
+		}
+	}
+
+	/*
+	 * SETTERS
+	 */
+
+	public void setInput( final File input )
+	{
+		this.input = input;
+	}
+
+	/**
+	 * Sets the settings file. If <code>null</code>, default settings are
+	 * used.
+	 */
+	public void setSettingsFile( final File settingsFile )
+	{
+		this.settingsFile = settingsFile;
+	}
+
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Sets the memory budget, in bytes.
+	 */
+	public void setMemoryBudget( final long memoryBudget )
+	{
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Sets the output folder. If <code>null</code>, outputs are written next
+	 * to the input image.
+	 */
+	public void setOutputFolder( final File outputFolder )
+	{
+		this.outputFolder = outputFolder;
+	}
+
+	/**
+	 * Sets whether the duration and peak memory of each stage of each frame
+	 * are saved. Default is <code>false</code>.
+	 */
+	public void setSaveMetrics( final boolean saveMetrics )
+	{
+		this.saveMetrics = saveMetrics;
+	}
+
+	public void setSaveLabels( final boolean saveLabels, final boolean use32Bit )
+	{
+		this.saveLabels = saveLabels;
+		this.use32BitLabels = use32Bit;
+	}
+
+	public void setDoTracking( final boolean doTracking )
+	{
+		this.doTracking = doTracking;
+	}
+
+	/**
+	 * Sets whether frames are linked as soon as they are segmented. Sharded
+	 * runs always track once the shards are merged.
+	 */
+	public void setIncrementalTracking( final boolean incrementalTracking )
+	{
+		this.incrementalTracking = incrementalTracking;
+	}
+
+	/**
+	 * Sets whether nuclei are tracked with the grid linker of CWNS.
+	 *
+	 * @see CWNTProcessor#setGridLinking(boolean)
+	 */
+	public void setGridLinking( final boolean gridLinking )
+	{
+		this.gridLinking = gridLinking;
+	}
+
+	/**
+	 * Sets whether the linking radius adapts to the local density of nuclei.
+	 *
+	 * @see CWNTProcessor#setAdaptiveLinkingRadius(boolean)
+	 */
+	public void setAdaptiveLinkingRadius( final boolean adaptiveLinkingRadius )
+	{
+		this.adaptiveLinkingRadius = adaptiveLinkingRadius;
+	}
+
+	/**
+	 * Sets whether frames are saved as they are done, so that an interrupted
+	 * run can be resumed, and where. If the folder is <code>null</code>, a
+	 * folder is created in the output folder. Sharded runs always resume from
+	 * their work folder.
+	 */
+	public void setCheckpoint( final boolean doCheckpoint, final File checkpointFolder )
+	{
+		this.doCheckpoint = doCheckpoint;
+		this.checkpointFolder = checkpointFolder;
+	}
+
+	/**
+	 * Sets the folder where the outputs of the masking steps are cached
+	 * across runs. If <code>null</code>, the default, they are not cached.
+	 */
+	public void setStageCacheFolder( final File stageCacheFolder )
+	{
+		this.stageCacheFolder = stageCacheFolder;
+	}
+
+	/**
+	 * Sets whether the image is opened as a virtual stack. Frames are then
+	 * read one at a time when they are segmented, through memory maps if the
+	 * file is an uncompressed TIFF, so that movies larger than the heap can
+	 * be processed. With several workers, the image is always opened as a
+	 * virtual stack, by this process and by the workers.
+	 */
+	public void setVirtual( final boolean virtual )
+	{
+		this.virtual = virtual;
+	}
+
+	/**
+	 * Sets whether the labels are streamed to a chunked label store in the
+	 * output folder, frame by frame. Unlike the label image, the store does
+	 * not have to fit in memory.
+	 */
+	public void setUseLabelStore( final boolean useLabelStore )
+	{
+		this.useLabelStore = useLabelStore;
+	}
+
+	/**
+	 * Sets whether the spots of each frame are appended to a spot stream in
+	 * the output folder as soon as the frame is segmented. With several
+	 * workers, the stream is written once the shards are merged.
+	 *
+	 * @see SpotStreamWriter
+	 */
+	public void setUseSpotStream( final boolean useSpotStream )
+	{
+		this.useSpotStream = useSpotStream;
+	}
+
+	/**
+	 * Sets the number of worker processes. If more than 1, frames are
+	 * segmented by local worker processes, each on its own range of frames.
+	 */
+	public void setNumWorkers( final int nWorkers )
+	{
+		this.nWorkers = Math.max( 1, nWorkers );
+	}
+
+	/**
+	 * Sets the folder where workers write their results. If <code>null</code>,
+	 * a folder is created in the output folder.
+	 */
+	public void setWorkFolder( final File workFolder )
+	{
+		this.workFolder = workFolder;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Reads segmenter settings from a file of <code>key = value</code> lines.
+	 * Parameters missing from the file take their default value.
+	 *
+	 * @param file
+	 *            the file to read. If <code>null</code>, default settings are
+	 *            returned.
+	 * @return a new settings map.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 * @throws IllegalArgumentException
+	 *             if the file holds an unknown key or a value that cannot be
+	 *             parsed.
+	 */
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static Map< String, Object > readSettings( final File file ) throws IOException
+	{
+		final Map< String, Object > settings = new CrownWearingSegmenterFactory().getDefaultSettings();
+		if ( null != file )
+		{
+			final Properties properties = new Properties();
+			final InputStream is = new FileInputStream( file );
+			try
+			{
+				properties.load( is );
+			}
+			finally
+			{
+				is.close();
+			}
+
+			for ( final String key : properties.stringPropertyNames() )
+			{
+				if ( !CrownWearingSegmenterFactory.PARAMETER_NAMES.contains( key ) )
+					throw new IllegalArgumentException( "Unknown parameter: " + key + "." );
+
+				final String value = properties.getProperty( key ).trim();
+				try
+				{
+					if ( key.equals( CrownWearingSegmenterFactory.KEY_SPLIT_NUCLEI ) )
+						settings.put( key, Boolean.valueOf( value ) );
+					else if ( key.equals( KEY_TARGET_CHANNEL ) )
+						settings.put( key, Integer.valueOf( value ) );
+					else
+						settings.put( key, Double.valueOf( value ) );
+				}
+				catch ( final NumberFormatException e )
+				{
+					throw new IllegalArgumentException( "Bad value for parameter " + key + ": " + value + "." );
+				}
+			}
+		}
+
+		// The masking parameters are all doubles, as set by the GUI.
+		final Object nAD = settings.get( CrownWearingSegmenterFactory.N_AD_PARAMETER );
+		settings.put( CrownWearingSegmenterFactory.N_AD_PARAMETER, Double.valueOf( ( ( Number ) nAD ).doubleValue() ) );
+		if ( !settings.containsKey( KEY_TARGET_CHANNEL ) )
+			settings.put( KEY_TARGET_CHANNEL, Integer.valueOf( 1 ) );
+		return settings;
+	}
+
+	/**
+	 * Parses a memory size such as <code>512m</code> or <code>8g</code>.
+	 *
+	 * @return the size in bytes.
+	 */
+	public static long parseMemorySize( final String str )
+	{
+		final String s = str.trim().toLowerCase();
+		final char unit = s.charAt( s.length() - 1 );
+		final long factor;
+		switch ( unit )
+		{
+		case 'k':
+			factor = 1024l;
+			break;
+		case 'm':
+			factor = 1024l * 1024l;
+			break;
+		case 'g':
+			factor = 1024l * 1024l * 1024l;
+			break;
+		default:
+			return Long.parseLong( s );
+		}
+		return ( long ) ( Double.parseDouble( s.substring( 0, s.length() - 1 ) ) * factor );
+	}
+
+	/*
+	 * MAIN METHOD
+	 */
+
+	public static void main( final String[] args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		final CWNTBatch batch = new CWNTBatch( Logger.DEFAULT_LOGGER );
+		try
+		{
+			for ( int i = 0; i < args.length; i++ )
+			{
+				final String arg = args[ i ];
+				if ( arg.equals( "-s" ) || arg.equals( "--settings" ) )
+					batch.setSettingsFile( new File( args[ ++i ] ) );
+				else if ( arg.equals( "-t" ) || arg.equals( "--threads" ) )
+					batch.setNumThreads( Integer.parseInt( args[ ++i ] ) );
+				else if ( arg.equals( "-m" ) || arg.equals( "--memory" ) )
+					batch.setMemoryBudget( parseMemorySize( args[ ++i ] ) );
+				else if ( arg.equals( "-o" ) || arg.equals( "--output" ) )
+					batch.setOutputFolder( new File( args[ ++i ] ) );
+				else if ( arg.equals( "--virtual" ) )
+					batch.setVirtual( true );
+				else if ( arg.equals( "--label-store" ) )
+					batch.setUseLabelStore( true );
+				else if ( arg.equals( "--spot-stream" ) )
+					batch.setUseSpotStream( true );
+				else if ( arg.equals( "--labels" ) )
+					batch.setSaveLabels( true, false );
+				else if ( arg.equals( "--labels32" ) )
+					batch.setSaveLabels( true, true );
+				else if ( arg.equals( "--metrics" ) )
+					batch.setSaveMetrics( true );
+				else if ( arg.equals( "--no-tracking" ) )
+					batch.setDoTracking( false );
+				else if ( arg.equals( "--incremental-tracking" ) )
+					batch.setIncrementalTracking( true );
+				else if ( arg.equals( "--grid-linking" ) )
+					batch.setGridLinking( true );
+				else if ( arg.equals( "--adaptive-radius" ) )
+					batch.setAdaptiveLinkingRadius( true );
+				else if ( arg.equals( "--checkpoint" ) )
+					batch.setCheckpoint( true, new File( args[ ++i ] ) );
+				else if ( arg.equals( "--no-checkpoint" ) )
+					batch.setCheckpoint( false, null );
+				else if ( arg.equals( "--stage-cache" ) )
+					batch.setStageCacheFolder( new File( args[ ++i ] ) );
+				else if ( arg.equals( "-w" ) || arg.equals( "--workers" ) )
+					batch.setNumWorkers( Integer.parseInt( args[ ++i ] ) );
+				else if ( arg.equals( "--work-dir" ) )
+					batch.setWorkFolder( new File( args[ ++i ] ) );
+				else if ( arg.startsWith( "-" ) )
+					throw new IllegalArgumentException( "Unknown option: " + arg + "." );
+				else
+					batch.setInput( new File( arg ) );
+			}
+		}
+		catch ( final ArrayIndexOutOfBoundsException e )
+		{
+			System.err.println( "Missing option value.\n" + USAGE );
+			System.exit( 2 );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			System.err.println( e.getMessage() + "\n" + USAGE );
+			System.exit( 2 );
+		}
+
+		if ( null == batch.input )
+		{
+			System.err.println( USAGE );
+			System.exit( 2 );
+		}
+		System.exit( batch.run() ? 0 : 1 );
+	}
+}
@@ -0,0 +1,508 @@
+package fiji.plugin.cwnt.batch;
+
+import fiji.plugin.cwnt.segmentation.LabelPlaneWriter;
+import fiji.plugin.trackmate.Spot;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Checkpoint of a segmentation run, at frame granularity. The spots, and
+ * optionally the labels, of each frame are saved in a checkpoint folder as
+ * soon as the frame is segmented, so that a run that was interrupted can be
+ * resumed without segmenting again the frames already done.
+ * <p>
+ * The folder holds one spot file per frame, in the format of
+ * {@link SpotFrameIO}, one label TIFF file per frame, and a manifest listing
+ * the frames done. The manifest also stores a hash of the input image and of
+ * the segmenter parameters: a checkpoint made with another image or other
+ * parameters is discarded. Every file is written under a temporary name then
+ * renamed, and the manifest is updated after the files of a frame are
+ * written, so a frame listed in the manifest is always complete.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class FrameCheckpoint
+{
+
+	private static final String MANIFEST = "manifest.properties";
+
+	private static final String KEY_HASH = "hash";
+
+	private static final String KEY_FRAMES = "frames";
+
+	private static final String KEY_LABEL_FRAMES = "labelFrames";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File folder;
+
+	private final String hash;
+
+	private final SortedSet< Integer > doneFrames = new TreeSet< Integer >();
+
+	private final SortedSet< Integer > labelFrames = new TreeSet< Integer >();
+
+	/**
+	 * Creates a checkpoint in the specified folder, for a run identified by
+	 * the specified hash. Call {@link #open()} before using it.
+	 *
+	 * @param folder
+	 *            the checkpoint folder. Created if it does not exist.
+	 * @param hash
+	 *            the hash of the run, as returned by
+	 *            {@link #computeHash(ImagePlus, Map, boolean, boolean, boolean, boolean)}.
+	 */
+	public FrameCheckpoint( final File folder, final String hash )
+	{
+		this.folder = folder;
+		this.hash = hash;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Reads the manifest of the checkpoint folder. If it was written for
+	 * another run, the checkpoint is cleared.
+	 *
+	 * @return the number of frames already done.
+	 * @throws IOException
+	 *             if the checkpoint folder cannot be read or written.
+	 */
+	public synchronized int open() throws IOException
+	{
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+			throw new IOException( "Could not create checkpoint folder " + folder + "." );
+
+		doneFrames.clear();
+		labelFrames.clear();
+		final File manifest = new File( folder, MANIFEST );
+		if ( !manifest.exists() )
+			return 0;
+
+		final Properties properties = new Properties();
+		final InputStream is = new FileInputStream( manifest );
+		try
+		{
+			properties.load( is );
+		}
+		finally
+		{
+			is.close();
+		}
+
+		if ( !hash.equals( properties.getProperty( KEY_HASH ) ) )
+		{
+			// Another image or other parameters: start over.
+			clear();
+			return 0;
+		}
+		parseFrames( properties.getProperty( KEY_FRAMES, "" ), doneFrames );
+		parseFrames( properties.getProperty( KEY_LABEL_FRAMES, "" ), labelFrames );
+		return doneFrames.size();
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified frame is done. If labels are
+	 * required, the frame must have been saved with its labels.
+	 */
+	public synchronized boolean isDone( final int frame, final boolean withLabels )
+	{
+		return doneFrames.contains( Integer.valueOf( frame ) ) && ( !withLabels || labelFrames.contains( Integer.valueOf( frame ) ) );
+	}
+
+	/**
+	 * Reads the spots of a frame done.
+	 */
+	public List< Spot > readSpots( final int frame ) throws IOException
+	{
+		return SpotFrameIO.read( SpotFrameIO.getSpotFile( folder, frame ) );
+	}
+
+	/**
+	 * Copies the labels of a frame done in the planes of this frame in the
+	 * specified label image.
+	 *
+	 * @return the largest label of the frame.
+	 * @throws IOException
+	 *             if the label file cannot be read.
+	 */
+	public int readLabels( final int frame, final ImagePlus labelImp ) throws IOException
+	{
+		final File file = getLabelFile( frame );
+		final ImagePlus frameImp = IJ.openImage( file.getAbsolutePath() );
+		if ( null == frameImp )
+			throw new IOException( "Could not read " + file + "." );
+
+		float max = 0;
+		for ( int z = 0; z < frameImp.getStackSize(); z++ )
+		{
+			final ImageProcessor source = frameImp.getStack().getProcessor( z + 1 );
+			final ImageProcessor target = labelImp.getStack().getProcessor( labelImp.getStackIndex( 1, z + 1, frame + 1 ) );
+			for ( int i = 0; i < source.getPixelCount(); i++ )
+			{
+				final float val = source.getf( i );
+				target.setf( i, val );
+				max = Math.max( max, val );
+			}
+		}
+		return ( int ) max;
+	}
+
+	/**
+	 * Reads the labels of a frame done, one plane per Z slice.
+	 *
+	 * @return the label planes, as <code>float[]</code> or
+	 *         <code>short[]</code> arrays.
+	 * @throws IOException
+	 *             if the label file cannot be read.
+	 */
+	public Object[] readLabelPlanes( final int frame ) throws IOException
+	{
+		final File file = getLabelFile( frame );
+		final ImagePlus frameImp = IJ.openImage( file.getAbsolutePath() );
+		if ( null == frameImp )
+			throw new IOException( "Could not read " + file + "." );
+
+		final Object[] planes = new Object[ frameImp.getStackSize() ];
+		for ( int z = 0; z < planes.length; z++ )
+		{
+			planes[ z ] = frameImp.getStack().getPixels( z + 1 );
+		}
+		return planes;
+	}
+
+	/**
+	 * Saves the results of a segmented frame, then marks it as done.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param spots
+	 *            the spots of the frame.
+	 * @param labelImp
+	 *            the label image, whose planes for this frame are saved. If
+	 *            <code>null</code>, labels are not saved.
+	 * @throws IOException
+	 *             if a file cannot be written.
+	 */
+	public void frameDone( final int frame, final List< Spot > spots, final ImagePlus labelImp ) throws IOException
+	{
+		if ( null != labelImp )
+			writeFrameLabels( labelImp, frame, getLabelFile( frame ) );
+		SpotFrameIO.write( SpotFrameIO.getSpotFile( folder, frame ), frame, spots );
+
+		markDone( frame, null != labelImp );
+	}
+
+	/**
+	 * Saves the results of a segmented frame whose labels are not in a label
+	 * image, then marks it as done.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param spots
+	 *            the spots of the frame.
+	 * @param planes
+	 *            the label planes of the frame, one per Z slice, as
+	 *            <code>int[]</code>, <code>short[]</code> or
+	 *            <code>float[]</code> arrays. <code>int[]</code> planes are
+	 *            saved as 32-bit, so their labels must not be larger than
+	 *            {@link LabelPlaneWriter#MAX_FLOAT_LABEL}.
+	 * @param width
+	 *            the width of the planes.
+	 * @param height
+	 *            the height of the planes.
+	 * @throws IOException
+	 *             if a file cannot be written, or if a label is too large.
+	 */
+	public void frameDone( final int frame, final List< Spot > spots, final Object[] planes, final int width, final int height ) throws IOException
+	{
+		writeStack( new ImagePlus( "", toStack( planes, width, height, true ) ), getLabelFile( frame ) );
+		SpotFrameIO.write( SpotFrameIO.getSpotFile( folder, frame ), frame, spots );
+		markDone( frame, true );
+	}
+
+	/**
+	 * Deletes the files of the checkpoint, and its folder if it is left
+	 * empty. Called once the run is complete.
+	 *
+	 * @throws IOException
+	 *             if a file cannot be deleted.
+	 */
+	public synchronized void delete() throws IOException
+	{
+		clear();
+		doneFrames.clear();
+		labelFrames.clear();
+		final String[] left = folder.list();
+		if ( null != left && left.length == 0 && !folder.delete() )
+			throw new IOException( "Could not delete " + folder + "." );
+	}
+
+	/**
+	 * Returns the checkpoint folder.
+	 */
+	public File getFolder()
+	{
+		return folder;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Computes a hash identifying a segmentation run, from the image
+	 * dimensions, calibration and file, from the segmenter parameters and
+	 * from the label options, which change what is saved for each frame.
+	 *
+	 * @param imp
+	 *            the image to segment.
+	 * @param detectorSettings
+	 *            the segmenter settings.
+	 * @param labels
+	 *            whether a label image is generated.
+	 * @param use32BitLabels
+	 *            whether the label image is 32-bit.
+	 * @param colorLabels
+	 *            whether a colored label image is generated.
+	 * @param virtualColorLabels
+	 *            whether colored labels are rendered on demand.
+	 * @return the hash, as an hexadecimal string.
+	 */
+	public static String computeHash( final ImagePlus imp, final Map< String, Object > detectorSettings, final boolean labels,
+			final boolean use32BitLabels, final boolean colorLabels, final boolean virtualColorLabels )
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( imp.getTitle() ).append( '\n' );
+		str.append( imp.getWidth() ).append( 'x' ).append( imp.getHeight() ).append( 'x' ).append( imp.getNChannels() )
+				.append( 'x' ).append( imp.getNSlices() ).append( 'x' ).append( imp.getNFrames() ).append( '\n' );
+		str.append( imp.getBitDepth() ).append( '\n' );
+		final Calibration cal = imp.getCalibration();
+		str.append( cal.pixelWidth ).append( ' ' ).append( cal.pixelHeight ).append( ' ' ).append( cal.pixelDepth )
+				.append( ' ' ).append( cal.frameInterval ).append( '\n' );
+		final FileInfo fileInfo = imp.getOriginalFileInfo();
+		if ( null != fileInfo && null != fileInfo.directory && null != fileInfo.fileName )
+		{
+			final File file = new File( fileInfo.directory, fileInfo.fileName );
+			str.append( file.getAbsolutePath() ).append( ' ' ).append( file.length() ).append( ' ' ).append( file.lastModified() ).append( '\n' );
+		}
+		// Sorted, so that the hash does not depend on the map order.
+		for ( final Map.Entry< String, Object > entry : new TreeMap< String, Object >( detectorSettings ).entrySet() )
+		{
+			str.append( entry.getKey() ).append( '=' ).append( entry.getValue() ).append( '\n' );
+		}
+		str.append( "labels=" ).append( labels ).append( '\n' );
+		str.append( "use32BitLabels=" ).append( use32BitLabels ).append( '\n' );
+		str.append( "colorLabels=" ).append( colorLabels ).append( '\n' );
+		str.append( "virtualColorLabels=" ).append( virtualColorLabels ).append( '\n' );
+
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( str.toString().getBytes( "UTF-8" ) );
+			final StringBuilder hex = new StringBuilder();
+			for ( final byte b : digest )
+			{
+				hex.append( String.format( "%02x", b & 0xff ) );
+			}
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+		catch ( final UnsupportedEncodingException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	/**
+	 * Writes the planes of one frame of a label image as a TIFF stack, under
+	 * a temporary name then renamed.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void writeFrameLabels( final ImagePlus labels, final int frame, final File file ) throws IOException
+	{
+		final int nz = labels.getNSlices();
+		final ImageStack stack = new ImageStack( labels.getWidth(), labels.getHeight() );
+		for ( int z = 0; z < nz; z++ )
+		{
+			stack.addSlice( labels.getStack().getProcessor( labels.getStackIndex( 1, z + 1, frame + 1 ) ) );
+		}
+		final ImagePlus frameImp = new ImagePlus( file.getName(), stack );
+		frameImp.setCalibration( labels.getCalibration() );
+		writeStack( frameImp, file );
+	}
+
+	/**
+	 * Writes the label planes of one frame as a TIFF stack, under a temporary
+	 * name then renamed.
+	 *
+	 * @param planes
+	 *            the label planes, one per Z slice, as <code>int[]</code>,
+	 *            <code>short[]</code> or <code>float[]</code> arrays.
+	 * @param use32BitLabels
+	 *            whether <code>int[]</code> planes are saved as 32-bit. If
+	 *            <code>false</code>, they are saved as 16-bit, and labels
+	 *            larger than 65535 are clamped to 65535. 32-bit TIFFs store
+	 *            floats, so they cannot hold labels larger than
+	 *            {@link LabelPlaneWriter#MAX_FLOAT_LABEL}.
+	 * @throws IOException
+	 *             if the file cannot be written, or if a 32-bit label is
+	 *             larger than {@link LabelPlaneWriter#MAX_FLOAT_LABEL}.
+	 */
+	public static void writeFrameLabels( final Object[] planes, final int width, final int height, final boolean use32BitLabels, final File file ) throws IOException
+	{
+		writeStack( new ImagePlus( file.getName(), toStack( planes, width, height, use32BitLabels ) ), file );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private static ImageStack toStack( final Object[] planes, final int width, final int height, final boolean use32BitLabels ) throws IOException
+	{
+		final ImageStack stack = new ImageStack( width, height );
+		for ( final Object plane : planes )
+		{
+			if ( !( plane instanceof int[] ) )
+				stack.addSlice( "", plane );
+			else if ( use32BitLabels )
+			{
+				// Floats are exact for integers up to 2^24 only.
+				for ( final int label : ( int[] ) plane )
+				{
+					if ( label > LabelPlaneWriter.MAX_FLOAT_LABEL )
+						throw new IOException( "Label " + label + " is larger than " + LabelPlaneWriter.MAX_FLOAT_LABEL
+								+ ", the largest label a 32-bit TIFF stores exactly. Use a label store for movies with more nuclei." );
+				}
+				stack.addSlice( "", new FloatProcessor( width, height, ( int[] ) plane ) );
+			}
+			else
+			{
+				final int[] labels = ( int[] ) plane;
+				final short[] pixels = new short[ labels.length ];
+				for ( int i = 0; i < labels.length; i++ )
+				{
+					pixels[ i ] = ( short ) Math.min( labels[ i ], 65535 );
+				}
+				stack.addSlice( "", new ShortProcessor( width, height, pixels, null ) );
+			}
+		}
+		return stack;
+	}
+
+	private static void writeStack( final ImagePlus frameImp, final File file ) throws IOException
+	{
+		final File tmp = new File( file.getParentFile(), file.getName().replace( ".tif", ".tmp.tif" ) );
+		if ( !IJ.saveAsTiff( frameImp, tmp.getAbsolutePath() ) )
+			throw new IOException( "Could not write " + tmp + "." );
+		SpotFrameIO.replace( tmp, file );
+	}
+
+	private synchronized void markDone( final int frame, final boolean withLabels ) throws IOException
+	{
+		doneFrames.add( Integer.valueOf( frame ) );
+		if ( withLabels )
+			labelFrames.add( Integer.valueOf( frame ) );
+		writeManifest();
+	}
+
+	private File getLabelFile( final int frame )
+	{
+		return new File( folder, String.format( "labels-t%05d.tif", frame ) );
+	}
+
+	private void writeManifest() throws IOException
+	{
+		final Properties properties = new Properties();
+		properties.setProperty( KEY_HASH, hash );
+		properties.setProperty( KEY_FRAMES, formatFrames( doneFrames ) );
+		properties.setProperty( KEY_LABEL_FRAMES, formatFrames( labelFrames ) );
+
+		final File manifest = new File( folder, MANIFEST );
+		final File tmp = new File( folder, MANIFEST + TMP_SUFFIX );
+		final OutputStream os = new FileOutputStream( tmp );
+		try
+		{
+			properties.store( os, "CWNS checkpoint" );
+		}
+		finally
+		{
+			os.close();
+		}
+		SpotFrameIO.replace( tmp, manifest );
+	}
+
+	/**
+	 * Removes the files of a previous run.
+	 */
+	private void clear() throws IOException
+	{
+		final File[] files = folder.listFiles();
+		if ( null == files )
+			return;
+		for ( final File file : files )
+		{
+			final String name = file.getName();
+			if ( ( name.startsWith( "spots-t" ) || name.startsWith( "labels-t" ) || name.startsWith( MANIFEST ) ) && !file.delete() )
+				throw new IOException( "Could not delete " + file + "." );
+		}
+	}
+
+
+	private static String formatFrames( final SortedSet< Integer > frames )
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( final Integer frame : frames )
+		{
+			if ( str.length() > 0 )
+				str.append( ',' );
+			str.append( frame );
+		}
+		return str.toString();
+	}
+
+	private static void parseFrames( final String str, final SortedSet< Integer > frames ) throws IOException
+	{
+		if ( str.trim().isEmpty() )
+			return;
+		try
+		{
+			for ( final String token : str.split( "," ) )
+			{
+				frames.add( Integer.valueOf( token.trim() ) );
+			}
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IOException( "Corrupted checkpoint manifest: " + str + "." );
+		}
+	}
+}
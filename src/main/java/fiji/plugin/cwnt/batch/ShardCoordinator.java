@@ -0,0 +1,594 @@
+package fiji.plugin.cwnt.batch;
+
+import fiji.plugin.cwnt.segmentation.ChunkedLabelStore;
+import fiji.plugin.cwnt.segmentation.LabelPlaneWriter;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.NewImage;
+import ij.process.ImageProcessor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * Coordinator of the sharded execution mode. It splits the frames of an
+ * image in contiguous shards, segments each shard in its own local worker
+ * JVM, then merges the spots and labels the workers wrote.
+ * <p>
+ * Each shard has its own folder in the work folder, where its worker writes
+ * one spot file and optionally one label file per frame, plus a marker when
+ * the shard is done. A worker that fails is restarted, up to a max number of
+ * times, and resumes from the last frame it saved. Running the coordinator
+ * again on the same work folder skips the shards already done, provided they
+ * were made with the same run hash, see {@link #setRunHash(String)}. The
+ * outputs of shards made with another image or other settings are deleted.
+ * <p>
+ * Workers are started with the same JVM and class path as the coordinator,
+ * and need no external service.
+ *
+ * @author Jean-Yves Tinevez
+ * @see ShardWorker
+ */
+public class ShardCoordinator
+{
+
+	private static final int DEFAULT_MAX_RESTARTS = 2;
+
+	private static final String HASH_FILE = "hash";
+
+	private final File input;
+
+	private final File settingsFile;
+
+	private final File workFolder;
+
+	private final int nWorkers;
+
+	private final Logger logger;
+
+	private int threadsPerWorker = 1;
+
+	private long memoryPerWorker = 0;
+
+	private boolean saveLabels = false;
+
+	private boolean use32BitLabels = false;
+
+	private boolean saveMetrics = false;
+
+	private int maxRestarts = DEFAULT_MAX_RESTARTS;
+
+	private File stageCacheFolder;
+
+	private boolean virtual = true;
+
+	private File labelStore;
+
+	private String runHash = "";
+
+	/**
+	 * Creates a new coordinator.
+	 *
+	 * @param input
+	 *            the image file to segment.
+	 * @param settingsFile
+	 *            the segmenter settings file, may be <code>null</code>.
+	 * @param workFolder
+	 *            the folder where shard folders are created.
+	 * @param nWorkers
+	 *            the number of worker processes, thus of shards.
+	 * @param logger
+	 *            the logger to report progress to.
+	 */
+	public ShardCoordinator( final File input, final File settingsFile, final File workFolder, final int nWorkers, final Logger logger )
+	{
+		this.input = input;
+		this.settingsFile = settingsFile;
+		this.workFolder = workFolder;
+		this.nWorkers = Math.max( 1, nWorkers );
+		this.logger = logger;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Segments the specified frames with the worker processes, and returns
+	 * the spots they found.
+	 *
+	 * @param tstart
+	 *            the first frame to segment, 0-based.
+	 * @param tend
+	 *            the last frame to segment, inclusive.
+	 * @return a new spot collection, or <code>null</code> if a shard could
+	 *         not be completed.
+	 */
+	public SpotCollection segment( final int tstart, final int tend )
+	{
+		final int nFrames = tend - tstart + 1;
+		final int nShards = Math.min( nWorkers, nFrames );
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		final Thread[] threads = SimpleMultiThreading.newThreads( nShards );
+		for ( int i = 0; i < nShards; i++ )
+		{
+			final int shard = i;
+			final int from = tstart + ( int ) ( ( long ) nFrames * shard / nShards );
+			final int to = tstart + ( int ) ( ( long ) nFrames * ( shard + 1 ) / nShards ) - 1;
+			threads[ i ] = new Thread( "CWNT shard " + shard )
+			{
+				@Override
+				public void run()
+				{
+					if ( !runShard( shard, from, to ) )
+						ok.set( false );
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+		if ( !ok.get() )
+			return null;
+
+		logger.log( "Merging shards...\n" );
+		final SpotCollection spots = new SpotCollection();
+		try
+		{
+			for ( int i = 0; i < nShards; i++ )
+			{
+				final int from = tstart + ( int ) ( ( long ) nFrames * i / nShards );
+				final int to = tstart + ( int ) ( ( long ) nFrames * ( i + 1 ) / nShards ) - 1;
+				final File folder = getShardFolder( i, from, to );
+				for ( int frame = from; frame <= to; frame++ )
+				{
+					final List< Spot > frameSpots = SpotFrameIO.read( SpotFrameIO.getSpotFile( folder, frame ) );
+					spots.put( frame, frameSpots );
+				}
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not read shard results: " + e.getMessage() + "\n" );
+			return null;
+		}
+		return spots;
+	}
+
+	/**
+	 * Merges the label images written by the workers in one label image. The
+	 * labels of each frame are shifted to follow the ones of the previous
+	 * frame, so that they are unique over the movie.
+	 *
+	 * @param imp
+	 *            the segmented image.
+	 * @param tstart
+	 *            the first frame segmented.
+	 * @param tend
+	 *            the last frame segmented.
+	 * @return a new label image, or <code>null</code> if a label file cannot
+	 *         be read.
+	 */
+	public ImagePlus mergeLabels( final ImagePlus imp, final int tstart, final int tend )
+	{
+		final int nFrames = tend - tstart + 1;
+		final int nShards = Math.min( nWorkers, nFrames );
+		final int bitDepth = use32BitLabels ? 32 : 16;
+		final double maxLabel = use32BitLabels ? LabelPlaneWriter.MAX_FLOAT_LABEL : LabelPlaneWriter.MAX_SHORT_LABEL;
+		final ImagePlus labelImp = NewImage.createImage( "Labels for " + imp.getTitle(), imp.getWidth(), imp.getHeight(), imp.getStackSize(), bitDepth, NewImage.FILL_BLACK );
+		labelImp.setCalibration( imp.getCalibration() );
+		labelImp.setDimensions( imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+		labelImp.setOpenAsHyperStack( true );
+
+		double offset = 0;
+		boolean saturated = false;
+		for ( int i = 0; i < nShards; i++ )
+		{
+			final int from = tstart + ( int ) ( ( long ) nFrames * i / nShards );
+			final int to = tstart + ( int ) ( ( long ) nFrames * ( i + 1 ) / nShards ) - 1;
+			final File folder = getShardFolder( i, from, to );
+			for ( int frame = from; frame <= to; frame++ )
+			{
+				final File file = ShardWorker.getLabelFile( folder, frame );
+				final ImagePlus frameImp = IJ.openImage( file.getAbsolutePath() );
+				if ( null == frameImp )
+				{
+					logger.error( "Could not read label file " + file + ".\n" );
+					return null;
+				}
+
+				// Range of the labels of this frame.
+				double min = Double.POSITIVE_INFINITY;
+				double max = 0;
+				for ( int z = 0; z < frameImp.getStackSize(); z++ )
+				{
+					final ImageProcessor ip = frameImp.getStack().getProcessor( z + 1 );
+					for ( int j = 0; j < ip.getPixelCount(); j++ )
+					{
+						final float val = ip.getf( j );
+						if ( val > 0 )
+						{
+							min = Math.min( min, val );
+							max = Math.max( max, val );
+						}
+					}
+				}
+				if ( max == 0 )
+					continue;
+
+				final double shift = offset - ( min - 1 );
+				for ( int z = 0; z < frameImp.getStackSize(); z++ )
+				{
+					final ImageProcessor source = frameImp.getStack().getProcessor( z + 1 );
+					final ImageProcessor target = labelImp.getStack().getProcessor( labelImp.getStackIndex( 1, z + 1, frame + 1 ) );
+					for ( int j = 0; j < source.getPixelCount(); j++ )
+					{
+						final float val = source.getf( j );
+						if ( val > 0 )
+						{
+							final double label = val + shift;
+							if ( label > maxLabel )
+								saturated = true;
+							target.setf( j, ( float ) Math.min( maxLabel, label ) );
+						}
+					}
+				}
+				offset = max + shift;
+			}
+		}
+		if ( saturated )
+			logger.log( "Warning: too many labels in the movie for the label image type. Labels are clamped.\n" );
+		labelImp.resetDisplayRange();
+		return labelImp;
+	}
+
+	/**
+	 * Shifts the labels the workers wrote in the chunked label store, as
+	 * {@link #mergeLabels(ImagePlus, int, int)} does for the label image, so
+	 * that labels are unique over the movie: each worker numbers its labels
+	 * from 1. The shifts only depend on the labels of each frame, so running
+	 * this again on a merged store leaves it unchanged.
+	 *
+	 * @param store
+	 *            the store the workers wrote to.
+	 * @param tstart
+	 *            the first frame segmented.
+	 * @param tend
+	 *            the last frame segmented.
+	 * @return <code>false</code> if the store cannot be read or written.
+	 */
+	public boolean mergeLabelStore( final ChunkedLabelStore store, final int tstart, final int tend )
+	{
+		final int depth = ( int ) store.getDimensions()[ 2 ];
+		long offset = 0;
+		try
+		{
+			for ( int frame = tstart; frame <= tend; frame++ )
+			{
+				final int[][] planes = new int[ depth ][];
+				long min = Long.MAX_VALUE;
+				long max = 0;
+				for ( int z = 0; z < depth; z++ )
+				{
+					planes[ z ] = store.readPlane( z, frame );
+					for ( final int val : planes[ z ] )
+					{
+						if ( val != 0 )
+						{
+							final long label = val & 0xffffffffl;
+							min = Math.min( min, label );
+							max = Math.max( max, label );
+						}
+					}
+				}
+				if ( max == 0 )
+					continue;
+
+				final long shift = offset - ( min - 1 );
+				if ( shift != 0 )
+				{
+					for ( final int[] plane : planes )
+					{
+						for ( int j = 0; j < plane.length; j++ )
+						{
+							if ( plane[ j ] != 0 )
+								plane[ j ] = ( int ) ( ( plane[ j ] & 0xffffffffl ) + shift );
+						}
+					}
+					store.writeFrame( frame, planes );
+				}
+				offset = max + shift;
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not merge the label store: " + e.getMessage() + "\n" );
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * SETTERS
+	 */
+
+	public void setThreadsPerWorker( final int threadsPerWorker )
+	{
+		this.threadsPerWorker = Math.max( 1, threadsPerWorker );
+	}
+
+	/**
+	 * Sets the max heap size of each worker, in bytes. If 0, the JVM default
+	 * is used.
+	 */
+	public void setMemoryPerWorker( final long memoryPerWorker )
+	{
+		this.memoryPerWorker = memoryPerWorker;
+	}
+
+	/**
+	 * Sets whether workers save the stage metrics of their shard in its
+	 * folder.
+	 */
+	public void setSaveMetrics( final boolean saveMetrics )
+	{
+		this.saveMetrics = saveMetrics;
+	}
+
+	public void setSaveLabels( final boolean saveLabels, final boolean use32Bit )
+	{
+		this.saveLabels = saveLabels;
+		this.use32BitLabels = use32Bit;
+	}
+
+	/**
+	 * Sets the folder where workers cache the outputs of the masking steps.
+	 * If <code>null</code>, they are not cached.
+	 */
+	public void setStageCacheFolder( final File stageCacheFolder )
+	{
+		this.stageCacheFolder = stageCacheFolder;
+	}
+
+	/**
+	 * Sets whether workers open the image as a virtual stack, and only read
+	 * the frames of their shard, memory-mapped if the file is uncompressed.
+	 * Default is <code>true</code>. Otherwise each worker loads the whole
+	 * image.
+	 */
+	public void setVirtual( final boolean virtual )
+	{
+		this.virtual = virtual;
+	}
+
+	/**
+	 * Sets the chunked label store workers stream their labels to. It must
+	 * already exist. If <code>null</code>, labels are not streamed.
+	 */
+	public void setLabelStore( final File labelStore )
+	{
+		this.labelStore = labelStore;
+	}
+
+	public void setMaxRestarts( final int maxRestarts )
+	{
+		this.maxRestarts = maxRestarts;
+	}
+
+	/**
+	 * Sets the hash identifying the run, as computed by
+	 * {@link FrameCheckpoint#computeHash(ImagePlus, java.util.Map, boolean, boolean, boolean, boolean)}
+	 * from the input image and the settings. It is stored in each shard
+	 * folder, and shard folders holding another hash are emptied before
+	 * their worker is started, instead of being reused.
+	 */
+	public void setRunHash( final String runHash )
+	{
+		this.runHash = null == runHash ? "" : runHash;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private File getShardFolder( final int shard, final int from, final int to )
+	{
+		return new File( workFolder, String.format( "shard-%03d-t%05d-t%05d", shard, from, to ) );
+	}
+
+	/**
+	 * Runs the worker of one shard until the shard is done, restarting it if
+	 * it fails.
+	 */
+	private boolean runShard( final int shard, final int from, final int to )
+	{
+		final File folder = getShardFolder( shard, from, to );
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+		{
+			logger.error( "Could not create shard folder " + folder + ".\n" );
+			return false;
+		}
+		try
+		{
+			checkRunHash( folder );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not reset shard folder " + folder + ": " + e.getMessage() + "\n" );
+			return false;
+		}
+
+		for ( int attempt = 0; attempt <= maxRestarts; attempt++ )
+		{
+			if ( ShardWorker.getDoneMarker( folder ).exists() )
+			{
+				logger.log( String.format( "Shard %d (frames %d to %d) done.\n", shard, from + 1, to + 1 ) );
+				return true;
+			}
+			if ( attempt > 0 )
+				logger.log( String.format( "Restarting shard %d, attempt %d of %d.\n", shard, attempt, maxRestarts ) );
+			else
+				logger.log( String.format( "Starting shard %d (frames %d to %d).\n", shard, from + 1, to + 1 ) );
+
+			try
+			{
+				final int exitValue = runWorker( folder, from, to );
+				if ( exitValue != 0 )
+					logger.log( String.format( "Worker of shard %d exited with code %d. See %s.\n", shard, exitValue, new File( folder, "worker.log" ) ) );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Could not start worker of shard " + shard + ": " + e.getMessage() + "\n" );
+				return false;
+			}
+			catch ( final InterruptedException e )
+			{
+				// The worker was destroyed. Let the caller see the interrupt.
+				Thread.currentThread().interrupt();
+				logger.error( "Interrupted while running shard " + shard + ".\n" );
+				return false;
+			}
+		}
+
+		if ( ShardWorker.getDoneMarker( folder ).exists() )
+			return true;
+		logger.error( "Shard " + shard + " failed after " + maxRestarts + " restarts.\n" );
+		return false;
+	}
+
+	/**
+	 * Deletes the outputs of a shard folder if they were made with another run
+	 * hash, then stores the current one.
+	 */
+	private void checkRunHash( final File folder ) throws IOException
+	{
+		final File hashFile = new File( folder, HASH_FILE );
+		String previous = null;
+		if ( hashFile.exists() )
+		{
+			final BufferedReader reader = new BufferedReader( new FileReader( hashFile ) );
+			try
+			{
+				previous = reader.readLine();
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		if ( runHash.equals( previous ) )
+			return;
+
+		if ( null != previous )
+			logger.log( "Discarding the outputs of " + folder.getName() + ", made with another image or other settings.\n" );
+		final File[] files = folder.listFiles();
+		if ( null != files )
+		{
+			for ( final File file : files )
+			{
+				if ( file.isFile() && !file.delete() )
+					throw new IOException( "Could not delete " + file + "." );
+			}
+		}
+		// Written last: if it is lost, the folder is only emptied again.
+		final OutputStream os = new FileOutputStream( hashFile );
+		try
+		{
+			os.write( ( runHash + "\n" ).getBytes( "UTF-8" ) );
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+
+	private int runWorker( final File folder, final int from, final int to ) throws IOException, InterruptedException
+	{
+		final List< String > command = new ArrayList< String >();
+		command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getAbsolutePath() );
+		command.add( "-Djava.awt.headless=true" );
+		if ( memoryPerWorker > 0 )
+			command.add( "-Xmx" + ( memoryPerWorker / ( 1024 * 1024 ) ) + "m" );
+		command.add( "-cp" );
+		command.add( System.getProperty( "java.class.path" ) );
+		command.add( ShardWorker.class.getName() );
+		command.add( input.getAbsolutePath() );
+		command.add( folder.getAbsolutePath() );
+		command.add( Integer.toString( from ) );
+		command.add( Integer.toString( to ) );
+		command.add( "-t" );
+		command.add( Integer.toString( threadsPerWorker ) );
+		if ( null != settingsFile )
+		{
+			command.add( "-s" );
+			command.add( settingsFile.getAbsolutePath() );
+		}
+		if ( !virtual )
+			command.add( "--no-virtual" );
+		if ( null != labelStore )
+		{
+			command.add( "--label-store" );
+			command.add( labelStore.getAbsolutePath() );
+		}
+		if ( null != stageCacheFolder )
+		{
+			command.add( "--stage-cache" );
+			command.add( stageCacheFolder.getAbsolutePath() );
+		}
+		if ( saveLabels )
+			command.add( use32BitLabels ? "--labels32" : "--labels" );
+		if ( saveMetrics )
+			command.add( "--metrics" );
+
+		final ProcessBuilder pb = new ProcessBuilder( command );
+		pb.redirectErrorStream( true );
+		final Process process = pb.start();
+		process.getOutputStream().close();
+
+		try
+		{
+			// Append the worker output to its log.
+			final OutputStream log = new FileOutputStream( new File( folder, "worker.log" ), true );
+			try
+			{
+				final InputStream is = process.getInputStream();
+				final byte[] buffer = new byte[ 8192 ];
+				int n;
+				while ( ( n = is.read( buffer ) ) >= 0 )
+				{
+					log.write( buffer, 0, n );
+					if ( Thread.currentThread().isInterrupted() )
+						throw new InterruptedException();
+				}
+				is.close();
+			}
+			finally
+			{
+				log.close();
+			}
+			return process.waitFor();
+		}
+		catch ( final InterruptedException e )
+		{
+			// Do not leave the worker running on its own.
+			process.destroy();
+			throw e;
+		}
+		catch ( final IOException e )
+		{
+			process.destroy();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package fiji.plugin.cwnt.batch;
+
+import fiji.plugin.cwnt.CWNTProcessor;
+import fiji.plugin.cwnt.segmentation.ChunkedLabelStore;
+import fiji.plugin.cwnt.segmentation.DiskMaskerStageCache;
+import fiji.plugin.cwnt.segmentation.MaskerStageCache;
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Worker process of the sharded execution mode. It segments a range of
+ * frames of an image, and writes the spots and optionally the labels of each
+ * frame in a shard folder, as soon as the frame is done.
+ * <p>
+ * Frames whose spot file already exists are skipped, so a worker that was
+ * killed can simply be restarted on the same shard. When all the frames of
+ * the shard are done, a <code>done</code> marker file is written.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * ShardWorker image.tif shardFolder tstart tend [-s settings] [-t threads] [--stage-cache dir] [--label-store dir] [--no-virtual] [--labels | --labels32] [--metrics]
+ * </pre>
+ *
+ * The image is opened as a virtual stack, so that only the frames of the
+ * shard are read, unless <code>--no-virtual</code> is given.
+ *
+ * @author Jean-Yves Tinevez
+ * @see ShardCoordinator
+ */
+public class ShardWorker
+{
+
+	private static final String DONE_MARKER = "done";
+
+	private ShardWorker()
+	{}
+
+	/**
+	 * Returns the file that holds the labels of the specified frame in the
+	 * specified shard folder.
+	 */
+	public static File getLabelFile( final File folder, final int frame )
+	{
+		return new File( folder, String.format( "labels-t%05d.tif", frame ) );
+	}
+
+	/**
+	 * Returns the marker file written when all the frames of the shard in the
+	 * specified folder are done.
+	 */
+	public static File getDoneMarker( final File folder )
+	{
+		return new File( folder, DONE_MARKER );
+	}
+
+	/**
+	 * Segments the frames of a shard that are not done yet.
+	 *
+	 * @return <code>true</code> if all the frames of the shard are done.
+	 */
+	public static boolean run( final ImagePlus imp, final Map< String, Object > detectorSettings, final File folder, final int tstart, final int tend, final int numThreads, final boolean saveLabels, final boolean use32BitLabels, final MaskerStageCache stageCache, final ChunkedLabelStore labelStore, final boolean saveMetrics, final Logger logger )
+	{
+		final List< Integer > todo = new ArrayList< Integer >();
+		for ( int frame = tstart; frame <= tend; frame++ )
+		{
+			if ( !SpotFrameIO.getSpotFile( folder, frame ).exists() )
+				todo.add( frame );
+		}
+		logger.log( String.format( "Shard %d-%d: %d frames to segment.\n", tstart, tend, todo.size() ) );
+
+		if ( !todo.isEmpty() )
+		{
+			final int[] frames = new int[ todo.size() ];
+			for ( int i = 0; i < frames.length; i++ )
+			{
+				frames[ i ] = todo.get( i );
+			}
+
+			final CWNTProcessor processor = new CWNTProcessor( imp, detectorSettings );
+			processor.setNumThreads( numThreads );
+			processor.setLogger( logger );
+			processor.setFrames( frames );
+			processor.setSegmentationOnly( true );
+			processor.setStageCache( stageCache );
+			processor.setLabelStore( labelStore );
+			processor.setMetrics( saveMetrics ? new SegmentationMetrics() : SegmentationMetrics.DISABLED );
+			if ( saveLabels )
+			{
+				// Only the planes of the frame being segmented are held.
+				processor.setLabelListener( new CWNTProcessor.LabelListener()
+				{
+					@Override
+					public boolean labelsSegmented( final int frame, final Object[] planes )
+					{
+						try
+						{
+							FrameCheckpoint.writeFrameLabels( planes, imp.getWidth(), imp.getHeight(), use32BitLabels, getLabelFile( folder, frame ) );
+							return true;
+						}
+						catch ( final IOException e )
+						{
+							logger.error( e.getMessage() + "\n" );
+							return false;
+						}
+					}
+				} );
+			}
+			// Labels are notified first: the spot file marks the frame as done.
+			processor.setFrameListener( new CWNTProcessor.FrameListener()
+			{
+				@Override
+				public boolean frameSegmented( final int frame, final List< Spot > spots )
+				{
+					try
+					{
+						SpotFrameIO.write( SpotFrameIO.getSpotFile( folder, frame ), frame, spots );
+						return true;
+					}
+					catch ( final IOException e )
+					{
+						logger.error( e.getMessage() + "\n" );
+						return false;
+					}
+				}
+			} );
+			if ( !( processor.checkInput() && processor.process() ) )
+			{
+				logger.error( processor.getErrorMessage() + "\n" );
+				return false;
+			}
+			if ( saveMetrics )
+			{
+				try
+				{
+					processor.writeMetrics( folder, String.format( "metrics-t%05d-t%05d", frames[ 0 ], frames[ frames.length - 1 ] ) );
+				}
+				catch ( final IOException e )
+				{
+					logger.error( "Could not write the stage metrics: " + e.getMessage() + "\n" );
+				}
+			}
+		}
+
+		try
+		{
+			if ( !getDoneMarker( folder ).createNewFile() && !getDoneMarker( folder ).exists() )
+				return false;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not write the done marker: " + e.getMessage() + "\n" );
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * MAIN METHOD
+	 */
+
+	public static void main( final String[] args )
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		final Logger logger = Logger.DEFAULT_LOGGER;
+
+		final List< String > positional = new ArrayList< String >();
+		File settingsFile = null;
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		boolean saveLabels = false;
+		boolean use32BitLabels = false;
+		File stageCacheFolder = null;
+		boolean virtual = true;
+		File labelStoreFolder = null;
+		boolean saveMetrics = false;
+		for ( int i = 0; i < args.length; i++ )
+		{
+			final String arg = args[ i ];
+			if ( arg.equals( "-s" ) )
+				settingsFile = new File( args[ ++i ] );
+			else if ( arg.equals( "-t" ) )
+				numThreads = Integer.parseInt( args[ ++i ] );
+			else if ( arg.equals( "--stage-cache" ) )
+				stageCacheFolder = new File( args[ ++i ] );
+			else if ( arg.equals( "--label-store" ) )
+				labelStoreFolder = new File( args[ ++i ] );
+			else if ( arg.equals( "--no-virtual" ) )
+				virtual = false;
+			else if ( arg.equals( "--metrics" ) )
+				saveMetrics = true;
+			else if ( arg.equals( "--labels" ) )
+				saveLabels = true;
+			else if ( arg.equals( "--labels32" ) )
+			{
+				saveLabels = true;
+				use32BitLabels = true;
+			}
+			else
+				positional.add( arg );
+		}
+		if ( positional.size() != 4 )
+		{
+			System.err.println( "Usage: ShardWorker image.tif shardFolder tstart tend [-s settings] [-t threads] [--stage-cache dir] [--label-store dir] [--no-virtual] [--labels | --labels32] [--metrics]" );
+			System.exit( 2 );
+		}
+
+		final Map< String, Object > detectorSettings;
+		try
+		{
+			detectorSettings = CWNTBatch.readSettings( settingsFile );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Could not read settings file " + settingsFile + ": " + e.getMessage() + "\n" );
+			System.exit( 1 );
+			return;
+		}
+
+		MaskerStageCache stageCache = null;
+		if ( null != stageCacheFolder )
+		{
+			try
+			{
+				stageCache = new DiskMaskerStageCache( stageCacheFolder );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( e.getMessage() + "\n" );
+				System.exit( 1 );
+			}
+		}
+
+		ChunkedLabelStore labelStore = null;
+		if ( null != labelStoreFolder )
+		{
+			try
+			{
+				labelStore = ChunkedLabelStore.open( labelStoreFolder );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( e.getMessage() + "\n" );
+				System.exit( 1 );
+			}
+		}
+
+		final ImagePlus imp = virtual ? IJ.openVirtual( positional.get( 0 ) ) : IJ.openImage( positional.get( 0 ) );
+		if ( null == imp )
+		{
+			logger.error( "Could not open image " + positional.get( 0 ) + ".\n" );
+			System.exit( 1 );
+		}
+		final File folder = new File( positional.get( 1 ) );
+		folder.mkdirs();
+		final int tstart = Integer.parseInt( positional.get( 2 ) );
+		final int tend = Integer.parseInt( positional.get( 3 ) );
+
+		final boolean ok = run( imp, detectorSettings, folder, tstart, tend, numThreads, saveLabels, use32BitLabels, stageCache, labelStore, saveMetrics, logger );
+		System.exit( ok ? 0 : 1 );
+	}
+}
@@ -0,0 +1,117 @@
+package fiji.plugin.cwnt.batch;
+
+import fiji.plugin.cwnt.SpotStreamReader;
+import fiji.plugin.cwnt.SpotStreamWriter;
+import fiji.plugin.trackmate.Spot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads and writes the spots of one frame in a compact binary file, so that
+ * worker processes can hand their results to the coordinator, and so that
+ * checkpoints can be restored.
+ * <p>
+ * A spot frame file is a spot stream, as written by {@link SpotStreamWriter},
+ * that holds exactly one frame block: the values of each feature are stored
+ * contiguously as doubles, one column per feature, and features missing from
+ * a spot are stored as NaN. Files are written under a temporary name then
+ * moved atomically, so that a file that exists is always complete.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotFrameIO
+{
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private SpotFrameIO()
+	{}
+
+	/**
+	 * Returns the file that holds the spots of the specified frame in the
+	 * specified folder.
+	 */
+	public static File getSpotFile( final File folder, final int frame )
+	{
+		return new File( folder, String.format( "spots-t%05d.bin", frame ) );
+	}
+
+	/**
+	 * Writes the spots of one frame.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @param frame
+	 *            the frame the spots belong to.
+	 * @param spots
+	 *            the spots.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public static void write( final File file, final int frame, final Collection< Spot > spots ) throws IOException
+	{
+		final File tmp = new File( file.getPath() + TMP_SUFFIX );
+		final SpotStreamWriter writer = new SpotStreamWriter( tmp );
+		try
+		{
+			writer.append( frame, spots );
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		replace( tmp, file );
+	}
+
+	/**
+	 * Reads the spots of one frame.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return a new list of spots, with their features.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a spot frame file.
+	 */
+	public static List< Spot > read( final File file ) throws IOException
+	{
+		final SpotStreamReader reader = new SpotStreamReader( file );
+		try
+		{
+			if ( !reader.next() )
+				throw new IOException( file + " is not a spot frame file." );
+			return reader.getSpots();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Moves a temporary file over its destination, atomically if the file
+	 * system supports it, so that the destination is never missing or
+	 * partially written. Otherwise, the destination is replaced in a single,
+	 * non-atomic move.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be moved.
+	 */
+	public static void replace( final File tmp, final File file ) throws IOException
+	{
+		try
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+}
@@ -177,6 +177,8 @@ public class CwntGui extends ConfigurationPanel
 
 	private double[] oldParams;
 
+	private int lastChangedParameter = -1;
+
 	/*
 	 * GUI elements
 	 */
@@ -282,10 +284,22 @@ public class CwntGui extends ConfigurationPanel
 
 	private JCheckBox chckbxShowColoredLabel;
 
+	private JCheckBox chckbxVirtualColorLabels;
+
+	private JCheckBox chckbx32BitLabels;
+
+	private JCheckBox chckbxCheckpoint;
+
+	private JCheckBox chckbxIncrementalTracking;
+
+	private JCheckBox chckbxMetrics;
+
 	private final GuiLogger logger;
 
 	private JCheckBox chckbxSplitLargeNuclei;
 
+	private JCheckBox chckbxSpeculation;
+
 	/*
 	 * CONSTRUCTOR
 	 */
@@ -324,9 +338,25 @@ public class CwntGui extends ConfigurationPanel
 		return listeners;
 	}
 
-	public void setDurationEstimate( final double t )
+	/**
+	 * Displays the specified duration estimate. Can be called from any thread.
+	 */
+	public void setDurationEstimate( final String estimate )
 	{
-		lblEstimatedTime_1.setText( String.format( "Processing duration estimate: %.0f min.", t ) );
+		final String text = "Processing duration estimate: " + estimate + ".";
+		if ( SwingUtilities.isEventDispatchThread() )
+		{
+			lblEstimatedTime_1.setText( text );
+			return;
+		}
+		SwingUtilities.invokeLater( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				lblEstimatedTime_1.setText( text );
+			}
+		} );
 	}
 
 	@Override
@@ -365,6 +395,28 @@ public class CwntGui extends ConfigurationPanel
 		return params;
 	}
 
+	/**
+	 * Returns the index, in the masking parameter array, of the parameter
+	 * that was changed last, or -1 if it is unknown.
+	 */
+	public int getLastChangedParameter()
+	{
+		return lastChangedParameter;
+	}
+
+	/**
+	 * Returns the values one slider tick below and above the current value of
+	 * the specified masking parameter, within the slider range.
+	 *
+	 * @param index
+	 *            the index of the parameter in the masking parameter array.
+	 * @return the adjacent values. Empty if the index is not valid.
+	 */
+	public double[] getAdjacentParameterValues( final int index )
+	{
+		return MaskingSliders.getAdjacentValues( index, getParameterSliders() );
+	}
+
 	private void setParameters( final Map< String, Object > settings )
 	{
 		final double[] p = CrownWearingSegmenterFactory.collectMaskingParameters( settings );
@@ -387,6 +439,63 @@ public class CwntGui extends ConfigurationPanel
 		return chckbxShowColoredLabel.isSelected();
 	}
 
+	/**
+	 * Returns <code>true</code> if the colored label image should be rendered
+	 * on demand as a virtual stack, rather than computed for all frames and
+	 * stored in memory.
+	 */
+	public boolean getVirtualColorLabelFlag()
+	{
+		return chckbxVirtualColorLabels.isSelected();
+	}
+
+	/**
+	 * Returns <code>true</code> if the label image should be a 32-bit image
+	 * rather than a 16-bit one.
+	 */
+	public boolean get32BitLabelFlag()
+	{
+		return chckbx32BitLabels.isSelected();
+	}
+
+	/**
+	 * Returns <code>true</code> if the results of each frame should be saved
+	 * as soon as the frame is segmented, so that an interrupted run can be
+	 * resumed.
+	 */
+	public boolean getCheckpointFlag()
+	{
+		return chckbxCheckpoint.isSelected();
+	}
+
+	/**
+	 * Returns <code>true</code> if frames should be linked as soon as they
+	 * are segmented, rather than once all of them are done.
+	 */
+	public boolean getIncrementalTrackingFlag()
+	{
+		return chckbxIncrementalTracking.isSelected();
+	}
+
+	/**
+	 * Returns <code>true</code> if the duration and memory of each stage
+	 * should be recorded, and saved next to the image.
+	 */
+	public boolean getMetricsFlag()
+	{
+		return chckbxMetrics.isSelected();
+	}
+
+	/**
+	 * Returns <code>true</code> if the preview for the values one slider tick
+	 * away from the last parameter changed should be precomputed in the
+	 * background.
+	 */
+	public boolean getSpeculationFlag()
+	{
+		return chckbxSpeculation.isSelected();
+	}
+
 	/*
 	 * PRIVATE METHODS
 	 */
@@ -415,6 +524,25 @@ public class CwntGui extends ConfigurationPanel
 		};
 	}
 
+	/**
+	 * Returns the sliders of the masking parameters, in the order of the
+	 * masking parameter array.
+	 */
+	private DoubleJSlider[] getParameterSliders()
+	{
+		return new DoubleJSlider[] {
+				gaussFiltSigmaSlider,
+				aniDiffNIterSlider,
+				aniDiffKappaSlider,
+				gaussGradSigmaSlider,
+				gammaSlider,
+				alphaSlider,
+				betaSlider,
+				epsilonSlider,
+				deltaSlider
+		};
+	}
+
 	private void fireEvent( final ActionEvent event )
 	{
 		if ( event == STEP1_PARAMETER_CHANGED ||
@@ -432,6 +560,7 @@ public class CwntGui extends ConfigurationPanel
 			}
 			if ( Arrays.equals( params, oldParams ) ) { return; }
 
+			lastChangedParameter = MaskingSliders.indexOfChange( oldParams, params );
 			oldParams = Arrays.copyOf( params, params.length );
 		}
 		for ( final ActionListener listener : listeners )
@@ -578,6 +707,16 @@ public class CwntGui extends ConfigurationPanel
 				gaussGradSigmaSlider = new DoubleJSlider( 0, 5 * scale, ( int ) ( params[ 3 ] * scale ), scale );
 
 				link( gaussGradSigmaSlider, gaussGradSigmaText );
+
+				chckbxSpeculation = new JCheckBox( "Precompute the next slider ticks." );
+				chckbxSpeculation.setFont( SMALL_LABEL_FONT );
+				chckbxSpeculation.setSelected( true );
+				chckbxSpeculation.setToolTipText( "<html>"
+						+ "If checked, the preview for the values one tick <br>"
+						+ "away from the last parameter changed is computed <br>"
+						+ "in the background, so that the next tick shows at once."
+						+ "</html>" );
+
 				final GroupLayout gl_panelParams1 = new GroupLayout( panelParams1 );
 				gl_panelParams1.setHorizontalGroup(
 						gl_panelParams1.createParallelGroup( Alignment.LEADING )
@@ -607,7 +746,8 @@ public class CwntGui extends ConfigurationPanel
 												.addComponent( lblNumberOfIterations, GroupLayout.DEFAULT_SIZE, 363, Short.MAX_VALUE )
 												.addComponent( lblAnisotropicDiffusion, Alignment.TRAILING, GroupLayout.DEFAULT_SIZE, 363, Short.MAX_VALUE )
 												.addComponent( lblGaussianGradient, GroupLayout.DEFAULT_SIZE, 363, Short.MAX_VALUE )
-												.addComponent( lblDerivativesCalculation, Alignment.TRAILING, GroupLayout.DEFAULT_SIZE, 363, Short.MAX_VALUE ) )
+												.addComponent( lblDerivativesCalculation, Alignment.TRAILING, GroupLayout.DEFAULT_SIZE, 363, Short.MAX_VALUE )
+												.addComponent( chckbxSpeculation, GroupLayout.DEFAULT_SIZE, 363, Short.MAX_VALUE ) )
 										.addContainerGap() )
 						);
 				gl_panelParams1.setVerticalGroup(
@@ -644,7 +784,9 @@ public class CwntGui extends ConfigurationPanel
 										.addGap( 11 )
 										.addGroup( gl_panelParams1.createParallelGroup( Alignment.LEADING )
 												.addComponent( gaussGradSigmaSlider, GroupLayout.PREFERRED_SIZE, 23, GroupLayout.PREFERRED_SIZE )
-												.addComponent( gaussGradSigmaText, GroupLayout.PREFERRED_SIZE, 23, GroupLayout.PREFERRED_SIZE ) ) )
+												.addComponent( gaussGradSigmaText, GroupLayout.PREFERRED_SIZE, 23, GroupLayout.PREFERRED_SIZE ) )
+										.addGap( 23 )
+										.addComponent( chckbxSpeculation ) )
 						);
 				panelParams1.setLayout( gl_panelParams1 );
 				gaussGradSigmaSlider.addChangeListener( step3ChangeListener );
@@ -874,10 +1016,58 @@ public class CwntGui extends ConfigurationPanel
 			chckbxGenLabels.setFont( SMALL_LABEL_FONT );
 			chckbxGenLabels.setSelected( false );
 
+			chckbx32BitLabels = new JCheckBox( "Use 32-bit label image." );
+			chckbx32BitLabels.setFont( SMALL_LABEL_FONT );
+			chckbx32BitLabels.setSelected( false );
+			chckbx32BitLabels.setToolTipText( "<html>"
+					+ "Labels are unique over the whole movie. <br>"
+					+ "A 16-bit label image can only store 65535 labels, <br>"
+					+ "check this for movies with more nuclei. A 32-bit <br>"
+					+ "label image stores labels as floats, exact up to 2^24."
+					+ "</html>" );
+
 			chckbxShowColoredLabel = new JCheckBox( "Show colored label image." );
 			chckbxShowColoredLabel.setFont( SMALL_LABEL_FONT );
 			chckbxShowColoredLabel.setSelected( true );
 
+			chckbxVirtualColorLabels = new JCheckBox( "Render colored labels on demand." );
+			chckbxVirtualColorLabels.setFont( SMALL_LABEL_FONT );
+			chckbxVirtualColorLabels.setSelected( true );
+			chckbxVirtualColorLabels.setToolTipText( "<html>"
+					+ "If checked, the colored label image is a virtual stack <br>"
+					+ "that colors a plane only when it is displayed. <br>"
+					+ "This saves the memory of a full RGB copy of the movie."
+					+ "</html>" );
+
+			chckbxCheckpoint = new JCheckBox( "Save frames as they are done, to resume." );
+			chckbxCheckpoint.setFont( SMALL_LABEL_FONT );
+			chckbxCheckpoint.setSelected( false );
+			chckbxCheckpoint.setToolTipText( "<html>"
+					+ "If checked, each frame is saved next to the image file <br>"
+					+ "as soon as it is segmented, and an interrupted run <br>"
+					+ "resumes from the last frame saved. <br>"
+					+ "The saved frames are deleted when the run completes."
+					+ "</html>" );
+
+			chckbxIncrementalTracking = new JCheckBox( "Track frames as they are segmented." );
+			chckbxIncrementalTracking.setFont( SMALL_LABEL_FONT );
+			chckbxIncrementalTracking.setSelected( false );
+			chckbxIncrementalTracking.setToolTipText( "<html>"
+					+ "If checked, each frame is linked to the previous ones <br>"
+					+ "as soon as it is segmented, so that tracking overlaps <br>"
+					+ "with segmentation. Gaps are closed over 2 frames at most, <br>"
+					+ "and the max linking distance is estimated on the first frame."
+					+ "</html>" );
+
+			chckbxMetrics = new JCheckBox( "Save stage metrics." );
+			chckbxMetrics.setFont( SMALL_LABEL_FONT );
+			chckbxMetrics.setSelected( false );
+			chckbxMetrics.setToolTipText( "<html>"
+					+ "If checked, the duration and peak memory of each <br>"
+					+ "segmentation stage of each frame are saved as CSV <br>"
+					+ "and JSON files next to the image."
+					+ "</html>" );
+
 			progressBar = new JProgressBar( 0, 100 );
 			progressBar.setStringPainted( true );
 			progressBar.setFont( FONT );
@@ -906,6 +1096,26 @@ public class CwntGui extends ConfigurationPanel
 									.addContainerGap()
 									.addComponent( chckbxShowColoredLabel, GroupLayout.DEFAULT_SIZE, 367, Short.MAX_VALUE )
 									.addContainerGap() )
+							.addGroup( gl_panelRun.createSequentialGroup()
+									.addContainerGap()
+									.addComponent( chckbxVirtualColorLabels, GroupLayout.DEFAULT_SIZE, 367, Short.MAX_VALUE )
+									.addContainerGap() )
+							.addGroup( gl_panelRun.createSequentialGroup()
+									.addContainerGap()
+									.addComponent( chckbx32BitLabels, GroupLayout.DEFAULT_SIZE, 367, Short.MAX_VALUE )
+									.addContainerGap() )
+							.addGroup( gl_panelRun.createSequentialGroup()
+									.addContainerGap()
+									.addComponent( chckbxCheckpoint, GroupLayout.DEFAULT_SIZE, 367, Short.MAX_VALUE )
+									.addContainerGap() )
+							.addGroup( gl_panelRun.createSequentialGroup()
+									.addContainerGap()
+									.addComponent( chckbxIncrementalTracking, GroupLayout.DEFAULT_SIZE, 367, Short.MAX_VALUE )
+									.addContainerGap() )
+							.addGroup( gl_panelRun.createSequentialGroup()
+									.addContainerGap()
+									.addComponent( chckbxMetrics, GroupLayout.DEFAULT_SIZE, 367, Short.MAX_VALUE )
+									.addContainerGap() )
 							.addGroup( gl_panelRun.createSequentialGroup()
 									.addContainerGap()
 									.addComponent( progressBar, GroupLayout.DEFAULT_SIZE, 367, Short.MAX_VALUE )
@@ -933,8 +1143,18 @@ public class CwntGui extends ConfigurationPanel
 									.addPreferredGap( ComponentPlacement.RELATED )
 									.addComponent( chckbxGenLabels )
 									.addPreferredGap( ComponentPlacement.RELATED )
+									.addComponent( chckbx32BitLabels )
+									.addPreferredGap( ComponentPlacement.RELATED )
 									.addComponent( chckbxShowColoredLabel )
-									.addPreferredGap( ComponentPlacement.RELATED, 258, Short.MAX_VALUE )
+									.addPreferredGap( ComponentPlacement.RELATED )
+									.addComponent( chckbxVirtualColorLabels )
+									.addPreferredGap( ComponentPlacement.RELATED )
+									.addComponent( chckbxCheckpoint )
+									.addPreferredGap( ComponentPlacement.RELATED )
+									.addComponent( chckbxIncrementalTracking )
+									.addPreferredGap( ComponentPlacement.RELATED )
+									.addComponent( chckbxMetrics )
+									.addPreferredGap( ComponentPlacement.RELATED, 131, Short.MAX_VALUE )
 									.addComponent( btnGo, GroupLayout.PREFERRED_SIZE, 50, GroupLayout.PREFERRED_SIZE )
 									.addPreferredGap( ComponentPlacement.RELATED )
 									.addComponent( progressBar, GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE )
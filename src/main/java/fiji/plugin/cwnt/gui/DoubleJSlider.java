@@ -22,4 +22,21 @@ public class DoubleJSlider extends JSlider {
         return ((double)super.getValue()) / this.scale;
     }
 
+    /**
+     * Returns the scaled values one tick below and one tick above the
+     * current value, leaving out those outside of the slider range.
+     */
+    public double[] getAdjacentScaledValues() {
+        final int value = super.getValue();
+        final boolean below = value - 1 >= getMinimum();
+        final boolean above = value + 1 <= getMaximum();
+        final double[] values = new double[(below ? 1 : 0) + (above ? 1 : 0)];
+        int i = 0;
+        if (below)
+            values[i++] = ((double)(value - 1)) / this.scale;
+        if (above)
+            values[i++] = ((double)(value + 1)) / this.scale;
+        return values;
+    }
+
 }
@@ -0,0 +1,80 @@
+package fiji.plugin.cwnt.gui;
+
+/**
+ * Helpers shared by the panels that edit the masking parameters with
+ * sliders, so that they map slider and parameter indices the same way.
+ * <p>
+ * Sliders are given in the order of the masking parameter array, as
+ * returned by
+ * {@link fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory#collectMaskingParameters(java.util.Map)}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MaskingSliders
+{
+
+	private MaskingSliders()
+	{}
+
+	/**
+	 * Returns the values one slider tick below and above the current value of
+	 * the specified masking parameter, within the slider range.
+	 *
+	 * @param index
+	 *            the index of the parameter in the masking parameter array.
+	 * @param sliders
+	 *            the sliders of the panel, in the order of the masking
+	 *            parameter array.
+	 * @return the adjacent values. Empty if the index is not valid.
+	 */
+	public static double[] getAdjacentValues( final int index, final DoubleJSlider... sliders )
+	{
+		final DoubleJSlider slider = getSlider( index, sliders );
+		if ( null == slider )
+			return new double[ 0 ];
+		return slider.getAdjacentScaledValues();
+	}
+
+	/**
+	 * Returns the index of the first parameter whose value changed.
+	 *
+	 * @param oldValues
+	 *            the previous parameter values, possibly <code>null</code>.
+	 * @param newValues
+	 *            the new parameter values.
+	 * @return the index of the first value that changed, or -1 if none did
+	 *         or if there are no previous values.
+	 */
+	public static int indexOfChange( final double[] oldValues, final double[] newValues )
+	{
+		if ( null == oldValues )
+			return -1;
+		for ( int i = 0; i < newValues.length; i++ )
+		{
+			if ( oldValues[ i ] != newValues[ i ] )
+				return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Returns the slider of the specified masking parameter.
+	 *
+	 * @param index
+	 *            the index of the parameter in the masking parameter array.
+	 * @param sliders
+	 *            the sliders of the panel, in the order of the masking
+	 *            parameter array.
+	 * @return the slider, or <code>null</code> if the index is not valid.
+	 */
+	private static DoubleJSlider getSlider( final int index, final DoubleJSlider... sliders )
+	{
+		if ( index < 0 || index >= sliders.length )
+			return null;
+		return sliders[ index ];
+	}
+}
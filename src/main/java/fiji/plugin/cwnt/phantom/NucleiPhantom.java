@@ -0,0 +1,78 @@
+package fiji.plugin.cwnt.phantom;
+
+import fiji.plugin.trackmate.SpotCollection;
+import ij.ImagePlus;
+
+/**
+ * A synthetic crown-wearing nuclei image, with its ground truth, as generated
+ * by {@link NucleiPhantomGenerator}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class NucleiPhantom
+{
+
+	private final ImagePlus image;
+
+	private final ImagePlus labels;
+
+	private final SpotCollection groundTruth;
+
+	private final int nNuclei;
+
+	private final int nTouching;
+
+	public NucleiPhantom( final ImagePlus image, final ImagePlus labels, final SpotCollection groundTruth, final int nNuclei, final int nTouching )
+	{
+		this.image = image;
+		this.labels = labels;
+		this.groundTruth = groundTruth;
+		this.nNuclei = nNuclei;
+		this.nTouching = nTouching;
+	}
+
+	/**
+	 * Returns the phantom image, as a calibrated hyperstack with one channel.
+	 */
+	public ImagePlus getImage()
+	{
+		return image;
+	}
+
+	/**
+	 * Returns the ground-truth label image, in which each voxel is set to
+	 * <code>1 + </code> the ID of the nucleus it belongs to, or 0 for the
+	 * background. Returns <code>null</code> if labels were not generated.
+	 */
+	public ImagePlus getLabels()
+	{
+		return labels;
+	}
+
+	/**
+	 * Returns the ground-truth centroids of the nuclei, one spot per nucleus
+	 * and per frame. The ID of the nucleus a spot belongs to, constant over
+	 * time, is stored in its {@link NucleiPhantomGenerator#NUCLEUS_ID} feature.
+	 */
+	public SpotCollection getGroundTruth()
+	{
+		return groundTruth;
+	}
+
+	/**
+	 * Returns the number of nuclei in the phantom.
+	 */
+	public int getNucleusCount()
+	{
+		return nNuclei;
+	}
+
+	/**
+	 * Returns the number of nuclei that were placed touching another one in
+	 * the first frame.
+	 */
+	public int getTouchingCount()
+	{
+		return nTouching;
+	}
+}
@@ -0,0 +1,750 @@
+package fiji.plugin.cwnt.phantom;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
+import net.imglib2.algorithm.OutputAlgorithm;
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * Generates deterministic synthetic images of crown-wearing nuclei, with
+ * their ground truth, so that the segmentation can be benchmarked and its
+ * accuracy checked without real data.
+ * <p>
+ * Nuclei are ellipsoids (ellipses in 2D) randomly oriented in the XY plane,
+ * with a dim core and a bright rim: the crown. Their number is set by the
+ * fraction of the image volume they cover, and a controllable fraction of
+ * them are placed touching another nucleus; the others do not touch any.
+ * Over time, nuclei follow independent random walks plus a common drift.
+ * The image is corrupted by a constant background and gaussian noise.
+ * <p>
+ * All sizes and distances are expressed in physical units, and the voxel
+ * size can be anisotropic. The same settings and seed always yield the same
+ * phantom, whatever the number of threads.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@SuppressWarnings( "deprecation" )
+public class NucleiPhantomGenerator extends MultiThreadedBenchmarkAlgorithm implements OutputAlgorithm< NucleiPhantom >
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[NucleiPhantomGenerator] ";
+
+	/**
+	 * The feature of ground-truth spots that stores the ID of the nucleus
+	 * they belong to.
+	 */
+	public static final String NUCLEUS_ID = "NUCLEUS_ID";
+
+	/** Max number of trials to place a nucleus before giving up. */
+	private static final int MAX_PLACEMENT_TRIALS = 100;
+
+	/**
+	 * Nuclei that do not touch are at least this factor times the sum of
+	 * their largest semi-axes apart.
+	 */
+	private static final double CONTACT_MARGIN = 1.1;
+
+	/**
+	 * Touching nuclei are this factor times the sum of their mean radii
+	 * apart, so that they slightly overlap.
+	 */
+	private static final double TOUCHING_DISTANCE = 0.9;
+
+	/** The rendered intensity profile is cut at this many rim widths. */
+	private static final double PROFILE_CUTOFF = 3;
+
+	/** Number of rows rendered at once by a thread. */
+	private static final int BAND_HEIGHT = 64;
+
+	/*
+	 * SETTINGS
+	 */
+
+	private int width = 256;
+
+	private int height = 256;
+
+	private int depth = 1;
+
+	private int nFrames = 1;
+
+	private double[] calibration = new double[] { 1, 1, 1 };
+
+	private double frameInterval = 1;
+
+	private double nucleusRadius = 5;
+
+	private double radiusJitter = 0.1;
+
+	private double elongation = 1.3;
+
+	private double rimWidth = 1;
+
+	private double density = 0.3;
+
+	private double touchingFraction = 0.2;
+
+	private double coreIntensity = 0.3;
+
+	private double rimIntensity = 1;
+
+	private double background = 0.1;
+
+	private double noiseStd = 0.05;
+
+	private double motionStd = 0.5;
+
+	private double[] drift = new double[] { 0, 0, 0 };
+
+	private long seed = 1l;
+
+	private int bitDepth = 16;
+
+	private boolean generateLabels = true;
+
+	/*
+	 * FIELDS
+	 */
+
+	private NucleiPhantom phantom;
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( width < 1 || height < 1 || depth < 1 || nFrames < 1 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Image dimensions must be positive, got " + width + " x " + height + " x " + depth + " x " + nFrames + ".";
+			return false;
+		}
+		if ( ( long ) width * height * depth > Integer.MAX_VALUE )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "A frame cannot have more than " + Integer.MAX_VALUE + " voxels.";
+			return false;
+		}
+		if ( null == calibration || calibration.length < 3 || calibration[ 0 ] <= 0 || calibration[ 1 ] <= 0 || calibration[ 2 ] <= 0 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Calibration must have 3 positive elements.";
+			return false;
+		}
+		if ( nucleusRadius <= 0 || rimWidth <= 0 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Nucleus radius and rim width must be positive.";
+			return false;
+		}
+		if ( elongation < 1 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Elongation must be at least 1, got " + elongation + ".";
+			return false;
+		}
+		if ( density <= 0 || density >= 1 || touchingFraction < 0 || touchingFraction > 1 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Density must be in ]0, 1[ and touching fraction in [0, 1].";
+			return false;
+		}
+		if ( bitDepth != 8 && bitDepth != 16 && bitDepth != 32 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Bit depth must be 8, 16 or 32, got " + bitDepth + ".";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final Random random = new Random( seed );
+		final Nucleus[] nuclei = placeNuclei( random );
+		moveNuclei( nuclei, random );
+
+		final ImagePlus image = createImagePlus( "Phantom", bitDepth );
+		final ImagePlus labels = generateLabels ? createImagePlus( "Phantom labels", nuclei.length < 65535 ? 16 : 32 ) : null;
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			renderFrame( nuclei, frame, image, labels );
+		}
+
+		int nTouching = 0;
+		for ( final Nucleus nucleus : nuclei )
+		{
+			if ( nucleus.touching )
+				nTouching++;
+		}
+		phantom = new NucleiPhantom( image, labels, createGroundTruth( nuclei ), nuclei.length, nTouching );
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	@Override
+	public NucleiPhantom getResult()
+	{
+		return phantom;
+	}
+
+	/*
+	 * SETTERS
+	 */
+
+	/**
+	 * Sets the size of the image, in pixels. A depth of 1 generates a 2D
+	 * image.
+	 */
+	public void setSize( final int width, final int height, final int depth )
+	{
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+	}
+
+	public void setNFrames( final int nFrames )
+	{
+		this.nFrames = nFrames;
+	}
+
+	/**
+	 * Sets the voxel size, in physical units, and the time interval between
+	 * frames.
+	 */
+	public void setCalibration( final double[] calibration, final double frameInterval )
+	{
+		this.calibration = calibration.clone();
+		this.frameInterval = frameInterval;
+	}
+
+	/**
+	 * Sets the mean nucleus radius, in physical units, and its relative
+	 * standard deviation.
+	 */
+	public void setNucleusRadius( final double radius, final double jitter )
+	{
+		this.nucleusRadius = radius;
+		this.radiusJitter = jitter;
+	}
+
+	/**
+	 * Sets the ratio of the largest to the smallest semi-axis of nuclei in
+	 * the XY plane. 1 makes spherical nuclei.
+	 */
+	public void setElongation( final double elongation )
+	{
+		this.elongation = elongation;
+	}
+
+	/**
+	 * Sets the width of the bright rim of nuclei, in physical units.
+	 */
+	public void setRimWidth( final double rimWidth )
+	{
+		this.rimWidth = rimWidth;
+	}
+
+	/**
+	 * Sets the fraction of the image volume covered by nuclei. It is an
+	 * upper bound: nuclei that cannot be placed without touching others are
+	 * skipped.
+	 */
+	public void setDensity( final double density )
+	{
+		this.density = density;
+	}
+
+	/**
+	 * Sets the fraction of nuclei placed touching another nucleus.
+	 */
+	public void setTouchingFraction( final double touchingFraction )
+	{
+		this.touchingFraction = touchingFraction;
+	}
+
+	/**
+	 * Sets the intensities of the nucleus core and rim, of the background
+	 * and the standard deviation of the noise. The full range of the image
+	 * type maps to 0 - 1, except for 16-bit images where 1 maps to 4095.
+	 */
+	public void setIntensities( final double core, final double rim, final double background, final double noiseStd )
+	{
+		this.coreIntensity = core;
+		this.rimIntensity = rim;
+		this.background = background;
+		this.noiseStd = noiseStd;
+	}
+
+	/**
+	 * Sets the standard deviation of the random displacement of nuclei at
+	 * each frame, and the drift common to all nuclei, in physical units per
+	 * frame.
+	 */
+	public void setMotion( final double motionStd, final double[] drift )
+	{
+		this.motionStd = motionStd;
+		this.drift = drift.clone();
+	}
+
+	public void setSeed( final long seed )
+	{
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the bit depth of the phantom image: 8, 16 or 32.
+	 */
+	public void setBitDepth( final int bitDepth )
+	{
+		this.bitDepth = bitDepth;
+	}
+
+	/**
+	 * Sets whether the ground-truth label image is generated.
+	 */
+	public void setGenerateLabels( final boolean generateLabels )
+	{
+		this.generateLabels = generateLabels;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private boolean is2D()
+	{
+		return depth < 2;
+	}
+
+	/**
+	 * Returns the size of the image in physical units, with a Z size of 0
+	 * for 2D images.
+	 */
+	private double[] getExtent()
+	{
+		return new double[] { width * calibration[ 0 ], height * calibration[ 1 ], is2D() ? 0 : depth * calibration[ 2 ] };
+	}
+
+	/**
+	 * Places the nuclei in the first frame. Contacts are tested against the
+	 * nuclei of neighbor cells in a grid at least twice as large as the
+	 * largest nucleus.
+	 */
+	private Nucleus[] placeNuclei( final Random random )
+	{
+		final double[] extent = getExtent();
+		final double space = is2D() ? extent[ 0 ] * extent[ 1 ] : extent[ 0 ] * extent[ 1 ] * extent[ 2 ];
+		final double nucleusSize = is2D() ? Math.PI * nucleusRadius * nucleusRadius : 4. / 3. * Math.PI * nucleusRadius * nucleusRadius * nucleusRadius;
+		final int nTarget = ( int ) Math.max( 1, Math.round( density * space / nucleusSize ) );
+
+		final double maxRadius = nucleusRadius * ( 1 + 3 * radiusJitter );
+		final double cellSize = 2 * CONTACT_MARGIN * maxRadius * Math.sqrt( elongation );
+		final Map< Long, List< Nucleus > > grid = new HashMap< Long, List< Nucleus > >();
+		final List< Nucleus > placed = new ArrayList< Nucleus >( nTarget );
+
+		for ( int i = 0; i < nTarget; i++ )
+		{
+			final double r = Math.max( 0.5 * nucleusRadius, Math.min( maxRadius, nucleusRadius * ( 1 + radiusJitter * random.nextGaussian() ) ) );
+			final double angle = Math.PI * random.nextDouble();
+			final Nucleus nucleus = new Nucleus( r * Math.sqrt( elongation ), r / Math.sqrt( elongation ), r, angle );
+			final boolean touching = !placed.isEmpty() && random.nextDouble() < touchingFraction;
+
+			for ( int trial = 0; trial < MAX_PLACEMENT_TRIALS; trial++ )
+			{
+				final double[] center = new double[ 3 ];
+				Nucleus partner = null;
+				if ( touching )
+				{
+					partner = placed.get( random.nextInt( placed.size() ) );
+					final double[] direction = randomDirection( random );
+					final double distance = TOUCHING_DISTANCE * ( nucleus.radius + partner.radius );
+					for ( int d = 0; d < 3; d++ )
+					{
+						center[ d ] = partner.positions[ 0 ][ d ] + distance * direction[ d ];
+					}
+				}
+				else
+				{
+					for ( int d = 0; d < 3; d++ )
+					{
+						center[ d ] = random.nextDouble() * extent[ d ];
+					}
+				}
+
+				if ( !isInside( center, extent ) || hasContact( center, nucleus, partner, grid, cellSize ) )
+					continue;
+
+				nucleus.positions = new double[ nFrames ][];
+				nucleus.positions[ 0 ] = center;
+				nucleus.touching = touching;
+				if ( touching )
+					partner.touching = true;
+				nucleus.id = placed.size();
+				placed.add( nucleus );
+				final long key = cellKey( center, cellSize, 0, 0, 0 );
+				List< Nucleus > cell = grid.get( key );
+				if ( null == cell )
+				{
+					cell = new ArrayList< Nucleus >();
+					grid.put( key, cell );
+				}
+				cell.add( nucleus );
+				break;
+			}
+		}
+		return placed.toArray( new Nucleus[ placed.size() ] );
+	}
+
+	/**
+	 * Returns <code>true</code> if a nucleus at the specified position would
+	 * touch an already placed nucleus other than the specified partner.
+	 */
+	private static boolean hasContact( final double[] center, final Nucleus nucleus, final Nucleus partner, final Map< Long, List< Nucleus > > grid, final double cellSize )
+	{
+		for ( int i = -1; i <= 1; i++ )
+		{
+			for ( int j = -1; j <= 1; j++ )
+			{
+				for ( int k = -1; k <= 1; k++ )
+				{
+					final List< Nucleus > cell = grid.get( cellKey( center, cellSize, i, j, k ) );
+					if ( null == cell )
+						continue;
+					for ( final Nucleus other : cell )
+					{
+						if ( other == partner )
+							continue;
+						final double minDistance = CONTACT_MARGIN * ( nucleus.bound + other.bound );
+						double d2 = 0;
+						for ( int d = 0; d < 3; d++ )
+						{
+							final double dx = center[ d ] - other.positions[ 0 ][ d ];
+							d2 += dx * dx;
+						}
+						if ( d2 < minDistance * minDistance )
+							return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static long cellKey( final double[] position, final double cellSize, final int di, final int dj, final int dk )
+	{
+		final long i = ( long ) Math.floor( position[ 0 ] / cellSize ) + di;
+		final long j = ( long ) Math.floor( position[ 1 ] / cellSize ) + dj;
+		final long k = ( long ) Math.floor( position[ 2 ] / cellSize ) + dk;
+		return ( i * 1000003l + j ) * 1000003l + k;
+	}
+
+	private double[] randomDirection( final Random random )
+	{
+		final double[] direction = new double[] { random.nextGaussian(), random.nextGaussian(), is2D() ? 0 : random.nextGaussian() };
+		final double norm = Math.sqrt( direction[ 0 ] * direction[ 0 ] + direction[ 1 ] * direction[ 1 ] + direction[ 2 ] * direction[ 2 ] );
+		for ( int d = 0; d < 3; d++ )
+		{
+			direction[ d ] /= norm;
+		}
+		return direction;
+	}
+
+	private static boolean isInside( final double[] position, final double[] extent )
+	{
+		for ( int d = 0; d < 3; d++ )
+		{
+			if ( position[ d ] < 0 || position[ d ] > extent[ d ] )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the positions of the nuclei in all frames after the first
+	 * one. Nuclei bounce off the image borders.
+	 */
+	private void moveNuclei( final Nucleus[] nuclei, final Random random )
+	{
+		final double[] extent = getExtent();
+		for ( int frame = 1; frame < nFrames; frame++ )
+		{
+			for ( final Nucleus nucleus : nuclei )
+			{
+				final double[] previous = nucleus.positions[ frame - 1 ];
+				final double[] position = new double[ 3 ];
+				for ( int d = 0; d < 3; d++ )
+				{
+					if ( extent[ d ] <= 0 )
+						continue;
+					position[ d ] = reflect( previous[ d ] + drift[ d ] + motionStd * random.nextGaussian(), extent[ d ] );
+				}
+				nucleus.positions[ frame ] = position;
+			}
+		}
+	}
+
+	private static double reflect( double x, final double max )
+	{
+		while ( x < 0 || x > max )
+		{
+			if ( x < 0 )
+				x = -x;
+			if ( x > max )
+				x = 2 * max - x;
+		}
+		return x;
+	}
+
+	private ImagePlus createImagePlus( final String title, final int bd )
+	{
+		final ImageStack stack = ImageStack.create( width, height, depth * nFrames, bd );
+		final ImagePlus imp = new ImagePlus( title, stack );
+		imp.setDimensions( 1, depth, nFrames );
+		imp.setOpenAsHyperStack( true );
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = calibration[ 0 ];
+		cal.pixelHeight = calibration[ 1 ];
+		cal.pixelDepth = calibration[ 2 ];
+		cal.frameInterval = frameInterval;
+		return imp;
+	}
+
+	/**
+	 * Renders one frame in the target image and label image. Nuclei are first
+	 * sorted by the Z planes they intersect, then bands of rows are rendered
+	 * in parallel. The noise of each row is seeded from its position, so that
+	 * the result does not depend on the number of threads.
+	 */
+	private void renderFrame( final Nucleus[] nuclei, final int frame, final ImagePlus image, final ImagePlus labels )
+	{
+		final double reachMargin = PROFILE_CUTOFF * rimWidth;
+		final List< List< Nucleus > > planes = new ArrayList< List< Nucleus > >( depth );
+		for ( int z = 0; z < depth; z++ )
+		{
+			planes.add( new ArrayList< Nucleus >() );
+		}
+		for ( final Nucleus nucleus : nuclei )
+		{
+			final double cz = nucleus.positions[ frame ][ 2 ];
+			final double reach = nucleus.bound + reachMargin;
+			final int zmin = is2D() ? 0 : Math.max( 0, ( int ) Math.floor( ( cz - reach ) / calibration[ 2 ] ) );
+			final int zmax = is2D() ? 0 : Math.min( depth - 1, ( int ) Math.ceil( ( cz + reach ) / calibration[ 2 ] ) );
+			for ( int z = zmin; z <= zmax; z++ )
+			{
+				planes.get( z ).add( nucleus );
+			}
+		}
+
+		final int nBands = ( height + BAND_HEIGHT - 1 ) / BAND_HEIGHT;
+		final int nUnits = depth * nBands;
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.max( 1, Math.min( numThreads, nUnits ) ) );
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			threads[ i ] = new Thread( "NucleiPhantomGenerator thread " + i )
+			{
+				@Override
+				public void run()
+				{
+					final float[] band = new float[ width * BAND_HEIGHT ];
+					final int[] labelBand = new int[ width * BAND_HEIGHT ];
+					final float[] bestDistance = new float[ width * BAND_HEIGHT ];
+					final float[] row = new float[ width ];
+					for ( int unit = ai.getAndIncrement(); unit < nUnits; unit = ai.getAndIncrement() )
+					{
+						final int z = unit / nBands;
+						final int y0 = ( unit % nBands ) * BAND_HEIGHT;
+						final int y1 = Math.min( height, y0 + BAND_HEIGHT );
+						renderBand( planes.get( z ), frame, z, y0, y1, band, labelBand, bestDistance );
+
+						final int index = frame * depth + z + 1;
+						for ( int y = y0; y < y1; y++ )
+						{
+							final int offset = ( y - y0 ) * width;
+							final Random random = new Random( seed + 1 + ( ( long ) frame * depth + z ) * height + y );
+							for ( int x = 0; x < width; x++ )
+							{
+								row[ x ] = ( float ) ( band[ offset + x ] + background + noiseStd * random.nextGaussian() );
+							}
+							writeRow( image.getStack().getPixels( index ), y, row, bitDepth );
+
+							if ( null != labels )
+							{
+								for ( int x = 0; x < width; x++ )
+								{
+									row[ x ] = labelBand[ offset + x ];
+								}
+								writeRow( labels.getStack().getPixels( index ), y, row, 0 );
+							}
+						}
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	/**
+	 * Renders the signal of the specified nuclei in a band of rows of one
+	 * plane, without background and noise. Where nuclei overlap, the
+	 * brightest signal is kept, and voxels are labeled with the nucleus whose
+	 * surface is the farthest.
+	 */
+	private void renderBand( final List< Nucleus > nuclei, final int frame, final int z, final int y0, final int y1, final float[] band, final int[] labelBand, final float[] bestDistance )
+	{
+		final int size = ( y1 - y0 ) * width;
+		for ( int i = 0; i < size; i++ )
+		{
+			band[ i ] = 0;
+			labelBand[ i ] = 0;
+			bestDistance[ i ] = Float.POSITIVE_INFINITY;
+		}
+
+		final double cutoff = PROFILE_CUTOFF * rimWidth;
+		final double pz = is2D() ? 0 : ( z + 0.5 ) * calibration[ 2 ];
+		for ( final Nucleus nucleus : nuclei )
+		{
+			final double[] center = nucleus.positions[ frame ];
+			final double reach = nucleus.bound + cutoff;
+			final int ymin = Math.max( y0, ( int ) Math.floor( ( center[ 1 ] - reach ) / calibration[ 1 ] ) );
+			final int ymax = Math.min( y1 - 1, ( int ) Math.ceil( ( center[ 1 ] + reach ) / calibration[ 1 ] ) );
+			if ( ymin > ymax )
+				continue;
+			final int xmin = Math.max( 0, ( int ) Math.floor( ( center[ 0 ] - reach ) / calibration[ 0 ] ) );
+			final int xmax = Math.min( width - 1, ( int ) Math.ceil( ( center[ 0 ] + reach ) / calibration[ 0 ] ) );
+			final double w = ( pz - center[ 2 ] ) / nucleus.c;
+
+			for ( int y = ymin; y <= ymax; y++ )
+			{
+				final double dy = ( y + 0.5 ) * calibration[ 1 ] - center[ 1 ];
+				final int offset = ( y - y0 ) * width;
+				for ( int x = xmin; x <= xmax; x++ )
+				{
+					final double dx = ( x + 0.5 ) * calibration[ 0 ] - center[ 0 ];
+					final double u = ( dx * nucleus.cos + dy * nucleus.sin ) / nucleus.a;
+					final double v = ( -dx * nucleus.sin + dy * nucleus.cos ) / nucleus.b;
+					final double rho = Math.sqrt( u * u + v * v + w * w );
+					// Approximate signed distance to the surface.
+					final double distance = ( rho - 1 ) * nucleus.radius;
+					if ( distance > cutoff )
+						continue;
+
+					final double e = Math.exp( -distance * distance / ( 2 * rimWidth * rimWidth ) );
+					final double val = distance <= 0 ? coreIntensity + ( rimIntensity - coreIntensity ) * e : rimIntensity * e;
+					final int i = offset + x;
+					if ( val > band[ i ] )
+						band[ i ] = ( float ) val;
+					if ( distance <= 0 && distance < bestDistance[ i ] )
+					{
+						bestDistance[ i ] = ( float ) distance;
+						labelBand[ i ] = nucleus.id + 1;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes one row in an ImageJ plane, scaling values for the specified bit
+	 * depth. A bit depth of 0 writes values unscaled.
+	 */
+	private void writeRow( final Object pixels, final int y, final float[] row, final int bd )
+	{
+		final int offset = y * width;
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] target = ( byte[] ) pixels;
+			for ( int x = 0; x < width; x++ )
+			{
+				target[ offset + x ] = ( byte ) clamp( Math.round( row[ x ] * 255 ), 255 );
+			}
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] target = ( short[] ) pixels;
+			final double scale = bd == 0 ? 1 : 4095;
+			for ( int x = 0; x < width; x++ )
+			{
+				target[ offset + x ] = ( short ) clamp( Math.round( row[ x ] * scale ), 65535 );
+			}
+		}
+		else
+		{
+			System.arraycopy( row, 0, pixels, offset, width );
+		}
+	}
+
+	private static long clamp( final long val, final long max )
+	{
+		return Math.max( 0, Math.min( max, val ) );
+	}
+
+	private SpotCollection createGroundTruth( final Nucleus[] nuclei )
+	{
+		final SpotCollection spots = new SpotCollection();
+		for ( int frame = 0; frame < nFrames; frame++ )
+		{
+			for ( final Nucleus nucleus : nuclei )
+			{
+				final double[] position = nucleus.positions[ frame ];
+				final Spot spot = new Spot( position[ 0 ], position[ 1 ], position[ 2 ], nucleus.radius, 1 );
+				spot.setName( "Nucleus_" + nucleus.id );
+				spot.putFeature( Spot.POSITION_T, frame * frameInterval );
+				spot.putFeature( NUCLEUS_ID, Double.valueOf( nucleus.id ) );
+				spots.add( spot, frame );
+			}
+		}
+		spots.setVisible( true );
+		return spots;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	private static final class Nucleus
+	{
+
+		/** Semi-axes, in physical units. */
+		private final double a, b, c;
+
+		/** Radius of the sphere of the same volume. */
+		private final double radius;
+
+		/** Largest semi-axis. */
+		private final double bound;
+
+		private final double cos, sin;
+
+		private int id;
+
+		private boolean touching;
+
+		/** The position of the center in each frame. */
+		private double[][] positions;
+
+		private Nucleus( final double a, final double b, final double c, final double angle )
+		{
+			this.a = a;
+			this.b = b;
+			this.c = c;
+			this.radius = Math.cbrt( a * b * c );
+			this.bound = Math.max( a, Math.max( b, c ) );
+			this.cos = Math.cos( angle );
+			this.sin = Math.sin( angle );
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package fiji.plugin.cwnt.phantom;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the detection accuracy of a segmentation against the ground truth
+ * of a {@link NucleiPhantom}.
+ * <p>
+ * In each frame, detected spots are matched one-to-one to ground-truth spots,
+ * closest pairs first, provided they are closer than a maximal distance.
+ * Matched pairs are true positives, unmatched detections false positives and
+ * unmatched ground-truth spots false negatives.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PhantomAccuracy
+{
+
+	private int truePositives;
+
+	private int falsePositives;
+
+	private int falseNegatives;
+
+	private double sumError;
+
+	private PhantomAccuracy()
+	{}
+
+	/**
+	 * Compares detected spots to the ground truth.
+	 *
+	 * @param groundTruth
+	 *            the ground-truth spots, as returned by
+	 *            {@link NucleiPhantom#getGroundTruth()}.
+	 * @param detected
+	 *            the spots found by the segmentation.
+	 * @param maxDistance
+	 *            the max distance between a detection and the ground-truth
+	 *            spot it is matched to, in physical units. Typically the
+	 *            nucleus radius.
+	 * @return a new accuracy.
+	 */
+	public static PhantomAccuracy compare( final SpotCollection groundTruth, final SpotCollection detected, final double maxDistance )
+	{
+		final PhantomAccuracy accuracy = new PhantomAccuracy();
+		final double maxSqDistance = maxDistance * maxDistance;
+		for ( final Integer frame : groundTruth.keySet() )
+		{
+			final List< Spot > truth = new ArrayList< Spot >();
+			for ( final Spot spot : groundTruth.iterable( frame, false ) )
+			{
+				truth.add( spot );
+			}
+			final List< Spot > found = new ArrayList< Spot >();
+			if ( detected.keySet().contains( frame ) )
+			{
+				for ( final Spot spot : detected.iterable( frame, false ) )
+				{
+					found.add( spot );
+				}
+			}
+			accuracy.match( truth, found, maxSqDistance );
+		}
+
+		// Detections in frames absent from the ground truth.
+		for ( final Integer frame : detected.keySet() )
+		{
+			if ( !groundTruth.keySet().contains( frame ) )
+				accuracy.falsePositives += detected.getNSpots( frame, false );
+		}
+		return accuracy;
+	}
+
+	private void match( final List< Spot > truth, final List< Spot > found, final double maxSqDistance )
+	{
+		final List< Pair > pairs = new ArrayList< Pair >();
+		for ( int i = 0; i < truth.size(); i++ )
+		{
+			for ( int j = 0; j < found.size(); j++ )
+			{
+				final double d2 = truth.get( i ).squareDistanceTo( found.get( j ) );
+				if ( d2 <= maxSqDistance )
+					pairs.add( new Pair( i, j, d2 ) );
+			}
+		}
+		Collections.sort( pairs );
+
+		final boolean[] truthMatched = new boolean[ truth.size() ];
+		final boolean[] foundMatched = new boolean[ found.size() ];
+		int nMatched = 0;
+		for ( final Pair pair : pairs )
+		{
+			if ( truthMatched[ pair.i ] || foundMatched[ pair.j ] )
+				continue;
+			truthMatched[ pair.i ] = true;
+			foundMatched[ pair.j ] = true;
+			sumError += Math.sqrt( pair.d2 );
+			nMatched++;
+		}
+		truePositives += nMatched;
+		falseNegatives += truth.size() - nMatched;
+		falsePositives += found.size() - nMatched;
+	}
+
+	public int getTruePositives()
+	{
+		return truePositives;
+	}
+
+	public int getFalsePositives()
+	{
+		return falsePositives;
+	}
+
+	public int getFalseNegatives()
+	{
+		return falseNegatives;
+	}
+
+	/**
+	 * Returns the fraction of ground-truth nuclei that were detected.
+	 */
+	public double getRecall()
+	{
+		final int n = truePositives + falseNegatives;
+		return n == 0 ? 1 : ( double ) truePositives / n;
+	}
+
+	/**
+	 * Returns the fraction of detections that match a ground-truth nucleus.
+	 */
+	public double getPrecision()
+	{
+		final int n = truePositives + falsePositives;
+		return n == 0 ? 1 : ( double ) truePositives / n;
+	}
+
+	public double getF1()
+	{
+		final double p = getPrecision();
+		final double r = getRecall();
+		return p + r == 0 ? 0 : 2 * p * r / ( p + r );
+	}
+
+	/**
+	 * Returns the mean distance between matched detections and ground-truth
+	 * centroids, in physical units.
+	 */
+	public double getMeanLocalizationError()
+	{
+		return truePositives == 0 ? Double.NaN : sumError / truePositives;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "TP = %d, FP = %d, FN = %d, recall = %.3f, precision = %.3f, F1 = %.3f, mean error = %.3f",
+				truePositives, falsePositives, falseNegatives, getRecall(), getPrecision(), getF1(), getMeanLocalizationError() );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	private static final class Pair implements Comparable< Pair >
+	{
+
+		private final int i;
+
+		private final int j;
+
+		private final double d2;
+
+		private Pair( final int i, final int j, final double d2 )
+		{
+			this.i = i;
+			this.j = j;
+			this.d2 = d2;
+		}
+
+		@Override
+		public int compareTo( final Pair o )
+		{
+			return Double.compare( d2, o.d2 );
+		}
+	}
+}
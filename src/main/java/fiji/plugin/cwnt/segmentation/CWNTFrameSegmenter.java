@@ -74,8 +74,12 @@ public class CWNTFrameSegmenter extends MultiThreadedBenchmarkAlgorithm
 		result.setCalibration( imp.getCalibration() );
 		result.show();
 
-		final int tmin = ( int ) Math.ceil( processingTime / 1e3 / 60 ); // min
-		source.labelDurationEstimate.setText( "Total duration rough estimate: " + tmin + " min." );
+		// This frame is a full calibration of the cost model.
+		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( settings );
+		final long voxelsPerFrame = ( long ) imp.getWidth() * imp.getHeight() * imp.getNSlices();
+		final SegmentationCostModel costModel = new SegmentationCostModel();
+		costModel.calibrate( cws, voxelsPerFrame, params );
+		source.labelDurationEstimate.setText( "Total duration estimate: " + costModel.getEstimate( imp.getNFrames(), voxelsPerFrame, params, getNumThreads() ) + "." );
 
 		return true;
 	}
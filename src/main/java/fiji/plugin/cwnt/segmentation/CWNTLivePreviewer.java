@@ -2,8 +2,9 @@ package fiji.plugin.cwnt.segmentation;
 
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.plugin.Duplicator;
+import ij.gui.Roi;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 
 import java.awt.Component;
 import java.awt.Dimension;
@@ -14,24 +15,104 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 
+import javax.swing.SwingUtilities;
+
 import net.imglib2.img.ImagePlusAdapter;
 import net.imglib2.img.Img;
-import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.real.FloatType;
 
+/**
+ * Live preview of the crown-wearing mask computation, displaying the
+ * intermediate images of each step for the current slice of the target image.
+ * <p>
+ * To keep the preview interactive on large images, it is only computed over a
+ * sample region of the current slice: the bounds of the ImageJ ROI if there is
+ * one, or the part of the image visible in the canvas otherwise. This region
+ * is grown by a margin large enough for the filters not to be affected by the
+ * crop borders. While a slider is being dragged, the preview is computed on a
+ * downsampled version of the sample region and upscaled for display. The
+ * full-resolution preview is refined when the slider is released.
+ */
 public class CWNTLivePreviewer extends MouseAdapter implements ActionListener
 {
 
+	/**
+	 * The max number of pixels of the downsampled sample used while sliders
+	 * are dragged.
+	 */
+	private static final int COARSE_PREVIEW_SIZE = 256 * 256;
+
 	private final CWNTPanel source;
 
-	private int stepUpdateToPerform = Integer.MAX_VALUE;
+	/**
+	 * The first step to recompute in the full-resolution preview.
+	 */
+	private int fullStepToPerform = Integer.MAX_VALUE;
+
+	/**
+	 * The first step to recompute in the downsampled preview.
+	 */
+	private int coarseStepToPerform = Integer.MAX_VALUE;
 
-	private final DisplayUpdater updater;
+	private volatile boolean adjusting = false;
+
+	/**
+	 * Whether the sample region must be extracted again, for instance because
+	 * the user moved the ROI or the viewport.
+	 */
+	private boolean recomputeSample = true;
+
+	private final PreviewUpdater updater;
 
 	private NucleiMasker< ? > nucleiMasker;
 
+	private NucleiMasker< ? > coarseMasker;
+
+	/**
+	 * The full-resolution sample, and its downsampling factor for the coarse
+	 * preview.
+	 */
+	private ImageProcessor sample;
+
+	private int coarseFactor = 1;
+
+	/**
+	 * Identifies the full-resolution sample in the stage cache.
+	 */
+	private String sampleKey;
+
+	/**
+	 * Stores the step outputs, so that going back to parameter values tried
+	 * recently does not require recomputing them.
+	 */
+	private final LRUMaskerStageCache stageCache = new LRUMaskerStageCache();
+
+	/**
+	 * Precomputes the adjacent values of the last parameter changed, when
+	 * enabled.
+	 */
+	private final PreviewSpeculator speculator;
+
+	private volatile boolean speculationEnabled = true;
+
+	/**
+	 * The index and the adjacent values of the last parameter changed, read
+	 * on the event dispatch thread when the change is fired.
+	 */
+	private int speculationIndex = -1;
+
+	private double[] speculationValues = new double[ 0 ];
+
+	/**
+	 * Predicts the duration of the segmentation of the whole movie,
+	 * calibrated by the full-resolution preview runs.
+	 */
+	private final SegmentationCostModel costModel = new SegmentationCostModel();
+
 	private ImagePlus comp2;
 
 	private ImagePlus comp1;
@@ -46,12 +127,20 @@ public class CWNTLivePreviewer extends MouseAdapter implements ActionListener
 	{
 		this.source = panel;
 		this.imp = panel.getTargetImagePlus();
-		this.updater = new DisplayUpdater();
+		this.updater = new PreviewUpdater( "CWNT updater thread", new PreviewUpdater.Refresher()
+		{
+			@Override
+			public void refresh( final long generation )
+			{
+				CWNTLivePreviewer.this.refresh( generation );
+			}
+		} );
+		this.speculator = new PreviewSpeculator( updater, stageCache );
 
 		source.addActionListener( this );
 		imp.getCanvas().addMouseListener( this );
 
-		recomputeSampleWindows( imp );
+		updater.doUpdate();
 	}
 
 	/*
@@ -61,312 +150,484 @@ public class CWNTLivePreviewer extends MouseAdapter implements ActionListener
 	@Override
 	public void mouseReleased( final MouseEvent e )
 	{
-		new Thread( "CWNT tuning thread" )
+		synchronized ( this )
 		{
-			@Override
-			public void run()
-			{
-				recomputeSampleWindows( imp );
-			};
-		}.start();
+			recomputeSample = true;
+		}
+		updater.doUpdate();
 	}
 
 	@Override
 	public void actionPerformed( final ActionEvent e )
 	{
+		final int step;
 		if ( e == source.STEP1_PARAMETER_CHANGED )
 		{
-			stepUpdateToPerform = Math.min( 1, stepUpdateToPerform );
-			updater.doUpdate();
-
+			step = 1;
 		}
 		else if ( e == source.STEP2_PARAMETER_CHANGED )
 		{
-			stepUpdateToPerform = Math.min( 2, stepUpdateToPerform );
-			updater.doUpdate();
-
+			step = 2;
 		}
 		else if ( e == source.STEP3_PARAMETER_CHANGED )
 		{
-			stepUpdateToPerform = Math.min( 3, stepUpdateToPerform );
-			updater.doUpdate();
-
+			step = 3;
 		}
 		else if ( e == source.STEP4_PARAMETER_CHANGED )
 		{
-			stepUpdateToPerform = Math.min( 4, stepUpdateToPerform );
-			updater.doUpdate();
-
+			step = 4;
 		}
 		else if ( e == source.STEP5_PARAMETER_CHANGED )
 		{
-			stepUpdateToPerform = Math.min( 5, stepUpdateToPerform );
-			updater.doUpdate();
-
+			step = 5;
 		}
 		else
 		{
 			System.err.println( "Unknwon event caught: " + e );
+			return;
 		}
+
+		final int index = source.getLastChangedParameter();
+		final double[] values = source.getAdjacentParameterValues( index );
+		synchronized ( this )
+		{
+			fullStepToPerform = Math.min( step, fullStepToPerform );
+			coarseStepToPerform = Math.min( step, coarseStepToPerform );
+			adjusting = source.isAdjusting();
+			speculationIndex = index;
+			speculationValues = values;
+		}
+		updater.doUpdate();
+	}
+
+	/**
+	 * Sets whether the preview for the values adjacent to the current value
+	 * of the last parameter changed is precomputed in the background.
+	 */
+	public void setSpeculationEnabled( final boolean speculationEnabled )
+	{
+		this.speculationEnabled = speculationEnabled;
 	}
 
 	void quit()
 	{
+		speculator.quit();
 		updater.quit();
+		stageCache.clear();
 		source.removeActionListener( this );
 		imp.getCanvas().removeMouseListener( this );
-		comp1.changes = false;
-		comp1.close();
-		comp2.changes = false;
-		comp2.close();
+		if ( null != comp1 )
+		{
+			comp1.changes = false;
+			comp1.close();
+		}
+		if ( null != comp2 )
+		{
+			comp2.changes = false;
+			comp2.close();
+		}
 	}
 
 	/*
 	 * PRIVATE METHODS
 	 */
 
+	/**
+	 * Extracts the sample region and computes the preview on it. Returns
+	 * <code>false</code> if the computation was canceled or failed.
+	 */
 	@SuppressWarnings( { "rawtypes", "unchecked" } )
-	private void recomputeSampleWindows( final ImagePlus imp )
+	private boolean recomputeSampleWindows( final ImagePlus imp, final long generation )
 	{
+		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( source.getSettings() );
+		final Rectangle region = getSampleRegion( imp, params );
+		final ImageProcessor ip = imp.getStack().getProcessor( imp.getCurrentSlice() );
+		ip.setRoi( region );
+		final ImageProcessor snip = ip.crop();
 
-		final ImagePlus snip = new Duplicator().run( imp, imp.getSlice(), imp.getSlice() );
-
-		// Copy to Imglib
-		Img< ? extends IntegerType< ? >> img = null;
-		switch ( imp.getType() )
+		// Prepare algo
+		final Img img = wrap( snip );
+		if ( null == img )
 		{
-		case ImagePlus.GRAY8:
-			img = ImagePlusAdapter.wrapByte( snip );
-			break;
-		case ImagePlus.GRAY16:
-			img = ImagePlusAdapter.wrapShort( snip );
-			break;
-		default:
 			System.err.println( "Image type not handled: " + imp.getType() );
-			return;
+			return false;
 		}
-
-		// Prepare algo
-		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( source.getSettings() );
-		nucleiMasker = new NucleiMasker( img );
-		nucleiMasker.setParameters( params );
-		final boolean check = nucleiMasker.checkInput() && nucleiMasker.process();
+		// The pixels are hashed, so that edits of the plane are not masked by the cache.
+		final String key = imp.getID() + ":" + imp.getCurrentSlice() + ":" + region.x + "," + region.y + "," + region.width + "," + region.height
+				+ ":" + CrownWearingSegmenter.checksum( img );
+		final NucleiMasker masker = new NucleiMasker( img );
+		masker.setParameters( params );
+		masker.setCancelCheck( updater.getCancelCheck( generation ) );
+		masker.setStageCache( stageCache, key );
+		final boolean check = masker.checkInput() && masker.process();
 		if ( !check )
 		{
-			System.err.println( "Problem with the segmenter: " + nucleiMasker.getErrorMessage() );
-			return;
+			if ( !masker.isCanceled() )
+				System.err.println( "Problem with the segmenter: " + masker.getErrorMessage() );
+			return false;
 		}
 
-		final double snipPixels = snip.getWidth() * snip.getHeight() * snip.getNSlices() * snip.getNFrames();
-		final double allPixels = imp.getWidth() * imp.getHeight() * imp.getNSlices() * imp.getNFrames();
-		final double dt = nucleiMasker.getProcessingTime();
-		final int tmin = ( int ) Math.ceil( dt * allPixels / snipPixels / 1e3 / 60 ); // min
-		source.labelDurationEstimate.setText( "Total duration rough estimate: " + tmin + " min." );
+		synchronized ( this )
+		{
+			// A newer request recomputes the sample: do not replace its state.
+			if ( !updater.isCurrent( generation ) )
+				return false;
+			sample = snip;
+			sampleKey = key;
+			coarseFactor = getCoarseFactor( snip );
+			nucleiMasker = masker;
+			coarseMasker = null;
+			fullStepToPerform = Integer.MAX_VALUE;
+			coarseStepToPerform = Integer.MAX_VALUE;
+		}
 
 		// Prepare results holder;
-		final Img< FloatType > F = nucleiMasker.getGaussianFilteredImage();
-		final Img< FloatType > AD = nucleiMasker.getAnisotropicDiffusionImage();
-		final Img< FloatType > G = nucleiMasker.getGradientNorm();
-		final Img< FloatType > L = nucleiMasker.getLaplacianMagnitude();
-		final Img< FloatType > H = nucleiMasker.getHessianDeterminant();
-		final Img< FloatType > M = nucleiMasker.getMask();
-		final Img< FloatType > R = nucleiMasker.getResult();
+		final ArrayImg< FloatType, FloatArray > F = masker.getGaussianFilteredImage();
+		final ArrayImg< FloatType, FloatArray > AD = masker.getAnisotropicDiffusionImage();
+		final ArrayImg< FloatType, FloatArray > G = masker.getGradientNorm();
+		final ArrayImg< FloatType, FloatArray > L = masker.getLaplacianMagnitude();
+		final ArrayImg< FloatType, FloatArray > H = masker.getHessianDeterminant();
+		final ArrayImg< FloatType, FloatArray > M = masker.getMask();
+		final ArrayImg< FloatType, FloatArray > R = masker.getResult();
 
 		final double thresholdFactor = ( Double ) source.getSettings().get( CrownWearingSegmenterFactory.THRESHOLD_FACTOR_PARAMETER );
+		final long top = System.currentTimeMillis();
 		final OtsuThresholder2D< FloatType > thresholder = new OtsuThresholder2D< FloatType >( R, thresholdFactor );
 		thresholder.process();
 		final Img< BitType > B = thresholder.getResult();
+		final float[] thresholded = PreviewRenderer.toFloatArray( B );
+		updateDurationEstimate( masker, params, thresholded, System.currentTimeMillis() - top );
 
 		final int width = ( int ) F.dimension( 0 );
 		final int height = ( int ) F.dimension( 1 );
 
 		final ImageStack floatStack = new ImageStack( width, height );
-		floatStack.addSlice( "Gradient norm", toFloatProcessor( G ) );
-		floatStack.addSlice( "Laplacian mangitude", toFloatProcessor( L ) );
-		floatStack.addSlice( "Hessian determintant", toFloatProcessor( H ) );
-		floatStack.addSlice( "Mask", toFloatProcessor( M ) );
-		floatStack.addSlice( "Thresholded", toFloatProcessor( B ) );
+		floatStack.addSlice( "Gradient norm", PreviewRenderer.toFloatProcessor( G ) );
+		floatStack.addSlice( "Laplacian mangitude", PreviewRenderer.toFloatProcessor( L ) );
+		floatStack.addSlice( "Hessian determintant", PreviewRenderer.toFloatProcessor( H ) );
+		floatStack.addSlice( "Mask", PreviewRenderer.toFloatProcessor( M ) );
+		floatStack.addSlice( "Thresholded", thresholded );
 		if ( comp2 == null )
 		{
+			// Not shown yet: the renderer shows it on the EDT.
 			comp2 = new ImagePlus( "Scaled derivatives", floatStack );
 		}
-		else
-		{
-			comp2.setStack( floatStack );
-		}
-		comp2.show();
-		comp2.getProcessor().resetMinAndMax();
+		if ( !updater.isCurrent( generation ) )
+			return true;
+		final PreviewRenderer renderer2 = new PreviewRenderer( comp2 );
+		renderer2.setStack( floatStack, 1, floatStack.getSize(), 1 );
+		renderer2.render();
 
 		final ImageStack tStack = new ImageStack( width, height );
-		tStack.addSlice( "Gaussian filtered", toFloatProcessor( F ) );
-		tStack.addSlice( "Anisotropic diffusion", toFloatProcessor( AD ) );
-		tStack.addSlice( "Masked image", toFloatProcessor( R ) );
+		tStack.addSlice( "Gaussian filtered", PreviewRenderer.toFloatProcessor( F ) );
+		tStack.addSlice( "Anisotropic diffusion", PreviewRenderer.toFloatProcessor( AD ) );
+		tStack.addSlice( "Masked image", PreviewRenderer.toFloatProcessor( R ) );
 		if ( comp1 == null )
 		{
 			comp1 = new ImagePlus( "Components", tStack );
 		}
+		if ( !updater.isCurrent( generation ) )
+			return true;
+		final PreviewRenderer renderer1 = new PreviewRenderer( comp1 );
+		renderer1.setStack( tStack, 1, tStack.getSize(), 1 );
+		renderer1.render();
+
+		// Runs after the renderers, which show the windows.
+		final ImagePlus lcomp1 = comp1;
+		final ImagePlus lcomp2 = comp2;
+		SwingUtilities.invokeLater( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				positionComponentRelativeTo( lcomp1.getWindow(), imp.getWindow(), 1 );
+				positionComponentRelativeTo( lcomp2.getWindow(), lcomp1.getWindow(), 2 );
+			}
+		} );
+		return true;
+	}
+
+	private void refresh( final long generation )
+	{
+		final boolean recompute;
+		synchronized ( this )
+		{
+			recompute = recomputeSample || null == nucleiMasker;
+			recomputeSample = false;
+		}
+		if ( recompute )
+		{
+			if ( !recomputeSampleWindows( imp, generation ) )
+			{
+				synchronized ( this )
+				{
+					recomputeSample = true;
+				}
+			}
+			return;
+		}
+
+		final boolean coarse;
+		final int step;
+		synchronized ( this )
+		{
+			coarse = adjusting && coarseFactor > 1;
+			if ( coarse )
+			{
+				step = coarseStepToPerform;
+				coarseStepToPerform = Integer.MAX_VALUE;
+			}
+			else
+			{
+				step = fullStepToPerform;
+				fullStepToPerform = Integer.MAX_VALUE;
+			}
+		}
+		if ( step > 5 )
+			return;
+
+		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( source.getSettings() );
+		final NucleiMasker< ? > masker;
+		final int factor;
+		final int firstStep;
+		final String key;
+		if ( coarse )
+		{
+			factor = coarseFactor;
+			key = sampleKey + ":/" + factor;
+			// Gaussian scales are expressed in pixels of the downsampled sample.
+			params[ 0 ] /= factor;
+			params[ 3 ] /= factor;
+			if ( null == coarseMasker )
+			{
+				coarseMasker = createCoarseMasker( sample, factor );
+				if ( null == coarseMasker )
+					return;
+				coarseMasker.setStageCache( stageCache, key );
+				firstStep = 1;
+			}
+			else
+			{
+				firstStep = step;
+			}
+			masker = coarseMasker;
+		}
 		else
 		{
-			comp1.setStack( tStack );
+			factor = 1;
+			key = sampleKey;
+			firstStep = step;
+			masker = nucleiMasker;
+		}
+
+		masker.setParameters( params );
+		masker.setCancelCheck( updater.getCancelCheck( generation ) );
+		boolean check = true;
+		if ( firstStep <= 1 )
+			check = masker.execStep1();
+		if ( check && firstStep <= 2 )
+			check = masker.execStep2();
+		if ( check && firstStep <= 3 )
+			check = masker.execStep3();
+		if ( check && firstStep <= 4 )
+			check = masker.execStep4();
+
+		if ( !check || !updater.isCurrent( generation ) )
+		{
+			/*
+			 * Canceled by a newer request: what was computed from the first
+			 * step on is stale and must be recomputed next time.
+			 */
+			synchronized ( this )
+			{
+				if ( coarse )
+					coarseStepToPerform = Math.min( firstStep, coarseStepToPerform );
+				else
+					fullStepToPerform = Math.min( firstStep, fullStepToPerform );
+			}
+			return;
 		}
-		comp1.show();
 
-		positionComponentRelativeTo( comp1.getWindow(), imp.getWindow(), 1 );
-		positionComponentRelativeTo( comp2.getWindow(), comp1.getWindow(), 2 );
+		display( masker, params, firstStep, factor );
+
+		if ( speculationEnabled )
+		{
+			final int index;
+			final double[] values;
+			synchronized ( this )
+			{
+				index = speculationIndex;
+				values = speculationValues.clone();
+			}
+			if ( index == 0 || index == 3 )
+			{
+				for ( int i = 0; i < values.length; i++ )
+					values[ i ] /= factor;
+			}
+			speculator.speculate( masker.getSource(), key, params, index, values, generation );
+		}
 	}
 
-	private void refresh()
+	/**
+	 * Displays the images that were recomputed from the specified step on,
+	 * upscaled by the specified factor. All the slices of a window are
+	 * updated at once, with a single call on the event dispatch thread.
+	 */
+	private void display( final NucleiMasker< ? > masker, final double[] params, final int step, final int factor )
 	{
-		switch ( stepUpdateToPerform )
+		final PreviewRenderer renderer1 = new PreviewRenderer( comp1 );
+		if ( step <= 1 )
+			renderer1.set( 1, upscale( masker.getGaussianFilteredImage(), factor ) );
+		if ( step <= 2 )
+			renderer1.set( 2, upscale( masker.getAnisotropicDiffusionImage(), factor ) );
+		if ( step <= 4 )
+			renderer1.set( 3, upscale( masker.getResult(), factor ) );
+		renderer1.render();
+
+		final PreviewRenderer renderer2 = new PreviewRenderer( comp2 );
+		if ( step <= 3 )
 		{
-		case 1:
-			paramStep1Changed();
-			break;
-		case 2:
-			paramStep2Changed();
-			break;
-		case 3:
-			paramStep3Changed();
-			break;
-		case 4:
-			paramStep4Changed();
-			break;
-		case 5:
-			paramStep5Changed();
-			break;
+			renderer2.set( 1, upscale( masker.getGradientNorm(), factor ) );
+			renderer2.set( 2, upscale( masker.getLaplacianMagnitude(), factor ) );
+			renderer2.set( 3, upscale( masker.getHessianDeterminant(), factor ) );
 		}
-		stepUpdateToPerform = Integer.MAX_VALUE;
+		if ( step <= 4 )
+			renderer2.set( 4, upscale( masker.getMask(), factor ) );
+
+		final double threshFact = ( Double ) source.getSettings().get( CrownWearingSegmenterFactory.THRESHOLD_FACTOR_PARAMETER );
+		final long top = System.currentTimeMillis();
+		final OtsuThresholder2D< FloatType > thresholder = new OtsuThresholder2D< FloatType >( masker.getResult(), threshFact );
+		thresholder.process();
+		final Img< BitType > bit = thresholder.getResult();
+		final float[] thresholded = PreviewRenderer.toFloatArray( bit );
+		if ( factor == 1 )
+			updateDurationEstimate( masker, params, thresholded, System.currentTimeMillis() - top );
+		renderer2.set( 5, upscale( thresholded, ( int ) bit.dimension( 0 ), ( int ) bit.dimension( 1 ), factor, false ) );
+		renderer2.setDisplayRange( 0, 2 );
+		renderer2.render();
 	}
 
-	private void paramStep1Changed()
+	/**
+	 * Calibrates the cost model with the timings and the foreground fraction
+	 * of a full-resolution preview run, and displays the predicted duration
+	 * of the segmentation of the whole movie.
+	 */
+	private void updateDurationEstimate( final NucleiMasker< ? > masker, final double[] params, final float[] thresholded, final long thresholdingTime )
 	{
-		// We have to redo all.
-		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( source.getSettings() );
-		nucleiMasker.setParameters( params );
-		nucleiMasker.execStep1();
-		nucleiMasker.execStep2();
-		nucleiMasker.execStep3();
-		nucleiMasker.execStep4();
-		paramStep5Changed();
-
-		final int slice1 = comp1.getSlice();
-		comp1.setSlice( 1 );
-		comp1.setProcessor( toFloatProcessor( nucleiMasker.getGaussianFilteredImage() ) );
-		comp1.setSlice( 2 );
-		comp1.setProcessor( toFloatProcessor( nucleiMasker.getAnisotropicDiffusionImage() ) );
-		comp1.setSlice( 3 );
-		comp1.setProcessor( toFloatProcessor( nucleiMasker.getResult() ) );
-		comp1.setSlice( slice1 );
-
-		final int slice2 = comp2.getSlice();
-		comp2.setSlice( 1 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getGradientNorm() ) );
-		comp2.setSlice( 2 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getLaplacianMagnitude() ) );
-		comp2.setSlice( 3 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getHessianDeterminant() ) );
-		comp2.setSlice( 4 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getMask() ) );
-		comp2.setSlice( slice2 );
-		comp2.getProcessor().setMinAndMax( 0, 2 );
+		int foreground = 0;
+		for ( final float value : thresholded )
+		{
+			if ( value > 0 )
+				foreground++;
+		}
+		final int nThreads = masker.getNumThreads();
+		costModel.setImageStatistics( foreground / ( double ) thresholded.length, -1, thresholded.length );
+		costModel.calibrateMasking( masker.getStepTimes(), thresholded.length, params, nThreads );
+		costModel.calibrate( SegmentationCostModel.THRESHOLDING, thresholdingTime, thresholded.length, nThreads );
+
+		final long voxelsPerFrame = ( long ) imp.getWidth() * imp.getHeight() * imp.getNSlices();
+		final int nThreadsTotal = Runtime.getRuntime().availableProcessors();
+		final String estimate = "Total duration estimate: " + costModel.getEstimate( imp.getNFrames(), voxelsPerFrame, params, nThreadsTotal ) + ".";
+		SwingUtilities.invokeLater( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				source.labelDurationEstimate.setText( estimate );
+			}
+		} );
 	}
 
-	private void paramStep2Changed()
+	/**
+	 * Returns the pixels of the specified image resized to the size of the
+	 * full-resolution sample. At full resolution, this is the backing array
+	 * of the image itself.
+	 */
+	private float[] upscale( final ArrayImg< FloatType, FloatArray > img, final int factor )
 	{
-		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( source.getSettings() );
-		nucleiMasker.setParameters( params );
-		nucleiMasker.execStep2();
-		nucleiMasker.execStep3();
-		nucleiMasker.execStep4();
-
-		final int slice1 = comp1.getSlice();
-		comp1.setSlice( 2 );
-		comp1.setProcessor( toFloatProcessor( nucleiMasker.getAnisotropicDiffusionImage() ) );
-		comp1.setSlice( 3 );
-		comp1.setProcessor( toFloatProcessor( nucleiMasker.getResult() ) );
-		comp1.setSlice( slice1 );
-		paramStep5Changed();
-
-		final int slice2 = comp2.getSlice();
-		comp2.setSlice( 1 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getGradientNorm() ) );
-		comp2.setSlice( 2 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getLaplacianMagnitude() ) );
-		comp2.setSlice( 3 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getHessianDeterminant() ) );
-		comp2.setSlice( 4 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getMask() ) );
-		comp2.setSlice( slice2 );
-		comp2.getProcessor().setMinAndMax( 0, 2 );
+		return upscale( img.update( null ).getCurrentStorageArray(), ( int ) img.dimension( 0 ), ( int ) img.dimension( 1 ), factor, true );
 	}
 
-	private void paramStep3Changed()
+	private float[] upscale( final float[] pixels, final int width, final int height, final int factor, final boolean interpolate )
 	{
-		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( source.getSettings() );
-		nucleiMasker.setParameters( params );
-		nucleiMasker.execStep3();
-		nucleiMasker.execStep4();
-		paramStep5Changed();
-
-		final int slice1 = comp1.getSlice();
-		comp1.setSlice( 3 );
-		comp1.setProcessor( toFloatProcessor( nucleiMasker.getResult() ) );
-		comp1.setSlice( slice1 );
-
-		final int slice2 = comp2.getSlice();
-		comp2.setSlice( 1 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getGradientNorm() ) );
-		comp2.setSlice( 2 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getLaplacianMagnitude() ) );
-		comp2.setSlice( 3 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getHessianDeterminant() ) );
-		comp2.setSlice( 4 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getMask() ) );
-		comp2.setSlice( slice2 );
-		comp2.getProcessor().setMinAndMax( 0, 2 );
+		if ( factor == 1 )
+			return pixels;
+
+		final FloatProcessor fp = new FloatProcessor( width, height, pixels );
+		fp.setInterpolationMethod( interpolate ? ImageProcessor.BILINEAR : ImageProcessor.NONE );
+		return ( float[] ) fp.resize( sample.getWidth(), sample.getHeight() ).getPixels();
 	}
 
-	private void paramStep4Changed()
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	private static NucleiMasker< ? > createCoarseMasker( final ImageProcessor sample, final int factor )
 	{
-		final double[] params = CrownWearingSegmenterFactory.collectMaskingParameters( source.getSettings() );
-		nucleiMasker.setParameters( params );
-		nucleiMasker.execStep4();
-		paramStep5Changed();
-
-		final int slice1 = comp1.getSlice();
-		comp1.setSlice( 3 );
-		comp1.setProcessor( toFloatProcessor( nucleiMasker.getResult() ) );
-		comp1.setSlice( slice1 );
-
-		final int slice2 = comp2.getSlice();
-		comp2.setSlice( 4 );
-		comp2.setProcessor( toFloatProcessor( nucleiMasker.getMask() ) );
-		comp2.setSlice( slice2 );
-		comp2.getProcessor().setMinAndMax( 0, 2 );
+		final ImageProcessor small = sample.resize( sample.getWidth() / factor, sample.getHeight() / factor, true );
+		final Img img = wrap( small );
+		if ( null == img )
+			return null;
+		return new NucleiMasker( img );
 	}
 
-	private void paramStep5Changed()
+	/**
+	 * Wraps a 8-bit or 16-bit processor as an ImgLib2 image. Returns
+	 * <code>null</code> for other types.
+	 */
+	private static Img< ? extends IntegerType< ? >> wrap( final ImageProcessor ip )
 	{
-		final double threshFact = ( Double ) source.getSettings().get( CrownWearingSegmenterFactory.THRESHOLD_FACTOR_PARAMETER );
-		final Img< FloatType > img = nucleiMasker.getResult();
-		final OtsuThresholder2D< FloatType > thresholder = new OtsuThresholder2D< FloatType >( img, threshFact );
-		thresholder.process();
-		final Img< BitType > bit = thresholder.getResult();
+		final ImagePlus snip = new ImagePlus( "Snip", ip );
+		switch ( snip.getType() )
+		{
+		case ImagePlus.GRAY8:
+			return ImagePlusAdapter.wrapByte( snip );
+		case ImagePlus.GRAY16:
+			return ImagePlusAdapter.wrapShort( snip );
+		default:
+			return null;
+		}
+	}
 
-		final int slice2 = comp2.getSlice();
-		comp2.setSlice( 5 );
-		comp2.setProcessor( toFloatProcessor( bit ) );
-		comp2.setSlice( slice2 );
-		comp2.getProcessor().setMinAndMax( 0, 2 );
+	/**
+	 * Returns the smallest power of 2 by which the specified sample must be
+	 * downsampled to fit in {@link #COARSE_PREVIEW_SIZE} pixels.
+	 */
+	private static int getCoarseFactor( final ImageProcessor sample )
+	{
+		int factor = 1;
+		while ( ( long ) ( sample.getWidth() / factor ) * ( sample.getHeight() / factor ) > COARSE_PREVIEW_SIZE )
+		{
+			factor *= 2;
+		}
+		return factor;
 	}
 
-	@SuppressWarnings( { "rawtypes", "unchecked" } )
-	private FloatProcessor toFloatProcessor( final Img img )
+	/**
+	 * Returns the region of the specified image to compute the preview on. It
+	 * is the bounds of the area ROI if there is one, or the area visible in
+	 * the canvas otherwise. It is grown by 3 times the combined σ of the
+	 * gaussian filter and derivatives, plus one pixel per iteration of
+	 * anisotropic diffusion, and clipped to the image bounds.
+	 */
+	private static Rectangle getSampleRegion( final ImagePlus imp, final double[] params )
 	{
-		final ImagePlus wrapFloat = ImageJFunctions.wrapFloat( img, "Wrapped" );
-		final FloatProcessor fip = ( FloatProcessor ) wrapFloat.getProcessor();
-		fip.resetMinAndMax();
-		return fip;
+		final Roi roi = imp.getRoi();
+		final Rectangle region;
+		if ( null != roi && roi.isArea() )
+		{
+			region = new Rectangle( roi.getBounds() );
+		}
+		else if ( null != imp.getCanvas() )
+		{
+			region = new Rectangle( imp.getCanvas().getSrcRect() );
+		}
+		else
+		{
+			region = new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() );
+		}
+
+		final double sigma = Math.sqrt( params[ 0 ] * params[ 0 ] + params[ 3 ] * params[ 3 ] );
+		final int margin = ( int ) Math.ceil( 3 * sigma ) + ( int ) params[ 1 ];
+		region.grow( margin, margin );
+		return region.intersection( new Rectangle( 0, 0, imp.getWidth(), imp.getHeight() ) );
 	}
 
 	/*
@@ -409,77 +670,4 @@ public class CWNTLivePreviewer extends MouseAdapter implements ActionListener
 		target.setBounds( x + s.x, y + s.y, target.getWidth(), target.getHeight() );
 
 	}
-
-	/*
-	 * PRIVATE CLASS
-	 */
-
-	/**
-	 * This is a helper class modified after a class by Albert Cardona
-	 */
-	private class DisplayUpdater extends Thread
-	{
-		long request = 0;
-
-		// Constructor autostarts thread
-		DisplayUpdater()
-		{
-			super( "CWNT updater thread" );
-			setPriority( Thread.NORM_PRIORITY );
-			start();
-		}
-
-		void doUpdate()
-		{
-			if ( isInterrupted() )
-				return;
-			synchronized ( this )
-			{
-				request++;
-				notify();
-			}
-		}
-
-		void quit()
-		{
-			interrupt();
-			synchronized ( this )
-			{
-				notify();
-			}
-		}
-
-		@Override
-		public void run()
-		{
-			while ( !isInterrupted() )
-			{
-				try
-				{
-					final long r;
-					synchronized ( this )
-					{
-						r = request;
-					}
-					// Call displayer update from this thread
-					if ( r > 0 )
-						refresh();
-					synchronized ( this )
-					{
-						if ( r == request )
-						{
-							request = 0; // reset
-							wait();
-						}
-						// else loop through to update again
-					}
-				}
-				catch ( final Exception e )
-				{
-					e.printStackTrace();
-				}
-			}
-		}
-
-	}
 }
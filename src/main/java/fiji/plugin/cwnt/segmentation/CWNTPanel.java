@@ -23,13 +23,14 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFormattedTextField;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JSlider;
 import javax.swing.JTabbedPane;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
@@ -37,6 +38,7 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import fiji.plugin.cwnt.gui.DoubleJSlider;
+import fiji.plugin.cwnt.gui.MaskingSliders;
 import fiji.plugin.trackmate.gui.ConfigurationPanel;
 import fiji.util.NumberParser;
 
@@ -99,10 +101,23 @@ public class CWNTPanel extends ConfigurationPanel
 
 	private final ImagePlus targetImp;
 
-	private CWNTLivePreviewer previewer;
+	private volatile CWNTLivePreviewer previewer;
+
+	/** Whether the live preview precomputes the next slider ticks. */
+	private volatile boolean speculationEnabled = true;
 
 	private double oldThresholdFactor;
 
+	/**
+	 * Whether the slider that fired the last event is still being dragged,
+	 * and whether the last event fired was fired while dragging.
+	 */
+	private boolean adjusting;
+
+	private boolean firedWhileAdjusting;
+
+	private int lastChangedParameter = -1;
+
 	JLabel labelDurationEstimate;;
 
 	@SuppressWarnings( { "rawtypes", "unchecked" } )
@@ -130,11 +145,12 @@ public class CWNTPanel extends ConfigurationPanel
 		collectMaskingParameters();
 	}
 
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
 	@Override
 	public Map< String, Object > getSettings()
 	{
 		collectMaskingParameters();
-		final HashMap< String, Object > settings = new HashMap< String, Object >( 10 );
+		final Map< String, Object > settings = new CrownWearingSegmenterFactory().getDefaultSettings();
 		settings.put( SIGMA_F_PARAMETER, maskingParams[ 0 ] );
 		settings.put( N_AD_PARAMETER, ( int ) maskingParams[ 1 ] ); // nAD
 		settings.put( KAPPA_PARAMETER, maskingParams[ 2 ] );
@@ -154,10 +170,62 @@ public class CWNTPanel extends ConfigurationPanel
 		return targetImp;
 	}
 
+	/**
+	 * Returns the index, in the masking parameter array, of the parameter
+	 * that was changed last, or -1 if it is unknown.
+	 */
+	public int getLastChangedParameter()
+	{
+		return lastChangedParameter;
+	}
+
+	/**
+	 * Returns the values one slider tick below and above the current value of
+	 * the specified masking parameter, within the slider range.
+	 *
+	 * @param index
+	 *            the index of the parameter in the masking parameter array.
+	 * @return the adjacent values. Empty if the index is not valid.
+	 */
+	public double[] getAdjacentParameterValues( final int index )
+	{
+		return MaskingSliders.getAdjacentValues( index, getParameterSliders() );
+	}
+
+	/**
+	 * Returns <code>true</code> if the last parameter change event was fired
+	 * while the user was still dragging a slider. A last event is fired with
+	 * this flag set to <code>false</code> when the slider is released, even if
+	 * the parameter value did not change.
+	 */
+	public boolean isAdjusting()
+	{
+		return adjusting;
+	}
+
 	/*
 	 * PRIVATE METHODS
 	 */
 
+	/**
+	 * Returns the sliders of the masking parameters, in the order of the
+	 * masking parameter array.
+	 */
+	private DoubleJSlider[] getParameterSliders()
+	{
+		return new DoubleJSlider[] {
+				gaussFiltSigmaSlider,
+				aniDiffNIterSlider,
+				aniDiffKappaSlider,
+				gaussGradSigmaSlider,
+				gammaSlider,
+				alphaSlider,
+				betaSlider,
+				epsilonSlider,
+				deltaSlider
+		};
+	}
+
 	private void fireEvent( final ActionEvent event )
 	{
 		if ( event == STEP1_PARAMETER_CHANGED ||
@@ -174,12 +242,21 @@ public class CWNTPanel extends ConfigurationPanel
 			catch ( final NumberFormatException nfe )
 			{}
 
-			if ( Arrays.equals( maskingParams, oldMaskingParams ) && thresholdFactor == oldThresholdFactor )
+			if ( Arrays.equals( maskingParams, oldMaskingParams ) && thresholdFactor == oldThresholdFactor
+					&& !( firedWhileAdjusting && !adjusting ) )
 			{
-				// We do not fire event if params did not change 
+				/*
+				 * We do not fire event if params did not change, unless a
+				 * slider was just released.
+				 */
 				return;
 			}
 
+			firedWhileAdjusting = adjusting;
+			final int changed = MaskingSliders.indexOfChange( oldMaskingParams, maskingParams );
+			if ( changed >= 0 || thresholdFactor != oldThresholdFactor )
+				lastChangedParameter = changed;
+
 			oldThresholdFactor = thresholdFactor;
 			oldMaskingParams = Arrays.copyOf( maskingParams, maskingParams.length );
 		}
@@ -288,7 +365,9 @@ public class CWNTPanel extends ConfigurationPanel
 			@Override
 			public void run()
 			{
-				previewer = new CWNTLivePreviewer( CWNTPanel.this );
+				final CWNTLivePreviewer lPreviewer = new CWNTLivePreviewer( CWNTPanel.this );
+				lPreviewer.setSpeculationEnabled( speculationEnabled );
+				previewer = lPreviewer;
 			}
 		}.start();
 	}
@@ -321,6 +400,28 @@ public class CWNTPanel extends ConfigurationPanel
 			labelIntro.setBounds( 10, 52, 268, 173 );
 			panelIntroduction.add( labelIntro );
 
+			final JCheckBox chckbxSpeculation = new JCheckBox( "Precompute the next slider ticks." );
+			chckbxSpeculation.setFont( SMALL_FONT );
+			chckbxSpeculation.setSelected( speculationEnabled );
+			chckbxSpeculation.setToolTipText( "<html>"
+					+ "If checked, the live test computes in the background <br>"
+					+ "the preview for the values one tick away from the <br>"
+					+ "last parameter changed."
+					+ "</html>" );
+			chckbxSpeculation.setBounds( 10, 258, 268, 23 );
+			chckbxSpeculation.addActionListener( new ActionListener()
+			{
+				@Override
+				public void actionPerformed( final ActionEvent e )
+				{
+					speculationEnabled = chckbxSpeculation.isSelected();
+					final CWNTLivePreviewer lPreviewer = previewer;
+					if ( null != lPreviewer )
+						lPreviewer.setSpeculationEnabled( speculationEnabled );
+				}
+			} );
+			panelIntroduction.add( chckbxSpeculation );
+
 			final JButton btnTestParamtersLive = new JButton( "<html><div align=\"center\">Live test parameters</dic></html>" );
 			btnTestParamtersLive.setBounds( 10, 292, 103, 72 );
 			btnTestParamtersLive.setFont( FONT );
@@ -684,6 +785,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void stateChanged( final ChangeEvent e )
 		{
+			adjusting = ( ( JSlider ) e.getSource() ).getValueIsAdjusting();
 			fireEvent( STEP1_PARAMETER_CHANGED );
 		}
 	};
@@ -693,6 +795,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void stateChanged( final ChangeEvent e )
 		{
+			adjusting = ( ( JSlider ) e.getSource() ).getValueIsAdjusting();
 			fireEvent( STEP2_PARAMETER_CHANGED );
 		}
 	};
@@ -702,6 +805,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void stateChanged( final ChangeEvent e )
 		{
+			adjusting = ( ( JSlider ) e.getSource() ).getValueIsAdjusting();
 			fireEvent( STEP3_PARAMETER_CHANGED );
 		}
 	};
@@ -711,6 +815,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void stateChanged( final ChangeEvent e )
 		{
+			adjusting = ( ( JSlider ) e.getSource() ).getValueIsAdjusting();
 			fireEvent( STEP4_PARAMETER_CHANGED );
 		}
 	};
@@ -720,6 +825,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void stateChanged( final ChangeEvent e )
 		{
+			adjusting = ( ( JSlider ) e.getSource() ).getValueIsAdjusting();
 			fireEvent( STEP5_PARAMETER_CHANGED );
 		}
 	};
@@ -729,6 +835,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void keyReleased( final KeyEvent ke )
 		{
+			adjusting = false;
 			fireEvent( STEP1_PARAMETER_CHANGED );
 		}
 	};
@@ -738,6 +845,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void keyReleased( final KeyEvent ke )
 		{
+			adjusting = false;
 			fireEvent( STEP2_PARAMETER_CHANGED );
 		}
 	};
@@ -747,6 +855,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void keyReleased( final KeyEvent ke )
 		{
+			adjusting = false;
 			fireEvent( STEP3_PARAMETER_CHANGED );
 		}
 	};
@@ -756,6 +865,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void keyReleased( final KeyEvent ke )
 		{
+			adjusting = false;
 			fireEvent( STEP4_PARAMETER_CHANGED );
 		}
 	};
@@ -765,6 +875,7 @@ public class CWNTPanel extends ConfigurationPanel
 		@Override
 		public void keyReleased( final KeyEvent ke )
 		{
+			adjusting = false;
 			fireEvent( STEP5_PARAMETER_CHANGED );
 		}
 	};
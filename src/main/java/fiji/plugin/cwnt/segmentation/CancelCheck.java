@@ -0,0 +1,21 @@
+package fiji.plugin.cwnt.segmentation;
+
+/**
+ * Interface for objects that tell long computations whether they should stop
+ * early, because their result is not needed anymore.
+ * <p>
+ * Computations check it cooperatively, between and within their stages, and
+ * return <code>false</code> from their processing method when it is
+ * canceled.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface CancelCheck
+{
+
+	/**
+	 * Returns <code>true</code> if the computation should stop.
+	 */
+	public boolean isCanceled();
+
+}
@@ -0,0 +1,510 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A chunked, compressed store of label volumes on local disk, laid out as an
+ * N5 container so that N5 and BigDataViewer tools can read it.
+ * <p>
+ * The store holds one 4D <code>uint32</code> dataset, X, Y, Z and T, cut in
+ * blocks one frame deep. Each block is a gzip-compressed file at
+ * <code>labels/bx/by/bz/t</code>, with the default N5 block header. Since
+ * blocks never span several frames, the frames of a movie can be written
+ * concurrently, each as soon as it is segmented, and nothing but the frame
+ * being written is held in memory. Blocks that were never written read as
+ * background.
+ * <p>
+ * Blocks are compressed at the fastest gzip level: the JDK does not ship the
+ * LZ4 or zstd codecs, and the fastest deflate level is the best trade-off
+ * between write throughput and size for sparse label images.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ChunkedLabelStore
+{
+
+	/** The name of the label dataset in the container. */
+	public static final String DATASET = "labels";
+
+	/** Default block size, X, Y and Z. */
+	public static final int[] DEFAULT_BLOCK_SIZE = new int[] { 64, 64, 8 };
+
+	private static final String ATTRIBUTES = "attributes.json";
+
+	private static final short MODE_DEFAULT = 0;
+
+	private final File root;
+
+	/** X, Y, Z, T. */
+	private final long[] dimensions;
+
+	/** X, Y, Z, T. The block size in T is always 1. */
+	private final int[] blockSize;
+
+	private final double[] resolution;
+
+	private ChunkedLabelStore( final File root, final long[] dimensions, final int[] blockSize, final double[] resolution )
+	{
+		this.root = root;
+		this.dimensions = dimensions;
+		this.blockSize = blockSize;
+		this.resolution = resolution;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Creates a new store. If the container exists, the blocks of its label
+	 * dataset are deleted, so that no frame of a previous run is left in the
+	 * new store.
+	 *
+	 * @param root
+	 *            the container folder.
+	 * @param width
+	 *            the frame width.
+	 * @param height
+	 *            the frame height.
+	 * @param depth
+	 *            the number of Z slices per frame.
+	 * @param nFrames
+	 *            the number of frames.
+	 * @param blockSize
+	 *            the block size, X, Y and Z.
+	 * @param resolution
+	 *            the voxel size, X, Y and Z.
+	 * @return a new store.
+	 * @throws IOException
+	 *             if the container cannot be written.
+	 */
+	public static ChunkedLabelStore create( final File root, final int width, final int height, final int depth, final int nFrames, final int[] blockSize, final double[] resolution ) throws IOException
+	{
+		final File dataset = new File( root, DATASET );
+		if ( dataset.isDirectory() )
+			deleteBlocks( dataset );
+		if ( !dataset.isDirectory() && !dataset.mkdirs() )
+			throw new IOException( "Could not create label store " + root + "." );
+
+		final long[] dims = new long[] { width, height, depth, nFrames };
+		final int[] bs = new int[] { Math.min( blockSize[ 0 ], width ), Math.min( blockSize[ 1 ], height ), Math.min( blockSize[ 2 ], depth ), 1 };
+		writeText( new File( root, ATTRIBUTES ), "{\"n5\":\"2.0.0\"}" );
+		writeText( new File( dataset, ATTRIBUTES ), "{"
+				+ "\"dimensions\":" + Arrays.toString( dims ).replace( " ", "" ) + ","
+				+ "\"blockSize\":" + Arrays.toString( bs ).replace( " ", "" ) + ","
+				+ "\"dataType\":\"uint32\","
+				+ "\"compression\":{\"type\":\"gzip\",\"useZlib\":false,\"level\":" + Deflater.BEST_SPEED + "},"
+				+ "\"resolution\":" + Arrays.toString( resolution ).replace( " ", "" )
+				+ "}" );
+		return new ChunkedLabelStore( root, dims, bs, resolution.clone() );
+	}
+
+	/**
+	 * Opens an existing store.
+	 *
+	 * @param root
+	 *            the container folder.
+	 * @return a new store.
+	 * @throws IOException
+	 *             if the attributes of the store cannot be read.
+	 */
+	public static ChunkedLabelStore open( final File root ) throws IOException
+	{
+		final String json = readText( new File( new File( root, DATASET ), ATTRIBUTES ) );
+		final double[] dims = parseArray( json, "dimensions" );
+		final double[] bs = parseArray( json, "blockSize" );
+		if ( null == dims || null == bs || dims.length != 4 || bs.length != 4 )
+			throw new IOException( "Not a label store: " + root + "." );
+		if ( !json.contains( "\"uint32\"" ) )
+			throw new IOException( "Unsupported data type in label store " + root + "." );
+		double[] resolution = parseArray( json, "resolution" );
+		if ( null == resolution )
+			resolution = new double[] { 1, 1, 1 };
+
+		final long[] dimensions = new long[ 4 ];
+		final int[] blockSize = new int[ 4 ];
+		for ( int d = 0; d < 4; d++ )
+		{
+			dimensions[ d ] = ( long ) dims[ d ];
+			blockSize[ d ] = ( int ) bs[ d ];
+		}
+		return new ChunkedLabelStore( root, dimensions, blockSize, resolution );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Writes the labels of one frame. Safe to call concurrently for
+	 * different frames.
+	 *
+	 * @param frame
+	 *            the frame, 0-based.
+	 * @param planes
+	 *            the label planes of the frame, one per Z slice, as
+	 *            <code>int[]</code>, <code>short[]</code> (unsigned) or
+	 *            <code>float[]</code> arrays.
+	 * @throws IOException
+	 *             if a block cannot be written.
+	 */
+	public void writeFrame( final int frame, final Object[] planes ) throws IOException
+	{
+		final int width = ( int ) dimensions[ 0 ];
+		final int height = ( int ) dimensions[ 1 ];
+		final int depth = ( int ) dimensions[ 2 ];
+		for ( int bz = 0; bz * blockSize[ 2 ] < depth; bz++ )
+		{
+			final int z0 = bz * blockSize[ 2 ];
+			final int bd = Math.min( blockSize[ 2 ], depth - z0 );
+			for ( int by = 0; by * blockSize[ 1 ] < height; by++ )
+			{
+				final int y0 = by * blockSize[ 1 ];
+				final int bh = Math.min( blockSize[ 1 ], height - y0 );
+				for ( int bx = 0; bx * blockSize[ 0 ] < width; bx++ )
+				{
+					final int x0 = bx * blockSize[ 0 ];
+					final int bw = Math.min( blockSize[ 0 ], width - x0 );
+
+					final int[] block = new int[ bw * bh * bd ];
+					for ( int z = 0; z < bd; z++ )
+					{
+						copyPlane( planes[ z0 + z ], width, x0, y0, bw, bh, block, z * bw * bh );
+					}
+					boolean empty = true;
+					for ( final int label : block )
+					{
+						if ( label != 0 )
+						{
+							empty = false;
+							break;
+						}
+					}
+
+					final File file = getBlockFile( bx, by, bz, frame );
+					if ( empty )
+					{
+						// Missing blocks read as background.
+						file.delete();
+						continue;
+					}
+					writeBlock( file, new int[] { bw, bh, bd, 1 }, block );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads one Z plane of one frame.
+	 *
+	 * @param z
+	 *            the Z slice, 0-based.
+	 * @param frame
+	 *            the frame, 0-based.
+	 * @return a new array of labels, X fastest.
+	 * @throws IOException
+	 *             if a block cannot be read.
+	 */
+	public int[] readPlane( final int z, final int frame ) throws IOException
+	{
+		final int width = ( int ) dimensions[ 0 ];
+		final int height = ( int ) dimensions[ 1 ];
+		final int[] plane = new int[ width * height ];
+		final int bz = z / blockSize[ 2 ];
+		final int zInBlock = z % blockSize[ 2 ];
+		for ( int by = 0; by * blockSize[ 1 ] < height; by++ )
+		{
+			for ( int bx = 0; bx * blockSize[ 0 ] < width; bx++ )
+			{
+				final int[] size = new int[ 4 ];
+				final int[] block = readBlock( getBlockFile( bx, by, bz, frame ), size );
+				if ( null == block )
+					continue;
+
+				final int x0 = bx * blockSize[ 0 ];
+				final int y0 = by * blockSize[ 1 ];
+				final int bw = size[ 0 ];
+				final int bh = size[ 1 ];
+				for ( int y = 0; y < bh; y++ )
+				{
+					System.arraycopy( block, ( zInBlock * bh + y ) * bw, plane, ( y0 + y ) * width + x0, bw );
+				}
+			}
+		}
+		return plane;
+	}
+
+	/**
+	 * Returns the dimensions of the label dataset, X, Y, Z and T.
+	 */
+	public long[] getDimensions()
+	{
+		return dimensions.clone();
+	}
+
+	/**
+	 * Returns the block size, X, Y, Z and T.
+	 */
+	public int[] getBlockSize()
+	{
+		return blockSize.clone();
+	}
+
+	/**
+	 * Returns the voxel size, X, Y and Z.
+	 */
+	public double[] getResolution()
+	{
+		return resolution.clone();
+	}
+
+	public File getRoot()
+	{
+		return root;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private File getBlockFile( final int bx, final int by, final int bz, final int t )
+	{
+		return new File( root, DATASET + File.separator + bx + File.separator + by + File.separator + bz + File.separator + t );
+	}
+
+	/**
+	 * Copies the labels of a rectangle of a plane in a block, starting at the
+	 * specified index. The type of the plane is checked once per call.
+	 */
+	private static void copyPlane( final Object plane, final int width, final int x0, final int y0, final int bw, final int bh, final int[] block, final int start )
+	{
+		int k = start;
+		if ( plane instanceof int[] )
+		{
+			final int[] pixels = ( int[] ) plane;
+			for ( int y = 0; y < bh; y++ )
+			{
+				System.arraycopy( pixels, ( y0 + y ) * width + x0, block, k, bw );
+				k += bw;
+			}
+		}
+		else if ( plane instanceof short[] )
+		{
+			final short[] pixels = ( short[] ) plane;
+			for ( int y = 0; y < bh; y++ )
+			{
+				final int offset = ( y0 + y ) * width + x0;
+				for ( int x = 0; x < bw; x++ )
+				{
+					block[ k++ ] = pixels[ offset + x ] & 0xffff;
+				}
+			}
+		}
+		else
+		{
+			final float[] pixels = ( float[] ) plane;
+			for ( int y = 0; y < bh; y++ )
+			{
+				final int offset = ( y0 + y ) * width + x0;
+				for ( int x = 0; x < bw; x++ )
+				{
+					block[ k++ ] = ( int ) pixels[ offset + x ];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the block folders and files of a dataset, keeping its
+	 * attributes.
+	 */
+	private static void deleteBlocks( final File dataset ) throws IOException
+	{
+		final File[] children = dataset.listFiles();
+		if ( null == children )
+			throw new IOException( "Could not list " + dataset + "." );
+		for ( final File child : children )
+		{
+			if ( child.getName().equals( ATTRIBUTES ) )
+				continue;
+			delete( child );
+		}
+	}
+
+	private static void delete( final File file ) throws IOException
+	{
+		final File[] children = file.listFiles();
+		if ( null != children )
+		{
+			for ( final File child : children )
+			{
+				delete( child );
+			}
+		}
+		if ( !file.delete() && file.exists() )
+			throw new IOException( "Could not delete " + file + "." );
+	}
+
+	private static void writeBlock( final File file, final int[] size, final int[] data ) throws IOException
+	{
+		final File folder = file.getParentFile();
+		if ( !folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory() )
+			throw new IOException( "Could not create " + folder + "." );
+
+		final File tmp = new File( folder, file.getName() + ".tmp" );
+		final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+		try
+		{
+			// Default N5 block header, big-endian.
+			out.writeShort( MODE_DEFAULT );
+			out.writeShort( size.length );
+			for ( final int s : size )
+			{
+				out.writeInt( s );
+			}
+			out.flush();
+
+			final ByteBuffer bytes = ByteBuffer.allocate( 4 * data.length );
+			bytes.asIntBuffer().put( data );
+			final GZIPOutputStream gzip = new GZIPOutputStream( out )
+			{
+				{
+					def.setLevel( Deflater.BEST_SPEED );
+				}
+			};
+			gzip.write( bytes.array() );
+			gzip.finish();
+		}
+		finally
+		{
+			out.close();
+		}
+		replace( tmp, file );
+	}
+
+	/**
+	 * Moves a temporary file over its destination, atomically if the file
+	 * system supports it, so that readers never see a partial block.
+	 */
+	private static void replace( final File tmp, final File file ) throws IOException
+	{
+		try
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Returns the data of the specified block, and sets its size, or returns
+	 * <code>null</code> if the block does not exist.
+	 */
+	private static int[] readBlock( final File file, final int[] size ) throws IOException
+	{
+		if ( !file.exists() )
+			return null;
+
+		final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+		try
+		{
+			if ( in.readShort() != MODE_DEFAULT )
+				throw new IOException( "Unsupported block mode in " + file + "." );
+			final int nDims = in.readShort();
+			int n = 1;
+			for ( int d = 0; d < nDims; d++ )
+			{
+				final int s = in.readInt();
+				if ( d < size.length )
+					size[ d ] = s;
+				n *= s;
+			}
+
+			final byte[] bytes = new byte[ 4 * n ];
+			try
+			{
+				new DataInputStream( new GZIPInputStream( in ) ).readFully( bytes );
+			}
+			catch ( final EOFException e )
+			{
+				throw new IOException( "Truncated block " + file + "." );
+			}
+			final int[] block = new int[ n ];
+			ByteBuffer.wrap( bytes ).asIntBuffer().get( block );
+			return block;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void writeText( final File file, final String text ) throws IOException
+	{
+		final Writer writer = new FileWriter( file );
+		try
+		{
+			writer.write( text );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	private static String readText( final File file ) throws IOException
+	{
+		final InputStream is = new FileInputStream( file );
+		try
+		{
+			final Scanner scanner = new Scanner( is, "UTF-8" ).useDelimiter( "\\A" );
+			return scanner.hasNext() ? scanner.next() : "";
+		}
+		finally
+		{
+			is.close();
+		}
+	}
+
+	/**
+	 * Parses a numeric JSON array attribute, or returns <code>null</code> if
+	 * it is absent.
+	 */
+	private static double[] parseArray( final String json, final String key )
+	{
+		final Matcher matcher = Pattern.compile( "\"" + key + "\"\\s*:\\s*\\[([^\\]]*)\\]" ).matcher( json );
+		if ( !matcher.find() )
+			return null;
+		final String[] tokens = matcher.group( 1 ).split( "," );
+		final double[] values = new double[ tokens.length ];
+		for ( int i = 0; i < tokens.length; i++ )
+		{
+			values[ i ] = Double.parseDouble( tokens[ i ].trim() );
+		}
+		return values;
+	}
+}
@@ -0,0 +1,136 @@
+package fiji.plugin.cwnt.segmentation;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+
+/**
+ * A virtual stack that reads the planes of a {@link ChunkedLabelStore} only
+ * when ImageJ requests them, so that label movies larger than the memory can
+ * be browsed. Planes are returned as 32-bit images, exact for labels up to
+ * 2<sup>24</sup>.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ChunkedLabelVirtualStack extends VirtualStack
+{
+
+	private final ChunkedLabelStore store;
+
+	private final int width;
+
+	private final int height;
+
+	private final int depth;
+
+	private final int size;
+
+	public ChunkedLabelVirtualStack( final ChunkedLabelStore store )
+	{
+		super( ( int ) store.getDimensions()[ 0 ], ( int ) store.getDimensions()[ 1 ], null, null );
+		final long[] dims = store.getDimensions();
+		this.store = store;
+		this.width = ( int ) dims[ 0 ];
+		this.height = ( int ) dims[ 1 ];
+		this.depth = ( int ) dims[ 2 ];
+		this.size = ( int ) ( dims[ 2 ] * dims[ 3 ] );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		return new FloatProcessor( width, height, read( n ) );
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		return read( n );
+	}
+
+	/**
+	 * Does nothing: this stack is read-only.
+	 */
+	@Override
+	public void setPixels( final Object pixels, final int n )
+	{}
+
+	@Override
+	public int getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		return null;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Returns a new hyperstack displaying the specified store.
+	 *
+	 * @param store
+	 *            the label store.
+	 * @param title
+	 *            the image title.
+	 * @return a new, not shown, ImagePlus.
+	 */
+	public static ImagePlus wrap( final ChunkedLabelStore store, final String title )
+	{
+		final ChunkedLabelVirtualStack stack = new ChunkedLabelVirtualStack( store );
+		final ImagePlus imp = new ImagePlus( title, stack );
+		imp.setDimensions( 1, stack.depth, stack.size / stack.depth );
+		imp.setOpenAsHyperStack( true );
+		final double[] resolution = store.getResolution();
+		final Calibration cal = imp.getCalibration();
+		cal.pixelWidth = resolution[ 0 ];
+		cal.pixelHeight = resolution[ 1 ];
+		cal.pixelDepth = resolution[ 2 ];
+		return imp;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private float[] read( final int n )
+	{
+		final float[] pixels = new float[ width * height ];
+		try
+		{
+			// ImageJ stack order: slices, then frames.
+			final int[] labels = store.readPlane( ( n - 1 ) % depth, ( n - 1 ) / depth );
+			for ( int i = 0; i < pixels.length; i++ )
+			{
+				pixels[ i ] = labels[ i ];
+			}
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not read label plane " + n + ": " + e.getMessage() );
+		}
+		return pixels;
+	}
+}
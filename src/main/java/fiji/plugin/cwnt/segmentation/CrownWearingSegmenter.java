@@ -1,14 +1,21 @@
 package fiji.plugin.cwnt.segmentation;
 
 import static fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory.KEY_SPLIT_NUCLEI;
+import static fiji.plugin.cwnt.segmentation.SegmentationCostModel.LABELING;
+import static fiji.plugin.cwnt.segmentation.SegmentationCostModel.N_STAGES;
+import static fiji.plugin.cwnt.segmentation.SegmentationCostModel.SPLITTING;
+import static fiji.plugin.cwnt.segmentation.SegmentationCostModel.THRESHOLDING;
+import fiji.plugin.cwnt.segmentation.SegmentationEvents.Event;
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics.Probe;
 import ij.IJ;
 
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
 import net.imglib2.algorithm.labeling.ConnectedComponents;
@@ -22,6 +29,7 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.detection.SpotDetector;
 
@@ -44,6 +52,30 @@ public class CrownWearingSegmenter< T extends RealType< T > & NativeType< T >> e
 
 	private ImgLabeling< Integer, UnsignedIntType > labeling;
 
+	private Object[] labelPlanes;
+
+	private LabelGenerator labelOffsets;
+
+	private int labelFrame;
+
+	private int labelOffset;
+
+	private boolean labelSaturated;
+
+	private final long[] stageTimes = new long[ N_STAGES ];
+
+	private double foregroundFraction;
+
+	private long blobCount;
+
+	private SegmentationMetrics metrics = SegmentationMetrics.DISABLED;
+
+	private int frame;
+
+	private MaskerStageCache stageCache;
+
+	private String stageCacheKey;
+
 	/*
 	 * CONSTRUCTOR
 	 */
@@ -86,11 +118,16 @@ public class CrownWearingSegmenter< T extends RealType< T > & NativeType< T >> e
 		// Crown wearing mask
 		final NucleiMasker< T > masker = new NucleiMasker< T >( source );
 		masker.setNumThreads( numThreads );
+		masker.setMetrics( metrics, frame );
 		masker.setParameters( CrownWearingSegmenterFactory.collectMaskingParameters( settings ) );
+		if ( null != stageCache )
+			masker.setStageCache( stageCache, stageCacheKey + "|t" + frame + "|" + checksum( source ) );
 		check = masker.process();
 		if ( check )
 		{
 			masked = masker.getResult();
+			final long[] stepTimes = masker.getStepTimes();
+			System.arraycopy( stepTimes, 0, stageTimes, 0, stepTimes.length );
 		}
 		else
 		{
@@ -101,13 +138,20 @@ public class CrownWearingSegmenter< T extends RealType< T > & NativeType< T >> e
 		// Thresholding
 		if ( DEBUG )
 			System.out.println( "Thresholding..." );
+		long top = System.currentTimeMillis();
+		final Event thresholdingEvent = SegmentationEvents.THRESHOLDING.begin().set( 0, frame ).set( 1, masked.size() );
+		final Probe thresholdingProbe = metrics.start( SegmentationMetrics.OTSU_THRESHOLDING, frame );
 		final double thresholdFactor = ( Double ) settings.get( CrownWearingSegmenterFactory.THRESHOLD_FACTOR_PARAMETER );
 		final OtsuThresholder2D< FloatType > thresholder = new OtsuThresholder2D< FloatType >( masked, thresholdFactor );
 		thresholder.setNumThreads( numThreads );
 		check = thresholder.process();
+		thresholdingProbe.stop( masked.size() / 8 );
+		thresholdingEvent.commit();
 		if ( check )
 		{
 			thresholded = thresholder.getResult();
+			foregroundFraction = thresholder.getForegroundCount() / ( double ) thresholded.size();
+			stageTimes[ THRESHOLDING ] = System.currentTimeMillis() - top;
 		}
 		else
 		{
@@ -125,33 +169,30 @@ public class CrownWearingSegmenter< T extends RealType< T > & NativeType< T >> e
 		if ( DEBUG )
 			System.out.println( "Labelling..." );
 
+		top = System.currentTimeMillis();
+		final Event labelingEvent = SegmentationEvents.LABELING.begin().set( 0, frame ).set( 1, thresholded.size() );
+		final Probe labelingProbe = metrics.start( SegmentationMetrics.LABELING, frame );
 		final StructuringElement se = ConnectedComponents.StructuringElement.FOUR_CONNECTED;
 		final Img< UnsignedIntType > img = Util.getArrayOrCellImgFactory( thresholded, new UnsignedIntType() ).create( thresholded, new UnsignedIntType() );
 		labeling = new ImgLabeling< Integer, UnsignedIntType >( img );
-		final Iterator< Integer > labelGenerator = new Iterator< Integer >()
-		{
-			private int val = 0;
-
-			@Override
-			public Integer next()
-			{
-				val++;
-				return Integer.valueOf( val );
-			}
-
-			@Override
-			public boolean hasNext()
-			{
-				return true;
-			}
-
-			@Override
-			public void remove()
-			{}
-		};
-		final ExecutorService service = Executors.newFixedThreadPool( numThreads );
+		final LabelGenerator labelGenerator = new LabelGenerator();
+		final ExecutorService service = Executors.newFixedThreadPool( numThreads, labelingProbe.getThreadFactory() );
 		ConnectedComponents.labelAllConnectedComponents( thresholded, labeling, labelGenerator, se, service );
 		service.shutdown();
+		try
+		{
+			// Pool threads account their metrics when they terminate.
+			service.awaitTermination( 1, TimeUnit.DAYS );
+		}
+		catch ( final InterruptedException e )
+		{
+			errorMessage = e.getMessage();
+			return false;
+		}
+		labelingProbe.stop( 4 * img.size() );
+		labelingEvent.set( 2, ( long ) labelGenerator.getLastLabel() ).commit();
+		stageTimes[ LABELING ] = System.currentTimeMillis() - top;
+		blobCount = labelGenerator.getLastLabel();
 
 		if ( DEBUG )
 		{
@@ -167,9 +208,12 @@ public class CrownWearingSegmenter< T extends RealType< T > & NativeType< T >> e
 
 		}
 
+		top = System.currentTimeMillis();
 		final boolean splitNuclei = ( Boolean ) settings.get( KEY_SPLIT_NUCLEI );
-		final NucleiSpotCreator splitter = new NucleiSpotCreator( labeling, calibration, labelGenerator, splitNuclei );
-		splitter.setNumThreads( 1 );
+		final NucleiSizeFilter sizeFilter = CrownWearingSegmenterFactory.createSizeFilter( settings );
+		final NucleiSpotCreator splitter = new NucleiSpotCreator( labeling, calibration, labelGenerator, sizeFilter, splitNuclei );
+		splitter.setNumThreads( numThreads );
+		splitter.setMetrics( metrics, frame );
 		if ( !( splitter.checkInput() && splitter.process() ) )
 		{
 			IJ.error( "Problem with splitter: " + splitter.getErrorMessage() );
@@ -179,6 +223,48 @@ public class CrownWearingSegmenter< T extends RealType< T > & NativeType< T >> e
 			System.out.println( "Splitting done." );
 
 		spots = splitter.getResult();
+		stageTimes[ SPLITTING ] = System.currentTimeMillis() - top;
+
+		// Label harvesting
+		if ( null != labelPlanes )
+		{
+			final int nLabels = Math.max( 1, labelGenerator.getLastLabel() );
+			try
+			{
+				// Frames get their labels in frame order, whatever the order they end in.
+				labelOffset = null == labelOffsets ? 0 : labelOffsets.reserve( labelFrame, nLabels ) - 1;
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				errorMessage = "Interrupted while waiting for the labels of the previous frames.";
+				return false;
+			}
+			final LabelPlaneWriter writer = new LabelPlaneWriter( labeling, labelPlanes, labelOffset );
+			writer.setNumThreads( numThreads );
+			final Probe writingProbe = metrics.start( SegmentationMetrics.LABEL_WRITING, frame );
+			check = writer.checkInput() && writer.process();
+			// The label table.
+			writingProbe.stop( 4l * labeling.getMapping().numSets() );
+			if ( !check )
+			{
+				errorMessage = writer.getErrorMessage();
+				return false;
+			}
+			labelSaturated = writer.isSaturated();
+
+			// Spots refer to their label in the label image.
+			if ( labelOffset != 0 )
+			{
+				for ( final Spot spot : spots )
+				{
+					final Double label = spot.getFeature( NucleiSpotCreator.LABEL );
+					if ( null != label )
+						spot.putFeature( NucleiSpotCreator.LABEL, Double.valueOf( label.doubleValue() + labelOffset ) );
+				}
+			}
+		}
+
 		processingTime = System.currentTimeMillis() - start;
 		return true;
 	}
@@ -188,4 +274,141 @@ public class CrownWearingSegmenter< T extends RealType< T > & NativeType< T >> e
 	{
 		return labeling;
 	}
-}
+
+	/**
+	 * Sets the collector the metrics of each stage are recorded in.
+	 *
+	 * @param metrics
+	 *            the metrics collector.
+	 * @param frame
+	 *            the frame segmented, used to tag records.
+	 */
+	public void setMetrics( final SegmentationMetrics metrics, final int frame )
+	{
+		this.metrics = metrics;
+		this.frame = frame;
+	}
+
+	/**
+	 * Sets the cache the masking steps are looked up in before being computed,
+	 * and stored in after. Entries are keyed by the specified key, the frame,
+	 * a checksum of the frame pixels and the parameters of each step, so that
+	 * a cache can be shared by several movies and runs.
+	 *
+	 * @param stageCache
+	 *            the cache, or <code>null</code> to disable caching.
+	 * @param key
+	 *            a string identifying the movie, for instance its file name.
+	 */
+	public void setStageCache( final MaskerStageCache stageCache, final String key )
+	{
+		this.stageCache = stageCache;
+		this.stageCacheKey = key;
+	}
+
+	/**
+	 * Returns the duration of each stage of the last run, in ms, indexed as
+	 * in {@link SegmentationCostModel}.
+	 */
+	public long[] getStageTimes()
+	{
+		return stageTimes.clone();
+	}
+
+	/**
+	 * Returns the fraction of voxels found above threshold in the last run.
+	 */
+	public double getForegroundFraction()
+	{
+		return foregroundFraction;
+	}
+
+	/**
+	 * Returns the number of connected blobs found before splitting in the
+	 * last run.
+	 */
+	public long getBlobCount()
+	{
+		return blobCount;
+	}
+
+	/**
+	 * Sets the pixel arrays the labels will be written to at the end of
+	 * processing, one per Z plane of the frame. They must be all
+	 * <code>short[]</code>, all <code>float[]</code> or all <code>int[]</code>
+	 * arrays.
+	 * <p>
+	 * If a label generator is specified, a block of labels as large as the
+	 * number of labels in this frame is reserved from it, and its first label
+	 * is used as an offset for the labels written. Using the same generator
+	 * for all the frames of a movie therefore yields labels that are unique
+	 * across the whole movie. If the generator was created with the frames
+	 * of the movie as keys, blocks are reserved in frame order, and the
+	 * labels do not depend on the order frames end in.
+	 *
+	 * @param planes
+	 *            the destination pixel arrays, or <code>null</code> to skip
+	 *            writing labels.
+	 * @param offsets
+	 *            the label generator used to offset labels. If
+	 *            <code>null</code>, no offset is applied.
+	 * @param frame
+	 *            the frame segmented, the key the block of labels is reserved
+	 *            for.
+	 */
+	public void setLabelPlanes( final Object[] planes, final LabelGenerator offsets, final int frame )
+	{
+		this.labelPlanes = planes;
+		this.labelOffsets = offsets;
+		this.labelFrame = frame;
+	}
+
+	/**
+	 * Returns the offset that was added to the labels written in the label
+	 * planes.
+	 */
+	public int getLabelOffset()
+	{
+		return labelOffset;
+	}
+
+	/**
+	 * Returns <code>true</code> if some labels were clamped when written in
+	 * 16-bit label planes.
+	 */
+	public boolean isLabelSaturated()
+	{
+		return labelSaturated;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns the dimensions of the specified image and a 64-bit FNV-1a hash
+	 * of its pixel values, taken as floats, over the 4 bytes of each value
+	 * from the lowest. Much cheaper than any of the masking steps, so it can
+	 * be used in the keys of a {@link MaskerStageCache}.
+	 */
+	public static < T extends RealType< T >> String checksum( final RandomAccessibleInterval< T > img )
+	{
+		long hash = 0xcbf29ce484222325l;
+		final StringBuilder str = new StringBuilder();
+		for ( int d = 0; d < img.numDimensions(); d++ )
+		{
+			str.append( img.dimension( d ) ).append( d < img.numDimensions() - 1 ? "x" : "" );
+		}
+		final Cursor< T > cursor = Views.flatIterable( img ).cursor();
+		while ( cursor.hasNext() )
+		{
+			final int bits = Float.floatToIntBits( cursor.next().getRealFloat() );
+			for ( int shift = 0; shift < 32; shift += 8 )
+			{
+				hash ^= ( bits >>> shift ) & 0xff;
+				hash *= 0x100000001b3l;
+			}
+		}
+		return str.append( ':' ).append( Long.toHexString( hash ) ).toString();
+	}
+}
\ No newline at end of file
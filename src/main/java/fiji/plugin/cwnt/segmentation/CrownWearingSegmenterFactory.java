@@ -8,6 +8,7 @@ import static fiji.plugin.trackmate.io.IOUtils.writeAttribute;
 import static fiji.plugin.trackmate.util.TMUtils.checkMapKeys;
 import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -96,6 +97,12 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 
 	protected Map< String, Object > settings;
 
+	/**
+	 * If not <code>null</code>, the source frames are loaded from, instead of
+	 * the image.
+	 */
+	protected FrameSource< T > frameSource;
+
 	protected String errorMessage;
 
 	/*
@@ -129,6 +136,9 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 	@Override
 	public CrownWearingSegmenter< T > getDetector( final Interval interval, final int frame )
 	{
+		if ( null != frameSource )
+			return getDetectorFromSource( frame );
+
 		final double[] calibration = TMUtils.getSpatialCalibration( img );
 		RandomAccessibleInterval< T > imFrame;
 		final int cDim = TMUtils.findCAxisIndex( img );
@@ -174,10 +184,54 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 	public boolean setTarget( final ImgPlus< T > img, final Map< String, Object > settings )
 	{
 		this.img = img;
+		this.frameSource = null;
 		this.settings = settings;
 		return checkSettings( settings );
 	}
 
+	/**
+	 * Sets the source the frames are loaded from, one at a time, when
+	 * detectors are created. The whole movie does not have to fit in memory.
+	 *
+	 * @param source
+	 *            the frame source.
+	 * @param settings
+	 *            the segmenter settings.
+	 * @return <code>true</code> if the settings are valid.
+	 */
+	public boolean setTarget( final FrameSource< T > source, final Map< String, Object > settings )
+	{
+		this.img = null;
+		this.frameSource = source;
+		this.settings = settings;
+		return checkSettings( settings );
+	}
+
+	/**
+	 * Loads the target channel of a frame from the frame source, and creates
+	 * a detector for it.
+	 *
+	 * @throws IllegalStateException
+	 *             if the frame cannot be loaded.
+	 */
+	private CrownWearingSegmenter< T > getDetectorFromSource( final int frame )
+	{
+		final Integer targetChannel = ( Integer ) settings.get( KEY_TARGET_CHANNEL );
+		final int channel = null == targetChannel ? 0 : targetChannel.intValue() - 1;
+		final RandomAccessibleInterval< T > imFrame;
+		try
+		{
+			imFrame = frameSource.getFrame( frame, channel );
+		}
+		catch ( final IOException e )
+		{
+			throw new IllegalStateException( "Could not load frame " + frame + ": " + e.getMessage(), e );
+		}
+		final CrownWearingSegmenter< T > detector = new CrownWearingSegmenter< T >( imFrame, frameSource.getCalibration(), settings );
+		detector.setNumThreads( 1 );
+		return detector;
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
@@ -192,6 +246,9 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 		boolean ok = true;
 		for ( final String param : PARAMETERS_DOUBLES )
 		{
+			// Missing size filter parameters are read back as their default.
+			if ( SIZE_FILTER_PARAMETERS.contains( param ) && !settings.containsKey( param ) )
+				continue;
 			ok = ok && writeAttribute( settings, element, param, Double.class, errorHolder );
 		}
 		for ( final String param : PARAMETERS_INTEGERS )
@@ -217,6 +274,12 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 		boolean ok = true;
 		for ( final String param : PARAMETERS_DOUBLES )
 		{
+			if ( SIZE_FILTER_PARAMETERS.contains( param ) && null == element.getAttributeValue( param ) )
+			{
+				// Files saved before the size filter was configurable.
+				settings.put( param, getDefaultSettings().get( param ) );
+				continue;
+			}
 			ok = ok & readDoubleAttribute( element, settings, param, errorHolder );
 		}
 		for ( final String param : PARAMETERS_INTEGERS )
@@ -254,6 +317,10 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 		settings.put( DELTA_PARAMETER, 1.0 );
 		settings.put( THRESHOLD_FACTOR_PARAMETER, 1.6 );
 		settings.put( KEY_SPLIT_NUCLEI, Boolean.valueOf( true ) );
+		settings.put( VOLUME_THRESHOLD_BOTTOM_PARAMETER, DEFAULT_VOLUME_THRESHOLD_BOTTOM );
+		settings.put( VOLUME_THRESHOLD_UP_PARAMETER, DEFAULT_VOLUME_THRESHOLD_UP );
+		settings.put( SPLIT_STD_FACTOR_PARAMETER, DEFAULT_SPLIT_STD_FACTOR );
+		settings.put( OUTLIER_STD_FACTOR_PARAMETER, DEFAULT_OUTLIER_STD_FACTOR );
 		return settings;
 	}
 
@@ -264,6 +331,9 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 		final StringBuilder errorHolder = new StringBuilder();
 		for ( final String param : PARAMETERS_DOUBLES )
 		{
+			// Size filter parameters are optional, see createSizeFilter().
+			if ( SIZE_FILTER_PARAMETERS.contains( param ) && !settings.containsKey( param ) )
+				continue;
 			ok = ok & checkParameter( settings, param, Double.class, errorHolder );
 		}
 		for ( final String param : PARAMETERS_INTEGERS )
@@ -272,7 +342,9 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 		}
 		ok = ok & checkParameter( settings, KEY_SPLIT_NUCLEI, Boolean.class, errorHolder );
 
-		ok = ok & checkMapKeys( settings, PARAMETER_NAMES, null, errorHolder );
+		final List< String > mandatoryKeys = new ArrayList< String >( PARAMETER_NAMES );
+		mandatoryKeys.removeAll( SIZE_FILTER_PARAMETERS );
+		ok = ok & checkMapKeys( settings, mandatoryKeys, SIZE_FILTER_PARAMETERS, errorHolder );
 		if ( !ok )
 		{
 			errorMessage = errorHolder.toString();
@@ -295,6 +367,33 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 		return maskingParams;
 	}
 
+	/**
+	 * Creates the size filter stage configured by the specified settings map.
+	 * Size filter parameters are optional: {@link #checkSettings(Map)} accepts
+	 * maps without them, and those missing from the map are replaced by their
+	 * default value here.
+	 *
+	 * @param settings
+	 *            the settings map.
+	 * @return a new {@link NucleiSizeFilter}.
+	 */
+	public static NucleiSizeFilter createSizeFilter( final Map< String, Object > settings )
+	{
+		final double bottom = getDouble( settings, VOLUME_THRESHOLD_BOTTOM_PARAMETER, DEFAULT_VOLUME_THRESHOLD_BOTTOM );
+		final double up = getDouble( settings, VOLUME_THRESHOLD_UP_PARAMETER, DEFAULT_VOLUME_THRESHOLD_UP );
+		final double splitFactor = getDouble( settings, SPLIT_STD_FACTOR_PARAMETER, DEFAULT_SPLIT_STD_FACTOR );
+		final double outlierFactor = getDouble( settings, OUTLIER_STD_FACTOR_PARAMETER, DEFAULT_OUTLIER_STD_FACTOR );
+		return new RobustNucleiSizeFilter( bottom, up, splitFactor, outlierFactor );
+	}
+
+	private static double getDouble( final Map< String, Object > settings, final String key, final double defaultValue )
+	{
+		final Object obj = settings.get( key );
+		if ( null == obj )
+			return defaultValue;
+		return ( ( Number ) obj ).doubleValue();
+	}
+
 	public static void putMaskingParameters( final double[] params, final Map< String, Object > settings )
 	{
 		settings.put( SIGMA_F_PARAMETER, params[ 0 ] );
@@ -334,6 +433,40 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 
 	public static final String KEY_SPLIT_NUCLEI = "splitNuclei";
 
+	/**
+	 * Regions with a volume smaller than or equal to this value, in voxels,
+	 * are discarded.
+	 */
+	public static final String VOLUME_THRESHOLD_BOTTOM_PARAMETER = "volumeThresholdBottom";
+
+	/**
+	 * Regions with a volume larger than or equal to this value, in voxels, are
+	 * discarded.
+	 */
+	public static final String VOLUME_THRESHOLD_UP_PARAMETER = "volumeThresholdUp";
+
+	/**
+	 * Regions with a volume larger than the median volume plus this factor
+	 * times the robust standard deviation are considered for splitting.
+	 */
+	public static final String SPLIT_STD_FACTOR_PARAMETER = "splitStdFactor";
+
+	/**
+	 * Regions with a volume larger than the median volume plus this factor
+	 * times the robust standard deviation are discarded. Disabled if not
+	 * strictly positive. The default only discards regions far larger than a
+	 * few touching nuclei, which are left to the splitting.
+	 */
+	public static final String OUTLIER_STD_FACTOR_PARAMETER = "outlierStdFactor";
+
+	public static final double DEFAULT_VOLUME_THRESHOLD_BOTTOM = 0.;
+
+	public static final double DEFAULT_VOLUME_THRESHOLD_UP = 1000.;
+
+	public static final double DEFAULT_SPLIT_STD_FACTOR = 0.5;
+
+	public static final double DEFAULT_OUTLIER_STD_FACTOR = 10.;
+
 	public static final List< String > PARAMETER_NAMES = Arrays.asList( new String[]
 	{
 			SIGMA_F_PARAMETER,
@@ -347,10 +480,22 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 			EPSILON_PARAMETER,
 			THRESHOLD_FACTOR_PARAMETER,
 			KEY_TARGET_CHANNEL,
-			KEY_SPLIT_NUCLEI
+			KEY_SPLIT_NUCLEI,
+			VOLUME_THRESHOLD_BOTTOM_PARAMETER,
+			VOLUME_THRESHOLD_UP_PARAMETER,
+			SPLIT_STD_FACTOR_PARAMETER,
+			OUTLIER_STD_FACTOR_PARAMETER
 	}
 			);
 
+	private static final List< String > SIZE_FILTER_PARAMETERS = Arrays.asList( new String[]
+	{
+			VOLUME_THRESHOLD_BOTTOM_PARAMETER,
+			VOLUME_THRESHOLD_UP_PARAMETER,
+			SPLIT_STD_FACTOR_PARAMETER,
+			OUTLIER_STD_FACTOR_PARAMETER
+	} );
+
 	private static final List< String > PARAMETERS_DOUBLES;
 
 	private static final List< String > PARAMETERS_INTEGERS;
@@ -359,6 +504,7 @@ public class CrownWearingSegmenterFactory< T extends RealType< T > & NativeType<
 		PARAMETERS_DOUBLES = new ArrayList< String >( PARAMETER_NAMES );
 		PARAMETERS_DOUBLES.remove( N_AD_PARAMETER );
 		PARAMETERS_DOUBLES.remove( KEY_TARGET_CHANNEL );
+		PARAMETERS_DOUBLES.remove( KEY_SPLIT_NUCLEI );
 		PARAMETERS_INTEGERS = new ArrayList< String >( 2 );
 		PARAMETERS_INTEGERS.add( N_AD_PARAMETER );
 		PARAMETERS_INTEGERS.add( KEY_TARGET_CHANNEL );
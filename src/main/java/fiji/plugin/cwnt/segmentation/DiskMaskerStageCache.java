@@ -0,0 +1,262 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A {@link MaskerStageCache} that stores images in files, so that they
+ * survive the run that computed them. Rerunning the segmentation of a movie
+ * with only the late parameters changed, such as the threshold factor,
+ * restores the outputs of the masking steps from disk instead of recomputing
+ * them.
+ * <p>
+ * Each entry is a file named after the SHA-1 of its key, holding the key
+ * itself, the dimensions of the images and their pixels as raw floats.
+ * Files are read through a memory map, and written under a temporary name
+ * then renamed, so that concurrent writers and interrupted runs never leave
+ * a partial entry. Unreadable entries are treated as missing.
+ * <p>
+ * This cache has no size limit: entries are only removed by {@link #clear()}.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class DiskMaskerStageCache implements MaskerStageCache
+{
+
+	/** "CWMC", for CWNS masker cache. */
+	private static final int MAGIC = 0x43574d43;
+
+	private static final int VERSION = 1;
+
+	private static final String EXTENSION = ".stage";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File folder;
+
+	/**
+	 * Creates a new cache storing its entries in the specified folder.
+	 *
+	 * @param folder
+	 *            the folder. Created if it does not exist.
+	 * @throws IOException
+	 *             if the folder cannot be created.
+	 */
+	public DiskMaskerStageCache( final File folder ) throws IOException
+	{
+		if ( !folder.isDirectory() && !folder.mkdirs() )
+			throw new IOException( "Could not create stage cache folder " + folder + "." );
+		this.folder = folder;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public List< ArrayImg< FloatType, FloatArray >> get( final String key )
+	{
+		final File file = getFile( key );
+		if ( !file.exists() )
+			return null;
+
+		try
+		{
+			final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			try
+			{
+				final FileChannel channel = raf.getChannel();
+				final MappedByteBuffer buffer = channel.map( MapMode.READ_ONLY, 0, channel.size() );
+				buffer.order( ByteOrder.LITTLE_ENDIAN );
+				if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+					return null;
+
+				// Guard against hash collisions.
+				final byte[] keyBytes = new byte[ buffer.getInt() ];
+				buffer.get( keyBytes );
+				if ( !key.equals( new String( keyBytes, "UTF-8" ) ) )
+					return null;
+
+				final int nImages = buffer.getInt();
+				final List< ArrayImg< FloatType, FloatArray >> images = new ArrayList< ArrayImg< FloatType, FloatArray >>( nImages );
+				for ( int i = 0; i < nImages; i++ )
+				{
+					final long[] dims = new long[ buffer.getInt() ];
+					long size = 1;
+					for ( int d = 0; d < dims.length; d++ )
+					{
+						dims[ d ] = buffer.getLong();
+						size *= dims[ d ];
+					}
+					final float[] pixels = new float[ ( int ) size ];
+					buffer.asFloatBuffer().get( pixels );
+					buffer.position( buffer.position() + 4 * pixels.length );
+					images.add( ArrayImgs.floats( pixels, dims ) );
+				}
+				return images;
+			}
+			finally
+			{
+				raf.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+		catch ( final RuntimeException e )
+		{
+			// Truncated or corrupted file.
+			return null;
+		}
+	}
+
+	@Override
+	public void put( final String key, final List< ArrayImg< FloatType, FloatArray >> images )
+	{
+		final File file = getFile( key );
+		File tmp = null;
+		try
+		{
+			// Unique name, as several threads or processes may share the folder.
+			tmp = File.createTempFile( file.getName(), TMP_SUFFIX, folder );
+			final byte[] keyBytes = key.getBytes( "UTF-8" );
+			final ByteBuffer header = ByteBuffer.allocate( 16 + keyBytes.length ).order( ByteOrder.LITTLE_ENDIAN );
+			header.putInt( MAGIC ).putInt( VERSION ).putInt( keyBytes.length ).put( keyBytes ).putInt( images.size() );
+			header.flip();
+
+			final RandomAccessFile raf = new RandomAccessFile( tmp, "rw" );
+			try
+			{
+				raf.setLength( 0 );
+				final FileChannel channel = raf.getChannel();
+				write( channel, header );
+				for ( final ArrayImg< FloatType, FloatArray > img : images )
+				{
+					final int n = img.numDimensions();
+					final ByteBuffer dims = ByteBuffer.allocate( 4 + 8 * n ).order( ByteOrder.LITTLE_ENDIAN );
+					dims.putInt( n );
+					for ( int d = 0; d < n; d++ )
+					{
+						dims.putLong( img.dimension( d ) );
+					}
+					dims.flip();
+					write( channel, dims );
+
+					final float[] pixels = img.update( null ).getCurrentStorageArray();
+					final ByteBuffer data = ByteBuffer.allocate( 4 * pixels.length ).order( ByteOrder.LITTLE_ENDIAN );
+					data.asFloatBuffer().put( pixels );
+					write( channel, data );
+				}
+			}
+			finally
+			{
+				raf.close();
+			}
+
+			if ( file.exists() )
+			{
+				// Written by another thread meanwhile.
+				tmp.delete();
+				return;
+			}
+			if ( !tmp.renameTo( file ) )
+				tmp.delete();
+		}
+		catch ( final IOException e )
+		{
+			// Not storing an entry is allowed.
+			if ( null != tmp )
+				tmp.delete();
+		}
+	}
+
+	/**
+	 * Discards all the entries of this cache.
+	 */
+	public void clear()
+	{
+		final File[] files = folder.listFiles();
+		if ( null == files )
+			return;
+		for ( final File file : files )
+		{
+			// Also the temporary files of writes that were interrupted.
+			if ( file.getName().endsWith( EXTENSION ) || file.getName().endsWith( TMP_SUFFIX ) )
+				file.delete();
+		}
+	}
+
+	/**
+	 * Returns the disk space used by the entries of this cache, in bytes.
+	 */
+	public long getBytes()
+	{
+		long bytes = 0;
+		final File[] files = folder.listFiles();
+		if ( null == files )
+			return 0;
+		for ( final File file : files )
+		{
+			if ( file.getName().endsWith( EXTENSION ) )
+				bytes += file.length();
+		}
+		return bytes;
+	}
+
+	@Override
+	public String toString()
+	{
+		return super.toString() + ": " + folder;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private File getFile( final String key )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( key.getBytes( "UTF-8" ) );
+			final StringBuilder name = new StringBuilder();
+			for ( final byte b : digest )
+			{
+				name.append( String.format( "%02x", b & 0xff ) );
+			}
+			return new File( folder, name.append( EXTENSION ).toString() );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+		catch ( final UnsupportedEncodingException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	private static void write( final FileChannel channel, final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+		{
+			channel.write( buffer );
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.io.IOException;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Interface for sources that load the frames of a movie one at a time, so
+ * that the {@link CrownWearingSegmenterFactory} does not need the whole movie
+ * in memory.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the pixel type of the frames.
+ */
+public interface FrameSource< T extends RealType< T > & NativeType< T >>
+{
+
+	/**
+	 * Loads one channel of one frame.
+	 *
+	 * @param frame
+	 *            the frame, 0-based.
+	 * @param channel
+	 *            the channel, 0-based.
+	 * @return a new image, X, Y and Z if there are several Z slices.
+	 * @throws IOException
+	 *             if the frame cannot be read.
+	 */
+	public RandomAccessibleInterval< T > getFrame( int frame, int channel ) throws IOException;
+
+	/**
+	 * Returns the spatial calibration of the frames, X, Y and Z.
+	 */
+	public double[] getCalibration();
+
+}
@@ -0,0 +1,141 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * An in-memory {@link MaskerStageCache} with a memory budget. When storing new
+ * images would exceed the budget, the least recently used entries are
+ * discarded. Entries larger than the whole budget are not stored.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LRUMaskerStageCache implements MaskerStageCache
+{
+
+	/** Default memory budget, in bytes. */
+	public static final long DEFAULT_MAX_BYTES = 256l * 1024 * 1024;
+
+	private final LinkedHashMap< String, List< ArrayImg< FloatType, FloatArray >>> map;
+
+	private long maxBytes;
+
+	private long bytes = 0;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	public LRUMaskerStageCache()
+	{
+		this( DEFAULT_MAX_BYTES );
+	}
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param maxBytes
+	 *            the memory budget, in bytes.
+	 */
+	public LRUMaskerStageCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		this.map = new LinkedHashMap< String, List< ArrayImg< FloatType, FloatArray >>>( 16, 0.75f, true );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public synchronized List< ArrayImg< FloatType, FloatArray >> get( final String key )
+	{
+		return map.get( key );
+	}
+
+	@Override
+	public synchronized void put( final String key, final List< ArrayImg< FloatType, FloatArray >> images )
+	{
+		final long size = sizeOf( images );
+		if ( size > maxBytes )
+			return;
+
+		final List< ArrayImg< FloatType, FloatArray >> previous = map.remove( key );
+		if ( null != previous )
+			bytes -= sizeOf( previous );
+
+		map.put( key, images );
+		bytes += size;
+		trim();
+	}
+
+	/**
+	 * Sets the memory budget of this cache, discarding entries if needed.
+	 *
+	 * @param maxBytes
+	 *            the memory budget, in bytes.
+	 */
+	public synchronized void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the memory currently used by the images in this cache, in bytes.
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * Discards all the entries of this cache.
+	 */
+	public synchronized void clear()
+	{
+		map.clear();
+		bytes = 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return super.toString() + ": " + map.size() + " entries, " + bytes + " / " + maxBytes + " bytes";
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void trim()
+	{
+		final Iterator< Entry< String, List< ArrayImg< FloatType, FloatArray >>>> it = map.entrySet().iterator();
+		while ( bytes > maxBytes && it.hasNext() )
+		{
+			bytes -= sizeOf( it.next().getValue() );
+			it.remove();
+		}
+	}
+
+	private static long sizeOf( final List< ArrayImg< FloatType, FloatArray >> images )
+	{
+		long size = 0;
+		for ( final ArrayImg< FloatType, FloatArray > img : images )
+		{
+			size += 4 * img.size();
+		}
+		return size;
+	}
+}
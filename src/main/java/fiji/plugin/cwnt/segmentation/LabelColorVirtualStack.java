@@ -0,0 +1,251 @@
+package fiji.plugin.cwnt.segmentation;
+
+import ij.VirtualStack;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.view.Views;
+
+/**
+ * A virtual stack that displays label images with colors, rendering them only
+ * when ImageJ requests a plane.
+ * <p>
+ * Only the label indices are stored, in their most compact form: as
+ * <code>short</code> arrays when a frame has less than 65536 label sets, and
+ * as <code>int</code> arrays otherwise. Together with one color table per
+ * frame, this is all that is needed to colorize a plane with
+ * {@link LabelToRGB#colorize(int[], int[], int[], int, int)}. The most
+ * recently rendered planes are kept in a small LRU cache, so that browsing
+ * back and forth does not render them again. The pixels returned are always
+ * a copy, so that callers that edit them, such as ImageJ filters, do not
+ * alter the cache.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LabelColorVirtualStack extends VirtualStack
+{
+
+	private static final int DEFAULT_CACHE_SIZE = 16;
+
+	private final int width;
+
+	private final int height;
+
+	private final int size;
+
+	/** The compact label indices of each plane, 0-based. */
+	private final Object[] planes;
+
+	/** The color table of each plane, 0-based. */
+	private final int[][] colorTables;
+
+	private final Map< Integer, int[] > cache;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	public LabelColorVirtualStack( final int width, final int height, final int size )
+	{
+		this( width, height, size, DEFAULT_CACHE_SIZE );
+	}
+
+	/**
+	 * Creates a new, black, virtual stack.
+	 *
+	 * @param width
+	 *            the stack width.
+	 * @param height
+	 *            the stack height.
+	 * @param size
+	 *            the number of planes in the stack.
+	 * @param cacheSize
+	 *            the maximal number of rendered planes to keep in cache.
+	 */
+	public LabelColorVirtualStack( final int width, final int height, final int size, final int cacheSize )
+	{
+		super( width, height, null, null );
+		this.width = width;
+		this.height = height;
+		this.size = size;
+		this.planes = new Object[ size ];
+		this.colorTables = new int[ size ][];
+		this.cache = new LinkedHashMap< Integer, int[] >( cacheSize + 1, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, int[] > eldest )
+			{
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Stores the label indices of the specified labeling in this stack. The
+	 * labeling must be 2D or 3D, and the Z planes of the labeling are stored
+	 * in the stack planes with the specified 1-based indices.
+	 *
+	 * @param labeling
+	 *            the labeling to display.
+	 * @param stackIndices
+	 *            the 1-based indices of the stack planes in which to store
+	 *            each Z plane of the labeling.
+	 */
+	public void setLabeling( final ImgLabeling< Integer, UnsignedIntType > labeling, final int[] stackIndices )
+	{
+		final int[] colorTable = LabelToRGB.createColorTable( labeling.getMapping() );
+		final boolean compact = colorTable.length <= 1 << 16;
+		final int planeSize = width * height;
+
+		final RandomAccessibleInterval< UnsignedIntType > indexImg = labeling.getIndexImg();
+		final int[] indices = LabelToRGB.getIndexArray( indexImg );
+		for ( int z = 0; z < stackIndices.length; z++ )
+		{
+			final Object plane;
+			if ( null != indices )
+			{
+				plane = compact ? toShorts( indices, z * planeSize, planeSize ) : copyInts( indices, z * planeSize, planeSize );
+			}
+			else
+			{
+				final RandomAccessibleInterval< UnsignedIntType > slice = indexImg.numDimensions() > 2 ? Views.hyperSlice( indexImg, 2, z ) : indexImg;
+				final Cursor< UnsignedIntType > cursor = Views.flatIterable( slice ).cursor();
+				final int[] copy = new int[ planeSize ];
+				for ( int i = 0; i < planeSize; i++ )
+				{
+					copy[ i ] = cursor.next().getInteger();
+				}
+				plane = compact ? toShorts( copy, 0, planeSize ) : copy;
+			}
+
+			final int n = stackIndices[ z ];
+			synchronized ( cache )
+			{
+				planes[ n - 1 ] = plane;
+				colorTables[ n - 1 ] = colorTable;
+				cache.remove( Integer.valueOf( n ) );
+			}
+		}
+	}
+
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		return new ColorProcessor( width, height, render( n ) );
+	}
+
+	@Override
+	public Object getPixels( final int n )
+	{
+		return render( n );
+	}
+
+	/**
+	 * Does nothing: this stack is read-only.
+	 */
+	@Override
+	public void setPixels( final Object pixels, final int n )
+	{}
+
+	@Override
+	public int getSize()
+	{
+		return size;
+	}
+
+	@Override
+	public String getSliceLabel( final int n )
+	{
+		return null;
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return width;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return height;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Returns a new array with the colors of the specified plane, copied from
+	 * the cache or rendered.
+	 */
+	private int[] render( final int n )
+	{
+		final Object plane;
+		final int[] colorTable;
+		synchronized ( cache )
+		{
+			final int[] cached = cache.get( Integer.valueOf( n ) );
+			if ( null != cached )
+				return cached.clone();
+
+			plane = planes[ n - 1 ];
+			colorTable = colorTables[ n - 1 ];
+		}
+
+		final int[] pixels = new int[ width * height ];
+		if ( plane instanceof short[] )
+		{
+			final short[] indices = ( short[] ) plane;
+			for ( int i = 0; i < pixels.length; i++ )
+			{
+				pixels[ i ] = colorTable[ indices[ i ] & 0xffff ];
+			}
+		}
+		else if ( plane instanceof int[] )
+		{
+			LabelToRGB.colorize( ( int[] ) plane, colorTable, pixels, 0, pixels.length );
+		}
+		else
+		{
+			// Not segmented yet: black.
+			return pixels;
+		}
+
+		synchronized ( cache )
+		{
+			cache.put( Integer.valueOf( n ), pixels.clone() );
+		}
+		return pixels;
+	}
+
+	private static short[] toShorts( final int[] source, final int from, final int length )
+	{
+		final short[] target = new short[ length ];
+		for ( int i = 0; i < length; i++ )
+		{
+			target[ i ] = ( short ) source[ from + i ];
+		}
+		return target;
+	}
+
+	private static int[] copyInts( final int[] source, final int from, final int length )
+	{
+		final int[] target = new int[ length ];
+		System.arraycopy( source, from, target, 0, length );
+		return target;
+	}
+}
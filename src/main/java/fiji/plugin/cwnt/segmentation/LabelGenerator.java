@@ -0,0 +1,234 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe, lock-free generator of unique integer labels.
+ * <p>
+ * Labels are handed out in increasing order, starting from 1. Workers that
+ * need several labels at once should reserve them as a contiguous block with
+ * {@link #reserve(int)}, which costs a single atomic operation regardless of
+ * the block size. Single labels are available as primitive <code>int</code>s
+ * through {@link #nextLabel()}.
+ * <p>
+ * A generator can also be created for a set of keys, for instance frames,
+ * whose blocks are then reserved in the order of the keys with
+ * {@link #reserve(int, int)}, whatever the order in which the callers ask.
+ * The labels handed out then do not depend on thread scheduling.
+ * <p>
+ * This class also implements {@link Iterator} so that it can be passed to
+ * ImgLib2 algorithms that expect a label iterator, such as
+ * {@link net.imglib2.algorithm.labeling.ConnectedComponents}. The iterator
+ * never runs out of labels and does not support removal.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LabelGenerator implements Iterator< Integer >
+{
+
+	private final AtomicInteger last;
+
+	/** The rank of the key of each ordered block, or <code>null</code>. */
+	private final Map< Integer, Integer > ranks;
+
+	/** Whether the block of each key was reserved or released. */
+	private final boolean[] served;
+
+	/** The rank of the first key not served yet. */
+	private int nextRank = 0;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	/**
+	 * Creates a new label generator whose first label will be 1.
+	 */
+	public LabelGenerator()
+	{
+		this( 0 );
+	}
+
+	/**
+	 * Creates a new label generator whose first label will be
+	 * <code>offset + 1</code>.
+	 *
+	 * @param offset
+	 *            the last label considered as already used.
+	 */
+	public LabelGenerator( final int offset )
+	{
+		this.last = new AtomicInteger( offset );
+		this.ranks = null;
+		this.served = null;
+	}
+
+	/**
+	 * Creates a new label generator whose first label will be
+	 * <code>offset + 1</code>, and that hands out the blocks reserved with
+	 * {@link #reserve(int, int)} in the order of the specified keys.
+	 *
+	 * @param offset
+	 *            the last label considered as already used.
+	 * @param keys
+	 *            the keys blocks will be reserved for, in order. Each key
+	 *            must be served exactly once, by reserving its block or
+	 *            releasing it. Callers that wait for their turn must get
+	 *            their keys in this order too, or they may wait forever.
+	 */
+	public LabelGenerator( final int offset, final int[] keys )
+	{
+		this.last = new AtomicInteger( offset );
+		this.ranks = new HashMap< Integer, Integer >( 2 * keys.length );
+		for ( int i = 0; i < keys.length; i++ )
+		{
+			ranks.put( Integer.valueOf( keys[ i ] ), Integer.valueOf( i ) );
+		}
+		this.served = new boolean[ keys.length ];
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns a new unique label.
+	 *
+	 * @return a new label, as a primitive <code>int</code>.
+	 */
+	public int nextLabel()
+	{
+		return last.incrementAndGet();
+	}
+
+	/**
+	 * Reserves a contiguous block of <code>n</code> labels. The labels from
+	 * the returned value (included) to the returned value + <code>n</code>
+	 * (excluded) are guaranteed not to be handed out to any other caller.
+	 *
+	 * @param n
+	 *            the number of labels to reserve. Must be positive.
+	 * @return the first label of the reserved block.
+	 */
+	public int reserve( final int n )
+	{
+		if ( n < 1 )
+			throw new IllegalArgumentException( "Cannot reserve less than 1 label. Got " + n + "." );
+		return last.getAndAdd( n ) + 1;
+	}
+
+	/**
+	 * Reserves a contiguous block of <code>n</code> labels for the specified
+	 * key. If this generator was created with keys, waits until the blocks
+	 * of all the keys before it are reserved or released, so that blocks
+	 * follow the order of keys. Otherwise, same as {@link #reserve(int)}.
+	 *
+	 * @param key
+	 *            the key to reserve the block for.
+	 * @param n
+	 *            the number of labels to reserve. Must be positive.
+	 * @return the first label of the reserved block.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for the keys
+	 *             before it.
+	 */
+	public int reserve( final int key, final int n ) throws InterruptedException
+	{
+		if ( null == ranks )
+			return reserve( n );
+
+		final int rank = getRank( key );
+		synchronized ( served )
+		{
+			while ( nextRank < rank )
+			{
+				served.wait();
+			}
+			if ( served[ rank ] )
+				throw new IllegalStateException( "Labels were already reserved or released for key " + key + "." );
+			final int first = reserve( n );
+			serve( rank );
+			return first;
+		}
+	}
+
+	/**
+	 * Marks the specified key as served without reserving labels for it, so
+	 * that the blocks of the keys after it can be reserved. Does nothing if a
+	 * block was reserved for the key already, or if this generator was not
+	 * created with keys. Must be called for the keys that will never reserve
+	 * their block, for instance when their frame could not be processed.
+	 *
+	 * @param key
+	 *            the key to release.
+	 */
+	public void release( final int key )
+	{
+		if ( null == ranks )
+			return;
+
+		final int rank = getRank( key );
+		synchronized ( served )
+		{
+			if ( !served[ rank ] )
+				serve( rank );
+		}
+	}
+
+	/**
+	 * Returns the largest label handed out so far by this generator.
+	 *
+	 * @return the last label used.
+	 */
+	public int getLastLabel()
+	{
+		return last.get();
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return true;
+	}
+
+	@Override
+	public Integer next()
+	{
+		return Integer.valueOf( nextLabel() );
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException( "Labels cannot be removed from a label generator." );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private int getRank( final int key )
+	{
+		final Integer rank = ranks.get( Integer.valueOf( key ) );
+		if ( null == rank )
+			throw new IllegalArgumentException( "Unknown key: " + key + "." );
+		return rank.intValue();
+	}
+
+	/**
+	 * Marks a rank as served, and wakes up the callers waiting for it. Must
+	 * be called while holding the lock on {@link #served}.
+	 */
+	private void serve( final int rank )
+	{
+		served[ rank ] = true;
+		while ( nextRank < served.length && served[ nextRank ] )
+		{
+			nextRank++;
+		}
+		served.notifyAll();
+	}
+}
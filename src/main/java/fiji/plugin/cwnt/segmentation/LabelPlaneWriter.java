@@ -0,0 +1,281 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.Set;
+import java.util.Vector;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
+import net.imglib2.multithreading.Chunk;
+import net.imglib2.multithreading.SimpleMultiThreading;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.view.Views;
+
+/**
+ * Writes the labels of a labeling directly into a list of 2D pixel arrays,
+ * such as the planes of an ImageJ stack, without going through an
+ * intermediate image.
+ * <p>
+ * The destination planes must be all <code>short[]</code> (16-bit label
+ * images), all <code>float[]</code> (32-bit label images) or all
+ * <code>int[]</code> (label stores), and each must
+ * hold exactly one XY plane of the labeling. A constant offset is added to
+ * every non-background label, so that several labelings, for instance one
+ * per frame, can be written in the same image while keeping their labels
+ * unique. In 16-bit planes, labels larger than 65535 are clamped to 65535.
+ * ImageJ stores 32-bit images as floats, which hold integers exactly only up
+ * to 2^24, so in <code>float[]</code> planes labels larger than
+ * {@link #MAX_FLOAT_LABEL} are clamped to it. In both cases
+ * {@link #isSaturated()} returns <code>true</code>. <code>int[]</code> planes
+ * hold all labels.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@SuppressWarnings( "deprecation" )
+public class LabelPlaneWriter extends MultiThreadedBenchmarkAlgorithm
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[LabelPlaneWriter] ";
+
+	/** The largest label that can be written in a 16-bit plane. */
+	public static final int MAX_SHORT_LABEL = 65535;
+
+	/**
+	 * The largest label that can be written exactly in a 32-bit float plane,
+	 * 2^24.
+	 */
+	public static final int MAX_FLOAT_LABEL = 1 << 24;
+
+	private final ImgLabeling< Integer, UnsignedIntType > labeling;
+
+	private final Object[] planes;
+
+	private final int offset;
+
+	private boolean saturated;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new writer.
+	 *
+	 * @param labeling
+	 *            the labeling to write.
+	 * @param planes
+	 *            the destination pixel arrays, one per Z plane of the
+	 *            labeling.
+	 * @param offset
+	 *            the value to add to each label. The background is always
+	 *            written as 0.
+	 */
+	public LabelPlaneWriter( final ImgLabeling< Integer, UnsignedIntType > labeling, final Object[] planes, final int offset )
+	{
+		super();
+		this.labeling = labeling;
+		this.planes = planes;
+		this.offset = offset;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean checkInput()
+	{
+		final RandomAccessibleInterval< UnsignedIntType > indexImg = labeling.getIndexImg();
+		final long nPlanes = indexImg.numDimensions() > 2 ? indexImg.dimension( 2 ) : 1;
+		if ( planes.length != nPlanes )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Expected " + nPlanes + " destination planes, got " + planes.length + ".";
+			return false;
+		}
+		final int planeSize = ( int ) ( indexImg.dimension( 0 ) * indexImg.dimension( 1 ) );
+		for ( final Object plane : planes )
+		{
+			if ( plane instanceof short[] )
+			{
+				if ( ( ( short[] ) plane ).length != planeSize )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Destination plane size does not match labeling size.";
+					return false;
+				}
+			}
+			else if ( plane instanceof float[] )
+			{
+				if ( ( ( float[] ) plane ).length != planeSize )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Destination plane size does not match labeling size.";
+					return false;
+				}
+			}
+			else if ( plane instanceof int[] )
+			{
+				if ( ( ( int[] ) plane ).length != planeSize )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "Destination plane size does not match labeling size.";
+					return false;
+				}
+			}
+			else
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Destination planes must be short[], float[] or int[] arrays, got " + plane + ".";
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final RandomAccessibleInterval< UnsignedIntType > indexImg = labeling.getIndexImg();
+		final int planeSize = ( int ) ( indexImg.dimension( 0 ) * indexImg.dimension( 1 ) );
+		final int[] labelTable = createLabelTable( labeling.getMapping(), offset );
+		saturated = false;
+		final int maxLabel;
+		if ( planes.length > 0 && planes[ 0 ] instanceof short[] )
+			maxLabel = MAX_SHORT_LABEL;
+		else if ( planes.length > 0 && planes[ 0 ] instanceof float[] )
+			maxLabel = MAX_FLOAT_LABEL;
+		else
+			maxLabel = Integer.MAX_VALUE;
+		for ( int i = 0; i < labelTable.length; i++ )
+		{
+			if ( labelTable[ i ] > maxLabel )
+			{
+				labelTable[ i ] = maxLabel;
+				saturated = true;
+			}
+		}
+
+		final int[] indices = LabelToRGB.getIndexArray( indexImg );
+		final long size = null == indices ? Views.flatIterable( indexImg ).size() : indices.length;
+		final Vector< Chunk > chunks = SimpleMultiThreading.divideIntoChunks( size, numThreads );
+		final Thread[] threads = new Thread[ chunks.size() ];
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			final Chunk chunk = chunks.get( i );
+			threads[ i ] = new Thread( "LabelPlaneWriter thread " + i )
+			{
+				@Override
+				public void run()
+				{
+					final long from = chunk.getStartPosition();
+					final long to = from + chunk.getLoopSize();
+					Cursor< UnsignedIntType > cursor = null;
+					if ( null == indices )
+					{
+						final IterableInterval< UnsignedIntType > source = Views.flatIterable( indexImg );
+						cursor = source.cursor();
+						cursor.jumpFwd( from );
+					}
+
+					// Labels are gathered per plane, then written with the type of the plane.
+					final int[] buffer = new int[ ( int ) Math.min( planeSize, to - from ) ];
+					long j = from;
+					while ( j < to )
+					{
+						final int start = ( int ) ( j % planeSize );
+						final int n = ( int ) Math.min( to - j, planeSize - start );
+						if ( null != indices )
+						{
+							// Fast path: read the indices from the backing array.
+							for ( int k = 0; k < n; k++ )
+							{
+								buffer[ k ] = labelTable[ indices[ ( int ) j + k ] ];
+							}
+						}
+						else
+						{
+							for ( int k = 0; k < n; k++ )
+							{
+								cursor.fwd();
+								buffer[ k ] = labelTable[ cursor.get().getInteger() ];
+							}
+						}
+						write( buffer, n, planes[ ( int ) ( j / planeSize ) ], start );
+						j += n;
+					}
+				}
+			};
+		}
+		SegmentationMetrics.startAndJoin( threads );
+
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if some labels could not be represented in
+	 * the 16-bit or 32-bit float destination planes, and were clamped.
+	 */
+	public boolean isSaturated()
+	{
+		return saturated;
+	}
+
+	/**
+	 * Creates a table that maps each index of the specified labeling mapping
+	 * to its label plus the specified offset. The empty label set is mapped
+	 * to 0.
+	 *
+	 * @param mapping
+	 *            the labeling mapping.
+	 * @param offset
+	 *            the offset to add to labels.
+	 * @return a new label table, with one element per label set.
+	 */
+	public static int[] createLabelTable( final LabelingMapping< Integer > mapping, final int offset )
+	{
+		final int[] labelTable = new int[ mapping.numSets() ];
+		for ( int index = 0; index < labelTable.length; index++ )
+		{
+			final Set< Integer > set = mapping.labelsAtIndex( index );
+			if ( set.isEmpty() )
+				continue;
+
+			labelTable[ index ] = set.iterator().next().intValue() + offset;
+		}
+		return labelTable;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Writes the first <code>n</code> labels of the buffer in the specified
+	 * plane, from the specified index.
+	 */
+	private static void write( final int[] buffer, final int n, final Object plane, final int start )
+	{
+		if ( plane instanceof int[] )
+		{
+			System.arraycopy( buffer, 0, plane, start, n );
+		}
+		else if ( plane instanceof short[] )
+		{
+			final short[] pixels = ( short[] ) plane;
+			for ( int k = 0; k < n; k++ )
+			{
+				pixels[ start + k ] = ( short ) buffer[ k ];
+			}
+		}
+		else
+		{
+			final float[] pixels = ( float[] ) plane;
+			for ( int k = 0; k < n; k++ )
+			{
+				pixels[ start + k ] = buffer[ k ];
+			}
+		}
+	}
+}
@@ -2,21 +2,27 @@ package fiji.plugin.cwnt.segmentation;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
 import net.imglib2.algorithm.OutputAlgorithm;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
 import net.imglib2.multithreading.Chunk;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.roi.labeling.ImgLabeling;
-import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.roi.labeling.LabelingMapping;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 @SuppressWarnings( "deprecation" )
 public class LabelToRGB extends MultiThreadedBenchmarkAlgorithm implements OutputAlgorithm< Img< ARGBType >>
@@ -43,49 +49,76 @@ public class LabelToRGB extends MultiThreadedBenchmarkAlgorithm implements Outpu
 	{
 		final long start = System.currentTimeMillis();
 
-		final ImgFactory< ARGBType > factory = Util.getArrayOrCellImgFactory( labels, new ARGBType() );
-		rgb = factory.create( labels, new ARGBType() );
+		final RandomAccessibleInterval< UnsignedIntType > indexImg = labels.getIndexImg();
+		final int[] colorTable = createColorTable( labels.getMapping() );
 
-		final Vector< Chunk > chunks = SimpleMultiThreading.divideIntoChunks( rgb.size(), numThreads );
-		final Thread[] threads = new Thread[ numThreads ];
-
-		final int nColors = GLASBEY_LUT.size();
-
-		for ( int i = 0; i < threads.length; i++ )
+		final int[] indices = getIndexArray( indexImg );
+		if ( null != indices )
 		{
-
-			final Chunk chunk = chunks.get( i );
-			threads[ i ] = new Thread( "LabelToRGB thread " + i )
+			/*
+			 * Fast path: we read the label indices and write the colors
+			 * straight into the backing arrays.
+			 */
+			final long[] dims = new long[ indexImg.numDimensions() ];
+			indexImg.dimensions( dims );
+			final ArrayImg< ARGBType, IntArray > target = ArrayImgs.argbs( dims );
+			final int[] pixels = target.update( null ).getCurrentStorageArray();
+			rgb = target;
+
+			final Vector< Chunk > chunks = SimpleMultiThreading.divideIntoChunks( indices.length, numThreads );
+			final Thread[] threads = new Thread[ chunks.size() ];
+			for ( int i = 0; i < threads.length; i++ )
 			{
-
-				@Override
-				public void run()
+				final Chunk chunk = chunks.get( i );
+				threads[ i ] = new Thread( "LabelToRGB thread " + i )
 				{
-
-					final Cursor< LabelingType< Integer >> cursor = labels.localizingCursor();
-					final RandomAccess< ARGBType > target = rgb.randomAccess( labels );
-					cursor.jumpFwd( chunk.getStartPosition() );
-
-					for ( long j = 0; j < chunk.getLoopSize(); j++ )
+					@Override
+					public void run()
+					{
+						final int from = ( int ) chunk.getStartPosition();
+						final int to = from + ( int ) chunk.getLoopSize();
+						colorize( indices, colorTable, pixels, from, to );
+					}
+				};
+			}
+			SegmentationMetrics.startAndJoin( threads );
+		}
+		else
+		{
+			/*
+			 * Generic path: iterate over the index image in flat order.
+			 */
+			final ImgFactory< ARGBType > factory = Util.getArrayOrCellImgFactory( indexImg, new ARGBType() );
+			rgb = factory.create( indexImg, new ARGBType() );
+			final IterableInterval< UnsignedIntType > source = Views.flatIterable( indexImg );
+			final IterableInterval< ARGBType > target = Views.flatIterable( rgb );
+
+			final Vector< Chunk > chunks = SimpleMultiThreading.divideIntoChunks( source.size(), numThreads );
+			final Thread[] threads = new Thread[ chunks.size() ];
+			for ( int i = 0; i < threads.length; i++ )
+			{
+				final Chunk chunk = chunks.get( i );
+				threads[ i ] = new Thread( "LabelToRGB thread " + i )
+				{
+					@Override
+					public void run()
 					{
-						cursor.fwd();
-						target.setPosition( cursor );
-						final LabelingType< Integer > labeling = cursor.get();
-						if ( !labeling.isEmpty() )
+						final Cursor< UnsignedIntType > cs = source.cursor();
+						final Cursor< ARGBType > ct = target.cursor();
+						cs.jumpFwd( chunk.getStartPosition() );
+						ct.jumpFwd( chunk.getStartPosition() );
+						for ( long j = 0; j < chunk.getLoopSize(); j++ )
 						{
-							final int label = labeling.iterator().next();
-							final int colorIndex = label % nColors;
-							final int[] arr = GLASBEY_LUT.get( colorIndex );
-							final int color = ARGBType.rgba( arr[ 0 ], arr[ 1 ], arr[ 2 ], 0 );
-							target.get().set( color );
+							cs.fwd();
+							ct.fwd();
+							ct.get().set( colorTable[ cs.get().getInteger() ] );
 						}
 					}
-				}
-			};
+				};
+			}
+			SegmentationMetrics.startAndJoin( threads );
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
-
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
 		return true;
@@ -97,6 +130,62 @@ public class LabelToRGB extends MultiThreadedBenchmarkAlgorithm implements Outpu
 		return rgb;
 	}
 
+	/**
+	 * Creates a table that maps each index of the specified labeling mapping
+	 * to a packed ARGB color of the {@link #GLASBEY_ARGB} palette. The empty
+	 * label set is mapped to black.
+	 *
+	 * @param mapping
+	 *            the labeling mapping.
+	 * @return a new color table, with one element per label set.
+	 */
+	public static int[] createColorTable( final LabelingMapping< Integer > mapping )
+	{
+		final int nColors = GLASBEY_ARGB.length;
+		final int[] colorTable = new int[ mapping.numSets() ];
+		for ( int index = 0; index < colorTable.length; index++ )
+		{
+			final Set< Integer > set = mapping.labelsAtIndex( index );
+			if ( set.isEmpty() )
+				continue;
+
+			final int label = set.iterator().next().intValue();
+			colorTable[ index ] = GLASBEY_ARGB[ label % nColors ];
+		}
+		return colorTable;
+	}
+
+	/**
+	 * Writes in <code>pixels</code> the color of the label indices found in
+	 * <code>indices</code>, looked up in the specified color table, for all
+	 * elements from <code>from</code> (inclusive) to <code>to</code>
+	 * (exclusive).
+	 */
+	public static void colorize( final int[] indices, final int[] colorTable, final int[] pixels, final int from, final int to )
+	{
+		for ( int i = from; i < to; i++ )
+		{
+			pixels[ i ] = colorTable[ indices[ i ] ];
+		}
+	}
+
+	/**
+	 * Returns the <code>int</code> array backing the specified index image,
+	 * or <code>null</code> if it is not an array image backed by a single
+	 * <code>int</code> array.
+	 */
+	static int[] getIndexArray( final RandomAccessibleInterval< UnsignedIntType > indexImg )
+	{
+		if ( !( indexImg instanceof ArrayImg ) )
+			return null;
+
+		final Object access = ( ( ArrayImg< ?, ? > ) indexImg ).update( null );
+		if ( !( access instanceof IntArray ) )
+			return null;
+
+		return ( ( IntArray ) access ).getCurrentStorageArray();
+	}
+
 	/**
 	 * The 32 first (non-white) colors of the Glabey LUT, made to maximise the
 	 * differences in perceived colors for labeled image.
@@ -146,4 +235,18 @@ public class LabelToRGB extends MultiThreadedBenchmarkAlgorithm implements Outpu
 		GLASBEY_LUT.put( 31, new int[] { 0, 66, 80 } );
 	}
 
+	/**
+	 * The {@link #GLASBEY_LUT} colors, packed as ARGB <code>int</code>s with
+	 * a 0 alpha, indexed by the LUT index.
+	 */
+	public static final int[] GLASBEY_ARGB = new int[ GLASBEY_LUT.size() ];
+	static
+	{
+		for ( int i = 0; i < GLASBEY_ARGB.length; i++ )
+		{
+			final int[] arr = GLASBEY_LUT.get( i );
+			GLASBEY_ARGB[ i ] = ARGBType.rgba( arr[ 0 ], arr[ 1 ], arr[ 2 ], 0 );
+		}
+	}
+
 }
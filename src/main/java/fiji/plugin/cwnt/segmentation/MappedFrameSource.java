@@ -0,0 +1,210 @@
+package fiji.plugin.cwnt.segmentation;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A {@link FrameSource} that reads the planes of a frame straight from an
+ * uncompressed TIFF or raw file through memory maps. Only the planes of the
+ * frame requested are paged in, so that movies larger than the heap can be
+ * segmented, provided they were opened as virtual stacks.
+ * <p>
+ * The plane offsets are taken from the TIFF headers, or from the file info
+ * of the raw import. Signed 16-bit pixels are shifted by 32768, as ImageJ
+ * does.
+ *
+ * @author Jean-Yves Tinevez
+ *
+ * @param <T>
+ *            the pixel type, matching the file type.
+ */
+public class MappedFrameSource< T extends RealType< T > & NativeType< T >> implements FrameSource< T >
+{
+
+	private final File file;
+
+	private final int fileType;
+
+	private final boolean littleEndian;
+
+	private final int width;
+
+	private final int height;
+
+	private final int nChannels;
+
+	private final int nSlices;
+
+	/** The offset of each plane in the file, in ImageJ stack order. */
+	private final long[] offsets;
+
+	private final double[] calibration;
+
+	/**
+	 * Creates a frame source for the file the specified image was opened
+	 * from.
+	 *
+	 * @param imp
+	 *            the image, typically a virtual stack. Only its dimensions,
+	 *            calibration and file info are used.
+	 * @throws IOException
+	 *             if the file cannot be mapped, for instance because it is
+	 *             compressed.
+	 */
+	public MappedFrameSource( final ImagePlus imp ) throws IOException
+	{
+		final FileInfo original = imp.getOriginalFileInfo();
+		if ( null == original || null == original.directory || null == original.fileName )
+			throw new IOException( "Image " + imp.getTitle() + " has no file." );
+		this.file = new File( original.directory, original.fileName );
+
+		final String name = original.fileName.toLowerCase();
+		final FileInfo[] infos;
+		if ( name.endsWith( ".tif" ) || name.endsWith( ".tiff" ) )
+			infos = new TiffDecoder( original.directory, original.fileName ).getTiffInfo();
+		else
+			infos = new FileInfo[] { original };
+		if ( null == infos || infos.length == 0 )
+			throw new IOException( "Could not read the headers of " + file + "." );
+
+		this.fileType = infos[ 0 ].fileType;
+		this.littleEndian = infos[ 0 ].intelByteOrder;
+		this.width = imp.getWidth();
+		this.height = imp.getHeight();
+		this.nChannels = imp.getNChannels();
+		this.nSlices = imp.getNSlices();
+		if ( !isSupported( fileType ) )
+			throw new IOException( "Unsupported pixel type in " + file + "." );
+
+		final int nPlanes = nChannels * nSlices * imp.getNFrames();
+		this.offsets = new long[ nPlanes ];
+		int k = 0;
+		for ( final FileInfo fi : infos )
+		{
+			if ( fi.compression > FileInfo.COMPRESSION_NONE )
+				throw new IOException( file + " is compressed." );
+			if ( fi.fileType != fileType || fi.width != width || fi.height != height )
+				throw new IOException( file + " has planes of different types or sizes." );
+			final long planeBytes = ( long ) width * height * fi.getBytesPerPixel();
+			for ( int i = 0; i < Math.max( 1, fi.nImages ) && k < nPlanes; i++ )
+			{
+				offsets[ k++ ] = fi.getOffset() + i * ( planeBytes + fi.gapBetweenImages );
+			}
+		}
+		if ( k < nPlanes )
+			throw new IOException( file + " holds " + k + " planes, but " + nPlanes + " are expected." );
+
+		final Calibration cal = imp.getCalibration();
+		this.calibration = new double[] { cal.pixelWidth, cal.pixelHeight, cal.pixelDepth };
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	@SuppressWarnings( "unchecked" )
+	public RandomAccessibleInterval< T > getFrame( final int frame, final int channel ) throws IOException
+	{
+		final long[] dims = nSlices > 1 ? new long[] { width, height, nSlices } : new long[] { width, height };
+		final int planeSize = width * height;
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			final FileChannel fc = raf.getChannel();
+			switch ( fileType )
+			{
+			case FileInfo.GRAY8:
+			{
+				final byte[] pixels = new byte[ planeSize * nSlices ];
+				for ( int z = 0; z < nSlices; z++ )
+				{
+					map( fc, frame, channel, z, planeSize ).get( pixels, z * planeSize, planeSize );
+				}
+				return ( RandomAccessibleInterval< T > ) ArrayImgs.unsignedBytes( pixels, dims );
+			}
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED:
+			{
+				final short[] pixels = new short[ planeSize * nSlices ];
+				for ( int z = 0; z < nSlices; z++ )
+				{
+					map( fc, frame, channel, z, 2 * planeSize ).asShortBuffer().get( pixels, z * planeSize, planeSize );
+				}
+				if ( fileType == FileInfo.GRAY16_SIGNED )
+				{
+					for ( int i = 0; i < pixels.length; i++ )
+					{
+						pixels[ i ] = ( short ) ( pixels[ i ] + 32768 );
+					}
+				}
+				return ( RandomAccessibleInterval< T > ) ArrayImgs.unsignedShorts( pixels, dims );
+			}
+			default:
+			{
+				final float[] pixels = new float[ planeSize * nSlices ];
+				for ( int z = 0; z < nSlices; z++ )
+				{
+					map( fc, frame, channel, z, 4 * planeSize ).asFloatBuffer().get( pixels, z * planeSize, planeSize );
+				}
+				return ( RandomAccessibleInterval< T > ) ArrayImgs.floats( pixels, dims );
+			}
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	@Override
+	public double[] getCalibration()
+	{
+		return calibration.clone();
+	}
+
+	/**
+	 * Returns <code>true</code> if the file the specified image was opened
+	 * from can be mapped: an uncompressed TIFF or raw file, 8-bit, 16-bit or
+	 * 32-bit float.
+	 */
+	public static boolean canMap( final ImagePlus imp )
+	{
+		final FileInfo fi = imp.getOriginalFileInfo();
+		return null != fi && null != fi.directory && null != fi.fileName && new File( fi.directory, fi.fileName ).isFile()
+				&& fi.compression <= FileInfo.COMPRESSION_NONE && isSupported( fi.fileType );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private ByteBuffer map( final FileChannel fc, final int frame, final int channel, final int z, final int bytes ) throws IOException
+	{
+		// ImageJ stack order: channels, then slices, then frames.
+		final int index = channel + z * nChannels + frame * nChannels * nSlices;
+		final ByteBuffer buffer = fc.map( MapMode.READ_ONLY, offsets[ index ], bytes );
+		buffer.order( littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+		return buffer;
+	}
+
+	private static boolean isSupported( final int fileType )
+	{
+		return fileType == FileInfo.GRAY8 || fileType == FileInfo.GRAY16_UNSIGNED || fileType == FileInfo.GRAY16_SIGNED || fileType == FileInfo.GRAY32_FLOAT;
+	}
+}
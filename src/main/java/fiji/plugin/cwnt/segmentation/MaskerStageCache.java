@@ -0,0 +1,35 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.List;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Interface for caches of the images computed by the steps of a
+ * {@link NucleiMasker}.
+ * <p>
+ * Entries are keyed by a string that identifies the source image and all the
+ * parameters the step output depends on, as built by
+ * {@link NucleiMasker#getStageKey(int)}. Images stored in the cache are
+ * shared: neither the cache nor its clients may modify them.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface MaskerStageCache
+{
+
+	/**
+	 * Returns the images stored for the specified key, or <code>null</code> if
+	 * there are none.
+	 */
+	public List< ArrayImg< FloatType, FloatArray >> get( String key );
+
+	/**
+	 * Stores the specified images for the specified key. The cache may decide
+	 * not to store them, or to discard them later.
+	 */
+	public void put( String key, List< ArrayImg< FloatType, FloatArray >> images );
+
+}
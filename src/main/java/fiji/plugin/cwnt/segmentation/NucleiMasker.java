@@ -1,5 +1,17 @@
 package fiji.plugin.cwnt.segmentation;
 
+import static fiji.plugin.cwnt.segmentation.SegmentationMetrics.ANISOTROPIC_DIFFUSION;
+import static fiji.plugin.cwnt.segmentation.SegmentationMetrics.GAUSSIAN_FILTERING;
+import static fiji.plugin.cwnt.segmentation.SegmentationMetrics.GRADIENT;
+import static fiji.plugin.cwnt.segmentation.SegmentationMetrics.HESSIAN;
+import static fiji.plugin.cwnt.segmentation.SegmentationMetrics.LAPLACIAN;
+import static fiji.plugin.cwnt.segmentation.SegmentationMetrics.MASK;
+import static fiji.plugin.cwnt.segmentation.SegmentationMetrics.MASKING;
+import fiji.plugin.cwnt.segmentation.SegmentationEvents.Event;
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics.Probe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -114,6 +126,22 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 
 	private double delta = DEFAULT_MASKING_PARAMETERS[ 8 ];
 
+	/** Checked between and within steps to abort processing early. */
+	private CancelCheck cancelCheck;
+
+	/** Where to look for and store step outputs. */
+	private MaskerStageCache stageCache;
+
+	private String sourceKey;
+
+	/** Where to record the metrics of each sub-step. */
+	private SegmentationMetrics metrics = SegmentationMetrics.DISABLED;
+
+	private int frame;
+
+	/** Duration of each step in ms, or -1 if it was not computed. */
+	private final long[] stepTimes = new long[] { -1, -1, -1, -1 };
+
 	/*
 	 * CONSTRUCTOR
 	 */
@@ -128,6 +156,14 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 	 * METHODS
 	 */
 
+	/**
+	 * Returns the source image of this masker.
+	 */
+	public RandomAccessibleInterval< T > getSource()
+	{
+		return image;
+	}
+
 	public ArrayImg< FloatType, FloatArray > getGaussianFilteredImage()
 	{
 		return filtered;
@@ -204,21 +240,30 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		 * Step 1: Low pass filter. So as to damper the noise. We simply do a
 		 * gaussian filtering.
 		 */
+		if ( checkCanceled() ) { return false; }
+		if ( restoreStage( 1 ) ) { return true; }
+		stepTimes[ 0 ] = 0;
 		final long top = System.currentTimeMillis();
 		boolean check;
 		if ( DEBUG )
 		{
 			System.out.print( String.format( BASE_ERROR_MESSAGE + "Low pass filter, with σf = %.1f ... ", gaussFilterSigma ) );
 		}
+		final Event event = beginStepEvent( GAUSSIAN_FILTERING );
+		final Probe probe = metrics.start( GAUSSIAN_FILTERING, frame );
 		check = execGaussianFiltering();
+		probe.stop( getLiveBufferBytes() );
+		event.commit();
 		if ( !check ) { return false; }
 		final long dt = ( System.currentTimeMillis() - top );
 		processingTime += dt;
+		stepTimes[ 0 ] += dt;
 		if ( DEBUG )
 		{
 			System.out.println( "dt = " + dt / 1e3 + " s." );
 		}
 
+		storeStage( 1 );
 		return check;
 	}
 
@@ -234,19 +279,28 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		 * Step 2a: Anisotropic diffusion To have nuclei of approximative
 		 * constant intensity.
 		 */
+		if ( checkCanceled() ) { return false; }
+		if ( restoreStage( 2 ) ) { return true; }
+		stepTimes[ 1 ] = 0;
 		if ( DEBUG )
 		{
 			System.out.print( String.format( BASE_ERROR_MESSAGE + "Anisotropic diffusion with n = %d and κ = %.1f ... ", nIterAnDiff, kappa ) );
 		}
 		final long top = System.currentTimeMillis();
+		final Event event = beginStepEvent( ANISOTROPIC_DIFFUSION );
+		final Probe probe = metrics.start( ANISOTROPIC_DIFFUSION, frame );
 		final boolean check = execAnisotropicDiffusion();
+		probe.stop( getLiveBufferBytes() );
+		event.commit();
 		if ( !check ) { return false; }
 		final long dt = ( System.currentTimeMillis() - top );
 		processingTime += dt;
+		stepTimes[ 1 ] += dt;
 		if ( DEBUG )
 		{
 			System.out.println( "dt = " + dt / 1e3 + " s." );
 		}
+		storeStage( 2 );
 		return check;
 	}
 
@@ -255,15 +309,23 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		/*
 		 * Step 3a: Gaussian gradient
 		 */
+		if ( checkCanceled() ) { return false; }
+		if ( restoreStage( 3 ) ) { return true; }
+		stepTimes[ 2 ] = 0;
 		if ( DEBUG )
 		{
 			System.out.print( String.format( BASE_ERROR_MESSAGE + "Gaussian gradient with %.1f ... ", gaussGradSigma ) );
 		}
 		long top = System.currentTimeMillis();
+		Event event = beginStepEvent( GRADIENT );
+		Probe probe = metrics.start( GRADIENT, frame );
 		boolean check = execComputeGradient();
+		probe.stop( getLiveBufferBytes() );
+		event.commit();
 		if ( !check ) { return false; }
 		long dt = ( System.currentTimeMillis() - top );
 		processingTime += dt;
+		stepTimes[ 2 ] += dt;
 		if ( DEBUG )
 		{
 			System.out.println( "dt = " + dt / 1e3 + " s." );
@@ -272,15 +334,21 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		/*
 		 * Step 3b: Laplacian
 		 */
+		if ( checkCanceled() ) { return false; }
 		if ( DEBUG )
 		{
 			System.out.print( BASE_ERROR_MESSAGE + "Laplacian... " );
 		}
 		top = System.currentTimeMillis();
+		event = beginStepEvent( LAPLACIAN );
+		probe = metrics.start( LAPLACIAN, frame );
 		check = execComputeLaplacian();
+		probe.stop( getLiveBufferBytes() );
+		event.commit();
 		if ( !check ) { return false; }
 		dt = ( System.currentTimeMillis() - top );
 		processingTime += dt;
+		stepTimes[ 2 ] += dt;
 		if ( DEBUG )
 		{
 			System.out.println( "dt = " + dt / 1e3 + " s." );
@@ -289,20 +357,27 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		/*
 		 * Step 3c: Hessian
 		 */
+		if ( checkCanceled() ) { return false; }
 		if ( DEBUG )
 		{
 			System.out.print( BASE_ERROR_MESSAGE + "Hessian... " );
 		}
 		top = System.currentTimeMillis();
+		event = beginStepEvent( HESSIAN );
+		probe = metrics.start( HESSIAN, frame );
 		check = execComputeHessian();
+		probe.stop( getLiveBufferBytes() );
+		event.commit();
 		if ( !check ) { return false; }
 		dt = ( System.currentTimeMillis() - top );
 		processingTime += dt;
+		stepTimes[ 2 ] += dt;
 		if ( DEBUG )
 		{
 			System.out.println( "dt = " + dt / 1e3 + " s." );
 		}
 
+		storeStage( 3 );
 		return check;
 	}
 
@@ -311,15 +386,23 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		/*
 		 * Step 4a: Create masking function
 		 */
+		if ( checkCanceled() ) { return false; }
+		if ( restoreStage( 4 ) ) { return true; }
+		stepTimes[ 3 ] = 0;
 		if ( DEBUG )
 		{
 			System.out.print( String.format( BASE_ERROR_MESSAGE + "Creating mask function with γ = %.1f, α = %.1f, β = %.1f, ε = %.1f, δ = %.1f ... ", gamma, alpha, beta, epsilon, delta ) );
 		}
 		long top = System.currentTimeMillis();
+		Event event = beginStepEvent( MASK );
+		Probe probe = metrics.start( MASK, frame );
 		boolean check = execCreateMask();
+		probe.stop( getLiveBufferBytes() );
+		event.commit();
 		if ( !check ) { return false; }
 		long dt = ( System.currentTimeMillis() - top );
 		processingTime += dt;
+		stepTimes[ 3 ] += dt;
 		if ( DEBUG )
 		{
 			System.out.println( "dt = " + dt / 1e3 + " s." );
@@ -328,20 +411,27 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		/*
 		 * Step 4b: Do masking, with the gaussian filtered image
 		 */
+		if ( checkCanceled() ) { return false; }
 		if ( DEBUG )
 		{
 			System.out.print( BASE_ERROR_MESSAGE + "Masking... " );
 		}
 		top = System.currentTimeMillis();
+		event = beginStepEvent( MASKING );
+		probe = metrics.start( MASKING, frame );
 		check = execMasking();
+		probe.stop( getLiveBufferBytes() );
+		event.commit();
 		if ( !check ) { return false; }
 		dt = ( System.currentTimeMillis() - top );
 		processingTime += dt;
+		stepTimes[ 3 ] += dt;
 		if ( DEBUG )
 		{
 			System.out.println( "dt = " + dt / 1e3 + " s." );
 		}
 
+		storeStage( 4 );
 		return check;
 	}
 
@@ -372,6 +462,94 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 		return true;
 	}
 
+	/**
+	 * Sets the check used to abort processing early. It is consulted before
+	 * each step, between sub-steps and at each iteration of the anisotropic
+	 * diffusion. When it is canceled, the step running returns
+	 * <code>false</code>, and the images it and the following steps compute
+	 * must be considered invalid.
+	 *
+	 * @param cancelCheck
+	 *            the cancel check, or <code>null</code> to never abort.
+	 */
+	public void setCancelCheck( final CancelCheck cancelCheck )
+	{
+		this.cancelCheck = cancelCheck;
+	}
+
+	/**
+	 * Sets the cache this masker uses to skip steps whose output was already
+	 * computed with the same parameters on the same source image.
+	 *
+	 * @param stageCache
+	 *            the cache, or <code>null</code> to disable caching.
+	 * @param sourceKey
+	 *            a string that uniquely identifies the source image of this
+	 *            masker, for instance its slice index, crop and scale.
+	 */
+	public void setStageCache( final MaskerStageCache stageCache, final String sourceKey )
+	{
+		this.stageCache = stageCache;
+		this.sourceKey = sourceKey;
+	}
+
+	/**
+	 * Returns the key that identifies the output of the specified step in a
+	 * {@link MaskerStageCache}. It is made of the source key and of the current
+	 * values of the parameters of this step and of all the steps it depends
+	 * on.
+	 *
+	 * @param step
+	 *            the step, from 1 to 4.
+	 * @return the stage key.
+	 */
+	public String getStageKey( final int step )
+	{
+		final StringBuilder str = new StringBuilder( String.valueOf( sourceKey ) );
+		str.append( "|1:" ).append( gaussFilterSigma );
+		if ( step >= 2 )
+			str.append( "|2:" ).append( nIterAnDiff ).append( ',' ).append( kappa );
+		if ( step >= 3 )
+			str.append( "|3:" ).append( gaussGradSigma );
+		if ( step >= 4 )
+			str.append( "|4:" ).append( gamma ).append( ',' ).append( alpha ).append( ',' ).append( beta ).append( ',' ).append( epsilon ).append( ',' ).append( delta );
+		return str.toString();
+	}
+
+	/**
+	 * Sets the collector the metrics of each sub-step are recorded in.
+	 *
+	 * @param metrics
+	 *            the metrics collector.
+	 * @param frame
+	 *            the frame the source image belongs to, used to tag records.
+	 */
+	public void setMetrics( final SegmentationMetrics metrics, final int frame )
+	{
+		this.metrics = metrics;
+		this.frame = frame;
+	}
+
+	/**
+	 * Returns the duration of each of the 4 steps in the last run, in ms. The
+	 * duration of a step that was restored from the stage cache, or that was
+	 * not run, is -1.
+	 */
+	public long[] getStepTimes()
+	{
+		return stepTimes.clone();
+	}
+
+	/**
+	 * Returns <code>true</code> if the cancel check of this masker is
+	 * canceled.
+	 */
+	public boolean isCanceled()
+	{
+		final CancelCheck cc = cancelCheck;
+		return null != cc && cc.isCanceled();
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
@@ -382,6 +560,114 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 	 * PRIVATE METHODS
 	 */
 
+	/**
+	 * Begins the JFR event of the specified sub-step.
+	 */
+	private Event beginStepEvent( final String stage )
+	{
+		long voxels = 1;
+		for ( int d = 0; d < image.numDimensions(); d++ )
+		{
+			voxels *= image.dimension( d );
+		}
+		return SegmentationEvents.MASKER_STEP.begin().set( 0, frame ).set( 1, stage ).set( 2, voxels );
+	}
+
+	/**
+	 * Returns the total size of the images currently held by this masker, in
+	 * bytes.
+	 */
+	private long getLiveBufferBytes()
+	{
+		final List< ArrayImg< FloatType, FloatArray >> images = new ArrayList< ArrayImg< FloatType, FloatArray >>();
+		for ( final ArrayImg< FloatType, FloatArray > img : Arrays.asList( filtered, anDiffImage, Gx, Gy, Gnorm, Gxx, Gxy, Gyx, Gyy, H, L, M, target ) )
+		{
+			// Images may be shared between fields.
+			if ( null != img && !images.contains( img ) )
+				images.add( img );
+		}
+		long bytes = 0;
+		for ( final ArrayImg< FloatType, FloatArray > img : images )
+		{
+			bytes += 4 * img.size();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Restores the output of the specified step from the stage cache. Returns
+	 * <code>true</code> if it was found there.
+	 */
+	private boolean restoreStage( final int step )
+	{
+		if ( null == stageCache )
+			return false;
+		final List< ArrayImg< FloatType, FloatArray >> images = stageCache.get( getStageKey( step ) );
+		if ( null == images )
+			return false;
+
+		switch ( step )
+		{
+		case 1:
+			filtered = images.get( 0 );
+			target = filtered;
+			break;
+		case 2:
+			anDiffImage = images.get( 0 );
+			break;
+		case 3:
+			Gnorm = images.get( 0 );
+			L = images.get( 1 );
+			H = images.get( 2 );
+			break;
+		case 4:
+			M = images.get( 0 );
+			target = images.get( 1 );
+			break;
+		}
+		stepTimes[ step - 1 ] = -1;
+		return true;
+	}
+
+	/**
+	 * Stores the output of the specified step in the stage cache. Only the
+	 * images needed by the next steps and the getters are stored.
+	 */
+	private void storeStage( final int step )
+	{
+		if ( null == stageCache )
+			return;
+
+		final List< ArrayImg< FloatType, FloatArray >> images = new ArrayList< ArrayImg< FloatType, FloatArray >>( 3 );
+		switch ( step )
+		{
+		case 1:
+			images.add( filtered );
+			break;
+		case 2:
+			images.add( anDiffImage );
+			break;
+		case 3:
+			images.add( Gnorm );
+			images.add( L );
+			images.add( H );
+			break;
+		case 4:
+			images.add( M );
+			images.add( target );
+			break;
+		}
+		stageCache.put( getStageKey( step ), images );
+	}
+
+	private boolean checkCanceled()
+	{
+		if ( !isCanceled() )
+			return false;
+		errorMessage = BASE_ERROR_MESSAGE + "Processing canceled.";
+		return true;
+	}
+
 	@SuppressWarnings( "unchecked" )
 	private boolean execMasking()
 	{
@@ -420,7 +706,7 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 			};
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
+		SegmentationMetrics.startAndJoin( threads );
 		return true;
 	}
 
@@ -477,7 +763,7 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 			};
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
+		SegmentationMetrics.startAndJoin( threads );
 		return true;
 	}
 
@@ -531,7 +817,7 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 			};
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
+		SegmentationMetrics.startAndJoin( threads );
 		normalize( H );
 		return true;
 	}
@@ -610,7 +896,7 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 			};
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
+		SegmentationMetrics.startAndJoin( threads );
 		normalize( L );
 		return true;
 	}
@@ -644,7 +930,7 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 
 		final AtomicInteger aj = new AtomicInteger( 0 );
 		final AtomicBoolean ok = new AtomicBoolean( true );
-		final long nslices = anDiffImage.dimension( 2 );
+		final long nslices = anDiffImage.numDimensions() > 2 ? anDiffImage.dimension( 2 ) : 1;
 
 		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
 
@@ -672,6 +958,11 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 						boolean check = andiff.checkInput();
 						for ( int i = 0; i < nIterAnDiff; i++ )
 						{
+							if ( isCanceled() )
+							{
+								ok.set( false );
+								return;
+							}
 							check = check && andiff.process();
 						}
 						if ( !check )
@@ -686,7 +977,8 @@ public class NucleiMasker< T extends RealType< T > & NativeType< T >> extends Mu
 			};
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
+		SegmentationMetrics.startAndJoin( threads );
+		if ( checkCanceled() ) { return false; }
 		return ok.get();
 	}
 
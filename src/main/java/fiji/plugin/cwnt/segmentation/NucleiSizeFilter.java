@@ -0,0 +1,68 @@
+package fiji.plugin.cwnt.segmentation;
+
+/**
+ * Interface for the stage that decides, based on their volume, which labeled
+ * regions are discarded, which are kept as single nuclei, and which are
+ * considered for splitting in several nuclei.
+ * <p>
+ * For each frame, the {@link NucleiSpotCreator} calls the methods of this
+ * interface in the following order:
+ * <ol>
+ * <li>{@link #accept(long)} for every region, while region sizes are
+ * measured. Only the accepted regions are added to the size histogram.
+ * <li>{@link #setStatistics(RegionSizeHistogram)} once, with the histogram
+ * of the accepted region sizes.
+ * <li>{@link #isOutlier(long)}, {@link #shouldSplit(long)} and
+ * {@link #getVolumeEstimate()} for the accepted regions.
+ * </ol>
+ *
+ * @author Jean-Yves Tinevez
+ */
+public interface NucleiSizeFilter
+{
+
+	/**
+	 * Returns <code>true</code> if a region with the specified volume is
+	 * within the absolute bounds of acceptable nuclei volumes. This is called
+	 * before the volume statistics are known.
+	 *
+	 * @param volume
+	 *            the region volume, in voxels.
+	 */
+	public boolean accept( long volume );
+
+	/**
+	 * Sets the distribution of volumes of the regions that were accepted by
+	 * {@link #accept(long)}.
+	 *
+	 * @param histogram
+	 *            the histogram of accepted region volumes.
+	 */
+	public void setStatistics( RegionSizeHistogram histogram );
+
+	/**
+	 * Returns <code>true</code> if an accepted region with the specified
+	 * volume should nonetheless be discarded, based on the volume statistics.
+	 *
+	 * @param volume
+	 *            the region volume, in voxels.
+	 */
+	public boolean isOutlier( long volume );
+
+	/**
+	 * Returns <code>true</code> if an accepted region with the specified
+	 * volume is too large to be made of a single nucleus, and should be
+	 * considered for splitting.
+	 *
+	 * @param volume
+	 *            the region volume, in voxels.
+	 */
+	public boolean shouldSplit( long volume );
+
+	/**
+	 * Returns the best estimate of the volume of a single nucleus, in voxels.
+	 * Returns {@link Double#NaN} if it cannot be estimated.
+	 */
+	public double getVolumeEstimate();
+
+}
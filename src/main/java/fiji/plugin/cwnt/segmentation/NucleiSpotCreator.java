@@ -3,28 +3,42 @@ package fiji.plugin.cwnt.segmentation;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
+import net.imglib2.multithreading.Chunk;
+import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegion;
 import net.imglib2.roi.labeling.LabelRegionCursor;
 import net.imglib2.roi.labeling.LabelRegions;
+import net.imglib2.roi.labeling.LabelingMapping;
 import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.type.numeric.integer.UnsignedIntType;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 import org.apache.commons.math3.ml.clustering.CentroidCluster;
 import org.apache.commons.math3.ml.clustering.KMeansPlusPlusClusterer;
 
+import fiji.plugin.cwnt.segmentation.SegmentationEvents.Event;
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics.Probe;
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
 import fiji.plugin.trackmate.Spot;
 
+@SuppressWarnings( "deprecation" )
 public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 {
 
@@ -32,26 +46,26 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 
 	private static final String BASE_ERROR_MESSAGE = "[NucleiSplitter] ";
 
-	/** The labelled image contained the nuclei to split. */
-	private final ImgLabeling< Integer, UnsignedIntType > source;
-
 	/**
-	 * Nuclei volume top threshold. Nuclei with a volume larger than this
-	 * threshold will be discarded and not considered for splitting.
+	 * The spot feature that stores the label of the nucleus in the labeling,
+	 * so that spots can be matched with label images.
 	 */
-	private final long volumeThresholdUp = 1000; // Bhavna code
+	public static final String LABEL = "CWNS_LABEL";
 
-	/**
-	 * Nuclei volume bottom threshold. Nuclei with a volume smaller than this
-	 * threshold will be discarded and not considered for splitting.
-	 */
-	private final long volumeThresholdBottom = 0; // Bhavna code
+	/** The spot feature that stores the volume of the nucleus, calibrated. */
+	public static final String VOLUME = "CWNS_VOLUME";
+
+	/** The labelled image contained the nuclei to split. */
+	private final ImgLabeling< Integer, UnsignedIntType > source;
 
 	/**
-	 * Volume selectivity: nuclei with a volume larger than mean + this factor
-	 * times the standard deviation will be considered for splitting.
+	 * The stage that decides what regions are discarded, kept or split, based
+	 * on their volume.
 	 */
-	private final double stdFactor = 0.5;
+	private final NucleiSizeFilter sizeFilter;
+
+	/** The volume of each region that passed the size filter, per label. */
+	private Map< Integer, Long > volumes;
 
 	private List< Integer > nucleiToSplit;
 
@@ -61,20 +75,30 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 
 	private final double[] calibration;
 
-	private final Iterator< Integer > labelGenerator;
+	private final LabelGenerator labelGenerator;
 
 	private final LabelRegions< Integer > regions;
 
 	private final boolean splitNuclei;
 
+	private SegmentationMetrics metrics = SegmentationMetrics.DISABLED;
+
+	private int frame;
+
+	/** Number of voxels held by the splits running, and its peak. */
+	private final AtomicLong liveSplitVoxels = new AtomicLong( 0 );
+
+	private final AtomicLong peakSplitVoxels = new AtomicLong( 0 );
+
 	/*
 	 * CONSTRUCTOR
 	 */
 
-	public NucleiSpotCreator( final ImgLabeling< Integer, UnsignedIntType > labeling, final double[] calibration, final Iterator< Integer > labelGenerator, final boolean splitNuclei )
+	public NucleiSpotCreator( final ImgLabeling< Integer, UnsignedIntType > labeling, final double[] calibration, final LabelGenerator labelGenerator, final NucleiSizeFilter sizeFilter, final boolean splitNuclei )
 	{
 		super();
 		this.source = labeling;
+		this.sizeFilter = sizeFilter;
 		this.calibration = calibration;
 		this.labelGenerator = labelGenerator;
 		this.splitNuclei = splitNuclei;
@@ -92,6 +116,21 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 		return spots;
 	}
 
+	/**
+	 * Sets the collector the metrics of spot creation and splitting are
+	 * recorded in.
+	 *
+	 * @param metrics
+	 *            the metrics collector.
+	 * @param frame
+	 *            the frame the labeling belongs to, used to tag records.
+	 */
+	public void setMetrics( final SegmentationMetrics metrics, final int frame )
+	{
+		this.metrics = metrics;
+		this.frame = frame;
+	}
+
 	@Override
 	public boolean checkInput()
 	{
@@ -102,32 +141,46 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 	public boolean process()
 	{
 		final long start = System.currentTimeMillis();
-		final long volumeEstimate = getVolumeEstimate();
-
+		final Probe creationProbe = metrics.start( SegmentationMetrics.SPOT_CREATION, frame );
+		final double volumeEstimate = getVolumeEstimate();
+
+		/*
+		 * Regions that are not large enough to be split after all are turned
+		 * into spots before splitting starts, while the labeling is not being
+		 * modified.
+		 */
 		final Collection< LabelRegion< Integer > > toProcess = new ArrayList< LabelRegion< Integer > >( nucleiToSplit.size() );
 		for ( final Integer label : nucleiToSplit )
 		{
-			toProcess.add( regions.getLabelRegion( label ).copy() );
+			final LabelRegion< Integer > region = regions.getLabelRegion( label );
+			if ( ( int ) ( region.size() / volumeEstimate ) > 1 )
+			{
+				toProcess.add( region.copy() );
+			}
+			else
+			{
+				spots.add( createSpot( region, 1.0 ) );
+			}
 		}
+		// The volume of each label set is measured in a long array.
+		creationProbe.stop( 8l * source.getMapping().numSets() );
 
-		final ExecutorService service = Executors.newFixedThreadPool( getNumThreads() );
+		final Probe splittingProbe = metrics.start( SegmentationMetrics.SPLITTING, frame );
+		final ExecutorService service = Executors.newFixedThreadPool( getNumThreads(), splittingProbe.getThreadFactory() );
 		final Iterator< LabelRegion< Integer >> iterator = toProcess.iterator();
 		while(iterator.hasNext())
 		{
 			final LabelRegion< Integer > region = iterator.next();
 			final long volume = region.size();
 			final int targetNucleiNumber = ( int ) ( volume / volumeEstimate );
-			if ( targetNucleiNumber > 1 )
+			service.execute( new Runnable()
 			{
-				service.execute( new Runnable()
+				@Override
+				public void run()
 				{
-					@Override
-					public void run()
-					{
-						split( region, targetNucleiNumber );
-					}
-				} );
-			}
+					split( region, targetNucleiNumber );
+				}
+			} );
 		}
 		service.shutdown();
 		try
@@ -140,12 +193,43 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 			e.printStackTrace();
 			return false;
 		}
+		// Splitting holds the integer coordinates of the voxels it clusters.
+		splittingProbe.stop( 4l * regions.numDimensions() * peakSplitVoxels.get() );
 
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
 		return true;
 	}
 
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Declares the spot features this class adds, {@link #LABEL} and
+	 * {@link #VOLUME}, in the specified feature model, so that TrackMate
+	 * displays them and saves them with the model.
+	 */
+	public static void declareFeatures( final FeatureModel featureModel )
+	{
+		final List< String > features = new ArrayList< String >( 2 );
+		features.add( LABEL );
+		features.add( VOLUME );
+		final Map< String, String > names = new HashMap< String, String >( 2 );
+		names.put( LABEL, "CWNS label" );
+		names.put( VOLUME, "CWNS volume" );
+		final Map< String, String > shortNames = new HashMap< String, String >( 2 );
+		shortNames.put( LABEL, "Label" );
+		shortNames.put( VOLUME, "Volume" );
+		final Map< String, Dimension > dimensions = new HashMap< String, Dimension >( 2 );
+		dimensions.put( LABEL, Dimension.NONE );
+		dimensions.put( VOLUME, Dimension.NONE );
+		final Map< String, Boolean > isInt = new HashMap< String, Boolean >( 2 );
+		isInt.put( LABEL, Boolean.TRUE );
+		isInt.put( VOLUME, Boolean.FALSE );
+		featureModel.declareSpotFeatures( features, names, shortNames, dimensions, isInt );
+	}
+
 	/*
 	 * PRIVATE METHODS
 	 */
@@ -156,42 +240,75 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 	 * calibrated euclidean distance.
 	 */
 	private void split( final LabelRegion< Integer > region, final int n )
+	{
+		// Keep track of the voxels held by the splits running concurrently.
+		final int volume = ( int ) region.size();
+		final long live = liveSplitVoxels.addAndGet( volume );
+		long peak = peakSplitVoxels.get();
+		while ( live > peak && !peakSplitVoxels.compareAndSet( peak, live ) )
+			peak = peakSplitVoxels.get();
+		final Event event = SegmentationEvents.NUCLEUS_SPLIT.begin().set( 0, frame ).set( 1, ( long ) volume ).set( 2, n );
+		try
+		{
+			splitVoxels( region, n, volume );
+		}
+		finally
+		{
+			liveSplitVoxels.addAndGet( -volume );
+			event.commit();
+		}
+	}
+
+	private void splitVoxels( final LabelRegion< Integer > region, final int n, final int volume )
 	{
 		// Harvest pixel coordinates in a collection of calibrated clusterable
 		// points.
-		final int volume = ( int ) region.size();
 		final Collection< CalibratedEuclideanIntegerPoint > pixels = new ArrayList< CalibratedEuclideanIntegerPoint >( volume );
 
-		final LabelRegionCursor cursor = region.cursor();
-		while ( cursor.hasNext() )
+		/*
+		 * The cursor reads the labeling that other splits relabel, so it must
+		 * hold the same lock as the label writes below.
+		 */
+		synchronized ( source )
 		{
-			cursor.fwd();
-			final int[] position = new int[ regions.numDimensions() ];
-			cursor.localize( position );
-			pixels.add( new CalibratedEuclideanIntegerPoint( position, calibration ) );
+			final LabelRegionCursor cursor = region.cursor();
+			while ( cursor.hasNext() )
+			{
+				cursor.fwd();
+				final int[] position = new int[ regions.numDimensions() ];
+				cursor.localize( position );
+				pixels.add( new CalibratedEuclideanIntegerPoint( position, calibration ) );
+			}
 		}
 
 		// Do K-means++ clustering
 		final KMeansPlusPlusClusterer< CalibratedEuclideanIntegerPoint > clusterer = new KMeansPlusPlusClusterer< CalibratedEuclideanIntegerPoint >( n );
 		final List< CentroidCluster< CalibratedEuclideanIntegerPoint >> clusters = clusterer.cluster( pixels );
 
-		// Create spots from clusters
+		// Create spots from clusters. We reserve all the new labels at once.
 		final RandomAccess< LabelingType< Integer >> ra = source.randomAccess( region );
+		int currentLabel = labelGenerator.reserve( clusters.size() );
 		for ( final CentroidCluster< CalibratedEuclideanIntegerPoint > cluster : clusters )
 		{
 			// Relabel new clusters.
-			Integer currentLabel = null;
+			final Integer label = Integer.valueOf( currentLabel++ );
 			final double[] centroid = new double[ 3 ];
-			for ( final CalibratedEuclideanIntegerPoint p : cluster.getPoints() )
+			/*
+			 * The labeling mapping is shared by all the regions and is not
+			 * thread-safe, so writing labels must be serialized. The
+			 * clustering above is what takes time, and it is done in parallel.
+			 */
+			synchronized ( source )
 			{
-				ra.setPosition( p );
-				ra.get().clear();
-				if ( null == currentLabel )
+				for ( final CalibratedEuclideanIntegerPoint p : cluster.getPoints() )
 				{
-					currentLabel = labelGenerator.next();
+					ra.setPosition( p );
+					ra.get().clear();
+					ra.get().add( label );
 				}
-				ra.get().add( currentLabel );
-
+			}
+			for ( final CalibratedEuclideanIntegerPoint p : cluster.getPoints() )
+			{
 				for ( int i = 0; i < centroid.length; i++ )
 				{
 					centroid[ i ] += p.getPoint()[ i ];
@@ -209,6 +326,8 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 			// Split spot get a quality of 1 over the number of spots in the
 			// initial cluster
 			final Spot spot = new Spot( centroid[ 0 ], centroid[ 1 ], centroid[ 2 ], radius, quality );
+			spot.putFeature( LABEL, Double.valueOf( label.doubleValue() ) );
+			spot.putFeature( VOLUME, Double.valueOf( nucleusVol ) );
 			synchronized ( spots )
 			{
 				spots.add( spot );
@@ -220,6 +339,11 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 	 * Get an estimate of the actual single nuclei volume, to use in subsequent
 	 * steps, when splitting touching nuclei.
 	 * <p>
+	 * The volume of all regions is measured in a single pass over the index
+	 * image of the labeling, and the volumes accepted by the size filter are
+	 * accumulated in a {@link RegionSizeHistogram}, from which the size filter
+	 * computes its statistics.
+	 * <p>
 	 * Executing this methods also sets the following fields:
 	 * <ul>
 	 * <li> {@link #thrashedLabels} the list of labels that should be erased from
@@ -231,83 +355,73 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 	 * single nucleus.
 	 * </ul>
 	 *
-	 * @return the best volume estimate, as a long primitive
+	 * @return the best volume estimate, in voxels.
 	 */
-	private long getVolumeEstimate()
+	private double getVolumeEstimate()
 	{
-		final Set< Integer > labels = regions.getExistingLabels();
+		final long[] indexVolumes = measureIndexVolumes();
+		final LabelingMapping< Integer > mapping = source.getMapping();
 
 		// Discard nuclei too big or too small;
-		thrashedLabels = new ArrayList< Integer >( labels.size() / 10 );
-		long volume;
-		for ( final Integer label : labels )
+		final RegionSizeHistogram histogram = new RegionSizeHistogram();
+		volumes = new HashMap< Integer, Long >( indexVolumes.length );
+		thrashedLabels = new ArrayList< Integer >( indexVolumes.length / 10 );
+		int nRegions = 0;
+		for ( int index = 0; index < indexVolumes.length; index++ )
 		{
-			volume = regions.getLabelRegion( label ).size();
-			if ( volume >= volumeThresholdUp || volume <= volumeThresholdBottom )
+			final long volume = indexVolumes[ index ];
+			if ( volume == 0 )
+				continue;
+			for ( final Integer label : mapping.labelsAtIndex( index ) )
 			{
-				thrashedLabels.add( label );
+				nRegions++;
+				if ( sizeFilter.accept( volume ) )
+				{
+					volumes.put( label, Long.valueOf( volume ) );
+					histogram.add( volume );
+				}
+				else
+				{
+					thrashedLabels.add( label );
+				}
 			}
 		}
-		if ( DEBUG )
-		{
-			System.out.println( BASE_ERROR_MESSAGE + "Removing " + thrashedLabels.size() + " bad nuclei out of " + labels.size() );
-		}
-		labels.removeAll( thrashedLabels );
-		final int nNuclei = labels.size();
-
-		// Compute mean and std of volume distribution
-		long sum = 0;
-		long sum_sqr = 0;
-		long v;
-		for ( final Integer label : labels )
-		{
-			v = regions.getLabelRegion( label ).size();
-			sum += v;
-			sum_sqr += v * v;
-		}
-		final long mean = sum / nNuclei;
-		final long std = ( long ) Math.sqrt( ( sum_sqr - sum * mean ) / nNuclei );
+		sizeFilter.setStatistics( histogram );
 
-		if ( splitNuclei )
+		// Discard outliers, and harvest suspicious nuclei
+		final List< Integer > nonSuspiciousNuclei = new ArrayList< Integer >( volumes.size() );
+		nucleiToSplit = new ArrayList< Integer >( volumes.size() / 5 );
+		for ( final Integer label : volumes.keySet() )
 		{
-			// Harvest suspicious nuclei
-			nucleiToSplit = new ArrayList< Integer >( nNuclei / 5 );
-			final long splitThreshold = ( long ) ( mean + stdFactor * std );
-			for ( final Integer label : labels )
+			final long volume = volumes.get( label ).longValue();
+			if ( sizeFilter.isOutlier( volume ) )
 			{
-				volume = regions.getLabelRegion( label ).size();
-				if ( volume >= splitThreshold )
-				{
-					nucleiToSplit.add( label );
-				}
+				thrashedLabels.add( label );
+			}
+			else if ( splitNuclei && sizeFilter.shouldSplit( volume ) )
+			{
+				nucleiToSplit.add( label );
+			}
+			else
+			{
+				nonSuspiciousNuclei.add( label );
 			}
 		}
-		else
-		{
-			nucleiToSplit = Collections.emptyList();
-		}
-
-		// Build non-suspicious nuclei list
-		final ArrayList< Integer > nonSuspiciousNuclei = new ArrayList< Integer >( labels );
-		nonSuspiciousNuclei.removeAll( nucleiToSplit );
 		if ( DEBUG )
 		{
-			System.out.println( BASE_ERROR_MESSAGE + "Found " + nucleiToSplit.size() + " nuclei to split out of " + labels.size() );
+			System.out.println( BASE_ERROR_MESSAGE + "Removing " + thrashedLabels.size() + " bad nuclei out of " + nRegions );
+			System.out.println( BASE_ERROR_MESSAGE + sizeFilter );
+			System.out.println( BASE_ERROR_MESSAGE + "Found " + nucleiToSplit.size() + " nuclei to split out of " + ( nRegions - thrashedLabels.size() ) );
 		}
 
 		// Harvest non-suspicious nuclei as spots
-		final double voxelVolume = calibration[ 0 ] * calibration[ 1 ] * calibration[ 2 ];
 		for ( final Integer label : nonSuspiciousNuclei )
 		{
-			final double nucleusVol = regions.getLabelRegion( label ).size() * voxelVolume;
-			final double radius = Math.max( Util.max( calibration ), Math.pow( 3 * nucleusVol / ( 4 * Math.PI ), 0.33333 ) );
-			final double[] coordinates = getCentroid( label );
-			final Spot spot = new Spot( coordinates[ 0 ], coordinates[ 1 ], coordinates[ 2 ], radius, 1.0 );
 			// non-suspicious spots get a quality of 1
-			spots.add( spot );
+			spots.add( createSpot( regions.getLabelRegion( label ), 1.0 ) );
 		}
 
-		final long volumeEstimate = mean;
+		final double volumeEstimate = sizeFilter.getVolumeEstimate();
 		if ( DEBUG )
 		{
 			System.out.println( BASE_ERROR_MESSAGE + "Single nucleus volume estimate: " + volumeEstimate + " voxels" );
@@ -315,12 +429,70 @@ public class NucleiSpotCreator extends MultiThreadedBenchmarkAlgorithm
 		return volumeEstimate;
 	}
 
-	private double[] getCentroid( final Integer label )
+	/**
+	 * Measures the number of voxels of each index of the labeling index image,
+	 * in parallel.
+	 *
+	 * @return an array containing the volume of each index, in voxels.
+	 */
+	private long[] measureIndexVolumes()
+	{
+		final int nIndices = source.getMapping().numSets();
+		final IterableInterval< UnsignedIntType > indexImg = Views.iterable( source.getIndexImg() );
+		final Vector< Chunk > chunks = SimpleMultiThreading.divideIntoChunks( indexImg.size(), numThreads );
+		final long[][] partialVolumes = new long[ chunks.size() ][ nIndices ];
+
+		final Thread[] threads = new Thread[ chunks.size() ];
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			final Chunk chunk = chunks.get( i );
+			final long[] partial = partialVolumes[ i ];
+			threads[ i ] = new Thread( BASE_ERROR_MESSAGE + "Region volume thread " + i )
+			{
+				@Override
+				public void run()
+				{
+					final Cursor< UnsignedIntType > cursor = indexImg.cursor();
+					cursor.jumpFwd( chunk.getStartPosition() );
+					for ( long j = 0; j < chunk.getLoopSize(); j++ )
+					{
+						cursor.fwd();
+						partial[ cursor.get().getInteger() ]++;
+					}
+				}
+			};
+		}
+		SegmentationMetrics.startAndJoin( threads );
+
+		final long[] indexVolumes = new long[ nIndices ];
+		for ( final long[] partial : partialVolumes )
+		{
+			for ( int index = 0; index < nIndices; index++ )
+			{
+				indexVolumes[ index ] += partial[ index ];
+			}
+		}
+		return indexVolumes;
+	}
+
+	private Spot createSpot( final LabelRegion< Integer > region, final double quality )
+	{
+		final double voxelVolume = calibration[ 0 ] * calibration[ 1 ] * calibration[ 2 ];
+		final double nucleusVol = region.size() * voxelVolume;
+		final double radius = Math.max( Util.max( calibration ), Math.pow( 3 * nucleusVol / ( 4 * Math.PI ), 0.33333 ) );
+		final double[] coordinates = getCentroid( region );
+		final Spot spot = new Spot( coordinates[ 0 ], coordinates[ 1 ], coordinates[ 2 ], radius, quality );
+		spot.putFeature( LABEL, Double.valueOf( region.getLabel().doubleValue() ) );
+		spot.putFeature( VOLUME, Double.valueOf( nucleusVol ) );
+		return spot;
+	}
+
+	private double[] getCentroid( final LabelRegion< Integer > region )
 	{
 		final double[] centroid = new double[ 3 ];
 		final int[] position = new int[ source.numDimensions() ];
 
-		final LabelRegionCursor cursor = regions.getLabelRegion( label ).cursor();
+		final LabelRegionCursor cursor = region.cursor();
 		int npixels = 0;
 		while ( cursor.hasNext() )
 		{
@@ -2,6 +2,7 @@ package fiji.plugin.cwnt.segmentation;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
@@ -33,6 +34,8 @@ public class OtsuThresholder2D< T extends RealType< T >> extends MultiThreadedBe
 
 	private final double levelFactor;
 
+	private long foregroundCount;
+
 	/*
 	 * CONSTRUCTOR
 	 */
@@ -60,6 +63,7 @@ public class OtsuThresholder2D< T extends RealType< T >> extends MultiThreadedBe
 
 		final AtomicInteger aj = new AtomicInteger( 0 );
 		final AtomicBoolean ok = new AtomicBoolean( true );
+		final AtomicLong foreground = new AtomicLong( 0 );
 
 		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
 
@@ -117,19 +121,25 @@ public class OtsuThresholder2D< T extends RealType< T >> extends MultiThreadedBe
 						// Iterate over target image in the plane
 						final Cursor< T > cursor = slice.cursor();
 
+						long count = 0;
 						while ( cursor.hasNext() )
 						{
 							cursor.fwd();
 							ra.setPosition( cursor );
-							ra.get().set( cursor.get().compareTo( threshold ) > 0 );
+							final boolean above = cursor.get().compareTo( threshold ) > 0;
+							ra.get().set( above );
+							if ( above )
+								count++;
 						}
+						foreground.addAndGet( count );
 					}
 
 				}
 			};
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
+		SegmentationMetrics.startAndJoin( threads );
+		foregroundCount = foreground.get();
 		return ok.get();
 	}
 
@@ -139,6 +149,15 @@ public class OtsuThresholder2D< T extends RealType< T >> extends MultiThreadedBe
 		return target;
 	}
 
+	/**
+	 * Returns the number of pixels found above threshold, counted while
+	 * thresholding.
+	 */
+	public long getForegroundCount()
+	{
+		return foregroundCount;
+	}
+
 	/**
 	 * Given a histogram array <code>hist</code>, built with an initial amount
 	 * of <code>nPoints</code> data item, this method return the bin index that
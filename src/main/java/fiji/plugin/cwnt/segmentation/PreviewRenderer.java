@@ -0,0 +1,217 @@
+package fiji.plugin.cwnt.segmentation;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Pushes new slice contents to a preview {@link ImagePlus} in a single swap.
+ * <p>
+ * Slice updates are collected with the <code>set</code> methods, from any
+ * thread. {@link #render()} then schedules a single call on the event
+ * dispatch thread, that builds a new stack sharing the pixel arrays of the
+ * slices that were not updated, swaps it in, and redraws the image. Pixel
+ * arrays are never copied: the image displays the <code>float[]</code>
+ * arrays given, which must therefore not be modified afterwards.
+ * <p>
+ * A whole new stack can be given instead with
+ * {@link #setStack(ImageStack, int, int, int)}, for instance when the sample
+ * changes size. It is swapped in the same way, and the image is shown if it
+ * is not yet.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PreviewRenderer
+{
+
+	private final ImagePlus imp;
+
+	private final Map< Integer, float[] > updates = new HashMap< Integer, float[] >();
+
+	private ImageStack newStack;
+
+	private int[] newDimensions;
+
+	private boolean hasDisplayRange = false;
+
+	private double min;
+
+	private double max;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a renderer for the specified image. A renderer collects the
+	 * updates for one swap: a new one should be created for each render.
+	 */
+	public PreviewRenderer( final ImagePlus imp )
+	{
+		this.imp = imp;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Sets the new pixels of the specified slice.
+	 *
+	 * @param n
+	 *            the slice index, 1-based.
+	 * @param pixels
+	 *            the new pixels.
+	 */
+	public void set( final int n, final float[] pixels )
+	{
+		updates.put( Integer.valueOf( n ), pixels );
+	}
+
+	/**
+	 * Sets the new content of the specified slice to be the backing array of
+	 * the specified image.
+	 *
+	 * @param n
+	 *            the slice index, 1-based.
+	 * @param img
+	 *            the new content. Must be a 2D image with the size of the
+	 *            target image.
+	 */
+	public void set( final int n, final ArrayImg< FloatType, FloatArray > img )
+	{
+		set( n, img.update( null ).getCurrentStorageArray() );
+	}
+
+	/**
+	 * Sets a whole new stack for the image, replacing the slice updates.
+	 *
+	 * @param stack
+	 *            the new stack. Its pixel arrays must not be modified
+	 *            afterwards.
+	 * @param nChannels
+	 *            the number of channels of the new stack.
+	 * @param nSlices
+	 *            the number of Z slices.
+	 * @param nFrames
+	 *            the number of frames.
+	 */
+	public void setStack( final ImageStack stack, final int nChannels, final int nSlices, final int nFrames )
+	{
+		this.newStack = stack;
+		this.newDimensions = new int[] { nChannels, nSlices, nFrames };
+		updates.clear();
+	}
+
+	/**
+	 * Sets the display range of the image after the swap. If it is not set,
+	 * the display range is reset to the min and max of the current slice.
+	 */
+	public void setDisplayRange( final double min, final double max )
+	{
+		this.min = min;
+		this.max = max;
+		this.hasDisplayRange = true;
+	}
+
+	/**
+	 * Schedules the swap of the updated stack on the event dispatch thread,
+	 * and returns immediately. Does nothing if no slice was updated and no
+	 * new stack was set.
+	 */
+	public void render()
+	{
+		if ( updates.isEmpty() && null == newStack )
+			return;
+
+		final Map< Integer, float[] > toRender = new HashMap< Integer, float[] >( updates );
+		final ImageStack replacement = newStack;
+		final int[] dimensions = newDimensions;
+		final boolean setRange = hasDisplayRange;
+		final double lmin = min;
+		final double lmax = max;
+		updates.clear();
+		newStack = null;
+
+		SwingUtilities.invokeLater( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if ( null != replacement )
+				{
+					imp.setStack( replacement, dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ] );
+					if ( null == imp.getWindow() )
+						imp.show();
+				}
+				else
+				{
+					final ImageStack oldStack = imp.getStack();
+					final ImageStack stack = new ImageStack( oldStack.getWidth(), oldStack.getHeight() );
+					for ( int n = 1; n <= oldStack.getSize(); n++ )
+					{
+						final float[] pixels = toRender.get( Integer.valueOf( n ) );
+						stack.addSlice( oldStack.getSliceLabel( n ), null == pixels ? oldStack.getPixels( n ) : pixels );
+					}
+
+					final int current = imp.getCurrentSlice();
+					imp.setStack( stack, imp.getNChannels(), imp.getNSlices(), imp.getNFrames() );
+					imp.setSliceWithoutUpdate( current );
+				}
+				if ( setRange )
+					imp.setDisplayRange( lmin, lmax );
+				else
+					imp.resetDisplayRange();
+				imp.updateAndDraw();
+			}
+		} );
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns a {@link FloatProcessor} that displays the backing array of the
+	 * specified 2D image, without copying it.
+	 */
+	public static FloatProcessor toFloatProcessor( final ArrayImg< FloatType, FloatArray > img )
+	{
+		final float[] array = img.update( null ).getCurrentStorageArray();
+		final FloatProcessor fp = new FloatProcessor( ( int ) img.dimension( 0 ), ( int ) img.dimension( 1 ), array );
+		fp.resetMinAndMax();
+		return fp;
+	}
+
+	/**
+	 * Copies the specified 2D image of any real type into a new
+	 * <code>float[]</code> array. For images that are not backed by a
+	 * <code>float[]</code> array, such as thresholded images.
+	 */
+	public static < R extends RealType< R >> float[] toFloatArray( final RandomAccessibleInterval< R > img )
+	{
+		final IterableInterval< R > iterable = Views.flatIterable( img );
+		final float[] array = new float[ ( int ) iterable.size() ];
+		final Cursor< R > cursor = iterable.cursor();
+		int i = 0;
+		while ( cursor.hasNext() )
+		{
+			array[ i++ ] = cursor.next().getRealFloat();
+		}
+		return array;
+	}
+}
@@ -0,0 +1,172 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.Arrays;
+
+import net.imglib2.RandomAccessibleInterval;
+
+/**
+ * A low-priority thread that precomputes the masker steps for the parameter
+ * values adjacent to the current ones, and stores them in a
+ * {@link MaskerStageCache}, so that the next slider tick is already computed
+ * when the preview needs it.
+ * <p>
+ * Speculation is tied to a generation of a {@link PreviewUpdater}. It backs
+ * off as soon as a newer preview request is made: the computation running is
+ * canceled, and the remaining values are skipped.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PreviewSpeculator extends Thread
+{
+
+	private final PreviewUpdater updater;
+
+	private final MaskerStageCache stageCache;
+
+	private Job job;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates and starts a new speculator thread.
+	 *
+	 * @param updater
+	 *            the updater whose generations cancel speculation.
+	 * @param stageCache
+	 *            the cache to store precomputed step outputs in. It should be
+	 *            the cache used by the preview.
+	 */
+	public PreviewSpeculator( final PreviewUpdater updater, final MaskerStageCache stageCache )
+	{
+		super( "CWNT speculator thread" );
+		this.updater = updater;
+		this.stageCache = stageCache;
+		setPriority( Thread.MIN_PRIORITY );
+		setDaemon( true );
+		start();
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Requests the speculative computation of the masker steps on the
+	 * specified source, for each of the specified values of one parameter,
+	 * the other parameters being left unchanged. This replaces any pending
+	 * request.
+	 *
+	 * @param source
+	 *            the source image of the preview.
+	 * @param sourceKey
+	 *            the key identifying the source in the stage cache.
+	 * @param params
+	 *            the current masking parameters.
+	 * @param index
+	 *            the index of the parameter to vary.
+	 * @param values
+	 *            the values of this parameter to precompute.
+	 * @param generation
+	 *            the generation of the preview request these parameters
+	 *            belong to.
+	 */
+	public void speculate( final RandomAccessibleInterval< ? > source, final String sourceKey, final double[] params, final int index, final double[] values, final long generation )
+	{
+		if ( index < 0 || values.length == 0 || isInterrupted() )
+			return;
+
+		synchronized ( this )
+		{
+			job = new Job( source, sourceKey, Arrays.copyOf( params, params.length ), index, values, generation );
+			notify();
+		}
+	}
+
+	/**
+	 * Stops this speculator.
+	 */
+	public void quit()
+	{
+		interrupt();
+		synchronized ( this )
+		{
+			job = null;
+			notify();
+		}
+	}
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	@Override
+	public void run()
+	{
+		while ( !isInterrupted() )
+		{
+			try
+			{
+				final Job current;
+				synchronized ( this )
+				{
+					while ( null == job )
+						wait();
+					current = job;
+					job = null;
+				}
+
+				final CancelCheck cancelCheck = updater.getCancelCheck( current.generation );
+				for ( final double value : current.values )
+				{
+					if ( cancelCheck.isCanceled() )
+						break;
+
+					final double[] p = Arrays.copyOf( current.params, current.params.length );
+					p[ current.index ] = value;
+					final NucleiMasker masker = new NucleiMasker( ( RandomAccessibleInterval ) current.source );
+					masker.setNumThreads( 1 );
+					masker.setParameters( p );
+					masker.setCancelCheck( cancelCheck );
+					masker.setStageCache( stageCache, current.sourceKey );
+					masker.process();
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+			catch ( final Exception e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * INNER CLASS
+	 */
+
+	private static final class Job
+	{
+		private final RandomAccessibleInterval< ? > source;
+
+		private final String sourceKey;
+
+		private final double[] params;
+
+		private final int index;
+
+		private final double[] values;
+
+		private final long generation;
+
+		private Job( final RandomAccessibleInterval< ? > source, final String sourceKey, final double[] params, final int index, final double[] values, final long generation )
+		{
+			this.source = source;
+			this.sourceKey = sourceKey;
+			this.params = params;
+			this.index = index;
+			this.values = values;
+			this.generation = generation;
+		}
+	}
+}
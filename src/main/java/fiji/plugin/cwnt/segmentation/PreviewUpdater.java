@@ -0,0 +1,156 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread that coalesces preview update requests and runs them one at a time,
+ * modified after a class by Albert Cardona.
+ * <p>
+ * Each request bumps a generation number. The refresher is called with the
+ * generation that was current when it started, and can obtain a
+ * {@link CancelCheck} for it, that becomes canceled as soon as a newer request
+ * is made. Computations given this check abort early, so that only the newest
+ * request runs to completion and is rendered.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class PreviewUpdater extends Thread
+{
+
+	/**
+	 * Interface for the preview refresh routine called by this updater.
+	 */
+	public static interface Refresher
+	{
+		/**
+		 * Refreshes the preview.
+		 *
+		 * @param generation
+		 *            the generation of the request being served.
+		 */
+		public void refresh( long generation );
+	}
+
+	private final Refresher refresher;
+
+	private final AtomicLong generation = new AtomicLong( 0 );
+
+	private long request = 0;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates and starts a new updater thread.
+	 *
+	 * @param name
+	 *            the thread name.
+	 * @param refresher
+	 *            the routine to run for each request.
+	 */
+	public PreviewUpdater( final String name, final Refresher refresher )
+	{
+		super( name );
+		this.refresher = refresher;
+		setPriority( Thread.NORM_PRIORITY );
+		setDaemon( true );
+		start();
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Requests a preview update. This cancels the update currently running,
+	 * if any.
+	 */
+	public void doUpdate()
+	{
+		if ( isInterrupted() )
+			return;
+		generation.incrementAndGet();
+		synchronized ( this )
+		{
+			request++;
+			notify();
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if no request was made after the specified
+	 * generation.
+	 */
+	public boolean isCurrent( final long gen )
+	{
+		return generation.get() == gen;
+	}
+
+	/**
+	 * Returns a cancel check that is canceled as soon as a request newer than
+	 * the specified generation is made, or when this updater quits.
+	 */
+	public CancelCheck getCancelCheck( final long gen )
+	{
+		return new CancelCheck()
+		{
+			@Override
+			public boolean isCanceled()
+			{
+				return !isCurrent( gen );
+			}
+		};
+	}
+
+	/**
+	 * Stops this updater, canceling the update currently running.
+	 */
+	public void quit()
+	{
+		interrupt();
+		generation.incrementAndGet();
+		synchronized ( this )
+		{
+			notify();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while ( !isInterrupted() )
+		{
+			try
+			{
+				final long r;
+				final long gen;
+				synchronized ( this )
+				{
+					r = request;
+					gen = generation.get();
+				}
+				// Call displayer update from this thread
+				if ( r > 0 )
+					refresher.refresh( gen );
+				synchronized ( this )
+				{
+					if ( r == request )
+					{
+						request = 0; // reset
+						wait();
+					}
+					// else loop through to update again
+				}
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+			catch ( final Exception e )
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
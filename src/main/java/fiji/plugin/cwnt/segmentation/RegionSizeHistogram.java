@@ -0,0 +1,208 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.Arrays;
+
+/**
+ * A streaming histogram of region sizes (in voxels), used to compute robust
+ * statistics of the nuclei volume distribution in a single pass.
+ * <p>
+ * The histogram has a fixed number of bins. Bins start with a width of 1
+ * voxel, so that small regions are counted exactly. When a size larger than
+ * what the current bins can hold is added, the bin width is doubled and
+ * adjacent bins are merged. The memory footprint is therefore bounded
+ * whatever the sizes added, and the resolution is always better than 1/n-th
+ * of the largest size seen, where <code>n</code> is the number of bins.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class RegionSizeHistogram
+{
+
+	private static final int DEFAULT_N_BINS = 4096;
+
+	/**
+	 * Scale factor that makes the median absolute deviation a consistent
+	 * estimator of the standard deviation for normally distributed data.
+	 */
+	public static final double MAD_TO_STD = 1.4826;
+
+	private final long[] counts;
+
+	private long binWidth = 1;
+
+	private long n = 0;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	public RegionSizeHistogram()
+	{
+		this( DEFAULT_N_BINS );
+	}
+
+	public RegionSizeHistogram( final int nBins )
+	{
+		if ( nBins < 2 || nBins % 2 != 0 )
+			throw new IllegalArgumentException( "The number of bins must be even and larger than 1. Got " + nBins + "." );
+		this.counts = new long[ nBins ];
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Adds a region size to this histogram.
+	 *
+	 * @param size
+	 *            the region size, in voxels. Must be positive or 0.
+	 */
+	public void add( final long size )
+	{
+		if ( size < 0 )
+			throw new IllegalArgumentException( "Region sizes must be positive. Got " + size + "." );
+		while ( size / binWidth >= counts.length )
+			coarsen();
+		counts[ ( int ) ( size / binWidth ) ]++;
+		n++;
+	}
+
+	/**
+	 * Returns the number of region sizes added to this histogram.
+	 */
+	public long getCount()
+	{
+		return n;
+	}
+
+	/**
+	 * Returns the current width of the histogram bins, in voxels.
+	 */
+	public long getBinWidth()
+	{
+		return binWidth;
+	}
+
+	/**
+	 * Returns the nearest-rank quantile of the sizes added to this histogram.
+	 * The value returned is the center of the bin that contains the
+	 * quantile, which is exact as long as the bin width is 1.
+	 *
+	 * @param q
+	 *            the quantile to compute, between 0 and 1.
+	 * @return the quantile, or {@link Double#NaN} if the histogram is empty.
+	 */
+	public double quantile( final double q )
+	{
+		if ( n == 0 )
+			return Double.NaN;
+
+		final long rank = Math.max( 1, ( long ) Math.ceil( q * n ) );
+		long cumsum = 0;
+		for ( int i = 0; i < counts.length; i++ )
+		{
+			cumsum += counts[ i ];
+			if ( cumsum >= rank )
+				return binCenter( i );
+		}
+		return binCenter( counts.length - 1 );
+	}
+
+	/**
+	 * Returns the median of the sizes added to this histogram.
+	 *
+	 * @return the median, or {@link Double#NaN} if the histogram is empty.
+	 */
+	public double median()
+	{
+		return quantile( 0.5 );
+	}
+
+	/**
+	 * Returns the median absolute deviation of the sizes added to this
+	 * histogram, from their median.
+	 * <p>
+	 * Bins are visited by increasing distance to the median bin, walking
+	 * simultaneously to the left and to the right of it, so no sorting is
+	 * required.
+	 *
+	 * @return the median absolute deviation, or {@link Double#NaN} if the
+	 *         histogram is empty.
+	 */
+	public double mad()
+	{
+		if ( n == 0 )
+			return Double.NaN;
+
+		final double median = median();
+		final int medianBin = ( int ) ( ( long ) median / binWidth );
+		final long rank = ( n + 1 ) / 2;
+
+		int left = medianBin;
+		int right = medianBin + 1;
+		long cumsum = 0;
+		while ( left >= 0 || right < counts.length )
+		{
+			final double dl = left >= 0 ? median - binCenter( left ) : Double.POSITIVE_INFINITY;
+			final double dr = right < counts.length ? binCenter( right ) - median : Double.POSITIVE_INFINITY;
+			final double deviation;
+			if ( dl <= dr )
+			{
+				cumsum += counts[ left ];
+				deviation = dl;
+				left--;
+			}
+			else
+			{
+				cumsum += counts[ right ];
+				deviation = dr;
+				right++;
+			}
+			if ( cumsum >= rank )
+				return deviation;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns a robust estimate of the standard deviation of the sizes added
+	 * to this histogram, computed from their median absolute deviation.
+	 *
+	 * @return the robust standard deviation, or {@link Double#NaN} if the
+	 *         histogram is empty.
+	 */
+	public double robustStd()
+	{
+		return MAD_TO_STD * mad();
+	}
+
+	@Override
+	public String toString()
+	{
+		return super.toString() + ": n = " + n + ", bin width = " + binWidth + ", median = " + median() + ", MAD = " + mad();
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private double binCenter( final int bin )
+	{
+		return bin * binWidth + ( binWidth - 1 ) / 2.;
+	}
+
+	/**
+	 * Doubles the bin width, merging bins 2 by 2.
+	 */
+	private void coarsen()
+	{
+		final int half = counts.length / 2;
+		for ( int i = 0; i < half; i++ )
+		{
+			counts[ i ] = counts[ 2 * i ] + counts[ 2 * i + 1 ];
+		}
+		Arrays.fill( counts, half, counts.length, 0l );
+		binWidth *= 2;
+	}
+}
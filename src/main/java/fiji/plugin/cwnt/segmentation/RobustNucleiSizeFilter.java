@@ -0,0 +1,113 @@
+package fiji.plugin.cwnt.segmentation;
+
+/**
+ * A {@link NucleiSizeFilter} based on robust statistics of the nuclei volume
+ * distribution.
+ * <p>
+ * Regions are first filtered with absolute bounds on their volume. The single
+ * nucleus volume is then estimated as the median of the accepted volumes, and
+ * their spread as the median absolute deviation (MAD), scaled to be
+ * consistent with the standard deviation. Contrary to the mean and standard
+ * deviation, these estimates are not dragged away by the few very large
+ * regions made of several touching nuclei or of background.
+ * <ul>
+ * <li>Regions larger than <code>median + splitFactor × σ</code> are
+ * considered for splitting.
+ * <li>If <code>outlierFactor</code> is strictly positive, regions larger than
+ * <code>median + outlierFactor × σ</code> are discarded altogether. This
+ * provides an upper bound that adapts to the data.
+ * </ul>
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class RobustNucleiSizeFilter implements NucleiSizeFilter
+{
+
+	private final double volumeThresholdBottom;
+
+	private final double volumeThresholdUp;
+
+	private final double splitFactor;
+
+	private final double outlierFactor;
+
+	private double median = Double.NaN;
+
+	private double std = Double.NaN;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new robust size filter.
+	 *
+	 * @param volumeThresholdBottom
+	 *            regions with a volume smaller than or equal to this threshold
+	 *            are discarded, in voxels.
+	 * @param volumeThresholdUp
+	 *            regions with a volume larger than or equal to this threshold
+	 *            are discarded, in voxels.
+	 * @param splitFactor
+	 *            regions with a volume larger than the median plus this factor
+	 *            times the robust standard deviation are considered for
+	 *            splitting.
+	 * @param outlierFactor
+	 *            regions with a volume larger than the median plus this factor
+	 *            times the robust standard deviation are discarded. Ignored if
+	 *            not strictly positive.
+	 */
+	public RobustNucleiSizeFilter( final double volumeThresholdBottom, final double volumeThresholdUp, final double splitFactor, final double outlierFactor )
+	{
+		this.volumeThresholdBottom = volumeThresholdBottom;
+		this.volumeThresholdUp = volumeThresholdUp;
+		this.splitFactor = splitFactor;
+		this.outlierFactor = outlierFactor;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean accept( final long volume )
+	{
+		return volume > volumeThresholdBottom && volume < volumeThresholdUp;
+	}
+
+	@Override
+	public void setStatistics( final RegionSizeHistogram histogram )
+	{
+		this.median = histogram.median();
+		this.std = histogram.robustStd();
+	}
+
+	@Override
+	public boolean isOutlier( final long volume )
+	{
+		if ( outlierFactor <= 0 || Double.isNaN( median ) )
+			return false;
+		return volume > median + outlierFactor * std;
+	}
+
+	@Override
+	public boolean shouldSplit( final long volume )
+	{
+		if ( Double.isNaN( median ) )
+			return false;
+		return volume >= median + splitFactor * std;
+	}
+
+	@Override
+	public double getVolumeEstimate()
+	{
+		return median;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s: volume in ]%.0f, %.0f[, median = %.1f, robust std = %.1f, split factor = %.2f, outlier factor = %.2f",
+				super.toString(), volumeThresholdBottom, volumeThresholdUp, median, std, splitFactor, outlierFactor );
+	}
+}
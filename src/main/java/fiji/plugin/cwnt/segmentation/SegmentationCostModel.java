@@ -0,0 +1,325 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.util.Arrays;
+
+/**
+ * A per-stage cost model of the crown-wearing segmentation, used to predict
+ * the duration and the memory footprint of a full run.
+ * <p>
+ * The cost of each stage is modeled as a coefficient times a number of work
+ * units, that depends on the stage:
+ * <ol start="0">
+ * <li>Gaussian filtering: voxels × kernel size of σf.
+ * <li>Anisotropic diffusion: voxels × number of iterations.
+ * <li>Derivatives: voxels × kernel size of σg, for the gradient, the
+ * laplacian and the hessian.
+ * <li>Masking: voxels.
+ * <li>Thresholding: voxels.
+ * <li>Labeling: voxels.
+ * <li>Splitting and spot creation: foreground voxels plus blobs.
+ * </ol>
+ * Coefficients are expressed in single-threaded nanoseconds per work unit.
+ * They start with rough default values, and are calibrated with
+ * {@link #calibrate(int, double, double, int)} each time a stage is timed,
+ * be it on the preview sample or on a real frame. The foreground fraction
+ * and the blob density measured on the data are kept as well, so that the
+ * cost of the last stages can be predicted before any frame is segmented.
+ * <p>
+ * Predictions follow the scheduling of the segmentation in CWNT: frames are
+ * processed in batches of simultaneous frames, each using a share of the
+ * threads.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SegmentationCostModel
+{
+
+	public static final int GAUSSIAN_FILTERING = 0;
+
+	public static final int ANISOTROPIC_DIFFUSION = 1;
+
+	public static final int DERIVATIVES = 2;
+
+	public static final int MASKING = 3;
+
+	public static final int THRESHOLDING = 4;
+
+	public static final int LABELING = 5;
+
+	public static final int SPLITTING = 6;
+
+	public static final int N_STAGES = 7;
+
+	public static final String[] STAGE_NAMES = new String[] { "Gaussian filtering", "Anisotropic diffusion", "Derivatives", "Masking", "Thresholding", "Labeling", "Splitting" };
+
+	/** Default coefficients, in ns per work unit on a single thread. */
+	private static final double[] DEFAULT_COEFFICIENTS = new double[] { 4, 40, 12, 60, 10, 40, 200 };
+
+	/** Weight of a new measurement in the calibrated coefficients. */
+	private static final double SMOOTHING = 0.5;
+
+	/** Parallel efficiency assumed when converting times across threads. */
+	private static final double PARALLEL_EFFICIENCY = 0.8;
+
+	/**
+	 * Bytes per voxel held by one frame being segmented: about 14 float
+	 * images in the masker, the int index image of the labeling and the
+	 * thresholded bits.
+	 */
+	private static final double BYTES_PER_VOXEL = 14 * 4 + 4 + 1 / 8.;
+
+	private static final double DEFAULT_FOREGROUND_FRACTION = 0.2;
+
+	/** Default number of blobs per foreground voxel. */
+	private static final double DEFAULT_BLOB_DENSITY = 1e-3;
+
+	private final double[] coefficients = Arrays.copyOf( DEFAULT_COEFFICIENTS, N_STAGES );
+
+	private final boolean[] calibrated = new boolean[ N_STAGES ];
+
+	private double foregroundFraction = DEFAULT_FOREGROUND_FRACTION;
+
+	private double blobDensity = DEFAULT_BLOB_DENSITY;
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Calibrates the coefficient of a stage from a measured duration.
+	 *
+	 * @param stage
+	 *            the stage, for instance {@link #ANISOTROPIC_DIFFUSION}.
+	 * @param millis
+	 *            the measured duration, in ms. Negative values, for stages
+	 *            that were not run, are ignored.
+	 * @param units
+	 *            the number of work units processed, as computed by
+	 *            {@link #getWorkUnits(long, double[], double, double)}.
+	 * @param nThreads
+	 *            the number of threads the stage ran on.
+	 */
+	public synchronized void calibrate( final int stage, final double millis, final double units, final int nThreads )
+	{
+		if ( millis < 0 || units <= 0 )
+			return;
+
+		final double coefficient = 1e6 * millis * speedup( nThreads ) / units;
+		if ( calibrated[ stage ] )
+			coefficients[ stage ] = SMOOTHING * coefficient + ( 1 - SMOOTHING ) * coefficients[ stage ];
+		else
+			coefficients[ stage ] = coefficient;
+		calibrated[ stage ] = true;
+	}
+
+	/**
+	 * Calibrates the coefficients of the masking stages from the step times
+	 * of a masker.
+	 *
+	 * @param stepTimes
+	 *            the step times, as returned by
+	 *            {@link NucleiMasker#getStepTimes()}.
+	 * @param voxels
+	 *            the number of voxels the masker processed.
+	 * @param params
+	 *            the masking parameters.
+	 * @param nThreads
+	 *            the number of threads the masker ran on.
+	 */
+	public void calibrateMasking( final long[] stepTimes, final long voxels, final double[] params, final int nThreads )
+	{
+		final double[] units = getWorkUnits( voxels, params, 0, 0 );
+		for ( int stage = 0; stage < stepTimes.length; stage++ )
+		{
+			calibrate( stage, stepTimes[ stage ], units[ stage ], nThreads );
+		}
+	}
+
+	/**
+	 * Calibrates all the coefficients from the stage times of a segmenter,
+	 * and updates the image statistics with the ones it measured.
+	 *
+	 * @param segmenter
+	 *            the segmenter, after processing.
+	 * @param voxels
+	 *            the number of voxels in the segmented frame.
+	 * @param params
+	 *            the masking parameters.
+	 */
+	public void calibrate( final CrownWearingSegmenter< ? > segmenter, final long voxels, final double[] params )
+	{
+		final double f = segmenter.getForegroundFraction();
+		final long blobs = segmenter.getBlobCount();
+		setImageStatistics( f, blobs, voxels );
+		final double[] units = getWorkUnits( voxels, params, f, blobs );
+		final long[] stageTimes = segmenter.getStageTimes();
+		for ( int stage = 0; stage < N_STAGES; stage++ )
+		{
+			calibrate( stage, stageTimes[ stage ], units[ stage ], segmenter.getNumThreads() );
+		}
+	}
+
+	/**
+	 * Updates the image statistics used to predict the cost of splitting.
+	 *
+	 * @param foregroundFraction
+	 *            the fraction of voxels above threshold.
+	 * @param blobs
+	 *            the number of connected blobs found, or a negative value if
+	 *            unknown.
+	 * @param voxels
+	 *            the number of voxels these statistics were measured on.
+	 */
+	public synchronized void setImageStatistics( final double foregroundFraction, final long blobs, final long voxels )
+	{
+		if ( foregroundFraction >= 0 && foregroundFraction <= 1 )
+			this.foregroundFraction = foregroundFraction;
+		final double foreground = this.foregroundFraction * voxels;
+		if ( blobs >= 0 && foreground > 0 )
+			this.blobDensity = blobs / foreground;
+	}
+
+	/**
+	 * Returns the current coefficients of this model, in ns per work unit on
+	 * a single thread.
+	 */
+	public synchronized double[] getCoefficients()
+	{
+		return coefficients.clone();
+	}
+
+	/**
+	 * Returns the predicted duration of the segmentation of one frame on a
+	 * single thread.
+	 *
+	 * @param voxels
+	 *            the number of voxels in the frame.
+	 * @param params
+	 *            the masking parameters.
+	 * @return the predicted duration, in ms.
+	 */
+	public synchronized double predictFrameTime( final long voxels, final double[] params )
+	{
+		final double[] units = getWorkUnits( voxels, params, foregroundFraction, ( long ) ( blobDensity * foregroundFraction * voxels ) );
+		double ns = 0;
+		for ( int stage = 0; stage < N_STAGES; stage++ )
+		{
+			ns += coefficients[ stage ] * units[ stage ];
+		}
+		return ns / 1e6;
+	}
+
+	/**
+	 * Returns the predicted wall time of the segmentation of several frames,
+	 * scheduled as in CWNT.
+	 *
+	 * @param nFrames
+	 *            the number of frames to segment.
+	 * @param voxelsPerFrame
+	 *            the number of voxels in one frame.
+	 * @param params
+	 *            the masking parameters.
+	 * @param nThreads
+	 *            the total number of threads.
+	 * @return the predicted wall time, in ms.
+	 */
+	public double predictWallTime( final int nFrames, final long voxelsPerFrame, final double[] params, final int nThreads )
+	{
+		if ( nFrames <= 0 )
+			return 0;
+		final int nSimultaneousFrames = getSimultaneousFrames( nFrames, nThreads );
+		final int threadsPerFrame = getThreadsPerFrame( nFrames, nThreads );
+		final int nBatches = ( nFrames + nSimultaneousFrames - 1 ) / nSimultaneousFrames;
+		return nBatches * predictFrameTime( voxelsPerFrame, params ) / speedup( threadsPerFrame );
+	}
+
+	/**
+	 * Returns a human-readable estimate of the duration and peak memory of
+	 * the segmentation of several frames.
+	 *
+	 * @see #predictWallTime(int, long, double[], int)
+	 * @see #predictPeakMemory(int, long, int)
+	 */
+	public String getEstimate( final int nFrames, final long voxelsPerFrame, final double[] params, final int nThreads )
+	{
+		final double minutes = predictWallTime( nFrames, voxelsPerFrame, params, nThreads ) / 60e3;
+		final double megabytes = predictPeakMemory( nFrames, voxelsPerFrame, nThreads ) / ( 1024. * 1024. );
+		return String.format( "%.0f min, peak memory %.0f MB", Math.ceil( minutes ), megabytes );
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns the number of work units of each stage for one frame.
+	 *
+	 * @param voxels
+	 *            the number of voxels in the frame.
+	 * @param params
+	 *            the masking parameters.
+	 * @param foregroundFraction
+	 *            the fraction of voxels above threshold.
+	 * @param blobs
+	 *            the number of connected blobs.
+	 * @return a new array with one element per stage.
+	 */
+	public static double[] getWorkUnits( final long voxels, final double[] params, final double foregroundFraction, final double blobs )
+	{
+		final double[] units = new double[ N_STAGES ];
+		units[ GAUSSIAN_FILTERING ] = voxels * kernelSize( params[ 0 ] );
+		units[ ANISOTROPIC_DIFFUSION ] = voxels * Math.max( 1, params[ 1 ] );
+		units[ DERIVATIVES ] = 3. * voxels * kernelSize( params[ 3 ] );
+		units[ MASKING ] = voxels;
+		units[ THRESHOLDING ] = voxels;
+		units[ LABELING ] = voxels;
+		units[ SPLITTING ] = foregroundFraction * voxels + blobs;
+		return units;
+	}
+
+	/**
+	 * Returns the predicted peak memory used by the segmentation of several
+	 * frames, not counting the source image and the outputs.
+	 *
+	 * @return the predicted peak memory, in bytes.
+	 */
+	public static long predictPeakMemory( final int nFrames, final long voxelsPerFrame, final int nThreads )
+	{
+		return ( long ) ( getSimultaneousFrames( nFrames, nThreads ) * voxelsPerFrame * BYTES_PER_VOXEL );
+	}
+
+	/**
+	 * Returns the number of frames segmented simultaneously by CWNT.
+	 */
+	public static int getSimultaneousFrames( final int nFrames, final int nThreads )
+	{
+		return Math.max( 1, Math.min( nThreads, nFrames ) );
+	}
+
+	/**
+	 * Returns the number of threads allocated to each frame by CWNT.
+	 */
+	public static int getThreadsPerFrame( final int nFrames, final int nThreads )
+	{
+		return Math.max( 1, nThreads / getSimultaneousFrames( nFrames, nThreads ) );
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Size of the separable gaussian kernel used for the specified sigma.
+	 */
+	private static double kernelSize( final double sigma )
+	{
+		return 2 * Math.ceil( 3 * Math.max( 0, sigma ) ) + 1;
+	}
+
+	private static double speedup( final int nThreads )
+	{
+		return 1 + ( Math.max( 1, nThreads ) - 1 ) * PARALLEL_EFFICIENCY;
+	}
+}
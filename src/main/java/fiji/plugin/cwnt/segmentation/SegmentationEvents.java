@@ -0,0 +1,269 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events emitted by the segmentation, so that
+ * recordings show what the segmentation threads are doing.
+ * <p>
+ * The JFR API is only available on recent JVMs, and this plugin must run on
+ * older ones. Event types are therefore created at runtime, through
+ * reflection on the dynamic event API of <code>jdk.jfr.EventFactory</code>.
+ * When this API is not available, every event type is disabled and
+ * {@link EventType#begin()} returns a shared no-op event.
+ * <p>
+ * The reflection handles are looked up once, when this class is loaded.
+ * When the JFR is available but the event type is not enabled in any
+ * recording, {@link EventType#begin()} costs a single reflective call, to
+ * <code>jdk.jfr.EventType.isEnabled()</code>, and returns the no-op event as
+ * well, so instrumented code needs not test anything before emitting events.
+ * Events are only instantiated when their type is enabled.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SegmentationEvents
+{
+
+	private static final String CATEGORY = "CWNS";
+
+	/*
+	 * REFLECTION HANDLES
+	 *
+	 * They must be initialized before the event types below.
+	 */
+
+	/** The no-op event returned by disabled event types. */
+	private static final Event NO_OP = new Event( null );
+
+	private static final boolean AVAILABLE;
+
+	private static Method create;
+
+	private static Method getEventType;
+
+	private static Method isEnabled;
+
+	private static Method newEvent;
+
+	private static Method begin;
+
+	private static Method set;
+
+	private static Method shouldCommit;
+
+	private static Method commit;
+
+	private static Constructor< ? > annotationElementConstructor;
+
+	private static Constructor< ? > valueDescriptorConstructor;
+
+	private static Class< ? > nameClass;
+
+	private static Class< ? > labelClass;
+
+	private static Class< ? > descriptionClass;
+
+	private static Class< ? > categoryClass;
+
+	static
+	{
+		boolean available;
+		try
+		{
+			final Class< ? > flightRecorderClass = Class.forName( "jdk.jfr.FlightRecorder" );
+			final Class< ? > eventFactoryClass = Class.forName( "jdk.jfr.EventFactory" );
+			final Class< ? > eventClass = Class.forName( "jdk.jfr.Event" );
+			final Class< ? > eventTypeClass = Class.forName( "jdk.jfr.EventType" );
+			final Class< ? > annotationElementClass = Class.forName( "jdk.jfr.AnnotationElement" );
+			final Class< ? > valueDescriptorClass = Class.forName( "jdk.jfr.ValueDescriptor" );
+			nameClass = Class.forName( "jdk.jfr.Name" );
+			labelClass = Class.forName( "jdk.jfr.Label" );
+			descriptionClass = Class.forName( "jdk.jfr.Description" );
+			categoryClass = Class.forName( "jdk.jfr.Category" );
+
+			create = eventFactoryClass.getMethod( "create", List.class, List.class );
+			getEventType = eventFactoryClass.getMethod( "getEventType" );
+			isEnabled = eventTypeClass.getMethod( "isEnabled" );
+			newEvent = eventFactoryClass.getMethod( "newEvent" );
+			begin = eventClass.getMethod( "begin" );
+			set = eventClass.getMethod( "set", int.class, Object.class );
+			shouldCommit = eventClass.getMethod( "shouldCommit" );
+			commit = eventClass.getMethod( "commit" );
+			annotationElementConstructor = annotationElementClass.getConstructor( Class.class, Object.class );
+			valueDescriptorConstructor = valueDescriptorClass.getConstructor( Class.class, String.class );
+			final Method isAvailable = flightRecorderClass.getMethod( "isAvailable" );
+			available = ( Boolean ) isAvailable.invoke( null );
+		}
+		catch ( final Exception e )
+		{
+			available = false;
+		}
+		catch ( final LinkageError e )
+		{
+			available = false;
+		}
+		AVAILABLE = available;
+	}
+
+	/*
+	 * EVENT TYPES
+	 */
+
+	/** A sub-step of the crown-wearing mask computation, for one frame. */
+	public static final EventType MASKER_STEP = new EventType( "fiji.plugin.cwnt.MaskerStep", "Masker Step", "A sub-step of the crown-wearing mask computation.",
+			new String[] { "frame", "stage", "voxels" }, new Class< ? >[] { int.class, String.class, long.class } );
+
+	/** The Otsu thresholding of the masked image of one frame. */
+	public static final EventType THRESHOLDING = new EventType( "fiji.plugin.cwnt.Thresholding", "Otsu Thresholding", "Otsu thresholding of the masked image.",
+			new String[] { "frame", "voxels" }, new Class< ? >[] { int.class, long.class } );
+
+	/** The connected-component labeling of one frame. */
+	public static final EventType LABELING = new EventType( "fiji.plugin.cwnt.Labeling", "Labeling", "Connected-component labeling of the thresholded image.",
+			new String[] { "frame", "voxels", "blobs" }, new Class< ? >[] { int.class, long.class, long.class } );
+
+	/** The K-means splitting of one region into several nuclei. */
+	public static final EventType NUCLEUS_SPLIT = new EventType( "fiji.plugin.cwnt.NucleusSplit", "Nucleus Split", "K-means splitting of one region into k nuclei.",
+			new String[] { "frame", "regionSize", "k" }, new Class< ? >[] { int.class, long.class, int.class } );
+
+	/** The segmentation of one frame, from its start to its end. */
+	public static final EventType FRAME = new EventType( "fiji.plugin.cwnt.Frame", "Frame Segmentation", "Segmentation of one frame, from start to end.",
+			new String[] { "frame", "threads", "spots" }, new Class< ? >[] { int.class, int.class, int.class } );
+
+	private SegmentationEvents()
+	{}
+
+	/**
+	 * Returns <code>true</code> if the JFR event API is available in this JVM.
+	 */
+	public static boolean isAvailable()
+	{
+		return AVAILABLE;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * A type of JFR event, with a fixed list of fields.
+	 */
+	public static class EventType
+	{
+
+		private final Object factory;
+
+		/** The <code>jdk.jfr.EventType</code> of the factory. */
+		private final Object type;
+
+		private EventType( final String name, final String label, final String description, final String[] fieldNames, final Class< ? >[] fieldTypes )
+		{
+			Object f = null;
+			Object t = null;
+			if ( AVAILABLE )
+			{
+				try
+				{
+					final List< Object > annotations = new ArrayList< Object >( 4 );
+					annotations.add( annotationElementConstructor.newInstance( nameClass, name ) );
+					annotations.add( annotationElementConstructor.newInstance( labelClass, label ) );
+					annotations.add( annotationElementConstructor.newInstance( descriptionClass, description ) );
+					annotations.add( annotationElementConstructor.newInstance( categoryClass, new String[] { CATEGORY } ) );
+					final List< Object > fields = new ArrayList< Object >( fieldNames.length );
+					for ( int i = 0; i < fieldNames.length; i++ )
+					{
+						fields.add( valueDescriptorConstructor.newInstance( fieldTypes[ i ], fieldNames[ i ] ) );
+					}
+					f = create.invoke( null, Collections.unmodifiableList( annotations ), Collections.unmodifiableList( fields ) );
+					t = getEventType.invoke( f );
+				}
+				catch ( final Exception e )
+				{
+					f = null;
+					t = null;
+				}
+			}
+			this.factory = f;
+			this.type = t;
+		}
+
+		/**
+		 * Begins a new event of this type. If this type is not enabled in any
+		 * recording, a no-op event is returned.
+		 */
+		public Event begin()
+		{
+			if ( null == type )
+				return NO_OP;
+			try
+			{
+				if ( !( Boolean ) isEnabled.invoke( type ) )
+					return NO_OP;
+				final Object event = newEvent.invoke( factory );
+				begin.invoke( event );
+				return new Event( event );
+			}
+			catch ( final Exception e )
+			{
+				return NO_OP;
+			}
+		}
+	}
+
+	/**
+	 * An event in progress.
+	 */
+	public static class Event
+	{
+
+		private final Object event;
+
+		private Event( final Object event )
+		{
+			this.event = event;
+		}
+
+		/**
+		 * Sets the value of a field of this event.
+		 *
+		 * @param index
+		 *            the index of the field, in the order of the field names
+		 *            of the event type.
+		 * @param value
+		 *            the value, of the declared type of the field, boxed.
+		 * @return this event.
+		 */
+		public Event set( final int index, final Object value )
+		{
+			if ( null == event )
+				return this;
+			try
+			{
+				set.invoke( event, index, value );
+			}
+			catch ( final Exception e )
+			{}
+			return this;
+		}
+
+		/**
+		 * Ends this event and writes it to the recordings it is enabled in,
+		 * if it passes their threshold.
+		 */
+		public void commit()
+		{
+			if ( null == event )
+				return;
+			try
+			{
+				if ( ( Boolean ) shouldCommit.invoke( event ) )
+					commit.invoke( event );
+			}
+			catch ( final Exception e )
+			{}
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package fiji.plugin.cwnt.segmentation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * Collects performance metrics for each stage of the segmentation of each
+ * frame: wall time, CPU time, bytes allocated and peak size of the buffers
+ * the stage keeps live.
+ * <p>
+ * A stage is measured by calling {@link #start(String, int)} on the thread
+ * that runs it, and {@link Probe#stop(long)} when it is done. CPU time and
+ * allocations are those of this thread, plus those of the worker threads it
+ * starts through {@link #startAndJoin(Thread[])}, through the thread factory
+ * of {@link Probe#getThreadFactory()} or through runnables wrapped with
+ * {@link Probe#wrap(Runnable)}. Work done in thread pools internal to
+ * library code is not counted. CPU time and allocations are reported as -1
+ * when the JVM does not support measuring them.
+ * <p>
+ * Records can be read with {@link #getRecords()}, or dumped as CSV or JSON.
+ * The {@link #DISABLED} instance does not record anything and adds no
+ * measurement overhead; it is the default of the instrumented algorithms.
+ * <p>
+ * This class is thread safe.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SegmentationMetrics
+{
+
+	public static final String GAUSSIAN_FILTERING = "Gaussian filtering";
+
+	public static final String ANISOTROPIC_DIFFUSION = "Anisotropic diffusion";
+
+	public static final String GRADIENT = "Gradient";
+
+	public static final String LAPLACIAN = "Laplacian";
+
+	public static final String HESSIAN = "Hessian";
+
+	public static final String MASK = "Mask";
+
+	public static final String MASKING = "Masking";
+
+	public static final String OTSU_THRESHOLDING = "Otsu thresholding";
+
+	public static final String LABELING = "Labeling";
+
+	public static final String SPOT_CREATION = "Spot creation";
+
+	public static final String SPLITTING = "Splitting";
+
+	public static final String LABEL_WRITING = "Label writing";
+
+	private static final List< String > STAGE_NAMES = Collections.unmodifiableList( Arrays.asList( GAUSSIAN_FILTERING, ANISOTROPIC_DIFFUSION, GRADIENT, LAPLACIAN, HESSIAN, MASK, MASKING, OTSU_THRESHOLDING, LABELING, SPOT_CREATION, SPLITTING, LABEL_WRITING ) );
+
+	/** A metrics collector that records nothing. */
+	public static final SegmentationMetrics DISABLED = new SegmentationMetrics( false );
+
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+	/** The probe of the stage being measured on each thread. */
+	private static final ThreadLocal< Probe > CURRENT_PROBE = new ThreadLocal< Probe >();
+
+	private final boolean enabled;
+
+	private final List< Record > records = new ArrayList< Record >();
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	/**
+	 * Creates a new, enabled, metrics collector.
+	 */
+	public SegmentationMetrics()
+	{
+		this( true );
+	}
+
+	private SegmentationMetrics( final boolean enabled )
+	{
+		this.enabled = enabled;
+		if ( enabled && THREAD_MX_BEAN.isThreadCpuTimeSupported() && !THREAD_MX_BEAN.isThreadCpuTimeEnabled() )
+			THREAD_MX_BEAN.setThreadCpuTimeEnabled( true );
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Starts measuring a stage on the current thread.
+	 *
+	 * @param stage
+	 *            the stage name.
+	 * @param frame
+	 *            the frame the stage processes.
+	 * @return a probe, to stop when the stage is done.
+	 */
+	public Probe start( final String stage, final int frame )
+	{
+		if ( !enabled )
+			return Probe.NO_OP;
+
+		final Probe probe = new Probe( this, stage, frame );
+		CURRENT_PROBE.set( probe );
+		return probe;
+	}
+
+	/**
+	 * Returns <code>true</code> if this collector records metrics.
+	 */
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Returns a copy of the records collected so far, in the order stages
+	 * ended.
+	 */
+	public List< Record > getRecords()
+	{
+		synchronized ( records )
+		{
+			return new ArrayList< Record >( records );
+		}
+	}
+
+	/**
+	 * Writes the records collected so far as CSV, with a header line.
+	 */
+	public void writeCSV( final Writer writer ) throws IOException
+	{
+		writer.write( "frame,stage,wall_ns,cpu_ns,allocated_bytes,peak_buffer_bytes\n" );
+		for ( final Record record : getRecords() )
+		{
+			writer.write( String.format( Locale.US, "%d,%s,%d,%d,%d,%d\n", record.frame, record.stage, record.wallTime, record.cpuTime, record.allocatedBytes, record.peakBufferBytes ) );
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Writes the records collected so far as a JSON array of objects.
+	 */
+	public void writeJSON( final Writer writer ) throws IOException
+	{
+		final List< Record > list = getRecords();
+		writer.write( "[\n" );
+		for ( int i = 0; i < list.size(); i++ )
+		{
+			final Record record = list.get( i );
+			writer.write( String.format( Locale.US, "  { \"frame\": %d, \"stage\": \"%s\", \"wall_ns\": %d, \"cpu_ns\": %d, \"allocated_bytes\": %d, \"peak_buffer_bytes\": %d }%s\n",
+					record.frame, record.stage, record.wallTime, record.cpuTime, record.allocatedBytes, record.peakBufferBytes, i < list.size() - 1 ? "," : "" ) );
+		}
+		writer.write( "]\n" );
+		writer.flush();
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Starts and joins the specified threads, like
+	 * {@link SimpleMultiThreading#startAndJoin(Thread[])}. If a stage is
+	 * being measured on the calling thread, the CPU time and allocations of
+	 * the threads are added to it.
+	 */
+	public static void startAndJoin( final Thread[] threads )
+	{
+		final Probe probe = CURRENT_PROBE.get();
+		if ( null == probe )
+		{
+			SimpleMultiThreading.startAndJoin( threads );
+			return;
+		}
+
+		final Thread[] wrapped = new Thread[ threads.length ];
+		for ( int i = 0; i < threads.length; i++ )
+		{
+			wrapped[ i ] = new Thread( probe.wrap( threads[ i ] ), threads[ i ].getName() );
+		}
+		SimpleMultiThreading.startAndJoin( wrapped );
+	}
+
+	/**
+	 * Returns an unmodifiable list of the stage names used by the
+	 * segmentation, in processing order.
+	 */
+	public static List< String > getStageNames()
+	{
+		return STAGE_NAMES;
+	}
+
+	private static long threadCpuTime()
+	{
+		if ( !THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() )
+			return -1;
+		return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+	}
+
+	private static long threadAllocatedBytes()
+	{
+		if ( !( THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean ) )
+			return -1;
+		final com.sun.management.ThreadMXBean bean = ( com.sun.management.ThreadMXBean ) THREAD_MX_BEAN;
+		if ( !bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled() )
+			return -1;
+		return bean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Measures one stage of one frame.
+	 */
+	public static class Probe
+	{
+
+		private static final Probe NO_OP = new Probe( null, null, -1 );
+
+		private final SegmentationMetrics metrics;
+
+		private final String stage;
+
+		private final int frame;
+
+		private final Probe previous;
+
+		private final long startWall;
+
+		private final long startCpu;
+
+		private final long startAllocated;
+
+		private final AtomicLong workerCpu = new AtomicLong( 0 );
+
+		private final AtomicLong workerAllocated = new AtomicLong( 0 );
+
+		private Probe( final SegmentationMetrics metrics, final String stage, final int frame )
+		{
+			this.metrics = metrics;
+			this.stage = stage;
+			this.frame = frame;
+			if ( null == metrics )
+			{
+				this.previous = null;
+				this.startWall = 0;
+				this.startCpu = 0;
+				this.startAllocated = 0;
+			}
+			else
+			{
+				this.previous = CURRENT_PROBE.get();
+				this.startWall = System.nanoTime();
+				this.startCpu = threadCpuTime();
+				this.startAllocated = threadAllocatedBytes();
+			}
+		}
+
+		/**
+		 * Stops measuring the stage and records it. Must be called on the
+		 * thread that started it.
+		 *
+		 * @param peakBufferBytes
+		 *            the peak size of the buffers the stage kept live, in
+		 *            bytes, or -1 if unknown.
+		 */
+		public void stop( final long peakBufferBytes )
+		{
+			if ( null == metrics )
+				return;
+
+			final long wall = System.nanoTime() - startWall;
+			final long cpu = startCpu < 0 ? -1 : threadCpuTime() - startCpu + workerCpu.get();
+			final long allocated = startAllocated < 0 ? -1 : threadAllocatedBytes() - startAllocated + workerAllocated.get();
+			if ( null == previous )
+				CURRENT_PROBE.remove();
+			else
+				CURRENT_PROBE.set( previous );
+
+			final Record record = new Record( stage, frame, wall, cpu, allocated, peakBufferBytes );
+			synchronized ( metrics.records )
+			{
+				metrics.records.add( record );
+			}
+		}
+
+		/**
+		 * Returns a runnable that runs the specified one, and adds the CPU
+		 * time and allocations of the thread running it to this stage.
+		 */
+		public Runnable wrap( final Runnable runnable )
+		{
+			if ( null == metrics )
+				return runnable;
+
+			return new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final long cpu = threadCpuTime();
+					final long allocated = threadAllocatedBytes();
+					try
+					{
+						runnable.run();
+					}
+					finally
+					{
+						if ( cpu >= 0 )
+							workerCpu.addAndGet( threadCpuTime() - cpu );
+						if ( allocated >= 0 )
+							workerAllocated.addAndGet( threadAllocatedBytes() - allocated );
+					}
+				}
+			};
+		}
+
+		/**
+		 * Returns a thread factory whose threads add their CPU time and
+		 * allocations to this stage. For thread pools, the pool must be shut
+		 * down and terminated before the stage is stopped.
+		 */
+		public ThreadFactory getThreadFactory()
+		{
+			if ( null == metrics )
+				return Executors.defaultThreadFactory();
+
+			return new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					return new Thread( wrap( r ), stage + " worker" );
+				}
+			};
+		}
+	}
+
+	/**
+	 * The metrics of one stage of one frame.
+	 */
+	public static class Record
+	{
+
+		private final String stage;
+
+		private final int frame;
+
+		private final long wallTime;
+
+		private final long cpuTime;
+
+		private final long allocatedBytes;
+
+		private final long peakBufferBytes;
+
+		private Record( final String stage, final int frame, final long wallTime, final long cpuTime, final long allocatedBytes, final long peakBufferBytes )
+		{
+			this.stage = stage;
+			this.frame = frame;
+			this.wallTime = wallTime;
+			this.cpuTime = cpuTime;
+			this.allocatedBytes = allocatedBytes;
+			this.peakBufferBytes = peakBufferBytes;
+		}
+
+		public String getStage()
+		{
+			return stage;
+		}
+
+		public int getFrame()
+		{
+			return frame;
+		}
+
+		/** Returns the wall time of the stage, in ns. */
+		public long getWallTime()
+		{
+			return wallTime;
+		}
+
+		/** Returns the CPU time of the stage, in ns, or -1 if unknown. */
+		public long getCpuTime()
+		{
+			return cpuTime;
+		}
+
+		/** Returns the bytes allocated by the stage, or -1 if unknown. */
+		public long getAllocatedBytes()
+		{
+			return allocatedBytes;
+		}
+
+		/**
+		 * Returns the peak size of the buffers the stage kept live, in bytes,
+		 * or -1 if unknown.
+		 */
+		public long getPeakBufferBytes()
+		{
+			return peakBufferBytes;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( Locale.US, "Frame %d, %s: wall %.1f ms, CPU %.1f ms, allocated %d bytes, peak buffers %d bytes.", frame, stage, wallTime / 1e6, cpuTime / 1e6, allocatedBytes, peakBufferBytes );
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package fiji.plugin.cwnt.tracking;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.sparselap.costmatrix.CostMatrixCreator;
+import fiji.plugin.trackmate.tracking.sparselap.linker.SparseCostMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds the sparse linking cost matrix between the spots of two frames,
+ * with the squared distance as cost, using a {@link SpotGrid} over the
+ * targets so that only the pairs closer than the max distance are visited.
+ * <p>
+ * This is a drop-in replacement for the
+ * <code>JaqamanLinkingCostMatrixCreator</code> of TrackMate with a squared
+ * distance cost function, whose construction tests all the pairs of spots
+ * and dominates tracking time on dense embryos. Sources and targets without
+ * any candidate are left out of the matrix, and the alternative cost is the
+ * largest cost found times the alternative cost factor, as in TrackMate.
+ * <p>
+ * With a {@link LinkingRadiusModel}, each source is only linked to targets
+ * within its local linking radius, rather than the max distance.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class GridCostMatrixCreator implements CostMatrixCreator< Spot, Spot >
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[GridCostMatrixCreator] ";
+
+	private final List< Spot > sources;
+
+	private final SpotGrid targetGrid;
+
+	private final double maxDistance;
+
+	private final double alternativeCostFactor;
+
+	private LinkingRadiusModel radiusModel;
+
+	private double radiusScale = 1.;
+
+	private SparseCostMatrix scm;
+
+	private List< Spot > sourceList;
+
+	private List< Spot > targetList;
+
+	private double alternativeCost;
+
+	private long processingTime;
+
+	private String errorMessage;
+
+	/**
+	 * Creates a new cost matrix creator.
+	 *
+	 * @param sources
+	 *            the spots to link from.
+	 * @param targetGrid
+	 *            the grid over the spots to link to. It can be shared by
+	 *            several creators.
+	 * @param maxDistance
+	 *            the max linking distance, in physical units.
+	 * @param alternativeCostFactor
+	 *            the factor applied to the largest cost to get the cost of
+	 *            not linking.
+	 */
+	public GridCostMatrixCreator( final List< Spot > sources, final SpotGrid targetGrid, final double maxDistance, final double alternativeCostFactor )
+	{
+		this.sources = sources;
+		this.targetGrid = targetGrid;
+		this.maxDistance = maxDistance;
+		this.alternativeCostFactor = alternativeCostFactor;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Sets the model giving the linking radius of each source. If
+	 * <code>null</code>, the default, the max distance is used for all.
+	 *
+	 * @param radiusModel
+	 *            the radius model of the frame of the sources.
+	 * @param scale
+	 *            the factor applied to the radius of the model, for instance
+	 *            2 for gap closing.
+	 */
+	public void setRadiusModel( final LinkingRadiusModel radiusModel, final double scale )
+	{
+		this.radiusModel = radiusModel;
+		this.radiusScale = scale;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == sources || null == targetGrid )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Sources or targets are null.";
+			return false;
+		}
+		if ( !( maxDistance > 0 ) )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Max distance must be strictly positive, was " + maxDistance + ".";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final List< Spot > targets = targetGrid.getSpots();
+		final int nTargets = targets.size();
+		final int[] found = new int[ nTargets ];
+		final double[] sqDistances = new double[ nTargets ];
+
+		/*
+		 * Candidates of each source, with target indices in the grid. Sources
+		 * are sorted, as TrackMate expects.
+		 */
+
+		final List< Spot > sortedSources = new ArrayList< Spot >( sources );
+		Collections.sort( sortedSources );
+		final List< Spot > keptSources = new ArrayList< Spot >();
+		final List< int[] > candidates = new ArrayList< int[] >();
+		final List< double[] > candidateCosts = new ArrayList< double[] >();
+		final boolean[] targetUsed = new boolean[ nTargets ];
+		double maxCost = 0;
+		int nEntries = 0;
+		for ( final Spot source : sortedSources )
+		{
+			final double radius = null == radiusModel ? maxDistance : radiusScale * radiusModel.getRadius( source );
+			final int n = targetGrid.search( source.getFeature( Spot.POSITION_X ).doubleValue(), source.getFeature( Spot.POSITION_Y ).doubleValue(),
+					source.getFeature( Spot.POSITION_Z ).doubleValue(), radius, found, sqDistances );
+			if ( n == 0 )
+				continue;
+			keptSources.add( source );
+			candidates.add( Arrays.copyOf( found, n ) );
+			candidateCosts.add( Arrays.copyOf( sqDistances, n ) );
+			for ( int i = 0; i < n; i++ )
+			{
+				targetUsed[ found[ i ] ] = true;
+				if ( sqDistances[ i ] > maxCost )
+					maxCost = sqDistances[ i ];
+			}
+			nEntries += n;
+		}
+
+		if ( keptSources.isEmpty() )
+		{
+			// Nothing to link.
+			sourceList = Collections.emptyList();
+			targetList = Collections.emptyList();
+			scm = null;
+			alternativeCost = Double.NaN;
+			processingTime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		/*
+		 * Columns: the targets with at least one candidate, sorted.
+		 */
+
+		final List< Spot > keptTargets = new ArrayList< Spot >();
+		for ( int j = 0; j < nTargets; j++ )
+		{
+			if ( targetUsed[ j ] )
+				keptTargets.add( targets.get( j ) );
+		}
+		Collections.sort( keptTargets );
+		final int[] column = new int[ nTargets ];
+		Arrays.fill( column, -1 );
+		for ( int j = 0; j < nTargets; j++ )
+		{
+			if ( targetUsed[ j ] )
+				column[ j ] = Collections.binarySearch( keptTargets, targets.get( j ) );
+		}
+
+		/*
+		 * Rows, with columns in increasing order.
+		 */
+
+		final double[] cc = new double[ nEntries ];
+		final int[] kk = new int[ nEntries ];
+		final int[] number = new int[ keptSources.size() ];
+		int index = 0;
+		for ( int i = 0; i < keptSources.size(); i++ )
+		{
+			final int[] row = candidates.get( i );
+			final double[] rowCosts = candidateCosts.get( i );
+			final long[] sorted = new long[ row.length ];
+			for ( int k = 0; k < row.length; k++ )
+			{
+				// Column in the high bits, position in the row in the low bits.
+				sorted[ k ] = ( ( long ) column[ row[ k ] ] << 32 ) | k;
+			}
+			Arrays.sort( sorted );
+			for ( int k = 0; k < sorted.length; k++ )
+			{
+				kk[ index ] = ( int ) ( sorted[ k ] >>> 32 );
+				cc[ index ] = rowCosts[ ( int ) ( sorted[ k ] & 0xFFFFFFFFL ) ];
+				index++;
+			}
+			number[ i ] = row.length;
+		}
+
+		sourceList = keptSources;
+		targetList = keptTargets;
+		scm = new SparseCostMatrix( cc, kk, number, keptTargets.size() );
+		alternativeCost = alternativeCostFactor * maxCost;
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/**
+	 * Returns the cost matrix, or <code>null</code> if no pair of spots is
+	 * close enough.
+	 */
+	@Override
+	public SparseCostMatrix getResult()
+	{
+		return scm;
+	}
+
+	@Override
+	public List< Spot > getSourceList()
+	{
+		return sourceList;
+	}
+
+	@Override
+	public List< Spot > getTargetList()
+	{
+		return targetList;
+	}
+
+	@Override
+	public double getAlternativeCostForSource()
+	{
+		return alternativeCost;
+	}
+
+	@Override
+	public double getAlternativeCostForTarget()
+	{
+		return alternativeCost;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
@@ -0,0 +1,402 @@
+package fiji.plugin.cwnt.tracking;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.sparselap.linker.JaqamanLinker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Links nuclei frame to frame while the movie is being segmented, rather than
+ * once all the frames are done.
+ * <p>
+ * Frames can be added in any order, from any thread: they are buffered, and
+ * linked in frame order as soon as the frames before them are available.
+ * Each frame is first linked to the previous one by solving a LAP on the
+ * squared distances, as the sparse LAP tracker of TrackMate does, with the
+ * candidate pairs found through a {@link SpotGrid}. Track ends of the last
+ * frames that found no successor are then offered to the nuclei that found
+ * no predecessor, within a rolling window of <code>maxFrameGap</code> frames,
+ * for gap closing. Track merging and splitting are not considered.
+ * <p>
+ * Unless set, the max linking distance is estimated once, as twice the mean
+ * radius of the nuclei of the first frame that has any, and is then kept
+ * for the whole movie. The max gap-closing distance is twice that. With
+ * an adaptive radius, each nucleus is linked within the radius of its
+ * region in its frame instead, as given by a {@link LinkingRadiusModel},
+ * between a quarter and twice the max linking distance.
+ * <p>
+ * Links are accumulated, and added to a model with {@link #applyTo(Model)}
+ * once the model is built.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class IncrementalFrameLinker
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[IncrementalFrameLinker] ";
+
+	/** Same as the default of the sparse LAP tracker. */
+	static final double ALTERNATIVE_COST_FACTOR = 1.05;
+
+	/** The frames to link, sorted. */
+	private final int[] frames;
+
+	private final int maxFrameGap;
+
+	private double maxDistance = Double.NaN;
+
+	private boolean adaptiveRadius = false;
+
+	/*
+	 * Frames received, not linked yet.
+	 */
+
+	private final Map< Integer, List< Spot > > pending = new HashMap< Integer, List< Spot > >();
+
+	private int cursor = 0;
+
+	private boolean draining = false;
+
+	/*
+	 * Rolling window, only accessed by the thread draining the pending
+	 * frames.
+	 */
+
+	private final LinkedList< Integer > windowFrames = new LinkedList< Integer >();
+
+	private final LinkedList< List< Spot > > windowSpots = new LinkedList< List< Spot > >();
+
+	/** Spots of the window that have a successor. */
+	private final Set< Spot > linkedForward = new HashSet< Spot >();
+
+	/** The radius model of the last frame linked, if adaptive. */
+	private LinkingRadiusModel previousRadii;
+
+	/*
+	 * Links found.
+	 */
+
+	private final List< Spot > sources = new ArrayList< Spot >();
+
+	private final List< Spot > targets = new ArrayList< Spot >();
+
+	private final List< Double > costs = new ArrayList< Double >();
+
+	private int nGapsClosed = 0;
+
+	private String errorMessage;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new linker.
+	 *
+	 * @param frames
+	 *            the frames that will be added.
+	 * @param maxFrameGap
+	 *            the max number of frames between the ends of a gap,
+	 *            <code>KEY_GAP_CLOSING_MAX_FRAME_GAP</code> in TrackMate. 1
+	 *            disables gap closing.
+	 * @throws IllegalArgumentException
+	 *             if <code>maxFrameGap</code> is smaller than 1.
+	 */
+	public IncrementalFrameLinker( final int[] frames, final int maxFrameGap )
+	{
+		if ( maxFrameGap < 1 )
+			throw new IllegalArgumentException( "The max frame gap must be at least 1. Got " + maxFrameGap + "." );
+		this.frames = frames.clone();
+		Arrays.sort( this.frames );
+		this.maxFrameGap = maxFrameGap;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Sets a fixed max linking distance, in physical units. Gaps are closed
+	 * up to twice this distance. If <code>NaN</code>, the default, the
+	 * distance is estimated from the radius of the nuclei of the first frame
+	 * linked that has any. Must be called before the first frame is added.
+	 */
+	public void setMaxDistance( final double maxDistance )
+	{
+		this.maxDistance = maxDistance;
+	}
+
+	/**
+	 * Sets whether the linking radius adapts to the local density of nuclei.
+	 * Default is <code>false</code>.
+	 */
+	public void setAdaptiveRadius( final boolean adaptiveRadius )
+	{
+		this.adaptiveRadius = adaptiveRadius;
+	}
+
+	public boolean isAdaptiveRadius()
+	{
+		return adaptiveRadius;
+	}
+
+	/**
+	 * Adds the spots of a frame. The frame is linked, together with the
+	 * frames after it that were added already, if all the frames before it
+	 * are linked; otherwise it is buffered. Safe to call from several
+	 * threads: the caller that adds the missing frame links the buffered
+	 * ones.
+	 *
+	 * @return <code>false</code> if a frame could not be linked.
+	 */
+	public boolean addFrame( final int frame, final List< Spot > spots )
+	{
+		synchronized ( pending )
+		{
+			pending.put( Integer.valueOf( frame ), spots );
+			if ( draining )
+				return true;
+			draining = true;
+		}
+
+		while ( true )
+		{
+			final int next;
+			final List< Spot > nextSpots;
+			synchronized ( pending )
+			{
+				if ( null != errorMessage || cursor >= frames.length || !pending.containsKey( Integer.valueOf( frames[ cursor ] ) ) )
+				{
+					draining = false;
+					return null == errorMessage;
+				}
+				next = frames[ cursor++ ];
+				nextSpots = pending.remove( Integer.valueOf( next ) );
+			}
+
+			final boolean ok = linkFrame( next, nextSpots, null, null );
+			if ( !ok )
+			{
+				synchronized ( pending )
+				{
+					draining = false;
+					return false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if all the frames were added and linked.
+	 */
+	public boolean isComplete()
+	{
+		synchronized ( pending )
+		{
+			return cursor >= frames.length && !draining;
+		}
+	}
+
+	/**
+	 * Adds the links found to the specified model, which must hold the spots
+	 * that were added to this linker.
+	 */
+	public void applyTo( final Model model )
+	{
+		model.beginUpdate();
+		try
+		{
+			for ( int i = 0; i < sources.size(); i++ )
+			{
+				model.addEdge( sources.get( i ), targets.get( i ), costs.get( i ).doubleValue() );
+			}
+		}
+		finally
+		{
+			model.endUpdate();
+		}
+	}
+
+	/**
+	 * Returns the max linking distance, or 0 if it is not set and no nucleus
+	 * was linked yet.
+	 */
+	public double getMaxDistance()
+	{
+		return Double.isNaN( maxDistance ) ? 0 : maxDistance;
+	}
+
+	public int getNLinks()
+	{
+		return sources.size();
+	}
+
+	public int getNGapsClosed()
+	{
+		return nGapsClosed;
+	}
+
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Links a frame, after the frames before it.
+	 *
+	 * @param linker
+	 *            the linker that solved the links from the previous frame to
+	 *            this one, or <code>null</code> to solve them now.
+	 * @param radii
+	 *            the radius model of this frame, or <code>null</code> to build
+	 *            it now if the radius is adaptive.
+	 */
+	boolean linkFrame( final int frame, final List< Spot > spots, final JaqamanLinker< Spot, Spot > linker, final LinkingRadiusModel radii )
+	{
+		if ( Double.isNaN( maxDistance ) )
+			maxDistance = estimateMaxDistance( spots );
+		final double linkingDistance = getMaxDistance();
+		final SpotGrid grid = ( null == linker || ( adaptiveRadius && null == radii ) ) ? new SpotGrid( spots, linkingDistance ) : null;
+
+		final Set< Spot > linkedBackward = new HashSet< Spot >();
+		if ( !windowFrames.isEmpty() )
+		{
+			// Frame to frame.
+			if ( null != linker )
+				store( linker, linkedBackward );
+			else if ( !link( windowSpots.getLast(), grid, linkingDistance, previousRadii, 1., linkedBackward ) )
+				return false;
+
+			// Gap closing, from the ends of the older frames of the window.
+			if ( maxFrameGap > 1 && linkedBackward.size() < spots.size() )
+			{
+				final List< Spot > ends = new ArrayList< Spot >();
+				for ( int i = 0; i < windowFrames.size() - 1; i++ )
+				{
+					if ( frame - windowFrames.get( i ).intValue() > maxFrameGap )
+						continue;
+					for ( final Spot spot : windowSpots.get( i ) )
+					{
+						if ( !linkedForward.contains( spot ) )
+							ends.add( spot );
+					}
+				}
+				final List< Spot > starts = new ArrayList< Spot >();
+				for ( final Spot spot : spots )
+				{
+					if ( !linkedBackward.contains( spot ) )
+						starts.add( spot );
+				}
+				final int before = sources.size();
+				if ( !link( ends, new SpotGrid( starts, 2 * linkingDistance ), 2 * linkingDistance, previousRadii, 2., linkedBackward ) )
+					return false;
+				nGapsClosed += sources.size() - before;
+			}
+		}
+
+		if ( adaptiveRadius )
+			previousRadii = null != radii ? radii : createRadiusModel( grid, linkingDistance );
+
+		// Slide the window.
+		windowFrames.addLast( Integer.valueOf( frame ) );
+		windowSpots.addLast( spots );
+		while ( frame - windowFrames.getFirst().intValue() >= maxFrameGap )
+		{
+			windowFrames.removeFirst();
+			linkedForward.removeAll( windowSpots.removeFirst() );
+		}
+		return true;
+	}
+
+	/**
+	 * Solves the LAP between the specified sources and targets, and stores
+	 * the links.
+	 */
+	private boolean link( final List< Spot > linkSources, final SpotGrid targetGrid, final double distance, final LinkingRadiusModel radii, final double radiusScale, final Set< Spot > linkedBackward )
+	{
+		if ( linkSources.isEmpty() || targetGrid.getSpots().isEmpty() )
+			return true;
+
+		final JaqamanLinker< Spot, Spot > linker = solve( linkSources, targetGrid, distance, radii, radiusScale );
+		if ( !linker.checkInput() || !linker.process() )
+		{
+			synchronized ( pending )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + linker.getErrorMessage();
+			}
+			return false;
+		}
+		store( linker, linkedBackward );
+		return true;
+	}
+
+	/**
+	 * Returns a linker, not run yet, for the specified sources and targets.
+	 *
+	 * @param radii
+	 *            the radius model of the frame of the sources, or
+	 *            <code>null</code> to link within <code>distance</code>.
+	 */
+	static JaqamanLinker< Spot, Spot > solve( final List< Spot > linkSources, final SpotGrid targetGrid, final double distance, final LinkingRadiusModel radii, final double radiusScale )
+	{
+		final GridCostMatrixCreator creator = new GridCostMatrixCreator( linkSources, targetGrid, distance, ALTERNATIVE_COST_FACTOR );
+		creator.setRadiusModel( radii, radiusScale );
+		return new JaqamanLinker< Spot, Spot >( creator );
+	}
+
+	/**
+	 * Returns the radius model of a frame, for the specified max linking
+	 * distance.
+	 */
+	static LinkingRadiusModel createRadiusModel( final SpotGrid grid, final double maxDistance )
+	{
+		return new LinkingRadiusModel( grid, 0.25 * maxDistance, 2 * maxDistance );
+	}
+
+	/**
+	 * Returns twice the mean radius of the specified spots, or
+	 * <code>NaN</code> if none has a radius.
+	 */
+	private static double estimateMaxDistance( final List< Spot > spots )
+	{
+		double radiusSum = 0;
+		int nSpots = 0;
+		for ( final Spot spot : spots )
+		{
+			final Double radius = spot.getFeature( Spot.RADIUS );
+			if ( null != radius )
+			{
+				radiusSum += radius.doubleValue();
+				nSpots++;
+			}
+		}
+		return nSpots == 0 ? Double.NaN : 2 * radiusSum / nSpots;
+	}
+
+	private void store( final JaqamanLinker< Spot, Spot > linker, final Set< Spot > linkedBackward )
+	{
+		final Map< Spot, Spot > assignment = linker.getResult();
+		final Map< Spot, Double > assignmentCosts = linker.getAssignmentCosts();
+		for ( final Spot source : assignment.keySet() )
+		{
+			final Spot target = assignment.get( source );
+			sources.add( source );
+			targets.add( target );
+			costs.add( assignmentCosts.get( source ) );
+			linkedForward.add( source );
+			linkedBackward.add( target );
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package fiji.plugin.cwnt.tracking;
+
+import fiji.plugin.trackmate.Spot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The max linking distance of the nuclei of one frame, adapted to the local
+ * density of nuclei.
+ * <p>
+ * The distance of each nucleus to its nearest neighbour is measured with a
+ * {@link SpotGrid}. The frame is then cut in cubic regions of
+ * {@value #REGION_SPACINGS} typical spacings, and the linking radius of a
+ * region is its median nearest-neighbour distance, times
+ * {@value #SPACING_FACTOR}, clamped to the bounds given. Regions with less
+ * than {@value #MIN_SPOTS_PER_REGION} nuclei use the median of the frame.
+ * <p>
+ * Where nuclei are packed, the radius shrinks to their spacing, so that a
+ * nucleus only has a handful of candidates to link to, and cost matrices
+ * grow with the number of nuclei rather than with their density. Where they
+ * are sparse, the radius grows, so that fast nuclei are not lost.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class LinkingRadiusModel
+{
+
+	/** The linking radius, in nearest-neighbour distances. */
+	public static final double SPACING_FACTOR = 1.;
+
+	/** The side of a region, in median nearest-neighbour distances. */
+	public static final int REGION_SPACINGS = 8;
+
+	public static final int MIN_SPOTS_PER_REGION = 8;
+
+	private final double minRadius;
+
+	private final double maxRadius;
+
+	private final double frameRadius;
+
+	private final double regionSize;
+
+	private final Map< Long, Double > regionRadii = new HashMap< Long, Double >();
+
+	/**
+	 * Builds the model of a frame.
+	 *
+	 * @param grid
+	 *            the grid over the spots of the frame.
+	 * @param minRadius
+	 *            the smallest linking radius, in physical units.
+	 * @param maxRadius
+	 *            the largest linking radius. Also bounds the search of the
+	 *            nearest neighbours.
+	 */
+	public LinkingRadiusModel( final SpotGrid grid, final double minRadius, final double maxRadius )
+	{
+		this.minRadius = minRadius;
+		this.maxRadius = maxRadius;
+
+		final List< Spot > spots = grid.getSpots();
+		final int n = spots.size();
+		final double searchRadius = maxRadius / SPACING_FACTOR;
+		final double[] nn = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			// Isolated nuclei count as spaced by the search radius.
+			nn[ i ] = Math.min( searchRadius, grid.nearestNeighbourDistance( i, searchRadius ) );
+		}
+
+		final double frameSpacing = n == 0 ? searchRadius : median( nn.clone(), n );
+		this.frameRadius = clamp( SPACING_FACTOR * frameSpacing );
+		this.regionSize = Math.max( REGION_SPACINGS * frameSpacing, grid.getCellSize() );
+
+		// Nearest-neighbour distances per region.
+		final Map< Long, List< Double > > regions = new HashMap< Long, List< Double > >();
+		for ( int i = 0; i < n; i++ )
+		{
+			final Long key = Long.valueOf( regionKey( spots.get( i ) ) );
+			List< Double > distances = regions.get( key );
+			if ( null == distances )
+			{
+				distances = new ArrayList< Double >();
+				regions.put( key, distances );
+			}
+			distances.add( Double.valueOf( nn[ i ] ) );
+		}
+		for ( final Long key : regions.keySet() )
+		{
+			final List< Double > distances = regions.get( key );
+			if ( distances.size() < MIN_SPOTS_PER_REGION )
+				continue;
+			final double[] values = new double[ distances.size() ];
+			for ( int i = 0; i < values.length; i++ )
+			{
+				values[ i ] = distances.get( i ).doubleValue();
+			}
+			regionRadii.put( key, Double.valueOf( clamp( SPACING_FACTOR * median( values, values.length ) ) ) );
+		}
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Returns the linking radius at the position of the specified spot.
+	 */
+	public double getRadius( final Spot spot )
+	{
+		final Double radius = regionRadii.get( Long.valueOf( regionKey( spot ) ) );
+		return null == radius ? frameRadius : radius.doubleValue();
+	}
+
+	/**
+	 * Returns the linking radius of the frame, used where regions hold too
+	 * few nuclei.
+	 */
+	public double getFrameRadius()
+	{
+		return frameRadius;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private double clamp( final double radius )
+	{
+		return Math.max( minRadius, Math.min( maxRadius, radius ) );
+	}
+
+	private long regionKey( final Spot spot )
+	{
+		final long ix = ( long ) Math.floor( spot.getFeature( Spot.POSITION_X ).doubleValue() / regionSize );
+		final long iy = ( long ) Math.floor( spot.getFeature( Spot.POSITION_Y ).doubleValue() / regionSize );
+		final long iz = ( long ) Math.floor( spot.getFeature( Spot.POSITION_Z ).doubleValue() / regionSize );
+		return ( ( ix & 0x1FFFFF ) << 42 ) | ( ( iy & 0x1FFFFF ) << 21 ) | ( iz & 0x1FFFFF );
+	}
+
+	/**
+	 * Median of the first n values. Sorts them.
+	 */
+	private static double median( final double[] values, final int n )
+	{
+		Arrays.sort( values, 0, n );
+		return n % 2 == 1 ? values[ n / 2 ] : 0.5 * ( values[ n / 2 - 1 ] + values[ n / 2 ] );
+	}
+}
@@ -0,0 +1,239 @@
+package fiji.plugin.cwnt.tracking;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.tracking.sparselap.linker.JaqamanLinker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
+import net.imglib2.multithreading.SimpleMultiThreading;
+
+/**
+ * Tracks the nuclei of a whole movie once it is segmented, with the same
+ * links as the {@link IncrementalFrameLinker}, but solving the frame-to-frame
+ * LAPs of all pairs of consecutive frames in parallel.
+ * <p>
+ * Each frame is indexed in a {@link SpotGrid} once, and only the pairs of
+ * spots closer than the max distance are put in the cost matrices, so that
+ * building them scales with the number of spots rather than with its
+ * square. Gaps are then closed sequentially, frame after frame, between the
+ * few track ends and starts left. With an adaptive radius, the radius model
+ * of each frame is built in parallel too.
+ *
+ * @author Jean-Yves Tinevez
+ */
+@SuppressWarnings( "deprecation" )
+public class ParallelFrameLinker extends MultiThreadedBenchmarkAlgorithm
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[ParallelFrameLinker] ";
+
+	private final SpotCollection spots;
+
+	private final double maxDistance;
+
+	private final int maxFrameGap;
+
+	private boolean adaptiveRadius = false;
+
+	private IncrementalFrameLinker links;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new linker.
+	 *
+	 * @param spots
+	 *            the spots to track. Only visible spots are considered.
+	 * @param maxDistance
+	 *            the max linking distance, in physical units. Gaps are closed
+	 *            up to twice this distance.
+	 * @param maxFrameGap
+	 *            the max number of frames between the ends of a gap.
+	 */
+	public ParallelFrameLinker( final SpotCollection spots, final double maxDistance, final int maxFrameGap )
+	{
+		super();
+		this.spots = spots;
+		this.maxDistance = maxDistance;
+		this.maxFrameGap = maxFrameGap;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Sets whether the linking radius adapts to the local density of nuclei.
+	 *
+	 * @see IncrementalFrameLinker#setAdaptiveRadius(boolean)
+	 */
+	public void setAdaptiveRadius( final boolean adaptiveRadius )
+	{
+		this.adaptiveRadius = adaptiveRadius;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( null == spots )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Spots are null.";
+			return false;
+		}
+		if ( !( maxDistance > 0 ) )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Max distance must be strictly positive, was " + maxDistance + ".";
+			return false;
+		}
+		if ( maxFrameGap < 1 )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Max frame gap must be at least 1, was " + maxFrameGap + ".";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final List< Integer > frameList = new ArrayList< Integer >( spots.keySet() );
+		final int nFrames = frameList.size();
+		final int[] frames = new int[ nFrames ];
+		final List< List< Spot > > frameSpots = new ArrayList< List< Spot > >( nFrames );
+		for ( int i = 0; i < nFrames; i++ )
+		{
+			frames[ i ] = frameList.get( i ).intValue();
+			final List< Spot > list = new ArrayList< Spot >();
+			for ( final Spot spot : spots.iterable( frames[ i ], true ) )
+			{
+				list.add( spot );
+			}
+			frameSpots.add( list );
+		}
+
+		/*
+		 * Index each frame, in parallel.
+		 */
+
+		final SpotGrid[] grids = new SpotGrid[ nFrames ];
+		final LinkingRadiusModel[] radii = new LinkingRadiusModel[ nFrames ];
+		final AtomicInteger ag = new AtomicInteger( 0 );
+		final Thread[] gridThreads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < gridThreads.length; ithread++ )
+		{
+			gridThreads[ ithread ] = new Thread( BASE_ERROR_MESSAGE + "Frame indexing thread " + ithread )
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = ag.getAndIncrement(); i < nFrames; i = ag.getAndIncrement() )
+					{
+						grids[ i ] = new SpotGrid( frameSpots.get( i ), maxDistance );
+						if ( adaptiveRadius )
+							radii[ i ] = IncrementalFrameLinker.createRadiusModel( grids[ i ], maxDistance );
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( gridThreads );
+
+		/*
+		 * Frame to frame, in parallel. Linker i links frame i-1 to frame i.
+		 */
+
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final JaqamanLinker< Spot, Spot >[] linkers = new JaqamanLinker[ nFrames ];
+		final AtomicInteger ai = new AtomicInteger( 1 );
+		final AtomicBoolean ok = new AtomicBoolean( true );
+		// Workers do not write the inherited error message, which is not volatile.
+		final AtomicReference< String > workerError = new AtomicReference< String >();
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ithread++ )
+		{
+			threads[ ithread ] = new Thread( BASE_ERROR_MESSAGE + "Frame to frame linking thread " + ithread )
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < nFrames; i = ai.getAndIncrement() )
+					{
+						if ( !ok.get() )
+							return;
+						final List< Spot > sources = frameSpots.get( i - 1 );
+						final List< Spot > targets = frameSpots.get( i );
+						if ( sources.isEmpty() || targets.isEmpty() )
+							continue;
+						final JaqamanLinker< Spot, Spot > linker = IncrementalFrameLinker.solve( sources, grids[ i ], maxDistance, radii[ i - 1 ], 1. );
+						if ( !linker.checkInput() || !linker.process() )
+						{
+							workerError.compareAndSet( null, BASE_ERROR_MESSAGE + linker.getErrorMessage() );
+							ok.set( false );
+							return;
+						}
+						linkers[ i ] = linker;
+					}
+				}
+			};
+		}
+		SimpleMultiThreading.startAndJoin( threads );
+		if ( !ok.get() )
+		{
+			errorMessage = workerError.get();
+			return false;
+		}
+
+		/*
+		 * Gap closing, in frame order.
+		 */
+
+		links = new IncrementalFrameLinker( frames, maxFrameGap );
+		links.setMaxDistance( maxDistance );
+		links.setAdaptiveRadius( adaptiveRadius );
+		for ( int i = 0; i < nFrames; i++ )
+		{
+			if ( !links.linkFrame( frames[ i ], frameSpots.get( i ), linkers[ i ], radii[ i ] ) )
+			{
+				errorMessage = links.getErrorMessage();
+				return false;
+			}
+			// Free the assignments as we go.
+			linkers[ i ] = null;
+			grids[ i ] = null;
+			radii[ i ] = null;
+		}
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Adds the links found to the specified model, which must hold the spots
+	 * tracked.
+	 */
+	public void applyTo( final Model model )
+	{
+		links.applyTo( model );
+	}
+
+	public int getNLinks()
+	{
+		return links.getNLinks();
+	}
+
+	public int getNGapsClosed()
+	{
+		return links.getNGapsClosed();
+	}
+}
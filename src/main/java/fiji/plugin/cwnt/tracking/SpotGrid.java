@@ -0,0 +1,235 @@
+package fiji.plugin.cwnt.tracking;
+
+import fiji.plugin.trackmate.Spot;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid over the centroids of the spots of one frame, in physical
+ * units, to find the spots close to a position without scanning all of
+ * them.
+ * <p>
+ * Spots are bucketed in cubic cells whose side is typically the search
+ * radius, so that a search visits 27 cells, or 9 in 2D. The grid is
+ * immutable once built, and can be searched from several threads.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class SpotGrid
+{
+
+	private static final int BITS = 21;
+
+	private static final long MASK = ( 1L << BITS ) - 1;
+
+	private final List< Spot > spots;
+
+	private final double cellSize;
+
+	/** Centroids, interleaved x, y, z. */
+	private final double[] pos;
+
+	/** Spot indices, grouped by cell. */
+	private final int[] order;
+
+	/** For each cell key, the start and end of its spots in order. */
+	private final Map< Long, int[] > cells;
+
+	/**
+	 * Indexes the specified spots.
+	 *
+	 * @param spots
+	 *            the spots. Must not be modified while the grid is used.
+	 * @param cellSize
+	 *            the side of a cell, in physical units. Searches are faster
+	 *            when it is close to the search radius.
+	 */
+	public SpotGrid( final List< Spot > spots, final double cellSize )
+	{
+		this.spots = spots;
+		this.cellSize = cellSize > 0 ? cellSize : 1;
+		final int n = spots.size();
+		this.pos = new double[ 3 * n ];
+		final long[] keys = new long[ n ];
+		this.cells = new HashMap< Long, int[] >();
+		for ( int i = 0; i < n; i++ )
+		{
+			final Spot spot = spots.get( i );
+			pos[ 3 * i ] = spot.getFeature( Spot.POSITION_X ).doubleValue();
+			pos[ 3 * i + 1 ] = spot.getFeature( Spot.POSITION_Y ).doubleValue();
+			pos[ 3 * i + 2 ] = spot.getFeature( Spot.POSITION_Z ).doubleValue();
+			keys[ i ] = key( cell( pos[ 3 * i ] ), cell( pos[ 3 * i + 1 ] ), cell( pos[ 3 * i + 2 ] ) );
+
+			final Long key = Long.valueOf( keys[ i ] );
+			final int[] range = cells.get( key );
+			if ( null == range )
+				cells.put( key, new int[] { 0, 1 } );
+			else
+				range[ 1 ]++;
+		}
+
+		// Counts to ranges.
+		int start = 0;
+		for ( final int[] range : cells.values() )
+		{
+			final int count = range[ 1 ];
+			range[ 0 ] = start;
+			range[ 1 ] = start;
+			start += count;
+		}
+		this.order = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final int[] range = cells.get( Long.valueOf( keys[ i ] ) );
+			order[ range[ 1 ]++ ] = i;
+		}
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Collects the indices of the spots within the specified distance of a
+	 * position, and their squared distances to it.
+	 *
+	 * @param x
+	 *            the X position, in physical units.
+	 * @param y
+	 *            the Y position.
+	 * @param z
+	 *            the Z position.
+	 * @param radius
+	 *            the max distance.
+	 * @param indices
+	 *            receives the indices of the spots found, in the list this
+	 *            grid was built from. Must be at least as large as the number
+	 *            of spots.
+	 * @param sqDistances
+	 *            receives their squared distances. Same size as
+	 *            <code>indices</code>.
+	 * @return the number of spots found.
+	 */
+	public int search( final double x, final double y, final double z, final double radius, final int[] indices, final double[] sqDistances )
+	{
+		final double sqRadius = radius * radius;
+		final int r = ( int ) Math.ceil( radius / cellSize );
+		final long cx = cell( x );
+		final long cy = cell( y );
+		final long cz = cell( z );
+		int found = 0;
+		for ( long iz = cz - r; iz <= cz + r; iz++ )
+		{
+			for ( long iy = cy - r; iy <= cy + r; iy++ )
+			{
+				for ( long ix = cx - r; ix <= cx + r; ix++ )
+				{
+					final int[] range = cells.get( Long.valueOf( key( ix, iy, iz ) ) );
+					if ( null == range )
+						continue;
+					for ( int k = range[ 0 ]; k < range[ 1 ]; k++ )
+					{
+						final int i = order[ k ];
+						final double dx = pos[ 3 * i ] - x;
+						final double dy = pos[ 3 * i + 1 ] - y;
+						final double dz = pos[ 3 * i + 2 ] - z;
+						final double d2 = dx * dx + dy * dy + dz * dz;
+						if ( d2 <= sqRadius )
+						{
+							indices[ found ] = i;
+							sqDistances[ found ] = d2;
+							found++;
+						}
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Returns the distance from a spot of this grid to its nearest
+	 * neighbour, looking no further than <code>maxRadius</code>.
+	 *
+	 * @param index
+	 *            the index of the spot, in the list this grid was built from.
+	 * @param maxRadius
+	 *            the max distance to look at.
+	 * @return the distance, or <code>Double.POSITIVE_INFINITY</code> if no
+	 *         spot is close enough.
+	 */
+	public double nearestNeighbourDistance( final int index, final double maxRadius )
+	{
+		final double x = pos[ 3 * index ];
+		final double y = pos[ 3 * index + 1 ];
+		final double z = pos[ 3 * index + 2 ];
+		final double sqRadius = maxRadius * maxRadius;
+		final int r = ( int ) Math.ceil( maxRadius / cellSize );
+		final long cx = cell( x );
+		final long cy = cell( y );
+		final long cz = cell( z );
+		double best = Double.POSITIVE_INFINITY;
+		for ( long iz = cz - r; iz <= cz + r; iz++ )
+		{
+			for ( long iy = cy - r; iy <= cy + r; iy++ )
+			{
+				for ( long ix = cx - r; ix <= cx + r; ix++ )
+				{
+					final int[] range = cells.get( Long.valueOf( key( ix, iy, iz ) ) );
+					if ( null == range )
+						continue;
+					for ( int k = range[ 0 ]; k < range[ 1 ]; k++ )
+					{
+						final int i = order[ k ];
+						if ( i == index )
+							continue;
+						final double dx = pos[ 3 * i ] - x;
+						final double dy = pos[ 3 * i + 1 ] - y;
+						final double dz = pos[ 3 * i + 2 ] - z;
+						final double d2 = dx * dx + dy * dy + dz * dz;
+						if ( d2 <= sqRadius && d2 < best )
+							best = d2;
+					}
+				}
+			}
+		}
+		return Math.sqrt( best );
+	}
+
+	/**
+	 * Returns the spots indexed.
+	 */
+	public List< Spot > getSpots()
+	{
+		return spots;
+	}
+
+	/**
+	 * Returns the side of the cells, in physical units.
+	 */
+	public double getCellSize()
+	{
+		return cellSize;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private long cell( final double v )
+	{
+		return ( long ) Math.floor( v / cellSize );
+	}
+
+	/**
+	 * Packs cell coordinates in one key. Coordinates wrap after 2<sup>21</sup>
+	 * cells, which only makes far cells share a key: distances are always
+	 * checked.
+	 */
+	private static long key( final long ix, final long iy, final long iz )
+	{
+		return ( ( ix & MASK ) << ( 2 * BITS ) ) | ( ( iy & MASK ) << BITS ) | ( iz & MASK );
+	}
+}
@@ -1,5 +1,7 @@
 package mpicbg.imglib.algorithm.gauss;
 
+import fiji.plugin.cwnt.segmentation.SegmentationMetrics;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
@@ -199,7 +201,7 @@ public class GaussianGradient2D< T extends RealType< T >> extends MultiThreadedB
 			};
 		}
 
-		SimpleMultiThreading.startAndJoin( threads );
+		SegmentationMetrics.startAndJoin( threads );
 		return norm;
 	}
 
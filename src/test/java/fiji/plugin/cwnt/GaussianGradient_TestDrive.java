@@ -1,11 +1,10 @@
 package fiji.plugin.cwnt;
 
+import fiji.plugin.cwnt.phantom.NucleiPhantomGenerator;
 import fiji.plugin.trackmate.detection.DetectionUtils;
-import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 
-import java.io.File;
 import java.util.List;
 
 import mpicbg.imglib.algorithm.gauss.GaussianGradient2D;
@@ -22,12 +21,11 @@ public class GaussianGradient_TestDrive {
 	public static < T extends RealType< T > & NativeType< T >> void main( final String[] args )
 	{
 		
-//		File testImage = new File("/Users/tinevez/Projects/BRajaseka/Data/point.tif");
-		final File testImage = new File( "/Users/tinevez/Projects/BRajasekaran/Data/Meta-nov7mdb18ssplus-embryo2-1.tif" );
-		
-		
 		ImageJ.main(args);
-		final ImagePlus imp = IJ.openImage(testImage.getAbsolutePath());
+		final NucleiPhantomGenerator generator = new NucleiPhantomGenerator();
+		generator.setSize( 256, 256, 10 );
+		generator.process();
+		final ImagePlus imp = generator.getResult().getImage();
 		imp.show();
 
 		final Img< T > source = ImageJFunctions.wrap( imp );
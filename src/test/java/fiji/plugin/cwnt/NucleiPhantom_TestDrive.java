@@ -0,0 +1,66 @@
+package fiji.plugin.cwnt;
+
+import fiji.plugin.cwnt.phantom.NucleiPhantom;
+import fiji.plugin.cwnt.phantom.NucleiPhantomGenerator;
+import fiji.plugin.cwnt.phantom.PhantomAccuracy;
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenter;
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImageJ;
+import ij.ImagePlus;
+
+import java.util.Map;
+
+public class NucleiPhantom_TestDrive
+{
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static void main( final String[] args )
+	{
+		ImageJ.main( args );
+
+		System.out.print( "Generating phantom ... " );
+		final NucleiPhantomGenerator generator = new NucleiPhantomGenerator();
+		generator.setSize( 256, 256, 20 );
+		generator.setNFrames( 3 );
+		generator.setCalibration( new double[] { 0.5, 0.5, 1.5 }, 1 );
+		generator.setNucleusRadius( 3, 0.1 );
+		generator.setTouchingFraction( 0.3 );
+		generator.setMotion( 0.5, new double[] { 0.2, 0, 0 } );
+		generator.setNumThreads();
+		if ( !( generator.checkInput() && generator.process() ) )
+		{
+			System.err.println( generator.getErrorMessage() );
+			return;
+		}
+		final NucleiPhantom phantom = generator.getResult();
+		System.out.println( "dt = " + generator.getProcessingTime() / 1e3 + " s." );
+		System.out.println( phantom.getNucleusCount() + " nuclei, " + phantom.getTouchingCount() + " touching." );
+
+		final ImagePlus imp = phantom.getImage();
+		imp.show();
+		phantom.getLabels().show();
+
+		final CrownWearingSegmenterFactory factory = new CrownWearingSegmenterFactory();
+		final Map< String, Object > settings = factory.getDefaultSettings();
+		factory.setTarget( TMUtils.rawWraps( imp ), settings );
+
+		final SpotCollection detected = new SpotCollection();
+		for ( int frame = 0; frame < imp.getNFrames(); frame++ )
+		{
+			final CrownWearingSegmenter segmenter = factory.getDetector( null, frame );
+			segmenter.setNumThreads();
+			if ( !( segmenter.checkInput() && segmenter.process() ) )
+			{
+				System.err.println( segmenter.getErrorMessage() );
+				return;
+			}
+			detected.put( frame, segmenter.getResult() );
+			System.out.println( "Frame " + frame + ": found " + segmenter.getResult().size() + " nuclei in " + segmenter.getProcessingTime() / 1e3 + " s." );
+		}
+
+		final PhantomAccuracy accuracy = PhantomAccuracy.compare( phantom.getGroundTruth(), detected, 3 );
+		System.out.println( accuracy );
+	}
+}
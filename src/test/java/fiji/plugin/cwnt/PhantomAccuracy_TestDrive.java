@@ -0,0 +1,87 @@
+package fiji.plugin.cwnt;
+
+import fiji.plugin.cwnt.phantom.NucleiPhantom;
+import fiji.plugin.cwnt.phantom.NucleiPhantomGenerator;
+import fiji.plugin.cwnt.phantom.PhantomAccuracy;
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenter;
+import fiji.plugin.cwnt.segmentation.CrownWearingSegmenterFactory;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.ImagePlus;
+
+import java.util.Map;
+
+/**
+ * Accuracy regression check. Segments a seeded phantom with the default
+ * settings, and exits with a non-zero status if the accuracy drops below
+ * fixed bounds, so that it can be run headless after changes to the
+ * segmentation.
+ */
+public class PhantomAccuracy_TestDrive
+{
+
+	private static final long SEED = 1l;
+
+	private static final double MIN_RECALL = 0.8;
+
+	private static final double MIN_PRECISION = 0.8;
+
+	private static final double MIN_F1 = 0.8;
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static void main( final String[] args )
+	{
+		final NucleiPhantomGenerator generator = new NucleiPhantomGenerator();
+		generator.setSeed( SEED );
+		generator.setSize( 256, 256, 20 );
+		generator.setNFrames( 2 );
+		generator.setCalibration( new double[] { 0.5, 0.5, 1.5 }, 1 );
+		generator.setNucleusRadius( 3, 0.1 );
+		generator.setTouchingFraction( 0.3 );
+		generator.setGenerateLabels( false );
+		generator.setNumThreads();
+		if ( !( generator.checkInput() && generator.process() ) )
+		{
+			System.err.println( generator.getErrorMessage() );
+			System.exit( 1 );
+		}
+		final NucleiPhantom phantom = generator.getResult();
+		final ImagePlus imp = phantom.getImage();
+
+		final CrownWearingSegmenterFactory factory = new CrownWearingSegmenterFactory();
+		final Map< String, Object > settings = factory.getDefaultSettings();
+		factory.setTarget( TMUtils.rawWraps( imp ), settings );
+
+		final SpotCollection detected = new SpotCollection();
+		for ( int frame = 0; frame < imp.getNFrames(); frame++ )
+		{
+			final CrownWearingSegmenter segmenter = factory.getDetector( null, frame );
+			segmenter.setNumThreads();
+			if ( !( segmenter.checkInput() && segmenter.process() ) )
+			{
+				System.err.println( segmenter.getErrorMessage() );
+				System.exit( 1 );
+			}
+			detected.put( frame, segmenter.getResult() );
+		}
+
+		final PhantomAccuracy accuracy = PhantomAccuracy.compare( phantom.getGroundTruth(), detected, 3 );
+		System.out.println( accuracy );
+
+		boolean ok = true;
+		ok = ok & check( "Recall", accuracy.getRecall(), MIN_RECALL );
+		ok = ok & check( "Precision", accuracy.getPrecision(), MIN_PRECISION );
+		ok = ok & check( "F1", accuracy.getF1(), MIN_F1 );
+		if ( !ok )
+			System.exit( 1 );
+		System.out.println( "Accuracy within bounds." );
+	}
+
+	private static boolean check( final String name, final double value, final double min )
+	{
+		if ( value >= min )
+			return true;
+		System.err.println( String.format( "%s dropped to %.3f, below %.3f.", name, value, min ) );
+		return false;
+	}
+}